@@ -0,0 +1,44 @@
+package com.nektron.statemachine.benchmark;
+
+/**
+ *
+ * Typed events used by the benchmarks. Transitions are registered by event type, so every instance of a
+ * subclass resolves to the same transition.
+ *
+ */
+public class BenchmarkEvent {
+
+	protected final double amount;
+
+	public BenchmarkEvent(double amount) {
+		this.amount = amount;
+	}
+
+	public double getAmount() {
+		return amount;
+	}
+
+	public static class Open extends BenchmarkEvent {
+		public Open(double amount) {
+			super(amount);
+		}
+	}
+
+	public static class Trade extends BenchmarkEvent {
+		public Trade(double amount) {
+			super(amount);
+		}
+	}
+
+	public static class Close extends BenchmarkEvent {
+		public Close(double amount) {
+			super(amount);
+		}
+	}
+
+	public static class Heartbeat extends BenchmarkEvent {
+		public Heartbeat(double amount) {
+			super(amount);
+		}
+	}
+}
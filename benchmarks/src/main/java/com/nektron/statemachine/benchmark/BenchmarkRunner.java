@@ -0,0 +1,46 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Runs the benchmarks twice: once for throughput (ops/s) and once sampling latency (ns, with the
+ * p50/p90/p99/p99.9 percentiles), both with the GC profiler so every result reports the bytes
+ * allocated per operation (gc.alloc.rate.norm).
+ *
+ * Usage: java -jar target/benchmarks.jar [regexp] [standard JMH options]
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+		new Runner(options(commandLineOptions, Mode.Throughput, TimeUnit.SECONDS)).run();
+		new Runner(options(commandLineOptions, Mode.SampleTime, TimeUnit.NANOSECONDS)).run();
+	}
+
+	private static Options options(CommandLineOptions commandLineOptions, Mode mode, TimeUnit timeUnit) {
+
+		OptionsBuilder builder = new OptionsBuilder();
+
+		if (commandLineOptions.getIncludes().isEmpty())
+			builder.include("com.nektron.statemachine.benchmark.*");
+
+		return builder.parent(commandLineOptions)
+				.mode(mode)
+				.timeUnit(timeUnit)
+				.addProfiler(GCProfiler.class)
+				.build();
+	}
+}
@@ -0,0 +1,7 @@
+package com.nektron.statemachine.benchmark;
+
+public enum BenchmarkState {
+
+	START, NEW, COMPUTE, DONE;
+
+}
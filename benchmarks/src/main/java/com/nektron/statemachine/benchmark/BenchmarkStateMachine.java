@@ -0,0 +1,20 @@
+package com.nektron.statemachine.benchmark;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+
+/**
+ *
+ * State machine with logging switchable from the benchmark parameters.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public class BenchmarkStateMachine<INPUT, STATE extends Enum<STATE>, OUTPUT> extends StateMachineImpl<INPUT, STATE, OUTPUT> {
+
+	public BenchmarkStateMachine(StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel, OUTPUT initialValue, boolean shouldLog) {
+		super(stateMachineModel, initialValue);
+		this.shouldLog = shouldLog;
+	}
+}
@@ -0,0 +1,112 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Close;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Open;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Trade;
+import com.nektron.statemachine.impl.StateMachineImpl;
+
+/**
+ *
+ * Interpreted against generated dispatch when several machine types run in the same process. Four models,
+ * each with its own action classes, are fed in turn, so the interpreter's shared action call sites see
+ * four receiver classes per kind (megamorphic) while every generated dispatcher calls its own actions.
+ *
+ * Compiled dispatch needs the state machine built and the benchmarks packaged with -Pjdk21, and JDK 21+
+ * to run; otherwise both params measure the interpreter.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledDispatchBenchmark {
+
+	@State(Scope.Thread)
+	public static class MachineTypes {
+
+		@Param({"false", "true"})
+		public boolean compiled;
+
+		final BenchmarkEvent[] events = {new Open(1.0), new Trade(2.5), new Trade(0.5), new Close(1.0)};
+		@SuppressWarnings("unchecked")
+		final StateMachine<BenchmarkEvent, BenchmarkState, Double>[] stateMachines = new StateMachine[4];
+		int machine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model = model("TYPE-1");
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, (Open event, Double value) -> event.getAmount());
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value + event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value + event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, (Close event, Double value) -> 0.0);
+			stateMachines[0] = machine(model);
+
+			model = model("TYPE-2");
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, (Open event, Double value) -> event.getAmount() * 2);
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value - event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value - event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, (Close event, Double value) -> 1.0);
+			stateMachines[1] = machine(model);
+
+			model = model("TYPE-3");
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, (Open event, Double value) -> event.getAmount() + 1);
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value * event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value * event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, (Close event, Double value) -> 2.0);
+			stateMachines[2] = machine(model);
+
+			model = model("TYPE-4");
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, (Open event, Double value) -> -event.getAmount());
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> Math.max(value, event.getAmount()));
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> Math.max(value, event.getAmount()));
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, (Close event, Double value) -> 3.0);
+			stateMachines[3] = machine(model);
+		}
+
+		private StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model(String id) {
+
+			StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model = new StateMachineModel<>(id, BenchmarkState.START);
+
+			model.setCompiledDispatch(compiled);
+			return model;
+		}
+
+		private StateMachine<BenchmarkEvent, BenchmarkState, Double> machine(StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model) {
+			model.freeze();
+			return new StateMachineImpl<>(model, 0.0);
+		}
+	}
+
+	@Benchmark
+	public Double machineTypes(MachineTypes state) {
+
+		StateMachine<BenchmarkEvent, BenchmarkState, Double> stateMachine = state.stateMachines[state.machine];
+		Double value = stateMachine.onInput(state.events[state.index]);
+
+		// Every machine runs the same Open, Trade, Trade, Close cycle
+		if (++state.machine == state.stateMachines.length) {
+			state.machine = 0;
+			state.index = state.index == state.events.length - 1 ? 0 : state.index + 1;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,82 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.ConcurrentStateMachineImpl;
+
+/**
+ *
+ * One machine fed by several threads at once: ConcurrentStateMachineImpl against a StateMachineImpl
+ * behind a monitor, for pure transitions (CAS only) and for transitions with an action (lock bit).
+ * Every state maps the event, so any interleaving keeps the machine cycling.
+ *
+ * java -jar target/benchmarks.jar ContentionBenchmark -t 1 (then -t 2, -t 4, ...)
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ContentionBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SharedMachine {
+
+		@Param({"true", "false"})
+		public boolean pure;
+
+		StateMachine<String, BenchmarkState, Integer> concurrent;
+		StateMachine<String, BenchmarkState, Integer> synchronizedWrapper;
+
+		@Setup
+		public void setUp() {
+			concurrent = new ConcurrentStateMachineImpl<>(model(), 0);
+			synchronizedWrapper = new SynchronizedStateMachine<>(model(), 0);
+		}
+
+		private StateMachineModel<String, BenchmarkState, Integer> model() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("CONTENTION", BenchmarkState.START);
+
+			if (pure) {
+				model.addTransition(BenchmarkState.START, "Next", BenchmarkState.NEW);
+				model.addTransition(BenchmarkState.NEW, "Next", BenchmarkState.COMPUTE);
+				model.addTransition(BenchmarkState.COMPUTE, "Next", BenchmarkState.START);
+			}
+			else {
+				model.addTransition(BenchmarkState.START, "Next", BenchmarkState.NEW, (String event, Integer value) -> value + 1);
+				model.addTransition(BenchmarkState.NEW, "Next", BenchmarkState.COMPUTE, (String event, Integer value) -> value + 1);
+				model.addTransition(BenchmarkState.COMPUTE, "Next", BenchmarkState.START, (String event, Integer value) -> value + 1);
+			}
+			model.freeze();
+			return model;
+		}
+	}
+
+	@Benchmark
+	public Integer concurrent(SharedMachine state) {
+		return state.concurrent.onInput("Next");
+	}
+
+	@Benchmark
+	public Integer synchronizedWrapper(SharedMachine state) {
+		return state.synchronizedWrapper.onInput("Next");
+	}
+}
@@ -0,0 +1,106 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.executor.StateMachineExecutor;
+import com.nektron.statemachine.impl.StateMachineImpl;
+
+/**
+ *
+ * Throughput scaling of the sharded executor: one producer spreads a batch of events over many machines
+ * and waits until the shards applied all of them. The work parameter burns CPU inside every transition so
+ * the shards, not the producer, are the bottleneck; compare the scores across the shard counts up to the
+ * number of available cores.
+ *
+ * java -jar target/benchmarks.jar ExecutorBenchmark
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutorBenchmark {
+
+	static final int BATCH = 16384;
+	static final int MACHINES = 1024;
+
+	@State(Scope.Thread)
+	public static class Shards {
+
+		@Param({"1", "2", "4", "8"})
+		public int shards;
+
+		@Param({"0", "200"})
+		public int work;
+
+		final String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		StateMachineExecutor<String> executor;
+		long submitted;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("EXECUTOR", BenchmarkState.START);
+			int tokens = work;
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Integer value) -> {
+				Blackhole.consumeCPU(tokens);
+				return value + 1;
+			});
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+			model.freeze();
+
+			executor = new StateMachineExecutor<>(shards);
+
+			for (long id = 0; id < MACHINES; id++)
+				executor.register(id, new StateMachineImpl<>(model, 0));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long submitAndDrain(Shards state) {
+
+		StateMachineExecutor<String> executor = state.executor;
+		String[] events = state.events;
+
+		// Every machine receives its events in the NewEvt, ComputeEvt, StartEvt cycle
+		for (int i = 0; i < BATCH; i++) {
+			long sequence = state.submitted + i;
+			executor.submit(sequence % MACHINES, events[(int) (sequence / MACHINES % events.length)]);
+		}
+
+		state.submitted += BATCH;
+
+		while (executor.getProcessedCount() < state.submitted)
+			LockSupport.parkNanos(1000);
+
+		return state.submitted;
+	}
+}
@@ -0,0 +1,79 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+
+/**
+ *
+ * Picking the transition by the event: plain is a single transition without guard, the floor; guarded
+ * chains two guarded transitions in front of it, and the events cycle through the first guard, the second
+ * and the fallback; defaults does the same branching by hand in a default action, the way it was done
+ * before guards.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GuardBenchmark {
+
+	@State(Scope.Thread)
+	public static class Guarded {
+
+		@Param({"plain", "guarded", "defaults"})
+		public String branching;
+
+		final Integer[] events = {5, 150, -1};
+		StateMachineImpl<Object, BenchmarkState, Integer> stateMachine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<Object, BenchmarkState, Integer> model = new StateMachineModel<>("GUARD", BenchmarkState.START);
+
+			if (branching.equals("plain")) {
+				model.addTransition(BenchmarkState.START, Integer.class, BenchmarkState.START, (Integer event, Integer value) -> value + event);
+			}
+			else if (branching.equals("guarded")) {
+				model.addTransition(BenchmarkState.START, Integer.class, (Integer event, Integer value) -> event >= 100, BenchmarkState.START, (Integer event, Integer value) -> value + 2 * event);
+				model.addTransition(BenchmarkState.START, Integer.class, (Integer event, Integer value) -> event < 0, BenchmarkState.START, (Integer event, Integer value) -> value - event);
+				model.addTransition(BenchmarkState.START, Integer.class, BenchmarkState.START, (Integer event, Integer value) -> value + event);
+			}
+			else {
+				model.addDefaultActions(Integer.class, null,
+						(Integer event, Integer value, BenchmarkState state) -> event >= 100 ? value + 2 * event : event < 0 ? value - event : value + event);
+			}
+			model.freeze();
+
+			stateMachine = new StateMachineImpl<>(model, 0);
+		}
+
+		Integer next() {
+			Integer event = events[index];
+
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@Benchmark
+	public Integer onInput(Guarded guarded) {
+		return guarded.stateMachine.onInput(guarded.next());
+	}
+}
@@ -0,0 +1,114 @@
+package com.nektron.statemachine.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.JournaledStateMachineImpl;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.journal.EventCodec;
+import com.nektron.statemachine.journal.Journal;
+
+/**
+ *
+ * onInput with and without a journal: journal=true appends every transition to a mapped segment, committed
+ * in groups every 10 ms by the flusher thread. The journal is recreated for every iteration, so the disk
+ * only holds one iteration of records.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+	public enum Step {
+		NEW, COMPUTE, START
+	}
+
+	@State(Scope.Thread)
+	public static class Journaled {
+
+		@Param({"false", "true"})
+		public boolean journal;
+
+		final Step[] events = Step.values();
+		StateMachineModel<Step, BenchmarkState, Integer> model;
+		StateMachineImpl<Step, BenchmarkState, Integer> stateMachine;
+		Journal<Step> eventJournal;
+		Path directory;
+		int index;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+
+			model = new StateMachineModel<>("JOURNAL", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, Step.NEW, BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, Step.COMPUTE, BenchmarkState.COMPUTE, (Step event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, Step.START, BenchmarkState.START);
+			model.freeze();
+
+			directory = Files.createTempDirectory("journal");
+		}
+
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+
+			if (journal) {
+				eventJournal = new Journal<>(directory, EventCodec.ofEnum(Step.class));
+				stateMachine = new JournaledStateMachineImpl<>(model, 0, 1, eventJournal);
+			}
+			else
+				stateMachine = new StateMachineImpl<>(model, 0);
+
+			index = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() throws IOException {
+
+			if (eventJournal != null) {
+				eventJournal.close();
+				eventJournal = null;
+			}
+
+			try (Stream<Path> segments = Files.list(directory)) {
+				for (Path segment : (Iterable<Path>) segments::iterator)
+					Files.delete(segment);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Files.delete(directory);
+		}
+	}
+
+	@Benchmark
+	public Integer onInput(Journaled state) {
+
+		Integer value = state.stateMachine.onInput(state.events[state.index]);
+
+		state.index = state.index == state.events.length - 1 ? 0 : state.index + 1;
+		return value;
+	}
+}
@@ -0,0 +1,75 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Close;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Open;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Trade;
+import com.nektron.statemachine.impl.StateMachineImpl;
+
+/**
+ *
+ * The cost of the metrics on onInput. metricsDisabled runs in a JVM started without
+ * -Dstatemachine.metrics: it must score the same as OnInputBenchmark.typedEvents before the
+ * instrumentation (same transitions and events). metricsEnabled counts every event and times one action in 64.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetricsBenchmark {
+
+	@State(Scope.Thread)
+	public static class Metered {
+
+		final BenchmarkEvent[] events = {new Open(1.0), new Trade(2.5), new Trade(0.5), new Close(1.0)};
+		StateMachine<BenchmarkEvent, BenchmarkState, Double> stateMachine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model = new StateMachineModel<>("METRICS", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, (Open event, Double value) -> event.getAmount());
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value + event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value + event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, (Close event, Double value) -> 0.0);
+			model.freeze();
+
+			stateMachine = new StateMachineImpl<>(model, 0.0);
+		}
+
+		BenchmarkEvent next() {
+			BenchmarkEvent event = events[index];
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@Benchmark
+	@Fork(1)
+	public Double metricsDisabled(Metered state) {
+		return state.stateMachine.onInput(state.next());
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dstatemachine.metrics=true")
+	public Double metricsEnabled(Metered state) {
+		return state.stateMachine.onInput(state.next());
+	}
+}
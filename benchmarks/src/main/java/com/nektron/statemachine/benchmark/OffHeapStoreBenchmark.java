@@ -0,0 +1,112 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.IntStateMachineImpl;
+import com.nektron.statemachine.impl.OffHeapStateStore;
+import com.nektron.statemachine.primitive.IntAction;
+import com.nektron.statemachine.snapshot.ValueCodec;
+import com.nektron.statemachine.util.LongHashMap;
+
+/**
+ *
+ * A population of int machines fed events at random: every machine an object in a LongHashMap (heap), or
+ * records in an OffHeapStateStore rehydrated per event (offheap). The setup prints the heap each population
+ * takes per machine.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-XX:MaxDirectMemorySize=1g"})
+public class OffHeapStoreBenchmark {
+
+	@State(Scope.Thread)
+	public static class Population {
+
+		@Param({"heap", "offheap"})
+		public String store;
+
+		@Param({"1000000"})
+		public int machines;
+
+		final String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		LongHashMap<IntStateMachineImpl<String, BenchmarkState>> heap;
+		OffHeapStateStore<String, BenchmarkState, Integer> offHeap;
+		long seed = 42;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("POPULATION", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, IntAction.of((event, value) -> value + 1));
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+			model.freeze();
+
+			long before = usedHeap();
+
+			if (store.equals("heap")) {
+
+				heap = new LongHashMap<>(machines);
+
+				for (long id = 0; id < machines; id++)
+					heap.put(id, new IntStateMachineImpl<>(model, 0));
+			}
+			else {
+
+				offHeap = new OffHeapStateStore<>(() -> new IntStateMachineImpl<>(model, 0), ValueCodec.INT, 4, machines);
+
+				for (long id = 0; id < machines; id++)
+					offHeap.onInput(id, "Unknown");
+			}
+
+			System.out.println("Heap per machine: " + (usedHeap() - before) / machines + " bytes"
+					+ (offHeap != null ? ", off-heap: " + offHeap.getMemorySize() / machines + " bytes" : ""));
+		}
+
+		private static long usedHeap() {
+			System.gc();
+			return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+		}
+
+		long nextId() {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			return (seed >>> 33) % machines;
+		}
+
+		String next() {
+			String event = events[index];
+
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@Benchmark
+	public int onInput(Population population) {
+
+		long id = population.nextId();
+
+		if (population.offHeap != null)
+			return population.offHeap.onInput(id, population.next());
+
+		return population.heap.get(id).onInputAsInt(population.next());
+	}
+}
@@ -0,0 +1,281 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Close;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Heartbeat;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Open;
+import com.nektron.statemachine.benchmark.BenchmarkEvent.Trade;
+import com.nektron.statemachine.impl.DoubleStateMachineImpl;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.primitive.DoubleAction;
+
+/**
+ *
+ * Benchmarks of the StateMachineImpl.onInput hot path. Every benchmark method feeds one event per
+ * invocation (the phase benchmark runs one whole session per invocation) and cycles through the states
+ * so the machine never settles in a state without transitions.
+ *
+ * Run through {@link BenchmarkRunner} to get throughput, latency percentiles and allocation per operation.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OnInputBenchmark {
+
+	@State(Scope.Thread)
+	public static class StringEvents {
+
+		@Param({"false", "true"})
+		public boolean shouldLog;
+
+		final String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		StateMachine<String, BenchmarkState, Integer> stateMachine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("STRING-EVENTS", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+			model.freeze();
+
+			stateMachine = new BenchmarkStateMachine<>(model, 0, shouldLog);
+		}
+
+		String next() {
+			String event = events[index];
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	public enum Command {
+		NEW, COMPUTE, START
+	}
+
+	@State(Scope.Thread)
+	public static class EventCodes {
+
+		final Command[] commands = Command.values();
+		int[] codes;
+		StateMachineImpl<String, BenchmarkState, Integer> stringStateMachine;
+		StateMachine<Command, BenchmarkState, Integer> enumStateMachine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("EVENT-CODES", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+
+			codes = new int[] {model.eventCode("NewEvt"), model.eventCode("ComputeEvt"), model.eventCode("StartEvt")};
+			stringStateMachine = new StateMachineImpl<>(model, 0);
+
+			StateMachineModel<Command, BenchmarkState, Integer> enumModel = new StateMachineModel<>("ENUM-EVENTS", BenchmarkState.START);
+
+			enumModel.addTransition(BenchmarkState.START, Command.NEW, BenchmarkState.NEW);
+			enumModel.addTransition(BenchmarkState.NEW, Command.COMPUTE, BenchmarkState.COMPUTE, (Command event, Integer value) -> value + 1);
+			enumModel.addTransition(BenchmarkState.COMPUTE, Command.START, BenchmarkState.START);
+			enumModel.freeze();
+
+			enumStateMachine = new StateMachineImpl<>(enumModel, 0);
+		}
+
+		int next() {
+			int current = index;
+			index = index == 2 ? 0 : index + 1;
+			return current;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class TypedEvents {
+
+		@Param({"false", "true"})
+		public boolean shouldLog;
+
+		@Param({"false", "true"})
+		public boolean withOperations;
+
+		final BenchmarkEvent[] events = {new Open(1.0), new Trade(2.5), new Trade(0.5), new Close(1.0)};
+		StateMachine<BenchmarkEvent, BenchmarkState, Double> stateMachine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model = new StateMachineModel<>("TYPED-EVENTS", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, (Open event, Double value) -> event.getAmount());
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value + event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, (Trade event, Double value) -> value + event.getAmount());
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, (Close event, Double value) -> 0.0);
+
+			if (withOperations) {
+				model.addOperations((BenchmarkEvent event, Double value) -> value * 1.0001);
+				model.addOperations((BenchmarkEvent event, Double value) -> Math.max(value, 0.0));
+				model.addOperations((BenchmarkEvent event) -> { });
+			}
+			model.freeze();
+
+			stateMachine = new BenchmarkStateMachine<>(model, 0.0, shouldLog);
+		}
+
+		BenchmarkEvent next() {
+			BenchmarkEvent event = events[index];
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class DoubleEvents {
+
+		@Param({"false", "true"})
+		public boolean withOperations;
+
+		final BenchmarkEvent[] events = {new Open(1.0), new Trade(2.5), new Trade(0.5), new Close(1.0)};
+		DoubleStateMachineImpl<BenchmarkEvent, BenchmarkState> stateMachine;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model = new StateMachineModel<>("DOUBLE-EVENTS", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW, DoubleAction.of((Open event, double value) -> event.getAmount()));
+			model.addTransition(BenchmarkState.NEW, Trade.class, BenchmarkState.COMPUTE, DoubleAction.of((Trade event, double value) -> value + event.getAmount()));
+			model.addTransition(BenchmarkState.COMPUTE, Trade.class, BenchmarkState.COMPUTE, DoubleAction.of((Trade event, double value) -> value + event.getAmount()));
+			model.addTransition(BenchmarkState.COMPUTE, Close.class, BenchmarkState.START, DoubleAction.of((Close event, double value) -> 0.0));
+
+			if (withOperations) {
+				model.addOperations(DoubleAction.of((BenchmarkEvent event, double value) -> value * 1.0001));
+				model.addOperations(DoubleAction.of((BenchmarkEvent event, double value) -> Math.max(value, 0.0)));
+				model.addOperations((BenchmarkEvent event) -> { });
+			}
+			model.freeze();
+
+			stateMachine = new DoubleStateMachineImpl<>(model, 0.0);
+		}
+
+		BenchmarkEvent next() {
+			BenchmarkEvent event = events[index];
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class DefaultActions {
+
+		final Heartbeat heartbeat = new Heartbeat(1.0);
+		StateMachine<BenchmarkEvent, BenchmarkState, Double> stateMachine;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<BenchmarkEvent, BenchmarkState, Double> model = new StateMachineModel<>("DEFAULT-ACTIONS", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, Open.class, BenchmarkState.NEW);
+			model.addDefaultActions(Heartbeat.class, null, (Heartbeat event, Double value, BenchmarkState state) -> value + event.getAmount());
+			model.freeze();
+
+			stateMachine = new StateMachineImpl<>(model, 0.0);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Phases {
+
+		StateMachineModel<String, BenchmarkState, Integer> model;
+
+		@Setup
+		public void setUp() {
+
+			model = new StateMachineModel<>("PHASE-1", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "Begin", BenchmarkState.COMPUTE);
+			model.addTransition(BenchmarkState.COMPUTE, "Finish", BenchmarkState.DONE);
+			model.addDoneState(BenchmarkState.DONE);
+
+			StateMachineModel<String, BenchmarkState, Integer> nextPhase = model.addPhaseModel("PHASE-2", BenchmarkState.DONE);
+
+			nextPhase.addTransition(BenchmarkState.DONE, "Restart", BenchmarkState.NEW, (String event, Integer value) -> value + 1);
+			nextPhase.addTransition(BenchmarkState.NEW, "Complete", BenchmarkState.START, (String event, Integer value) -> value + 1);
+			model.linkStateMachines("PHASE-1", "PHASE-2");
+			model.freeze();
+		}
+	}
+
+	@Benchmark
+	public Integer stringEvents(StringEvents state) {
+		return state.stateMachine.onInput(state.next());
+	}
+
+	@Benchmark
+	public Integer eventCodes(EventCodes state) {
+		return state.stringStateMachine.onEventCode(state.codes[state.next()]);
+	}
+
+	@Benchmark
+	public Integer enumEvents(EventCodes state) {
+		return state.enumStateMachine.onInput(state.commands[state.next()]);
+	}
+
+	@Benchmark
+	public Double typedEvents(TypedEvents state) {
+		return state.stateMachine.onInput(state.next());
+	}
+
+	@Benchmark
+	public double doubleEvents(DoubleEvents state) {
+		return state.stateMachine.onInputAsDouble(state.next());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(4)
+	public Double typedEventsBatch(TypedEvents state) {
+		return state.stateMachine.onInputs(state.events);
+	}
+
+	@Benchmark
+	public Double defaultActions(DefaultActions state) {
+		return state.stateMachine.onInput(state.heartbeat);
+	}
+
+	@Benchmark
+	public Integer phaseSession(Phases state) {
+
+		StateMachine<String, BenchmarkState, Integer> stateMachine = new StateMachineImpl<>(state.model, 0);
+
+		stateMachine.onInput("Begin");
+		stateMachine.onInput("Finish");
+		stateMachine.onInput("Restart");
+		return stateMachine.onInput("Complete");
+	}
+}
@@ -0,0 +1,90 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.impl.StateMachinePool;
+
+/**
+ *
+ * Short sessions of three events: a new machine per session, on its own model as the old constructors did
+ * (model), on a shared frozen model (shared), or acquired from and released to a pool (pooled). Run with
+ * -prof gc to compare the allocation per session.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Sessions {
+
+		@Param({"model", "shared", "pooled"})
+		public String sessions;
+
+		StateMachineModel<String, BenchmarkState, Integer> model;
+		StateMachinePool<Integer, StateMachineImpl<String, BenchmarkState, Integer>> pool;
+
+		@Setup
+		public void setUp() {
+
+			model = model("SESSION");
+			model.freeze();
+			pool = new StateMachinePool<>(64, () -> new StateMachineImpl<>(model, 0), 0);
+		}
+
+		StateMachineImpl<String, BenchmarkState, Integer> acquire() {
+
+			if (sessions.equals("pooled"))
+				return pool.acquire();
+
+			return new StateMachineImpl<>(sessions.equals("model") ? model("SESSION") : model, 0);
+		}
+
+		void release(StateMachineImpl<String, BenchmarkState, Integer> stateMachine) {
+
+			if (sessions.equals("pooled"))
+				pool.release(stateMachine);
+		}
+
+		static StateMachineModel<String, BenchmarkState, Integer> model(String id) {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>(id, BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+			return model;
+		}
+	}
+
+	@Benchmark
+	public Integer session(Sessions sessions) {
+
+		StateMachineImpl<String, BenchmarkState, Integer> stateMachine = sessions.acquire();
+
+		stateMachine.onInput("NewEvt");
+		stateMachine.onInput("ComputeEvt");
+
+		Integer value = stateMachine.onInput("StartEvt");
+
+		sessions.release(stateMachine);
+		return value;
+	}
+}
@@ -0,0 +1,110 @@
+package com.nektron.statemachine.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.benchmark.JournalBenchmark.Step;
+import com.nektron.statemachine.impl.JournaledStateMachineImpl;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.journal.EventCodec;
+import com.nektron.statemachine.journal.Journal;
+import com.nektron.statemachine.journal.ParallelReplayer;
+
+/**
+ *
+ * Recovery throughput (records per second) of a journal of 2^20 transitions over 2^16 machines, replayed
+ * (in segments of 4 MB, read in parallel) on fork/join pools of 1 to 8 threads. Compare the scores up to
+ * the number of available cores.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+
+	static final int RECORDS = 1 << 20;
+	static final int MACHINES = 1 << 16;
+
+	@State(Scope.Benchmark)
+	public static class Recovery {
+
+		@Param({"1", "2", "4", "8"})
+		public int parallelism;
+
+		StateMachineModel<Step, BenchmarkState, Integer> model;
+		Path directory;
+		Journal<Step> journal;
+		ForkJoinPool pool;
+		ParallelReplayer<Step> replayer;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+
+			model = new StateMachineModel<>("REPLAY", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, Step.NEW, BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, Step.COMPUTE, BenchmarkState.COMPUTE, (Step event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, Step.START, BenchmarkState.START);
+			model.freeze();
+
+			directory = Files.createTempDirectory("replay");
+			journal = new Journal<>(directory, EventCodec.ofEnum(Step.class), 4 * 1024 * 1024, 10, TimeUnit.MILLISECONDS);
+
+			@SuppressWarnings("unchecked")
+			StateMachineImpl<Step, BenchmarkState, Integer>[] machines = new StateMachineImpl[MACHINES];
+			Step[] events = Step.values();
+
+			for (int id = 0; id < MACHINES; id++)
+				machines[id] = new JournaledStateMachineImpl<>(model, 0, id, journal);
+
+			for (int i = 0; i < RECORDS; i++)
+				machines[i % MACHINES].onInput(events[i / MACHINES % events.length]);
+
+			journal.commit();
+
+			pool = new ForkJoinPool(parallelism);
+			replayer = new ParallelReplayer<>(pool);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+
+			journal.close();
+			pool.shutdown();
+
+			try (Stream<Path> segments = Files.list(directory)) {
+				for (Path segment : (Iterable<Path>) segments::iterator)
+					Files.delete(segment);
+			}
+			Files.delete(directory);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long replay(Recovery state) throws IOException {
+		return state.replayer.replay(state.journal, machineId -> new StateMachineImpl<>(state.model, 0));
+	}
+}
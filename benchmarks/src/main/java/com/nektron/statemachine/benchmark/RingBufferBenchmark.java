@@ -0,0 +1,161 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.ring.ProducerType;
+import com.nektron.statemachine.ring.RingBuffer;
+import com.nektron.statemachine.ring.RingBufferConsumer;
+import com.nektron.statemachine.ring.WaitStrategy;
+
+/**
+ *
+ * End-to-end latency of feeding a state machine from another thread: the benchmark thread publishes
+ * events and waits until the consumer thread applied them, through a ring buffer with each wait strategy or
+ * through an {@link ArrayBlockingQueue} drained by take(). Sample time mode reports the latency
+ * percentiles: handOff for a single event on an idle consumer, burst per event for 64 events published at
+ * once, which the ring consumer applies as batches.
+ *
+ * The busy spin strategy needs a core for the consumer besides the one of the benchmark thread; add
+ * -prof gc to see the allocation of the queue, which takes a new event per submission.
+ *
+ * java -jar target/benchmarks.jar RingBufferBenchmark
+ *
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+
+	static final int BURST = 64;
+
+	/**
+	 * The event, reused in the slots of the ring.
+	 */
+	public static final class Tick {
+		long amount;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Pipeline {
+
+		@Param({"BUSY_SPIN", "YIELD", "PARK", "BLOCKING_QUEUE"})
+		public String transport;
+
+		final long[] total = new long[1];
+
+		RingBuffer<Tick> ring;
+		RingBufferConsumer<Tick> consumer;
+
+		BlockingQueue<Tick> queue;
+		final AtomicLong queueProcessed = new AtomicLong();
+		Thread queueThread;
+
+		long published;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+
+			StateMachineModel<Tick, BenchmarkState, Integer> model = new StateMachineModel<>("RING", BenchmarkState.START);
+			long[] total = this.total;
+
+			model.addTransition(BenchmarkState.START, Tick.class, BenchmarkState.START, (Tick tick) -> total[0] += tick.amount);
+			model.freeze();
+
+			StateMachineImpl<Tick, BenchmarkState, Integer> machine = new StateMachineImpl<>(model, 0);
+
+			if ("BLOCKING_QUEUE".equals(transport)) {
+
+				queue = new ArrayBlockingQueue<>(1024);
+				queueThread = new Thread(() -> {
+					try {
+						for (;;) {
+							machine.onInput(queue.take());
+							queueProcessed.lazySet(queueProcessed.get() + 1);
+						}
+					}
+					catch (InterruptedException e) {
+					}
+				}, "queue-consumer");
+			}
+			else {
+				ring = new RingBuffer<>(Tick::new, 1024, ProducerType.SINGLE, WaitStrategy.valueOf(transport));
+				consumer = new RingBufferConsumer<>(ring, machine);
+				queueThread = new Thread(consumer, "ring-consumer");
+			}
+
+			queueThread.setDaemon(true);
+			queueThread.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException {
+
+			if (consumer != null) {
+				consumer.halt();
+				consumer.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			else
+				queueThread.interrupt();
+		}
+
+		void publish(long amount) throws InterruptedException {
+
+			if (ring != null)
+				ring.publishEvent((Tick tick, long value) -> tick.amount = value, amount);
+			else {
+				Tick tick = new Tick();
+				tick.amount = amount;
+				queue.put(tick);
+			}
+			published++;
+		}
+
+		void awaitApplied() {
+
+			// Yields rather than spins, so the consumer still runs on a single core
+			while ((consumer != null ? consumer.getProcessedCount() : queueProcessed.get()) < published)
+				Thread.yield();
+		}
+	}
+
+	@Benchmark
+	public long handOff(Pipeline pipeline) throws InterruptedException {
+
+		pipeline.publish(1);
+		pipeline.awaitApplied();
+		return pipeline.published;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public long burst(Pipeline pipeline) throws InterruptedException {
+
+		for (int i = 0; i < BURST; i++)
+			pipeline.publish(i);
+
+		pipeline.awaitApplied();
+		return pipeline.published;
+	}
+}
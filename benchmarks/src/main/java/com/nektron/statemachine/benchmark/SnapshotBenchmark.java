@@ -0,0 +1,182 @@
+package com.nektron.statemachine.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.DoubleStateMachineImpl;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.snapshot.ValueCodec;
+
+/**
+ *
+ * Writes a million snapshots to a file through a FileChannel, then restores them from it, 64 KB at a time
+ * through a direct buffer. The scores are snapshots per second; machine=double writes the value of a
+ * {@link DoubleStateMachineImpl} without boxing, machine=boxed goes through a plain Double value.
+ *
+ * The file lives in the temporary directory, so the write score mostly measures the page cache.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+	static final int SNAPSHOTS = 1 << 20;
+	static final int MACHINES = 1024;
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	@State(Scope.Thread)
+	public static class Snapshots {
+
+		@Param({"boxed", "double"})
+		public String machine;
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		@SuppressWarnings("unchecked")
+		final StateMachineImpl<String, BenchmarkState, Double>[] stateMachines = new StateMachineImpl[MACHINES];
+		StateMachineImpl<String, BenchmarkState, Double> restored;
+		Path file;
+		FileChannel channel;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+
+			StateMachineModel<String, BenchmarkState, Double> model = new StateMachineModel<>("SNAPSHOT", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW, (String event, Double value) -> value + 1);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Double value) -> value * 2);
+			model.freeze();
+
+			String[] events = {"NewEvt", "ComputeEvt"};
+
+			// Machines spread over the three states
+			for (int i = 0; i < MACHINES; i++) {
+				stateMachines[i] = newMachine(model, i);
+				for (int j = 0; j < i % 3; j++)
+					stateMachines[i].onInput(events[j]);
+			}
+
+			restored = newMachine(model, 0);
+			file = Files.createTempFile("snapshots", ".bin");
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			writeSnapshots(this);
+		}
+
+		private StateMachineImpl<String, BenchmarkState, Double> newMachine(StateMachineModel<String, BenchmarkState, Double> model, double initialValue) {
+			return "double".equals(machine) ? new DoubleStateMachineImpl<>(model, initialValue) : new StateMachineImpl<>(model, initialValue);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			channel.close();
+			Files.delete(file);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SNAPSHOTS)
+	public long write(Snapshots state) throws IOException {
+		return writeSnapshots(state);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SNAPSHOTS)
+	public double read(Snapshots state) throws IOException {
+
+		ByteBuffer buffer = state.buffer;
+		FileChannel channel = state.channel;
+		StateMachineImpl<String, BenchmarkState, Double> restored = state.restored;
+		int recordSize = restored.getSnapshotSize(ValueCodec.DOUBLE);
+		double sum = 0;
+		long position = 0;
+
+		// Starts empty: the first record triggers a read
+		buffer.clear().limit(0);
+
+		for (int i = 0; i < SNAPSHOTS; i++) {
+
+			if (buffer.remaining() < recordSize) {
+				buffer.compact();
+				position += readFully(channel, buffer, position);
+				buffer.flip();
+			}
+
+			restored.restore(buffer, ValueCodec.DOUBLE);
+			sum += restored.getCurrentState().ordinal();
+		}
+		return sum;
+	}
+
+	private static long writeSnapshots(Snapshots state) throws IOException {
+
+		ByteBuffer buffer = state.buffer;
+		FileChannel channel = state.channel;
+		StateMachineImpl<String, BenchmarkState, Double>[] stateMachines = state.stateMachines;
+		int recordSize = stateMachines[0].getSnapshotSize(ValueCodec.DOUBLE);
+		long position = 0;
+
+		buffer.clear();
+
+		for (int i = 0; i < SNAPSHOTS; i++) {
+
+			if (buffer.remaining() < recordSize) {
+				buffer.flip();
+				position += writeFully(channel, buffer, position);
+				buffer.clear();
+			}
+			stateMachines[i & (MACHINES - 1)].snapshot(buffer, ValueCodec.DOUBLE);
+		}
+
+		buffer.flip();
+		return position + writeFully(channel, buffer, position);
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		int written = 0;
+
+		while (buffer.hasRemaining())
+			written += channel.write(buffer, position + written);
+
+		return written;
+	}
+
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		int read = 0;
+
+		while (buffer.hasRemaining()) {
+
+			int count = channel.read(buffer, position + read);
+
+			if (count < 0)
+				break;
+			read += count;
+		}
+		return read;
+	}
+}
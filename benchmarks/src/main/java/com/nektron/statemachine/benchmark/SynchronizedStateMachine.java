@@ -0,0 +1,52 @@
+package com.nektron.statemachine.benchmark;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+
+/**
+ *
+ * The coarse alternative to ConcurrentStateMachineImpl: a plain machine behind one monitor.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public class SynchronizedStateMachine<INPUT, STATE extends Enum<STATE>, OUTPUT> implements StateMachine<INPUT, STATE, OUTPUT> {
+
+	private final StateMachineImpl<INPUT, STATE, OUTPUT> stateMachine;
+
+	public SynchronizedStateMachine(StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel, OUTPUT initialValue) {
+		this.stateMachine = new StateMachineImpl<>(stateMachineModel, initialValue);
+	}
+
+	@Override
+	public synchronized OUTPUT onInput(INPUT event) {
+		return stateMachine.onInput(event);
+	}
+
+	@Override
+	public String getId() {
+		return stateMachine.getId();
+	}
+
+	@Override
+	public synchronized STATE getCurrentState() {
+		return stateMachine.getCurrentState();
+	}
+
+	@Override
+	public synchronized STATE getPreviousState() {
+		return stateMachine.getPreviousState();
+	}
+
+	@Override
+	public synchronized OUTPUT getValue() {
+		return stateMachine.getValue();
+	}
+
+	@Override
+	public StateMachineModel<INPUT, STATE, OUTPUT> getStateMachineModel() {
+		return stateMachine.getStateMachineModel();
+	}
+}
@@ -0,0 +1,87 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.timer.TimingWheel;
+
+/**
+ *
+ * The cost of state timeouts on onInput, same transitions and events as OnInputBenchmark.stringEvents,
+ * with every state given a timeout that is re-armed on each transition. The wheel already holds pending
+ * timeouts of other machines, which should not change the score.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimingWheelBenchmark {
+
+	@State(Scope.Thread)
+	public static class Timed {
+
+		@Param({"false", "true"})
+		public boolean timeouts;
+
+		@Param({"0", "100000"})
+		public int pending;
+
+		final String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		StateMachineImpl<String, BenchmarkState, Integer> stateMachine;
+		TimingWheel wheel;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("TIMED", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+
+			if (timeouts) {
+				model.addTimeout(BenchmarkState.START, 1, TimeUnit.HOURS, "Expired");
+				model.addTimeout(BenchmarkState.NEW, 1, TimeUnit.HOURS, "Expired");
+				model.addTimeout(BenchmarkState.COMPUTE, 1, TimeUnit.HOURS, "Expired");
+			}
+			model.freeze();
+
+			wheel = new TimingWheel();
+
+			for (int i = 0; i < pending; i++)
+				wheel.schedule(() -> {}, 1 + i % 3600, TimeUnit.SECONDS);
+
+			stateMachine = new StateMachineImpl<>(model, 0);
+			stateMachine.setTimingWheel(wheel);
+		}
+
+		String next() {
+			String event = events[index];
+
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@Benchmark
+	public BenchmarkState onInput(Timed timed) {
+		timed.stateMachine.onInput(timed.next());
+		return timed.stateMachine.getCurrentState();
+	}
+}
@@ -0,0 +1,90 @@
+package com.nektron.statemachine.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.trace.LoggingTraceSink;
+import com.nektron.statemachine.trace.TransitionTracer;
+
+/**
+ *
+ * The cost of tracing on onInput, same transitions and events as OnInputBenchmark.stringEvents. With
+ * discard the drain thread drops the records, so the score is the cost on the machine's thread; with log it
+ * also formats them for SLF4J (the benchmark log4j configuration discards the lines), which competes for
+ * the CPU when the machine has few cores.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+	@State(Scope.Thread)
+	public static class Traced {
+
+		@Param({"off", "discard", "log"})
+		public String trace;
+
+		final String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		StateMachineImpl<String, BenchmarkState, Integer> stateMachine;
+		TransitionTracer tracer;
+		int index;
+
+		@Setup
+		public void setUp() {
+
+			StateMachineModel<String, BenchmarkState, Integer> model = new StateMachineModel<>("TRACE", BenchmarkState.START);
+
+			model.addTransition(BenchmarkState.START, "NewEvt", BenchmarkState.NEW);
+			model.addTransition(BenchmarkState.NEW, "ComputeEvt", BenchmarkState.COMPUTE, (String event, Integer value) -> value + 1);
+			model.addTransition(BenchmarkState.COMPUTE, "StartEvt", BenchmarkState.START);
+			model.freeze();
+
+			stateMachine = new StateMachineImpl<>(model, 0);
+
+			if (trace.equals("discard"))
+				tracer = new TransitionTracer(record -> {});
+			else if (trace.equals("log"))
+				tracer = new TransitionTracer(new LoggingTraceSink());
+
+			if (tracer != null)
+				stateMachine.setTracer(tracer, 1);
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			if (tracer != null) {
+				System.out.println("Dropped " + tracer.getDroppedCount() + " of " + (tracer.getDroppedCount() + tracer.getDrainedCount()) + " records");
+				tracer.close();
+			}
+		}
+
+		String next() {
+			String event = events[index];
+			index = index == events.length - 1 ? 0 : index + 1;
+			return event;
+		}
+	}
+
+	@Benchmark
+	public Integer onInput(Traced state) {
+		return state.stateMachine.onInput(state.next());
+	}
+}
@@ -0,0 +1,507 @@
+package com.nektron.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import com.nektron.statemachine.StateMachine.NoArgConsumer;
+import com.nektron.statemachine.StateMachine.TriConsumer;
+import com.nektron.statemachine.metrics.StateMachineMetrics;
+import com.nektron.statemachine.primitive.DoubleAction;
+import com.nektron.statemachine.primitive.IntAction;
+import com.nektron.statemachine.primitive.LongAction;
+
+/**
+ *
+ * Immutable dispatch table compiled from a {@link StateMachineModel}.
+ *
+ * Every registered event instance and event type is resolved to an event slot, and the table holds
+ * the transition (or the chain of default actions) for every state ordinal and slot. Resolving an
+ * event costs at most two hash lookups on the event itself and never allocates.
+ *
+ * With polymorphic events, an event type that was not registered resolves to the slot of its nearest
+ * registered supertype. The result is computed once per concrete type and cached in a {@link ClassValue}.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public final class DispatchTable<INPUT, STATE extends Enum<STATE>, OUTPUT> {
+
+	public static final int NO_SLOT = -1;
+
+	private final Map<Object, Integer> instanceSlots;
+	private final Map<Class<?>, Integer> classSlots;
+	private final ClassValue<Integer> supertypeSlots;
+	private final Transition<INPUT, STATE, OUTPUT>[][] transitions;
+	private final Transition<INPUT, STATE, OUTPUT>[] indexedTransitions;
+	private final Object[] errorActions;
+	private final int slotCount;
+	private final boolean[] doneStates;
+	private final boolean[] terminalStates;
+	private final boolean nextPhase;
+
+	private final BiFunction<INPUT, OUTPUT, OUTPUT>[] functionOperations;
+	private final Consumer<INPUT>[] consumerOperations;
+	private final NoArgConsumer[] noArgConsumerOperations;
+
+	/** The registered event instance of every slot, null for the slots of event types */
+	private final Object[] slotEvents;
+
+	/** When every registered event instance is a constant of one enum: the slot of each constant by ordinal */
+	private final Class<?> enumType;
+	private final int[] enumSlots;
+
+	/** Null unless metrics are enabled */
+	private final StateMachineMetrics metrics;
+
+	/** By state ordinal: the timeout of the state, 0 for none, and the event it feeds back */
+	private final long[] timeoutNanos;
+	private final Object[] timeoutEvents;
+	private final boolean timeouts;
+
+	DispatchTable(Map<Object, Integer> instanceSlots, Map<Class<?>, Integer> classSlots, boolean polymorphicEvents, Transition<INPUT, STATE, OUTPUT>[][] transitions,
+			Transition<INPUT, STATE, OUTPUT>[] indexedTransitions, Object[] errorActions,
+			boolean[] doneStates, boolean[] terminalStates, boolean nextPhase,
+			BiFunction<INPUT, OUTPUT, OUTPUT>[] functionOperations, Consumer<INPUT>[] consumerOperations, NoArgConsumer[] noArgConsumerOperations,
+			long[] timeoutNanos, Object[] timeoutEvents) {
+		this.instanceSlots = instanceSlots;
+		this.classSlots = classSlots;
+		this.supertypeSlots = polymorphicEvents && !classSlots.isEmpty() ? new SupertypeSlots(classSlots) : null;
+		this.transitions = transitions;
+		this.indexedTransitions = indexedTransitions;
+		this.errorActions = errorActions;
+		this.slotCount = errorActions.length;
+		this.doneStates = doneStates;
+		this.terminalStates = terminalStates;
+		this.nextPhase = nextPhase;
+		this.functionOperations = functionOperations;
+		this.consumerOperations = consumerOperations;
+		this.noArgConsumerOperations = noArgConsumerOperations;
+		this.timeoutNanos = timeoutNanos;
+		this.timeoutEvents = timeoutEvents;
+		this.timeouts = Arrays.stream(timeoutNanos).anyMatch(nanos -> nanos > 0);
+
+		slotEvents = new Object[slotCount];
+
+		for (Map.Entry<Object, Integer> instanceSlot : instanceSlots.entrySet())
+			slotEvents[instanceSlot.getValue()] = instanceSlot.getKey();
+
+		enumType = getEnumType(instanceSlots.keySet());
+
+		if (enumType != null) {
+
+			Object[] constants = enumType.getEnumConstants();
+
+			enumSlots = new int[constants.length];
+
+			for (int i = 0; i < constants.length; i++)
+				enumSlots[i] = lookUpSlot(constants[i]);
+		}
+		else
+			enumSlots = null;
+
+		metrics = StateMachineMetrics.ENABLED ? new StateMachineMetrics(transitions, slotCount) : null;
+	}
+
+	/**
+	 *
+	 * Resolves the event to its slot. Event instances registered with the model take precedence
+	 * over event types.
+	 *
+	 * @param event
+	 * @return the slot or {@link #NO_SLOT} if nothing was registered for the event
+	 */
+	public int slotOf(INPUT event) {
+
+		if (event == null)
+			return NO_SLOT;
+
+		if (enumSlots != null && event instanceof Enum && ((Enum<?>) event).getDeclaringClass() == enumType)
+			return enumSlots[((Enum<?>) event).ordinal()];
+
+		return lookUpSlot(event);
+	}
+
+	/**
+	 *
+	 * Resolves the event type to its slot, ignoring the event instances registered with the model.
+	 *
+	 * @param eventType
+	 * @return the slot or {@link #NO_SLOT} if nothing was registered for the event type
+	 */
+	public int slotOfType(Class<?> eventType) {
+
+		if (supertypeSlots != null)
+			return supertypeSlots.get(eventType);
+
+		Integer slot = classSlots.get(eventType);
+
+		return slot != null ? slot : NO_SLOT;
+	}
+
+	/**
+	 *
+	 * The event instance registered for the slot.
+	 *
+	 * @param slot
+	 * @return null if the slot belongs to an event type
+	 */
+	@SuppressWarnings("unchecked")
+	public INPUT getEvent(int slot) {
+		return (INPUT) slotEvents[slot];
+	}
+
+	/**
+	 *
+	 * The event instance or the event type the slot was assigned to.
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public Object getSlotKey(int slot) {
+
+		if (slotEvents[slot] != null)
+			return slotEvents[slot];
+
+		for (Map.Entry<Class<?>, Integer> classSlot : classSlots.entrySet()) {
+			if (classSlot.getValue() == slot)
+				return classSlot.getKey();
+		}
+		return null;
+	}
+
+	private int lookUpSlot(Object event) {
+
+		Integer slot = instanceSlots.isEmpty() ? null : instanceSlots.get(event);
+
+		if (slot == null && supertypeSlots != null)
+			return supertypeSlots.get(event.getClass());
+
+		if (slot == null && !classSlots.isEmpty())
+			slot = classSlots.get(event.getClass());
+
+		return slot != null ? slot : NO_SLOT;
+	}
+
+	/**
+	 *
+	 * The enum shared by all the registered event instances, or null if they are not all constants of the
+	 * same enum.
+	 *
+	 */
+	private static Class<?> getEnumType(Set<Object> events) {
+
+		Class<?> enumType = null;
+
+		for (Object event : events) {
+
+			if (! (event instanceof Enum))
+				return null;
+
+			Class<?> type = ((Enum<?>) event).getDeclaringClass();
+
+			if (enumType != null && enumType != type)
+				return null;
+
+			enumType = type;
+		}
+		return enumType;
+	}
+
+	/**
+	 *
+	 * Returns the transition, or the first of the default actions, for the given state and slot.
+	 *
+	 * @param stateOrdinal
+	 * @param slot
+	 * @return null if the event is unmapped in the given state
+	 */
+	public Transition<INPUT, STATE, OUTPUT> getTransition(int stateOrdinal, int slot) {
+		return slot == NO_SLOT ? null : transitions[stateOrdinal][slot];
+	}
+
+	public Transition<INPUT, STATE, OUTPUT> getTransition(STATE state, INPUT event) {
+		return getTransition(state.ordinal(), slotOf(event));
+	}
+
+	@SuppressWarnings("unchecked")
+	public TriConsumer<INPUT, STATE, Exception> getErrorAction(int slot) {
+		return slot == NO_SLOT ? null : (TriConsumer<INPUT, STATE, Exception>) errorActions[slot];
+	}
+
+	/**
+	 *
+	 * Runs the operations registered with the model, in order, feeding each function operation the value
+	 * returned by the previous one.
+	 *
+	 * @param event
+	 * @param value
+	 * @return the new value
+	 */
+	public OUTPUT performOperations(INPUT event, OUTPUT value) {
+		return performOperations(event, value, true);
+	}
+
+	/**
+	 *
+	 * Runs the operations registered with the model, skipping the consumer operations unless sideEffects is
+	 * set (as when replaying events).
+	 *
+	 * @param event
+	 * @param value
+	 * @param sideEffects
+	 * @return the new value
+	 */
+	public OUTPUT performOperations(INPUT event, OUTPUT value, boolean sideEffects) {
+
+		for (int i = 0; i < functionOperations.length; i++) {
+			value = functionOperations[i].apply(event, value);
+		}
+
+		if (sideEffects)
+			performConsumerOperations(event);
+		return value;
+	}
+
+	public boolean isDoneState(int stateOrdinal) {
+		return doneStates[stateOrdinal];
+	}
+
+	public boolean isTerminalState(int stateOrdinal) {
+		return terminalStates[stateOrdinal];
+	}
+
+	/**
+	 * True if the model links to a next phase, in which case reaching a done state switches to it.
+	 * @return
+	 */
+	public boolean hasNextPhase() {
+		return nextPhase;
+	}
+
+	/**
+	 *
+	 * Whether any state of the model has a timeout.
+	 *
+	 * @return
+	 */
+	public boolean hasTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 *
+	 * @param stateOrdinal
+	 * @return the timeout of the state in nanoseconds, 0 if it has none
+	 */
+	public long getTimeoutNanos(int stateOrdinal) {
+		return timeoutNanos[stateOrdinal];
+	}
+
+	/**
+	 *
+	 * @param stateOrdinal
+	 * @return the event fed back when the state times out
+	 */
+	@SuppressWarnings("unchecked")
+	public INPUT getTimeoutEvent(int stateOrdinal) {
+		return (INPUT) timeoutEvents[stateOrdinal];
+	}
+
+	/**
+	 *
+	 * Runs the operations on a double value, calling {@link DoubleAction}s without boxing. Consumer operations
+	 * only run if sideEffects is set.
+	 *
+	 * @param event
+	 * @param value
+	 * @param sideEffects
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public double performOperationsAsDouble(INPUT event, double value, boolean sideEffects) {
+
+		for (int i = 0; i < functionOperations.length; i++) {
+
+			Object operation = functionOperations[i];
+
+			if (operation instanceof DoubleAction)
+				value = ((DoubleAction<INPUT>) operation).applyAsDouble(event, value);
+			else
+				value = (Double) ((BiFunction) operation).apply(event, value);
+		}
+
+		if (sideEffects)
+			performConsumerOperations(event);
+		return value;
+	}
+
+	/**
+	 *
+	 * Runs the operations on a long value, calling {@link LongAction}s without boxing. Consumer operations
+	 * only run if sideEffects is set.
+	 *
+	 * @param event
+	 * @param value
+	 * @param sideEffects
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public long performOperationsAsLong(INPUT event, long value, boolean sideEffects) {
+
+		for (int i = 0; i < functionOperations.length; i++) {
+
+			Object operation = functionOperations[i];
+
+			if (operation instanceof LongAction)
+				value = ((LongAction<INPUT>) operation).applyAsLong(event, value);
+			else
+				value = (Long) ((BiFunction) operation).apply(event, value);
+		}
+
+		if (sideEffects)
+			performConsumerOperations(event);
+		return value;
+	}
+
+	/**
+	 *
+	 * Runs the operations on an int value, calling {@link IntAction}s without boxing.
+	 *
+	 * @param event
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public int performOperationsAsInt(INPUT event, int value, boolean sideEffects) {
+
+		for (int i = 0; i < functionOperations.length; i++) {
+
+			Object operation = functionOperations[i];
+
+			if (operation instanceof IntAction)
+				value = ((IntAction<INPUT>) operation).applyAsInt(event, value);
+			else
+				value = (Integer) ((BiFunction) operation).apply(event, value);
+		}
+
+		if (sideEffects)
+			performConsumerOperations(event);
+		return value;
+	}
+
+	private void performConsumerOperations(INPUT event) {
+
+		for (int i = 0; i < consumerOperations.length; i++) {
+			consumerOperations[i].accept(event);
+		}
+
+		for (int i = 0; i < noArgConsumerOperations.length; i++) {
+			noArgConsumerOperations[i].appy();
+		}
+	}
+
+	public boolean hasOperations() {
+		return functionOperations.length > 0 || consumerOperations.length > 0 || noArgConsumerOperations.length > 0;
+	}
+
+	/**
+	 *
+	 * The number of distinct transitions (default actions included) in the table, numbered from 0 by
+	 * {@link Transition#getIndex()}.
+	 *
+	 * @return
+	 */
+	public int getTransitionCount() {
+		return indexedTransitions.length;
+	}
+
+	public Transition<INPUT, STATE, OUTPUT> getTransitionByIndex(int index) {
+		return indexedTransitions[index];
+	}
+
+	/**
+	 *
+	 * Whether the actions run through a generated dispatcher.
+	 *
+	 * @return
+	 */
+	public boolean isCompiled() {
+		return indexedTransitions.length > 0 && indexedTransitions[0].isCompiled();
+	}
+
+	/**
+	 *
+	 * The counters of this table, null unless {@link StateMachineMetrics#ENABLED}.
+	 *
+	 * @return
+	 */
+	public StateMachineMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	public int getStateCount() {
+		return transitions.length;
+	}
+
+	/**
+	 *
+	 * Returns the given type followed by its supertypes, nearest first: the superclass chain, then the
+	 * interfaces breadth first.
+	 *
+	 * @param type
+	 * @return
+	 */
+	static List<Class<?>> getTypeHierarchy(Class<?> type) {
+
+		Set<Class<?>> hierarchy = new LinkedHashSet<>();
+		Deque<Class<?>> interfaces = new ArrayDeque<>();
+
+		for (Class<?> superclass = type; superclass != null; superclass = superclass.getSuperclass()) {
+			hierarchy.add(superclass);
+			for (Class<?> anInterface : superclass.getInterfaces())
+				interfaces.add(anInterface);
+		}
+
+		while (!interfaces.isEmpty()) {
+			Class<?> anInterface = interfaces.poll();
+			if (hierarchy.add(anInterface)) {
+				for (Class<?> superInterface : anInterface.getInterfaces())
+					interfaces.add(superInterface);
+			}
+		}
+		return new ArrayList<>(hierarchy);
+	}
+
+	private static final class SupertypeSlots extends ClassValue<Integer> {
+
+		private final Map<Class<?>, Integer> classSlots;
+
+		SupertypeSlots(Map<Class<?>, Integer> classSlots) {
+			this.classSlots = classSlots;
+		}
+
+		@Override
+		protected Integer computeValue(Class<?> type) {
+
+			for (Class<?> supertype : getTypeHierarchy(type)) {
+				Integer slot = classSlots.get(supertype);
+				if (slot != null)
+					return slot;
+			}
+			return NO_SLOT;
+		}
+	}
+}
@@ -36,4 +36,8 @@ public class KeyWrapper<INPUT> {
 		public Class<?> getClassObject() {
 			return classObject;
 		}
+		
+		public INPUT getEvent() {
+			return event;
+		}
 }
\ No newline at end of file
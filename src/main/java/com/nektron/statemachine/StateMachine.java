@@ -1,5 +1,6 @@
 package com.nektron.statemachine;
 
+import java.util.Iterator;
 import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
@@ -23,6 +24,55 @@ public interface StateMachine<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	
 	public OUTPUT onInput(INPUT event);
 	
+	/**
+	 * 
+	 * Feeds the given events in order and returns the value after the last one.
+	 * 
+	 * @param events
+	 * @return
+	 */
+	public default OUTPUT onInputs(INPUT[] events) {
+		return onInputs(events, 0, events.length, null);
+	}
+	
+	/**
+	 * 
+	 * Feeds events[offset] to events[offset + length - 1] in order and returns the value after the last one.
+	 * If outcomes is not null, outcomes[i] receives the value after events[i] (same index as the event).
+	 * 
+	 * @param events
+	 * @param offset
+	 * @param length
+	 * @param outcomes caller supplied buffer, may be null
+	 * @return
+	 */
+	public default OUTPUT onInputs(INPUT[] events, int offset, int length, OUTPUT[] outcomes) {
+		
+		OUTPUT value = getValue();
+		
+		for (int i = offset, end = offset + length; i < end; i++) {
+			value = onInput(events[i]);
+			
+			if (outcomes != null)
+				outcomes[i] = value;
+		}
+		return value;
+	}
+	
+	public default OUTPUT onInputs(Iterable<? extends INPUT> events) {
+		return onInputs(events.iterator());
+	}
+	
+	public default OUTPUT onInputs(Iterator<? extends INPUT> events) {
+		
+		OUTPUT value = getValue();
+		
+		while (events.hasNext())
+			value = onInput(events.next());
+		
+		return value;
+	}
+	
 	public STATE getCurrentState();
 	public STATE getPreviousState();
 	
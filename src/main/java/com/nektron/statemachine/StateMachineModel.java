@@ -1,18 +1,43 @@
 package com.nektron.statemachine;
 
+import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import com.nektron.statemachine.StateMachine.NoArgConsumer;
+import com.nektron.statemachine.StateMachine.TriConsumer;
+import com.nektron.statemachine.StateMachine.TriFunction;
+import com.nektron.statemachine.compiler.ActionDispatcher;
+import com.nektron.statemachine.compiler.ActionDispatcherCompiler;
+import com.nektron.statemachine.metrics.MetricsSnapshot;
+import com.nektron.statemachine.metrics.StateMachineMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Every state machine has a model which this class represents.
  * 
+ * The model holds everything that is not per instance (transitions, default actions, operations and the linked
+ * phase models), so a single model can be shared by any number of {@link com.nektron.statemachine.impl.StateMachineImpl}
+ * instances. Call {@link #freeze()} once the model is built to make it read only before sharing it across threads.
+ * 
  * @author nektarios
  *
  * @param <INPUT>
@@ -23,32 +48,65 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	private final Map<STATE, StateTransitions<INPUT,STATE,OUTPUT>> stateTransitionMap;
 	private final Set<STATE> terminalState;
 	private final Set<STATE> doneState;
+	private final Map<STATE, STATE> parentStates;
+	private final Map<STATE, StateTimeout<INPUT>> stateTimeouts;
 	private final STATE initialState;
+	private final STATE[] states;
 	private String nextPhaseStateMachineId; 
 	private String id; 
+	
+	/**
+	 * The default and error actions, shared by every phase model of the same state machine.
+	 */
+	private final Actions<INPUT,STATE,OUTPUT> actions;
+	
+	/**
+	 * The operations run on every event whatever the phase, shared by every phase model of the same state machine.
+	 */
+	private final Operations<INPUT,OUTPUT> operations;
+	
+	/**
+	 * The models of all linked phases, shared by every phase model of the same state machine.
+	 */
+	private final Map<String, StateMachineModel<INPUT,STATE,OUTPUT>> phaseModels;
+	
+	private static Logger log = LoggerFactory.getLogger(StateMachineModel.class);
+	
+	private boolean polymorphicEvents;
+	
+	private boolean compiledDispatch;
+	
+	private volatile DispatchTable<INPUT,STATE,OUTPUT> dispatchTable;
+	private volatile boolean frozen;
 
 	public StateMachineModel(String id, STATE initialState) {
-		this.id= id; 
-		this.initialState = initialState; 
-		this.stateTransitionMap = getMap(initialState); 
-		this.doneState = EnumSet.noneOf(initialState.getDeclaringClass()); 
-		this.terminalState = EnumSet.noneOf(initialState.getDeclaringClass()); 
+		this(id, null, initialState, new LinkedHashMap<>(), new Actions<>(), new Operations<>());
 	}
 	
 	public StateMachineModel(STATE initialState) {
-		this.initialState = initialState; 
-		this.stateTransitionMap = getMap(initialState); 
-		this.doneState = EnumSet.noneOf(initialState.getDeclaringClass()); 
-		this.terminalState = EnumSet.noneOf(initialState.getDeclaringClass()); 
+		this(null, null, initialState, new LinkedHashMap<>(), new Actions<>(), new Operations<>());
 	}
 	
 	public StateMachineModel(String id, String nextPhaseStatemachineId, STATE initialState) {
+		this(id, nextPhaseStatemachineId, initialState, new LinkedHashMap<>(), new Actions<>(), new Operations<>());
+	}
+	
+	private StateMachineModel(String id, String nextPhaseStatemachineId, STATE initialState, Map<String, StateMachineModel<INPUT,STATE,OUTPUT>> phaseModels, Actions<INPUT,STATE,OUTPUT> actions, Operations<INPUT,OUTPUT> operations) {
 		this.id= id; 
 		this.initialState = initialState; 
+		this.states = initialState.getDeclaringClass().getEnumConstants();
 		this.nextPhaseStateMachineId = nextPhaseStatemachineId; 
 		this.stateTransitionMap = getMap(initialState); 
 		this.doneState = EnumSet.noneOf(initialState.getDeclaringClass()); 
 		this.terminalState = EnumSet.noneOf(initialState.getDeclaringClass()); 
+		this.parentStates = new EnumMap<>(initialState.getDeclaringClass());
+		this.stateTimeouts = new EnumMap<>(initialState.getDeclaringClass());
+		this.phaseModels = phaseModels;
+		this.actions = actions;
+		this.operations = operations;
+		
+		if (id != null)
+			phaseModels.put(id, this);
 	}
 	
 	/**
@@ -88,6 +146,21 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 		return initialState; 
 	}
 	
+	/**
+	 * 
+	 * Returns the state with the given ordinal, null for a negative ordinal.
+	 * 
+	 * @param ordinal
+	 * @return
+	 */
+	public STATE getState(int ordinal) {
+		return ordinal < 0 ? null : states[ordinal];
+	}
+	
+	public int getStateCount() {
+		return states.length;
+	}
+	
 	/**
 	 * The id of the state machine
 	 * @return
@@ -109,10 +182,90 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public void setNextPhaseStateMachineId(String id) {
+		modified();
 		nextPhaseStateMachineId = id;
 	}
 	
+	/**
+	 * 
+	 * Returns the model of the next phase, null if there is no next phase.
+	 * 
+	 * @return
+	 */
+	public StateMachineModel<INPUT,STATE,OUTPUT> getNextPhase() {
+		return nextPhaseStateMachineId != null ? phaseModels.get(nextPhaseStateMachineId) : null;
+	}
+	
+	/**
+	 * 
+	 * Returns the linked phase model with the given id, null if it does not exist.
+	 * 
+	 * @param stateMachineId
+	 * @return
+	 */
+	public StateMachineModel<INPUT,STATE,OUTPUT> getPhaseModel(String stateMachineId) {
+		return phaseModels.get(stateMachineId);
+	}
+	
+	/**
+	 * 
+	 * Returns the linked phase model with the given id, creating it with the given initial state if it does not exist.
+	 * 
+	 * @param stateMachineId
+	 * @param initialState
+	 * @return
+	 */
+	public StateMachineModel<INPUT,STATE,OUTPUT> addPhaseModel(String stateMachineId, STATE initialState) {
+		
+		StateMachineModel<INPUT,STATE,OUTPUT> aStateMachineModel = phaseModels.get(stateMachineId);
+		
+		if (aStateMachineModel == null) {
+			modified();
+			aStateMachineModel = new StateMachineModel<INPUT,STATE,OUTPUT>(stateMachineId, null, initialState, phaseModels, actions, operations);
+		}
+		return aStateMachineModel;
+	}
+	
+	/**
+	 * 
+	 * Links two state machines (for two phase state machines). What this means: when the first goes to a done state, the next one is activated.
+	 * 
+	 * @param stateMachineId
+	 * @param nextPhaseStateMachineId
+	 */
+	public void linkStateMachines(String stateMachineId, String nextPhaseStateMachineId) {
+		
+		StateMachineModel<INPUT,STATE, OUTPUT> aStateMachineModel = phaseModels.get(stateMachineId);
+		
+		if (aStateMachineModel != null)
+			aStateMachineModel.setNextPhaseStateMachineId(nextPhaseStateMachineId );
+		else
+			throw new IllegalArgumentException("Unable to link state machines! State Machine with id "+stateMachineId+" does not exist.");
+	}
+	
+	public void addDoneState(String stateMachineId, STATE doneState) {
+		
+		StateMachineModel <INPUT, STATE, OUTPUT> aStateMachineModel = phaseModels.get(stateMachineId) ;
+		
+		if (aStateMachineModel != null)
+			aStateMachineModel.addDoneState ( doneState);
+		else
+			throw new IllegalArgumentException( "Can't add done states to state machine with id " +stateMachineId+ ". State machine does not exist!");
+	}
+	
+	public void addTerminalState(String stateMachineId, STATE terminalState) {
+		
+		StateMachineModel<INPUT, STATE, OUTPUT> aStateMachineModel = phaseModels.get( stateMachineId);
+		
+		if (aStateMachineModel != null) {
+			aStateMachineModel.addTerminalState(terminalState);
+		} else {
+			throw new IllegalArgumentException("Can't add terminal states to state machine with id "+stateMachineId+". State machine does not exist!");
+		}
+	}
+	
 	public <T extends INPUT> void addTransition(STATE currentState, Class<T> event, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> action) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -125,6 +278,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public <T extends INPUT> void addTransition(STATE currentState, INPUT event, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> action) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -136,6 +290,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public <T extends INPUT> void addTransition(STATE currentState, INPUT event, STATE transitionedState) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -147,6 +302,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public <T extends INPUT> void addTransition(STATE currentState, Class<T> event, STATE transitionedState, Consumer<T> action) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -160,6 +316,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	
 	
 	public <T extends INPUT> void addTransition(STATE currentState, Class<T> event, STATE transitionedState) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -172,6 +329,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public <T extends INPUT> void addTransition(STATE currentState, INPUT event, STATE transitionedState, Consumer<T> action) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -183,6 +341,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public <T extends INPUT> void addTransition(STATE currentState, Class<T> event, STATE transitionedState, NoArgConsumer action) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -195,6 +354,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	}
 	
 	public <T extends INPUT> void addTransition(STATE currentState, INPUT event, STATE transitionedState, NoArgConsumer action) {
+		modified();
 		
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 		
@@ -205,8 +365,64 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 		stateTransitions.addTransition(event, transitionedState, action);		
 	}
 	
+	/**
+	 * 
+	 * Adds a transition only taken when the guard accepts the event and the current value. Several guarded
+	 * transitions can be added for the same state and event: their guards are tried in the order they were
+	 * added, and the first to pass wins. When none passes, the transition added without a guard applies,
+	 * else the one of the state it is nested in, else the default actions.
+	 * 
+	 * The order is resolved when the model is compiled, so an event without guarded transitions is
+	 * dispatched as before, and a guarded one only evaluates its guards.
+	 * 
+	 * @param currentState
+	 * @param event
+	 * @param guard
+	 * @param transitionedState
+	 * @param action
+	 */
+	public <T extends INPUT> void addTransition(STATE currentState, Class<T> event, BiPredicate<T,OUTPUT> guard, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> action) {
+		modified();
+		
+		if (guard == null)
+			throw new IllegalArgumentException("Guard of the transition from " + currentState + " to " + transitionedState + " cannot be null");
+		
+		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
+		
+		if ((stateTransitions = stateTransitionMap.get(currentState)) == null) {
+			stateTransitions = new StateTransitions<INPUT,STATE,OUTPUT>(currentState);
+			stateTransitionMap.put(currentState, stateTransitions); 
+		} 
+		
+		stateTransitions.addTransition(event, guard, transitionedState, action);
+	}
+	
+	public <T extends INPUT> void addTransition(STATE currentState, INPUT event, BiPredicate<T,OUTPUT> guard, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> action) {
+		modified();
+		
+		if (guard == null)
+			throw new IllegalArgumentException("Guard of the transition from " + currentState + " to " + transitionedState + " cannot be null");
+		
+		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
+		
+		if ((stateTransitions = stateTransitionMap.get(currentState)) == null) {
+			stateTransitions = new StateTransitions<INPUT,STATE,OUTPUT>(currentState);
+			stateTransitionMap.put(currentState, stateTransitions); 
+		} 
+		stateTransitions.addTransition(event, guard, transitionedState, action);
+	}
+	
+	public <T extends INPUT> void addTransition(STATE currentState, Class<T> event, BiPredicate<T,OUTPUT> guard, STATE transitionedState) {
+		addTransition(currentState, event, guard, transitionedState, (BiFunction<T,OUTPUT,OUTPUT>) null);
+	}
+	
+	public <T extends INPUT> void addTransition(STATE currentState, INPUT event, BiPredicate<T,OUTPUT> guard, STATE transitionedState) {
+		addTransition(currentState, event, guard, transitionedState, (BiFunction<T,OUTPUT,OUTPUT>) null);
+	}
+	
 	public void addDoneState(STATE doneState) {
 
+		modified();
 		this.doneState.add(doneState);
 
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
@@ -220,7 +436,7 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 	
 	public void addTerminalState(STATE terminalState) {
 
-			
+		modified();
 		this.terminalState.add(terminalState);
 		StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = null;
 
@@ -231,6 +447,570 @@ public class StateMachineModel<INPUT,STATE extends Enum<STATE>,OUTPUT> {
 
 	}
 	
+	/**
+	 * 
+	 * Nests the child state in the parent state. An event the child has no transition for is handled by the
+	 * transition of its parent, else of the parent's parent and so on: the innermost state defining one wins.
+	 * Default actions only apply when no state of the chain has a transition for the event.
+	 * 
+	 * Nesting is resolved when the model is compiled: the dispatch table holds the inherited transitions as if
+	 * they had been registered on every child, so it costs nothing per event.
+	 * 
+	 * @param parentState
+	 * @param childState
+	 */
+	public void addSubstate(STATE parentState, STATE childState) {
+		modified();
+		
+		for (STATE state = parentState; state != null; state = parentStates.get(state)) {
+			if (state == childState)
+				throw new IllegalArgumentException("State " + childState + " can't be nested in " + parentState + ", it would contain itself.");
+		}
+		
+		parentStates.put(childState, parentState);
+	}
+	
+	/**
+	 * 
+	 * Returns the state the given state is nested in, null for a top level state.
+	 * 
+	 * @param state
+	 * @return
+	 */
+	public STATE getParentState(STATE state) {
+		return parentStates.get(state);
+	}
+	
+	/**
+	 * 
+	 * Feeds the timeout event back to a machine that stayed in the state for the given time without taking a
+	 * transition. Register the transitions for the event as for any other: with none, the timeout is an
+	 * unmapped event. Every transition, even back to the same state, restarts the timeout of its target.
+	 * 
+	 * Timeouts only run for machines given a {@link com.nektron.statemachine.timer.TimingWheel}, see
+	 * {@link com.nektron.statemachine.impl.StateMachineImpl#setTimingWheel}.
+	 * 
+	 * @param state
+	 * @param timeout
+	 * @param unit
+	 * @param timeoutEvent
+	 */
+	public void addTimeout(STATE state, long timeout, TimeUnit unit, INPUT timeoutEvent) {
+		modified();
+		
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Timeout of state " + state + " must be positive: " + timeout);
+		
+		if (timeoutEvent == null)
+			throw new IllegalArgumentException("Timeout event of state " + state + " cannot be null");
+		
+		stateTimeouts.put(state, new StateTimeout<>(unit.toNanos(timeout), timeoutEvent));
+	}
+	
+	/**
+	 * 
+	 * Adds a default action, run for an event no transition of the current state handles. Like the error
+	 * actions, default actions belong to the whole state machine: they keep applying after a switch to a
+	 * linked phase, whichever phase model they were added to.
+	 * 
+	 * @param eventType
+	 * @param transitionedState the state to go to, null to stay in the current one
+	 * @param action
+	 */
+	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, TriFunction<T,OUTPUT,STATE,OUTPUT> action) {
+		modified();
+		actions.defaultActions.put(new KeyWrapper<INPUT>(eventType), Transition.ofDefault(transitionedState, action));
+	}
+	
+	public <T extends INPUT> void addDefaultActions(INPUT event, STATE transitionedState, TriFunction<T,OUTPUT,STATE,OUTPUT> action) {
+		modified();
+		actions.defaultActions.put(new KeyWrapper<INPUT>(event), Transition.ofDefault(transitionedState, action));
+	}
+	
+	@SuppressWarnings("overloads")
+	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, Function<OUTPUT,OUTPUT> action) {
+		modified();
+		actions.defaultFunctionActions.put(new KeyWrapper<INPUT>(eventType), Transition.ofDefaultValueFunction(transitionedState, action));
+	}
+	
+	public void addDefaultActions(INPUT event, STATE transitionedState, Function<OUTPUT,OUTPUT> action) {
+		modified();
+		actions.defaultFunctionActions.put(new KeyWrapper<INPUT>(event), Transition.ofDefaultValueFunction(transitionedState, action));
+	}
+	
+	@SuppressWarnings("overloads")
+	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, Consumer<T> action) {
+		modified();
+		actions.defaultConsumers.put(new KeyWrapper<INPUT>(eventType), Transition.ofDefault(transitionedState, action));
+	}
+	
+	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, NoArgConsumer action) {
+		modified();
+		actions.defaultNoArgConsumers.put(new KeyWrapper<INPUT>(eventType), Transition.ofDefault(transitionedState, action));
+	}
+	
+	public <T extends INPUT> void addErrorAction(Class<T> eventType, TriConsumer<T,STATE, ? extends Throwable> action) {
+		modified();
+		actions.errorActions.put(new KeyWrapper<INPUT>(eventType), action);
+	}
+	
+	public <T extends INPUT> void addErrorAction(INPUT event, TriConsumer<T,STATE, ? extends Throwable> action) {
+		modified();
+		actions.errorActions.put(new KeyWrapper<INPUT>(event), action);
+	}
+	
+	/**
+	 * 
+	 * When set, an event whose exact type has no transition is resolved against the transitions, default actions
+	 * and error actions registered for its superclasses and interfaces, nearest first. A transition registered for
+	 * SMEvent.class then also handles every subclass of SMEvent. The resolution is cached per concrete event type.
+	 * 
+	 * Off by default: only the exact event type is matched.
+	 * 
+	 * @param polymorphicEvents
+	 */
+	public void setPolymorphicEvents(boolean polymorphicEvents) {
+		modified();
+		this.polymorphicEvents = polymorphicEvents;
+	}
+	
+	public boolean isPolymorphicEvents() {
+		return polymorphicEvents;
+	}
+	
+	/**
+	 * 
+	 * When set, compiling the model also generates a dispatcher class calling every action from its own call
+	 * site, so the JIT can inline the actions instead of going through call sites shared by all the models.
+	 * Needs an {@link ActionDispatcherCompiler} on the class path (built by the jdk21 profile); without one, or
+	 * if the generation fails, the model keeps interpreting its transitions.
+	 * 
+	 * Off by default.
+	 * 
+	 * @param compiledDispatch
+	 */
+	public void setCompiledDispatch(boolean compiledDispatch) {
+		modified();
+		this.compiledDispatch = compiledDispatch;
+	}
+	
+	public boolean isCompiledDispatch() {
+		return compiledDispatch;
+	}
+	
+	/**
+	 * 
+	 * Adds an operation run after every event. Operations belong to the whole state machine: they keep
+	 * running after a switch to a linked phase, whichever phase model they were added to.
+	 * 
+	 * @param operation
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends INPUT> void addOperations(Consumer<T> operation) {
+		modified();
+		operations.consumers.add((Consumer<INPUT>) operation);
+	}
+	
+	public void addOperations(NoArgConsumer operation) {
+		modified();
+		operations.noArgConsumers.add(operation);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public <T extends INPUT> void addOperations(BiFunction<T,OUTPUT,OUTPUT> operation) {
+		modified();
+		operations.functions.add((BiFunction<INPUT,OUTPUT,OUTPUT>) operation);
+	}
+	
+	/**
+	 * 
+	 * Compiles the model and all its linked phase models and makes them read only. Any further modification
+	 * throws an IllegalStateException. A frozen model can be shared by any number of state machines and threads.
+	 * 
+	 * @return the compiled dispatch table
+	 */
+	public DispatchTable<INPUT,STATE,OUTPUT> freeze() {
+		
+		for (StateMachineModel<INPUT,STATE,OUTPUT> phaseModel : phaseModels.values()) {
+			phaseModel.getDispatchTable();
+			phaseModel.frozen = true;
+		}
+		
+		DispatchTable<INPUT,STATE,OUTPUT> table = getDispatchTable();
+		frozen = true;
+		return table;
+	}
+	
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * 
+	 * Interns the event to a dense int code, for {@link com.nektron.statemachine.impl.StateMachineImpl#onEventCode(int)}.
+	 * An event registered as an instance gets its own code, any other event the code of its event type.
+	 * 
+	 * Resolving a code freezes the model (and its phase models) so that codes never change. All the phases
+	 * of a state machine share the same codes.
+	 * 
+	 * @param event
+	 * @return the code or {@link DispatchTable#NO_SLOT} if nothing was registered for the event
+	 */
+	public int eventCode(INPUT event) {
+		return freeze().slotOf(event);
+	}
+	
+	/**
+	 * 
+	 * The code of an event type, see {@link #eventCode(Object)}.
+	 * 
+	 * @param eventType
+	 * @return the code or {@link DispatchTable#NO_SLOT} if nothing was registered for the event type
+	 */
+	public int eventTypeCode(Class<? extends INPUT> eventType) {
+		return freeze().slotOfType(eventType);
+	}
+	
+	/**
+	 * 
+	 * Reads the metrics of this model (see {@link StateMachineMetrics}). Every phase model has its own.
+	 * 
+	 * @return null unless metrics are enabled
+	 */
+	public MetricsSnapshot<STATE> getMetrics() {
+		
+		DispatchTable<INPUT,STATE,OUTPUT> table = getDispatchTable();
+		
+		return table.getMetrics() != null ? table.getMetrics().snapshot(table, this) : null;
+	}
+	
+	/**
+	 * 
+	 * Returns the compiled dispatch table, compiling it if the model changed since it was last compiled.
+	 * 
+	 * @return
+	 */
+	public DispatchTable<INPUT,STATE,OUTPUT> getDispatchTable() {
+		
+		DispatchTable<INPUT,STATE,OUTPUT> table = dispatchTable;
+		
+		if (table == null) {
+			synchronized (this) {
+				if ((table = dispatchTable) == null)
+					dispatchTable = table = compile();
+			}
+		}
+		return table;
+	}
+	
+	private void modified() {
+		
+		if (frozen)
+			throw new IllegalStateException("State machine model " + id + " is frozen and can't be modified.");
+		
+		dispatchTable = null;
+		
+		// The phases share their event slots, so they are recompiled together
+		for (StateMachineModel<INPUT,STATE,OUTPUT> phaseModel : phaseModels.values())
+			phaseModel.dispatchTable = null;
+	}
+	
+	/**
+	 * 
+	 * Assigns a slot to every registered event instance and event type, then resolves the transition
+	 * (instance first, then event type) and default actions for every state and slot.
+	 * 
+	 * With polymorphic events, an event type also inherits, state by state, the transitions and default
+	 * actions of its registered supertypes (nearest first).
+	 * 
+	 * A nested state inherits the transitions of the states it is nested in, see {@link #addSubstate}.
+	 * 
+	 * Guarded transitions are chained in front of what a cell would hold without them, in the order their
+	 * guards are tried: the innermost state first and, within a state, the event instance before its type.
+	 * The first transition without a guard ends the chain.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private DispatchTable<INPUT,STATE,OUTPUT> compile() {
+		
+		STATE[] states = initialState.getDeclaringClass().getEnumConstants();
+		
+		Set<KeyWrapper<INPUT>> keys = new LinkedHashSet<>();
+		
+		// Every phase assigns the same slots, so an event code stays valid across a phase switch
+		Collection<StateMachineModel<INPUT,STATE,OUTPUT>> models = id != null ? phaseModels.values() : Collections.singletonList(this);
+		
+		for (StateMachineModel<INPUT,STATE,OUTPUT> model : models)
+			model.collectKeys(keys);
+		
+		List<KeyWrapper<INPUT>> slotKeys = new ArrayList<>(keys);
+		
+		Map<Object, Integer> instanceSlots = new HashMap<>();
+		Map<Class<?>, Integer> classSlots = new HashMap<>();
+		Transition<INPUT,STATE,OUTPUT>[][] transitions = new Transition[states.length][slotKeys.size()];
+		Object[] slotErrorActions = new Object[slotKeys.size()];
+		
+		for (int slot = 0; slot < slotKeys.size(); slot++) {
+			
+			KeyWrapper<INPUT> key = slotKeys.get(slot);
+			
+			if (key.getEvent() != null)
+				instanceSlots.put(key.getEvent(), slot);
+			else
+				classSlots.put(key.getClassObject(), slot);
+		}
+		
+		List<Transition<INPUT,STATE,OUTPUT>> guarded = new ArrayList<>();
+		
+		for (int slot = 0; slot < slotKeys.size(); slot++) {
+			
+			List<KeyWrapper<INPUT>> lookupKeys = getLookupKeys(slotKeys.get(slot), classSlots);
+			Transition<INPUT,STATE,OUTPUT> defaults = getDefaultActions(lookupKeys);
+			
+			for (STATE state : states) {
+				
+				Transition<INPUT,STATE,OUTPUT> transition = null;
+				
+				guarded.clear();
+				
+				// The state first, then the states it is nested in, innermost first
+				for (STATE scope = state; scope != null && transition == null; scope = parentStates.get(scope)) {
+					
+					StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = stateTransitionMap.get(scope);
+					
+					if (stateTransitions != null) {
+						for (int i = 0; i < lookupKeys.size() && transition == null; i++) {
+							guarded.addAll(stateTransitions.getGuardedTransitions(lookupKeys.get(i)));
+							transition = stateTransitions.getTransition(lookupKeys.get(i));
+						}
+					}
+				}
+				
+				if (transition == null && !doneState.contains(state))
+					transition = defaults;
+				
+				for (int i = guarded.size() - 1; i >= 0; i--)
+					transition = guarded.get(i).withNext(transition);
+				
+				transitions[state.ordinal()][slot] = transition;
+			}
+			
+			slotErrorActions[slot] = resolve(actions.errorActions, lookupKeys);
+		}
+		
+		boolean[] doneStates = new boolean[states.length];
+		boolean[] terminalStates = new boolean[states.length];
+		long[] timeoutNanos = new long[states.length];
+		Object[] timeoutEvents = new Object[states.length];
+		
+		for (STATE state : states) {
+			doneStates[state.ordinal()] = doneState.contains(state);
+			terminalStates[state.ordinal()] = terminalState.contains(state);
+			
+			StateTimeout<INPUT> stateTimeout = stateTimeouts.get(state);
+			
+			if (stateTimeout != null) {
+				timeoutNanos[state.ordinal()] = stateTimeout.nanos;
+				timeoutEvents[state.ordinal()] = stateTimeout.event;
+			}
+		}
+		
+		Transition<INPUT,STATE,OUTPUT>[] indexedTransitions = index(transitions);
+		
+		return new DispatchTable<>(instanceSlots, classSlots, polymorphicEvents, transitions, indexedTransitions, slotErrorActions, doneStates, terminalStates, hasNextPhase(),
+				operations.functions.toArray(new BiFunction[0]), operations.consumers.toArray(new Consumer[0]), operations.noArgConsumers.toArray(new NoArgConsumer[0]),
+				timeoutNanos, timeoutEvents);
+	}
+	
+	private static final class Actions<INPUT,STATE extends Enum<STATE>,OUTPUT> {
+		
+		final Map<KeyWrapper<INPUT>, Transition<INPUT,STATE,OUTPUT>> defaultActions = new HashMap<>();
+		final Map<KeyWrapper<INPUT>, Transition<INPUT,STATE,OUTPUT>> defaultFunctionActions = new HashMap<>();
+		final Map<KeyWrapper<INPUT>, Transition<INPUT,STATE,OUTPUT>> defaultConsumers = new HashMap<>();
+		final Map<KeyWrapper<INPUT>, Transition<INPUT,STATE,OUTPUT>> defaultNoArgConsumers = new HashMap<>();
+		
+		final Map<KeyWrapper<INPUT>, TriConsumer<? extends INPUT, STATE, ? extends Throwable>> errorActions = new HashMap<>();
+	}
+	
+	private static final class Operations<INPUT,OUTPUT> {
+		
+		final List<Consumer<INPUT>> consumers = new ArrayList<>();
+		final List<NoArgConsumer> noArgConsumers = new ArrayList<>();
+		final List<BiFunction<INPUT,OUTPUT,OUTPUT>> functions = new ArrayList<>();
+	}
+	
+	private static final class StateTimeout<INPUT> {
+		
+		final long nanos;
+		final INPUT event;
+		
+		StateTimeout(long nanos, INPUT event) {
+			this.nanos = nanos;
+			this.event = event;
+		}
+	}
+	
+	private void collectKeys(Set<KeyWrapper<INPUT>> keys) {
+		
+		for (StateTransitions<INPUT,STATE,OUTPUT> stateTransitions : stateTransitionMap.values())
+			keys.addAll(stateTransitions.getKeys());
+		
+		// A timeout event without transition still gets a slot, so it is dispatched like any event
+		for (StateTimeout<INPUT> stateTimeout : stateTimeouts.values())
+			keys.add(new KeyWrapper<INPUT>(stateTimeout.event));
+		
+		keys.addAll(actions.defaultActions.keySet());
+		keys.addAll(actions.defaultFunctionActions.keySet());
+		keys.addAll(actions.defaultConsumers.keySet());
+		keys.addAll(actions.defaultNoArgConsumers.keySet());
+		keys.addAll(actions.errorActions.keySet());
+	}
+	
+	/**
+	 * 
+	 * Numbers the distinct transitions of the table (chained default actions included) and replaces them, in
+	 * place, with indexed copies bound to the generated dispatcher, if any.
+	 * 
+	 * @return the transitions by index
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Transition<INPUT,STATE,OUTPUT>[] index(Transition<INPUT,STATE,OUTPUT>[][] transitions) {
+		
+		Map<Transition<INPUT,STATE,OUTPUT>, Integer> indexes = new IdentityHashMap<>();
+		List<Transition<INPUT,STATE,OUTPUT>> byIndex = new ArrayList<>();
+		
+		for (Transition<INPUT,STATE,OUTPUT>[] stateTransitions : transitions) {
+			for (Transition<INPUT,STATE,OUTPUT> cell : stateTransitions) {
+				for (Transition<INPUT,STATE,OUTPUT> transition = cell; transition != null; transition = transition.getNext()) {
+					if (!indexes.containsKey(transition)) {
+						indexes.put(transition, byIndex.size());
+						byIndex.add(transition);
+					}
+				}
+			}
+		}
+		
+		ActionDispatcher dispatcher = compiledDispatch ? compileDispatcher(byIndex.toArray(new Transition[0])) : null;
+		Map<Transition<INPUT,STATE,OUTPUT>, Transition<INPUT,STATE,OUTPUT>> copies = new IdentityHashMap<>();
+		
+		for (Transition<INPUT,STATE,OUTPUT>[] stateTransitions : transitions) {
+			for (int slot = 0; slot < stateTransitions.length; slot++)
+				stateTransitions[slot] = indexedCopy(stateTransitions[slot], indexes, copies, dispatcher);
+		}
+		
+		Transition<INPUT,STATE,OUTPUT>[] indexedTransitions = new Transition[byIndex.size()];
+		
+		for (Transition<INPUT,STATE,OUTPUT> transition : byIndex)
+			indexedTransitions[indexes.get(transition)] = copies.get(transition);
+		
+		return indexedTransitions;
+	}
+	
+	private static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT,STATE,OUTPUT> indexedCopy(Transition<INPUT,STATE,OUTPUT> transition,
+			Map<Transition<INPUT,STATE,OUTPUT>, Integer> indexes, Map<Transition<INPUT,STATE,OUTPUT>, Transition<INPUT,STATE,OUTPUT>> copies, ActionDispatcher dispatcher) {
+		
+		if (transition == null)
+			return null;
+		
+		Transition<INPUT,STATE,OUTPUT> copy = copies.get(transition);
+		
+		if (copy == null) {
+			copy = transition.indexed(indexes.get(transition), indexedCopy(transition.getNext(), indexes, copies, dispatcher), dispatcher);
+			copies.put(transition, copy);
+		}
+		return copy;
+	}
+	
+	private ActionDispatcher compileDispatcher(Transition<INPUT,STATE,OUTPUT>[] transitions) {
+		
+		ActionDispatcherCompiler compiler = DispatcherCompilerHolder.COMPILER;
+		
+		if (compiler == null) {
+			log.warn("No action dispatcher compiler available, state machine model " + id + " is interpreted");
+			return null;
+		}
+		
+		try {
+			return compiler.compile(id, transitions);
+		} catch (Exception | LinkageError e) {
+			log.warn("Could not compile the actions of state machine model " + id + ", it is interpreted", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Looks up the dispatcher compiler once, the first time a model asks for compiled dispatch.
+	 */
+	private static final class DispatcherCompilerHolder {
+		
+		static final ActionDispatcherCompiler COMPILER = load();
+		
+		private static ActionDispatcherCompiler load() {
+			
+			try {
+				Iterator<ActionDispatcherCompiler> compilers = ServiceLoader.load(ActionDispatcherCompiler.class, StateMachineModel.class.getClassLoader()).iterator();
+				
+				return compilers.hasNext() ? compilers.next() : null;
+			} catch (Throwable e) {
+				log.warn("Could not load the action dispatcher compiler", e);
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * The keys to look up, in order of precedence, when resolving the given key.
+	 */
+	private List<KeyWrapper<INPUT>> getLookupKeys(KeyWrapper<INPUT> key, Map<Class<?>, Integer> classSlots) {
+		
+		List<KeyWrapper<INPUT>> lookupKeys = new ArrayList<>();
+		Class<?> eventType = key.getEvent() != null ? key.getEvent().getClass() : key.getClassObject();
+		
+		if (key.getEvent() != null)
+			lookupKeys.add(key);
+		
+		if (!polymorphicEvents) {
+			lookupKeys.add(new KeyWrapper<INPUT>(eventType));
+			return lookupKeys;
+		}
+		
+		for (Class<?> type : DispatchTable.getTypeHierarchy(eventType)) {
+			if (classSlots.containsKey(type))
+				lookupKeys.add(new KeyWrapper<INPUT>(type));
+		}
+		return lookupKeys;
+	}
+	
+	/**
+	 * Chains the default actions of an event in the order they are called.
+	 */
+	private Transition<INPUT,STATE,OUTPUT> getDefaultActions(List<KeyWrapper<INPUT>> lookupKeys) {
+		
+		Transition<INPUT,STATE,OUTPUT> defaults = null;
+		
+		defaults = chain(resolve(actions.defaultNoArgConsumers, lookupKeys), defaults);
+		defaults = chain(resolve(actions.defaultConsumers, lookupKeys), defaults);
+		defaults = chain(resolve(actions.defaultFunctionActions, lookupKeys), defaults);
+		defaults = chain(resolve(actions.defaultActions, lookupKeys), defaults);
+		
+		return defaults;
+	}
+	
+	private Transition<INPUT,STATE,OUTPUT> chain(Transition<INPUT,STATE,OUTPUT> transition, Transition<INPUT,STATE,OUTPUT> next) {
+		return transition != null ? transition.withNext(next) : next;
+	}
+	
+	private static <K,V> V resolve(Map<K,V> map, List<K> lookupKeys) {
+		
+		V value = null;
+		
+		for (int i = 0; i < lookupKeys.size() && value == null; i++)
+			value = map.get(lookupKeys.get(i));
+		
+		return value;
+	}
+	
 	private Map<STATE, StateTransitions<INPUT, STATE, OUTPUT>> getMap(STATE state) {
 		return new EnumMap<>(state.getDeclaringClass());
 	}
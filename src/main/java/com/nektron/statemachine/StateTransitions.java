@@ -1,76 +1,84 @@
 package com.nektron.statemachine;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
-import java.util.function.Function;
 
 import com.nektron.statemachine.StateMachine.NoArgConsumer;
 
+/**
+ *
+ * The transitions out of a single state. Every event instance or event type maps to one {@link Transition}
+ * record holding the target state and the action, whatever its shape. It may also map to guarded transitions,
+ * kept in the order they were added, tried before that transition.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
 public class StateTransitions<INPUT, STATE extends Enum<STATE>,OUTPUT> {
-
+	
 	private STATE state;
 	
-	private Map<KeyWrapper<INPUT>, STATE> stateTransitions = new HashMap<>();
-	private Map<KeyWrapper<INPUT>, BiFunction<? extends INPUT,OUTPUT,OUTPUT>> stateTransitionActions = new HashMap<>();
-	private Map<KeyWrapper<INPUT>, Consumer<? extends INPUT>> stateTransitionConsumerActions = new HashMap<>();
-	private Map<KeyWrapper<INPUT>, NoArgConsumer> stateTransitionNoArgConsumerActions = new HashMap<>();
+	private Map<KeyWrapper<INPUT>, Transition<INPUT,STATE,OUTPUT>> stateTransitions = new HashMap<>();
+	
+	private Map<KeyWrapper<INPUT>, List<Transition<INPUT,STATE,OUTPUT>>> guardedTransitions = new HashMap<>();
 	
 	public StateTransitions(STATE state) {
 		this.state = state;
 	}
-
-	public BiFunction<? extends INPUT,OUTPUT,OUTPUT> getActions(INPUT event) {
+	
+	/**
+	 *
+	 * Resolves the transition for the given event: the event instance first, then its type. Guarded
+	 * transitions are left out.
+	 *
+	 * @param event
+	 * @return the transition or null if the event is not mapped in this state
+	 */
+	public Transition<INPUT,STATE,OUTPUT> getTransition(INPUT event) {
 		
-		BiFunction<? extends INPUT,OUTPUT,OUTPUT> functionRef = null;
+		if (event == null || stateTransitions.isEmpty())
+			return null;
 		
-		if (stateTransitions != null && event != null) {
-			
-			 functionRef = stateTransitionActions.get(getKey(event));
-			 
-			if (functionRef != null)
-				return functionRef;
-			else
-				functionRef = stateTransitionActions.get(getKey(event.getClass()));
-		}
+		Transition<INPUT,STATE,OUTPUT> transition = stateTransitions.get(getKey(event));
 		
-		return functionRef;
+		if (transition == null)
+			transition = stateTransitions.get(getKey(event.getClass()));
+		
+		return transition;
 	}
 	
-	public Consumer<? extends INPUT> getConsumerActions(INPUT event) {
+	@SuppressWarnings("unchecked")
+	public BiFunction<? extends INPUT,OUTPUT,OUTPUT> getActions(INPUT event) {
+		
+		Transition<INPUT,STATE,OUTPUT> transition = getTransition(event);
 		
-		Consumer<? extends INPUT> consumerFunctionRef = null;
+		return transition != null && transition.getKind() == Transition.Kind.FUNCTION ? (BiFunction<? extends INPUT,OUTPUT,OUTPUT>) transition.getAction() : null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public Consumer<? extends INPUT> getConsumerActions(INPUT event) {
 		
-		if (stateTransitions != null && event != null) {
-			
-			 consumerFunctionRef = stateTransitionConsumerActions.get(getKey(event));
-			 
-			if (consumerFunctionRef != null)
-				return consumerFunctionRef;
-			else
-				consumerFunctionRef = stateTransitionConsumerActions.get(getKey(event.getClass()));
-		}
+		Transition<INPUT,STATE,OUTPUT> transition = getTransition(event);
 		
-		return consumerFunctionRef;
+		return transition != null && transition.getKind() == Transition.Kind.CONSUMER ? (Consumer<? extends INPUT>) transition.getAction() : null;
 	}
-
+	
 	public STATE transition(INPUT event) {
 		
-		if (stateTransitions != null) {
-			
-			STATE state = stateTransitions.get(getKey(event));
-			
-			if (state == null) {
-				state =  stateTransitions.get(getKey(event.getClass()));
-			}
-			
-			return state;
-		}
+		Transition<INPUT,STATE,OUTPUT> transition = getTransition(event);
 		
-		return null;
+		return transition != null ? transition.getTarget() : null;
 	}
-
+	
 	private KeyWrapper<INPUT> getKey(INPUT event) {
 		return new KeyWrapper<INPUT>(event);
 	}
@@ -79,70 +87,104 @@ public class StateTransitions<INPUT, STATE extends Enum<STATE>,OUTPUT> {
 		return new KeyWrapper<INPUT>(eventClass);
 	}
 	
+	/**
+	 *
+	 * The keys (event instances and event types) registered for this state.
+	 *
+	 * @return
+	 */
+	Set<KeyWrapper<INPUT>> getKeys() {
+		
+		if (guardedTransitions.isEmpty())
+			return stateTransitions.keySet();
+		
+		Set<KeyWrapper<INPUT>> keys = new LinkedHashSet<>(stateTransitions.keySet());
+		
+		keys.addAll(guardedTransitions.keySet());
+		return keys;
+	}
+	
+	/**
+	 *
+	 * Returns the transition registered for the given key, or null if the key has no transition.
+	 *
+	 * @param key
+	 * @return
+	 */
+	Transition<INPUT,STATE,OUTPUT> getTransition(KeyWrapper<INPUT> key) {
+		return stateTransitions.get(key);
+	}
+	
+	/**
+	 *
+	 * Returns the guarded transitions registered for the given key, in the order they were added.
+	 *
+	 * @param key
+	 * @return
+	 */
+	List<Transition<INPUT,STATE,OUTPUT>> getGuardedTransitions(KeyWrapper<INPUT> key) {
+		
+		List<Transition<INPUT,STATE,OUTPUT>> transitions = guardedTransitions.get(key);
+		
+		return transitions != null ? transitions : Collections.emptyList();
+	}
+	
 	public boolean hasTransitions() {
-		return stateTransitions != null && ! stateTransitions.isEmpty();
+		return stateTransitions != null && ! (stateTransitions.isEmpty() && guardedTransitions.isEmpty());
 	}
 
     public <T extends INPUT> void addTransition(Class<T> event, STATE state, BiFunction<T,OUTPUT,OUTPUT> action){
-    	KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-  
-    	stateTransitions.put(key, state);
-		stateTransitionActions.put(key, action);
+    	stateTransitions.put(new KeyWrapper<>(event), Transition.of(state, action));
 	}
-
+	
 	public <T extends INPUT > void addTransition(INPUT event, STATE state, BiFunction<T,OUTPUT,OUTPUT> action) {
-		KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-		
-		stateTransitions.put(key, state);
-		stateTransitionActions.put(key, action);
+		stateTransitions.put(new KeyWrapper<>(event), Transition.of(state, action));
 	}
 	
 	public <T extends INPUT> void addTransition(Class<T> event, STATE state, Consumer<T> action){
-    	KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-  
-    	stateTransitions.put(key, state);
-		stateTransitionConsumerActions.put(key, action);
+    	stateTransitions.put(new KeyWrapper<>(event), Transition.of(state, action));
 	}
-
+	
 	public <T extends INPUT > void addTransition(INPUT event, STATE state, Consumer<T> action) {
-		KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-		
-		stateTransitions.put(key, state);
-		stateTransitionConsumerActions.put(key, action);
+		stateTransitions.put(new KeyWrapper<>(event), Transition.of(state, action));
 	}
 	
 	public <T extends INPUT> void addTransition(Class<T> event, STATE state, NoArgConsumer action){
-    	KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-  
-    	stateTransitions.put(key, state);
-		stateTransitionNoArgConsumerActions.put(key, action);
+    	stateTransitions.put(new KeyWrapper<>(event), Transition.of(state, action));
 	}
-
+	
 	public <T extends INPUT > void addTransition(INPUT event, STATE state, NoArgConsumer action) {
-		KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-		
-		stateTransitions.put(key, state);
-		stateTransitionNoArgConsumerActions.put(key, action);
+		stateTransitions.put(new KeyWrapper<>(event), Transition.of(state, action));
 	}
 	
 	public <T extends INPUT> void addTransition(Class<T> event, STATE state){
-    	KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-    	stateTransitions.put(key, state);
+    	stateTransitions.put(new KeyWrapper<>(event), Transition.of(state));
 	}
-
+	
 	public <T extends INPUT > void addTransition(INPUT event, STATE state) {
-		KeyWrapper<INPUT> key = new KeyWrapper<>(event);
-		stateTransitions.put(key, state);
+		stateTransitions.put(new KeyWrapper<>(event), Transition.of(state));
 	}
-
+	
+	public <T extends INPUT> void addTransition(Class<T> event, BiPredicate<T,OUTPUT> guard, STATE state, BiFunction<T,OUTPUT,OUTPUT> action) {
+		addGuardedTransition(new KeyWrapper<>(event), Transition.ofGuarded(guard, state, action));
+	}
+	
+	public <T extends INPUT> void addTransition(INPUT event, BiPredicate<T,OUTPUT> guard, STATE state, BiFunction<T,OUTPUT,OUTPUT> action) {
+		addGuardedTransition(new KeyWrapper<>(event), Transition.ofGuarded(guard, state, action));
+	}
+	
+	private void addGuardedTransition(KeyWrapper<INPUT> key, Transition<INPUT,STATE,OUTPUT> transition) {
+		guardedTransitions.computeIfAbsent(key, k -> new ArrayList<>()).add(transition);
+	}
+	
 	/**
-	 * 
+	 *
 	 * The state
-	 * 
+	 *
 	 * @return
 	 */
 	public STATE getState() {
 		return state;
 	}
-	
+
 }
@@ -0,0 +1,337 @@
+package com.nektron.statemachine;
+
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.nektron.statemachine.StateMachine.NoArgConsumer;
+import com.nektron.statemachine.StateMachine.TriFunction;
+import com.nektron.statemachine.compiler.ActionDispatcher;
+import com.nektron.statemachine.primitive.DoubleAction;
+import com.nektron.statemachine.primitive.IntAction;
+import com.nektron.statemachine.primitive.LongAction;
+
+/**
+ *
+ * An immutable, resolved transition: the state to move to and the action to run.
+ *
+ * Default actions are represented by the same record. When several actions apply to the same
+ * event they are chained through {@link #getNext()} and run in order.
+ *
+ * A guarded transition is only taken when its guard accepts the event and the value. The guarded
+ * transitions of a cell are chained through {@link #getNext()} too, in the order their guards are
+ * evaluated, ending with the transition or default actions to fall back on when every guard fails.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public final class Transition<INPUT, STATE extends Enum<STATE>, OUTPUT> {
+
+	public enum Kind {
+		NONE, FUNCTION, CONSUMER, NO_ARG_CONSUMER, TRI_FUNCTION, VALUE_FUNCTION
+	}
+
+	private final STATE target;
+	private final Kind kind;
+	private final Object action;
+	private final BiPredicate<?, OUTPUT> guard;
+	private final boolean defaultAction;
+	private final Transition<INPUT, STATE, OUTPUT> next;
+	private final int index;
+	private final ActionDispatcher dispatcher;
+
+	Transition(STATE target, Kind kind, Object action, boolean defaultAction, Transition<INPUT, STATE, OUTPUT> next) {
+		this(target, kind, action, null, defaultAction, next, -1, null);
+	}
+
+	Transition(STATE target, Kind kind, Object action, BiPredicate<?, OUTPUT> guard, boolean defaultAction, Transition<INPUT, STATE, OUTPUT> next, int index, ActionDispatcher dispatcher) {
+		this.target = target;
+		this.kind = kind;
+		this.action = action;
+		this.guard = guard;
+		this.defaultAction = defaultAction;
+		this.next = next;
+		this.index = index;
+		this.dispatcher = dispatcher;
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> of(STATE target) {
+		return new Transition<>(target, Kind.NONE, null, false, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> of(STATE target, BiFunction<? extends INPUT, OUTPUT, OUTPUT> action) {
+		return new Transition<>(target, action != null ? Kind.FUNCTION : Kind.NONE, action, false, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> of(STATE target, Consumer<? extends INPUT> action) {
+		return new Transition<>(target, action != null ? Kind.CONSUMER : Kind.NONE, action, false, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> of(STATE target, NoArgConsumer action) {
+		return new Transition<>(target, action != null ? Kind.NO_ARG_CONSUMER : Kind.NONE, action, false, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> ofGuarded(BiPredicate<? extends INPUT, OUTPUT> guard, STATE target, BiFunction<? extends INPUT, OUTPUT, OUTPUT> action) {
+		return new Transition<>(target, action != null ? Kind.FUNCTION : Kind.NONE, action, guard, false, null, -1, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> ofDefault(STATE target, TriFunction<? extends INPUT, OUTPUT, STATE, OUTPUT> action) {
+		return new Transition<>(target, Kind.TRI_FUNCTION, action, true, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> ofDefaultValueFunction(STATE target, Function<OUTPUT, OUTPUT> action) {
+		return new Transition<>(target, Kind.VALUE_FUNCTION, action, true, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> ofDefault(STATE target, Consumer<? extends INPUT> action) {
+		return new Transition<>(target, Kind.CONSUMER, action, true, null);
+	}
+
+	static <INPUT, STATE extends Enum<STATE>, OUTPUT> Transition<INPUT, STATE, OUTPUT> ofDefault(STATE target, NoArgConsumer action) {
+		return new Transition<>(target, Kind.NO_ARG_CONSUMER, action, true, null);
+	}
+
+	/**
+	 *
+	 * Returns a copy of this transition followed by the given one.
+	 *
+	 * @param next
+	 * @return
+	 */
+	Transition<INPUT, STATE, OUTPUT> withNext(Transition<INPUT, STATE, OUTPUT> next) {
+		return new Transition<>(target, kind, action, guard, defaultAction, next, -1, null);
+	}
+
+	/**
+	 *
+	 * Returns a copy of this transition with its index in the dispatch table, followed by the given (indexed)
+	 * transition, running its action through the dispatcher if there is one.
+	 *
+	 */
+	Transition<INPUT, STATE, OUTPUT> indexed(int index, Transition<INPUT, STATE, OUTPUT> next, ActionDispatcher dispatcher) {
+		return new Transition<>(target, kind, action, guard, defaultAction, next, index, dispatcher);
+	}
+
+	/**
+	 *
+	 * Picks the transition to take out of the guarded ones chained from this one: the first whose guard
+	 * accepts the event and the value, else what they fall back on. Call it only on a guarded transition.
+	 *
+	 * @param event
+	 * @param value
+	 * @return the transition, the first of the default actions, or null if the event is unmapped
+	 */
+	@SuppressWarnings("unchecked")
+	public Transition<INPUT, STATE, OUTPUT> select(INPUT event, OUTPUT value) {
+
+		Transition<INPUT, STATE, OUTPUT> candidate = this;
+
+		while (candidate != null && candidate.guard != null && ! ((BiPredicate<INPUT, OUTPUT>) candidate.guard).test(event, value))
+			candidate = candidate.next;
+
+		return candidate;
+	}
+
+	/**
+	 *
+	 * Runs the action of this transition (only this one, not the chained ones) and returns the new value.
+	 *
+	 * @param event
+	 * @param value
+	 * @param state the current state, passed to default actions
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public OUTPUT apply(INPUT event, OUTPUT value, STATE state) {
+
+		if (dispatcher != null)
+			return (OUTPUT) dispatcher.apply(index, event, value, state);
+
+		switch (kind) {
+			case FUNCTION:
+				return ((BiFunction<INPUT, OUTPUT, OUTPUT>) action).apply(event, value);
+			case CONSUMER:
+				((Consumer<INPUT>) action).accept(event);
+				return value;
+			case NO_ARG_CONSUMER:
+				((NoArgConsumer) action).appy();
+				return value;
+			case TRI_FUNCTION:
+				return ((TriFunction<INPUT, OUTPUT, STATE, OUTPUT>) action).apply(event, value, state);
+			case VALUE_FUNCTION:
+				return ((Function<OUTPUT, OUTPUT>) action).apply(value);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 *
+	 * Runs the action on a double value: {@link DoubleAction}s are called without boxing, any other value
+	 * function falls back to boxing.
+	 *
+	 * @param event
+	 * @param value
+	 * @param state the current state, passed to default actions
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public double applyAsDouble(INPUT event, double value, STATE state) {
+
+		switch (kind) {
+			case FUNCTION:
+				if (action instanceof DoubleAction)
+					return ((DoubleAction<INPUT>) action).applyAsDouble(event, value);
+				return (Double) ((Transition) this).apply(event, value, state);
+			case CONSUMER:
+				((Consumer<INPUT>) action).accept(event);
+				return value;
+			case NO_ARG_CONSUMER:
+				((NoArgConsumer) action).appy();
+				return value;
+			case TRI_FUNCTION:
+			case VALUE_FUNCTION:
+				return (Double) ((Transition) this).apply(event, value, state);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 *
+	 * Runs the action on a long value: {@link LongAction}s are called without boxing, any other value
+	 * function falls back to boxing.
+	 *
+	 * @param event
+	 * @param value
+	 * @param state the current state, passed to default actions
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public long applyAsLong(INPUT event, long value, STATE state) {
+
+		switch (kind) {
+			case FUNCTION:
+				if (action instanceof LongAction)
+					return ((LongAction<INPUT>) action).applyAsLong(event, value);
+				return (Long) ((Transition) this).apply(event, value, state);
+			case CONSUMER:
+				((Consumer<INPUT>) action).accept(event);
+				return value;
+			case NO_ARG_CONSUMER:
+				((NoArgConsumer) action).appy();
+				return value;
+			case TRI_FUNCTION:
+			case VALUE_FUNCTION:
+				return (Long) ((Transition) this).apply(event, value, state);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 *
+	 * Runs the action on an int value: {@link IntAction}s are called without boxing, any other value
+	 * function falls back to boxing.
+	 *
+	 * @param event
+	 * @param value
+	 * @param state the current state, passed to default actions
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public int applyAsInt(INPUT event, int value, STATE state) {
+
+		switch (kind) {
+			case FUNCTION:
+				if (action instanceof IntAction)
+					return ((IntAction<INPUT>) action).applyAsInt(event, value);
+				return (Integer) ((Transition) this).apply(event, value, state);
+			case CONSUMER:
+				((Consumer<INPUT>) action).accept(event);
+				return value;
+			case NO_ARG_CONSUMER:
+				((NoArgConsumer) action).appy();
+				return value;
+			case TRI_FUNCTION:
+			case VALUE_FUNCTION:
+				return (Integer) ((Transition) this).apply(event, value, state);
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 * The state to transition to, null if a default action leaves the state as is.
+	 * @return
+	 */
+	public STATE getTarget() {
+		return target;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public Object getAction() {
+		return action;
+	}
+
+	/**
+	 * True if the transition is only taken when its guard passes, see {@link #select(Object, Object)}.
+	 * @return
+	 */
+	public boolean isGuarded() {
+		return guard != null;
+	}
+
+	public BiPredicate<?, OUTPUT> getGuard() {
+		return guard;
+	}
+
+	public boolean hasAction() {
+		return kind != Kind.NONE;
+	}
+
+	/**
+	 * True for consumer actions, which cannot change the value and only run for their side effects.
+	 * @return
+	 */
+	public boolean isSideEffect() {
+		return kind == Kind.CONSUMER || kind == Kind.NO_ARG_CONSUMER;
+	}
+
+	/**
+	 * True for default actions, which run without onExit()/onEntry() and only when no transition is mapped.
+	 * @return
+	 */
+	public boolean isDefaultAction() {
+		return defaultAction;
+	}
+
+	public Transition<INPUT, STATE, OUTPUT> getNext() {
+		return next;
+	}
+
+	/**
+	 * The index of this transition in its dispatch table, -1 if it does not belong to a compiled table.
+	 * @return
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Whether the action runs through a generated dispatcher.
+	 * @return
+	 */
+	public boolean isCompiled() {
+		return dispatcher != null;
+	}
+
+	public String toString() {
+		return (defaultAction ? "Default " : guard != null ? "Guarded " : "") + kind + " -> " + target;
+	}
+}
@@ -0,0 +1,22 @@
+package com.nektron.statemachine.compiler;
+
+/**
+ *
+ * Runs the action of a compiled transition, selected by its index in the dispatch table. Implementations are
+ * generated per model, so every action is called from its own call site.
+ *
+ */
+public interface ActionDispatcher {
+
+	/**
+	 *
+	 * Runs the action of the transition with the given index and returns the new value.
+	 *
+	 * @param transitionIndex
+	 * @param event
+	 * @param value
+	 * @param state the current state, passed to default actions
+	 * @return
+	 */
+	Object apply(int transitionIndex, Object event, Object value, Object state);
+}
@@ -0,0 +1,22 @@
+package com.nektron.statemachine.compiler;
+
+import com.nektron.statemachine.Transition;
+
+/**
+ *
+ * Turns the transitions of a compiled model into an {@link ActionDispatcher}. Implementations are found with
+ * the {@link java.util.ServiceLoader}; when none is available, or it fails, the model keeps interpreting its
+ * transitions.
+ *
+ */
+public interface ActionDispatcherCompiler {
+
+	/**
+	 *
+	 * @param modelId the id of the model, for naming and diagnostics (may be null)
+	 * @param transitions the transitions of the model, by index
+	 * @return the dispatcher
+	 * @throws Exception if the dispatcher could not be generated
+	 */
+	ActionDispatcher compile(String modelId, Transition<?, ?, ?>[] transitions) throws Exception;
+}
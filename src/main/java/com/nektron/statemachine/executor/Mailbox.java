@@ -0,0 +1,123 @@
+package com.nektron.statemachine.executor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * Bounded multi producer, single consumer ring of (machine id, event) pairs. Every slot carries a sequence
+ * number: producers claim a position with a CAS on the tail and publish the slot by advancing its sequence,
+ * the consumer reads the slot once its sequence says it was published and hands it back to the producers a
+ * lap later. Neither side takes a lock or allocates.
+ *
+ * @param <INPUT>
+ */
+final class Mailbox<INPUT> {
+
+	@FunctionalInterface
+	interface Handler<INPUT> {
+		void handle(long machineId, INPUT event);
+	}
+
+	private final int mask;
+	private final long[] machineIds;
+	private final Object[] events;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Only read and written by the consumer */
+	private long head;
+
+	Mailbox(int capacity) {
+
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Mailbox capacity must be a power of two: " + capacity);
+
+		mask = capacity - 1;
+		machineIds = new long[capacity];
+		events = new Object[capacity];
+		sequences = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 *
+	 * Appends the event, safe to call from any thread.
+	 *
+	 * @param machineId
+	 * @param event
+	 * @return false if the mailbox is full
+	 */
+	boolean offer(long machineId, INPUT event) {
+
+		long position;
+		int index;
+
+		for (;;) {
+
+			position = tail.get();
+			index = (int) position & mask;
+
+			long sequence = sequences.get(index);
+
+			if (sequence == position) {
+
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			}
+			else if (sequence < position)
+				return false;
+		}
+
+		machineIds[index] = machineId;
+		events[index] = event;
+
+		// A full volatile write rather than lazySet: the worker checks the mailbox after announcing it is
+		// about to park, and the producer checks the announcement after publishing
+		sequences.set(index, position + 1);
+		return true;
+	}
+
+	/**
+	 *
+	 * Hands up to limit events to the handler, in the order they were offered. Only called by the consumer.
+	 *
+	 * @param handler
+	 * @param limit
+	 * @return the number of events drained
+	 */
+	@SuppressWarnings("unchecked")
+	int drain(Handler<INPUT> handler, int limit) {
+
+		int count = 0;
+
+		while (count < limit) {
+
+			int index = (int) head & mask;
+
+			if (sequences.get(index) != head + 1)
+				break;
+
+			long machineId = machineIds[index];
+			INPUT event = (INPUT) events[index];
+
+			events[index] = null;
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+			count++;
+
+			handler.handle(machineId, event);
+		}
+		return count;
+	}
+
+	boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,370 @@
+package com.nektron.statemachine.executor;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.timer.TimingWheel;
+import com.nektron.statemachine.util.LongHashMap;
+
+/**
+ *
+ * Runs many state machines concurrently without locking them. Machines are partitioned by id across a fixed
+ * number of shards, each drained by its own worker thread: a worker is the only thread that ever touches
+ * its machines, so events for different shards run in parallel while the events of one machine are
+ * applied one at a time, in the order they were submitted.
+ *
+ * Events travel through a bounded lock-free mailbox per shard. Registering and unregistering go through
+ * the same mailbox, so an event submitted after {@link #register(long, StateMachine)} always finds its
+ * machine.
+ *
+ * Every shard also runs a {@link TimingWheel} for the state timeouts of its machines: a registered
+ * {@link StateMachineImpl} whose model declares timeouts gets the wheel of its shard, advanced by the worker
+ * between events, so timeout events are applied on the worker like any other.
+ *
+ * @param <INPUT>
+ */
+public class StateMachineExecutor<INPUT> {
+
+	private static Logger log = LoggerFactory.getLogger(StateMachineExecutor.class);
+
+	public static final int DEFAULT_MAILBOX_CAPACITY = 1 << 14;
+
+	private final Shard<INPUT>[] shards;
+
+	private volatile boolean running = true;
+
+	public StateMachineExecutor(int shardCount) {
+		this(shardCount, DEFAULT_MAILBOX_CAPACITY, new ShardThreadFactory());
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public StateMachineExecutor(int shardCount, int mailboxCapacity, ThreadFactory threadFactory) {
+
+		if (shardCount < 1)
+			throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+
+		if (threadFactory == null)
+			throw new IllegalArgumentException("Thread factory cannot be null");
+
+		shards = new Shard[shardCount];
+
+		for (int i = 0; i < shardCount; i++)
+			shards[i] = new Shard<>(this, new Mailbox<>(mailboxCapacity));
+
+		for (Shard<INPUT> shard : shards) {
+			shard.thread = threadFactory.newThread(shard);
+			shard.thread.start();
+		}
+	}
+
+	/**
+	 *
+	 * Hands the machine over to the worker of its shard. From now on the machine must only receive events
+	 * through this executor.
+	 *
+	 * @param machineId
+	 * @param stateMachine
+	 */
+	public void register(long machineId, StateMachine<INPUT, ?, ?> stateMachine) {
+
+		if (stateMachine == null)
+			throw new IllegalArgumentException("State machine cannot be null for id: " + machineId);
+
+		submitControl(machineId, new Control(stateMachine));
+	}
+
+	public void unregister(long machineId) {
+		submitControl(machineId, Control.UNREGISTER);
+	}
+
+	/**
+	 *
+	 * Queues the event for the machine, waiting while the mailbox of its shard is full.
+	 *
+	 * @param machineId
+	 * @param event
+	 */
+	public void submit(long machineId, INPUT event) {
+
+		checkRunning();
+
+		Shard<INPUT> shard = shardOf(machineId);
+
+		for (int attempt = 0; ! shard.offer(machineId, event); attempt++) {
+			checkRunning();
+			backOff(attempt);
+		}
+	}
+
+	/**
+	 *
+	 * Queues the event for the machine unless the mailbox of its shard is full.
+	 *
+	 * @param machineId
+	 * @param event
+	 * @return false if the event was not queued
+	 */
+	public boolean trySubmit(long machineId, INPUT event) {
+		checkRunning();
+		return shardOf(machineId).offer(machineId, event);
+	}
+
+	/**
+	 *
+	 * Stops accepting events. The workers exit once their mailboxes are drained; events submitted
+	 * concurrently with the shutdown may be dropped.
+	 *
+	 */
+	public void shutdown() {
+
+		running = false;
+
+		for (Shard<INPUT> shard : shards)
+			LockSupport.unpark(shard.thread);
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		for (Shard<INPUT> shard : shards) {
+
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining > 0)
+				TimeUnit.NANOSECONDS.timedJoin(shard.thread, remaining);
+
+			if (shard.thread.isAlive())
+				return false;
+		}
+		return true;
+	}
+
+	public boolean isShutdown() {
+		return ! running;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 *
+	 * The shard owning the machine, stable for the life of the executor.
+	 *
+	 * @param machineId
+	 * @return
+	 */
+	public int getShard(long machineId) {
+		long hash = machineId * 0x9E3779B97F4A7C15L;
+		return (int) ((hash >>> 32) * shards.length >>> 32);
+	}
+
+	/**
+	 *
+	 * The number of events applied so far, across all shards.
+	 *
+	 * @return
+	 */
+	public long getProcessedCount() {
+
+		long processed = 0;
+
+		for (Shard<INPUT> shard : shards)
+			processed += shard.processed.get();
+
+		return processed;
+	}
+
+	/**
+	 *
+	 * The number of events dropped because no machine was registered under their id.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+
+		long dropped = 0;
+
+		for (Shard<INPUT> shard : shards)
+			dropped += shard.dropped.get();
+
+		return dropped;
+	}
+
+	private Shard<INPUT> shardOf(long machineId) {
+		return shards[getShard(machineId)];
+	}
+
+	@SuppressWarnings("unchecked")
+	private void submitControl(long machineId, Control control) {
+		submit(machineId, (INPUT) control);
+	}
+
+	private void checkRunning() {
+		if (! running)
+			throw new IllegalStateException("State machine executor is shut down");
+	}
+
+	private static void backOff(int attempt) {
+
+		if (attempt < 64)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(Shard.PARK_NANOS);
+	}
+
+	/**
+	 *
+	 * Registration and removal of machines, queued through the mailbox to keep them ordered with the events.
+	 *
+	 */
+	private static final class Control {
+
+		static final Control UNREGISTER = new Control(null);
+
+		final StateMachine<?, ?, ?> stateMachine;
+
+		Control(StateMachine<?, ?, ?> stateMachine) {
+			this.stateMachine = stateMachine;
+		}
+	}
+
+	private static final class Shard<INPUT> implements Runnable, Mailbox.Handler<INPUT> {
+
+		static final int DRAIN_LIMIT = 256;
+		static final int SPIN_TRIES = 128;
+		static final int YIELD_TRIES = 256;
+		static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+		final StateMachineExecutor<INPUT> executor;
+		final Mailbox<INPUT> mailbox;
+		final LongHashMap<StateMachine<INPUT, ?, ?>> machines = new LongHashMap<>();
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		final TimingWheel timingWheel = new TimingWheel();
+
+		Thread thread;
+
+		volatile boolean parked;
+
+		Shard(StateMachineExecutor<INPUT> executor, Mailbox<INPUT> mailbox) {
+			this.executor = executor;
+			this.mailbox = mailbox;
+		}
+
+		boolean offer(long machineId, INPUT event) {
+
+			if (! mailbox.offer(machineId, event))
+				return false;
+
+			if (parked)
+				LockSupport.unpark(thread);
+
+			return true;
+		}
+
+		@Override
+		public void run() {
+
+			int idle = 0;
+
+			for (;;) {
+
+				if (timingWheel.getPendingCount() > 0)
+					timingWheel.advance();
+
+				if (mailbox.drain(this, DRAIN_LIMIT) > 0) {
+					idle = 0;
+					continue;
+				}
+
+				if (! executor.running) {
+					if (mailbox.isEmpty())
+						break;
+					continue;
+				}
+
+				if (idle < SPIN_TRIES)
+					idle++;
+				else if (idle < SPIN_TRIES + YIELD_TRIES) {
+					idle++;
+					Thread.yield();
+				}
+				else {
+					parked = true;
+
+					if (mailbox.isEmpty() && executor.running)
+						LockSupport.parkNanos(this, PARK_NANOS);
+
+					parked = false;
+				}
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void handle(long machineId, INPUT event) {
+
+			if (event instanceof Control) {
+
+				Control control = (Control) event;
+
+				if (control.stateMachine != null) {
+
+					machines.put(machineId, (StateMachine<INPUT, ?, ?>) control.stateMachine);
+
+					if (control.stateMachine instanceof StateMachineImpl && ((StateMachineImpl<?, ?, ?>) control.stateMachine).getStateMachineModel().getDispatchTable().hasTimeouts())
+						((StateMachineImpl<?, ?, ?>) control.stateMachine).setTimingWheel(timingWheel);
+				}
+				else {
+
+					StateMachine<INPUT, ?, ?> removed = machines.remove(machineId);
+
+					if (removed instanceof StateMachineImpl && ((StateMachineImpl<?, ?, ?>) removed).getTimingWheel() == timingWheel)
+						((StateMachineImpl<?, ?, ?>) removed).setTimingWheel(null);
+				}
+				return;
+			}
+
+			StateMachine<INPUT, ?, ?> stateMachine = machines.get(machineId);
+
+			if (stateMachine == null) {
+				dropped.lazySet(dropped.get() + 1);
+				log.warn("No state machine registered for id: " + machineId + ", dropping event: " + event);
+				return;
+			}
+
+			try {
+				stateMachine.onInput(event);
+			}
+			catch (RuntimeException e) {
+				log.error("State machine " + machineId + " failed on event: " + event, e);
+			}
+
+			// Single writer: an ordered store is enough for readers on other threads
+			processed.lazySet(processed.get() + 1);
+		}
+	}
+
+	private static final class ShardThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+
+			Thread thread = new Thread(runnable, "statemachine-shard-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package com.nektron.statemachine.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nektron.statemachine.DispatchTable;
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.Transition;
+
+/**
+ *
+ * A state machine safe to feed from any number of threads without an external lock. The current state, the
+ * previous state, a version and a lock bit are packed in one atomic word:
+ *
+ * - a pure transition (no action, no guard, no operations, no default actions, no phase switch) commits with a single
+ *   CAS of the word and never blocks;
+ * - any other transition takes the lock bit with a CAS, runs its actions and operations, then publishes the
+ *   new states and releases the lock with one write. Pure transitions wait for the lock to be released.
+ *
+ * Every onInput is linearizable: a pure transition takes effect at its successful CAS, an action bearing
+ * one at the release of the lock, and actions never run concurrently with each other or with a state
+ * change. The value returned is the one right after the event was applied.
+ *
+ * The model is frozen on construction: configure it before creating the machine. There are no onEntry /
+ * onExit hooks, as they would run outside the lock on the pure path.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public class ConcurrentStateMachineImpl<INPUT, STATE extends Enum<STATE>, OUTPUT> implements StateMachine<INPUT, STATE, OUTPUT> {
+
+	private static Logger log = LoggerFactory.getLogger(ConcurrentStateMachineImpl.class);
+
+	private static final int ORDINAL_BITS = 16;
+	private static final long ORDINAL_MASK = (1L << ORDINAL_BITS) - 1;
+	private static final int PREVIOUS_SHIFT = ORDINAL_BITS;
+	private static final long LOCK_BIT = 1L << (2 * ORDINAL_BITS);
+	private static final int VERSION_SHIFT = 2 * ORDINAL_BITS + 1;
+
+	private static final int SPIN_TRIES = 64;
+
+	/** current ordinal | (previous ordinal + 1) << 16 | lock << 32 | version << 33 */
+	private final AtomicLong state;
+
+	private final STATE[] states;
+
+	private volatile StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel;
+
+	private volatile OUTPUT value;
+
+	private volatile INPUT currentEvent;
+
+	protected boolean shouldLog = false;
+
+	public ConcurrentStateMachineImpl(StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel) {
+		this(stateMachineModel, null);
+	}
+
+	public ConcurrentStateMachineImpl(StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel, OUTPUT initialValue) {
+
+		STATE initialState = stateMachineModel.getinitialState();
+
+		states = initialState.getDeclaringClass().getEnumConstants();
+
+		if (states.length > ORDINAL_MASK)
+			throw new IllegalArgumentException("Too many states for a concurrent state machine: " + states.length);
+
+		stateMachineModel.freeze();
+
+		this.stateMachineModel = stateMachineModel;
+		this.value = initialValue;
+		this.state = new AtomicLong(pack(initialState.ordinal(), -1, 0));
+	}
+
+	@Override
+	public OUTPUT onInput(INPUT event) {
+
+		DispatchTable<INPUT, STATE, OUTPUT> dispatchTable = null;
+		int slot = DispatchTable.NO_SLOT;
+
+		for (int attempt = 0; ; attempt++) {
+
+			long word = state.get();
+
+			if ((word & LOCK_BIT) != 0) {
+				backOff(attempt);
+				continue;
+			}
+
+			// Read after the word: a phase switch publishes the model before releasing the lock
+			DispatchTable<INPUT, STATE, OUTPUT> currentTable = stateMachineModel.getDispatchTable();
+
+			if (currentTable != dispatchTable) {
+				dispatchTable = currentTable;
+				slot = dispatchTable.slotOf(event);
+			}
+
+			int ordinal = (int) (word & ORDINAL_MASK);
+			Transition<INPUT, STATE, OUTPUT> transition = dispatchTable.getTransition(ordinal, slot);
+
+			if (transition == null) {
+
+				if (! dispatchTable.isDoneState(ordinal))
+					handleUnmappedTransition(event);
+
+				return value;
+			}
+
+			if (isPure(dispatchTable, transition)) {
+
+				if (state.compareAndSet(word, pack(transition.getTarget().ordinal(), ordinal, version(word) + 1))) {
+					currentEvent = event;
+					return value;
+				}
+				continue;
+			}
+
+			if (state.compareAndSet(word, word | LOCK_BIT))
+				return dispatchLocked(dispatchTable, slot, transition, event, word);
+		}
+	}
+
+	/**
+	 *
+	 * Applies an action bearing transition while holding the lock bit, then publishes the new states and
+	 * releases the lock.
+	 *
+	 */
+	private OUTPUT dispatchLocked(DispatchTable<INPUT, STATE, OUTPUT> dispatchTable, int slot, Transition<INPUT, STATE, OUTPUT> transition, INPUT event, long word) {
+
+		int current = (int) (word & ORDINAL_MASK);
+		int previous = previousOrdinal(word);
+		OUTPUT result = value;
+
+		try {
+
+			currentEvent = event;
+
+			// Guards read the value, so they are evaluated under the lock
+			if (transition.isGuarded())
+				transition = transition.select(event, result);
+
+			if (transition == null) {
+
+				if (! dispatchTable.isDoneState(current))
+					handleUnmappedTransition(event);
+			}
+			else if (transition.isDefaultAction()) {
+
+				for (Transition<INPUT, STATE, OUTPUT> defaultAction = transition; defaultAction != null; defaultAction = defaultAction.getNext()) {
+
+					result = defaultAction.apply(event, result, states[current]);
+
+					if (defaultAction.getTarget() != null) {
+						previous = current;
+						current = defaultAction.getTarget().ordinal();
+					}
+				}
+			}
+			else {
+
+				previous = current;
+				current = transition.getTarget().ordinal();
+
+				if (transition.hasAction())
+					result = transition.apply(event, result, states[current]);
+			}
+
+			if (dispatchTable.hasNextPhase() && dispatchTable.isDoneState(current)) {
+
+				StateMachineModel<INPUT, STATE, OUTPUT> nextPhase = stateMachineModel.getNextPhase();
+
+				if (nextPhase != null)
+					stateMachineModel = nextPhase;
+			}
+
+			if (dispatchTable.hasOperations())
+				result = dispatchTable.performOperations(event, result);
+
+		} catch (Exception exp) {
+
+			TriConsumer<INPUT, STATE, Exception> errorFunctionRef = dispatchTable.getErrorAction(slot);
+
+			if (errorFunctionRef != null)
+				errorFunctionRef.accept(event, states[current], exp);
+			else
+				handleErrorCondition(event);
+
+			if (shouldLog)
+				log.error("State Machine Exception  ", exp);
+		} finally {
+
+			value = result;
+
+			// Publishes the value and the new model along with the states
+			state.set(pack(current, previous, version(word) + 1));
+		}
+		return result;
+	}
+
+	private static boolean isPure(DispatchTable<?, ?, ?> dispatchTable, Transition<?, ?, ?> transition) {
+
+		return ! transition.isDefaultAction()
+				&& ! transition.isGuarded()
+				&& ! transition.hasAction()
+				&& ! dispatchTable.hasOperations()
+				&& ! (dispatchTable.hasNextPhase() && dispatchTable.isDoneState(transition.getTarget().ordinal()));
+	}
+
+	private static long pack(int current, int previous, long version) {
+		return current | (long) (previous + 1) << PREVIOUS_SHIFT | version << VERSION_SHIFT;
+	}
+
+	private static int previousOrdinal(long word) {
+		return (int) (word >>> PREVIOUS_SHIFT & ORDINAL_MASK) - 1;
+	}
+
+	private static long version(long word) {
+		return word >>> VERSION_SHIFT;
+	}
+
+	private static void backOff(int attempt) {
+
+		if (attempt < SPIN_TRIES)
+			return;
+
+		if (attempt < 2 * SPIN_TRIES)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(1000);
+	}
+
+	public void handleErrorCondition(INPUT event) {
+
+	}
+
+	public void handleUnmappedTransition(INPUT event) {
+
+	}
+
+	@Override
+	public String getId() {
+		return stateMachineModel.getId();
+	}
+
+	@Override
+	public STATE getCurrentState() {
+		return states[(int) (state.get() & ORDINAL_MASK)];
+	}
+
+	@Override
+	public STATE getPreviousState() {
+
+		int previous = previousOrdinal(state.get());
+
+		return previous < 0 ? null : states[previous];
+	}
+
+	/**
+	 *
+	 * The number of transitions committed so far (wraps around after 2^31).
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return version(state.get());
+	}
+
+	@Override
+	public OUTPUT getValue() {
+		return value;
+	}
+
+	/**
+	 * The last event applied
+	 * @return
+	 */
+	public INPUT getCurrentEvent() {
+		return currentEvent;
+	}
+
+	@Override
+	public StateMachineModel<INPUT, STATE, OUTPUT> getStateMachineModel() {
+		return stateMachineModel;
+	}
+
+	@Override
+	public boolean isDone() {
+		return stateMachineModel.isDoneState(getCurrentState());
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return stateMachineModel.isTerminalState(getCurrentState());
+	}
+
+	public String toString() {
+		return "Concurrent State Machine: " + getId();
+	}
+}
@@ -0,0 +1,149 @@
+package com.nektron.statemachine.impl;
+
+import java.nio.ByteBuffer;
+
+import com.nektron.statemachine.DispatchTable;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.Transition;
+import com.nektron.statemachine.primitive.DoubleAction;
+import com.nektron.statemachine.snapshot.DoubleCodec;
+import com.nektron.statemachine.snapshot.ValueCodec;
+
+/**
+ *
+ * A state machine accumulating a double value. Transitions and operations registered as {@link DoubleAction}s run
+ * on the primitive value, so {@link #onInputAsDouble(Object)} applies an event without boxing or allocating.
+ * Any other action still works, boxing the value around its call.
+ *
+ * Register them through the usual addTransition / addOperations methods, typing lambdas with
+ * {@link DoubleAction#of(DoubleAction)}.
+ *
+ * {@link #onInput(Object)} and {@link #getValue()} keep the {@link com.nektron.statemachine.StateMachine}
+ * contract and box the value they return.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ */
+public class DoubleStateMachineImpl<INPUT, STATE extends Enum<STATE>> extends StateMachineImpl<INPUT, STATE, Double> {
+
+	protected double doubleValue;
+
+	public DoubleStateMachineImpl(STATE initialState) {
+		this(new StateMachineModel<INPUT, STATE, Double>(initialState), 0.0);
+	}
+
+	public DoubleStateMachineImpl(String stateMachineId, STATE initialState) {
+		this(new StateMachineModel<INPUT, STATE, Double>(stateMachineId, initialState), 0.0);
+	}
+
+	public DoubleStateMachineImpl(StateMachineModel<INPUT, STATE, Double> stateMachineModel, double initialValue) {
+		super(stateMachineModel);
+		this.doubleValue = initialValue;
+	}
+
+	/**
+	 *
+	 * Applies the event and returns the new value, without boxing.
+	 *
+	 * @param event
+	 * @return
+	 */
+	public double onInputAsDouble(INPUT event) {
+
+		dispatch(stateMachineModel.getDispatchTable(), event);
+		return doubleValue;
+	}
+
+	/**
+	 *
+	 * Applies the event with the given code and returns the new value, without boxing.
+	 *
+	 * @param eventCode
+	 * @return
+	 * @see StateMachineModel#eventCode(Object)
+	 */
+	public double onEventCodeAsDouble(int eventCode) {
+
+		dispatch(eventCode);
+		return doubleValue;
+	}
+
+	/**
+	 *
+	 * Applies the events in order and returns the final value, without boxing.
+	 *
+	 * @param events
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public double onInputsAsDouble(INPUT[] events, int offset, int length) {
+
+		StateMachineModel<INPUT, STATE, Double> model = stateMachineModel;
+		DispatchTable<INPUT, STATE, Double> dispatchTable = model.getDispatchTable();
+
+		for (int i = offset, end = offset + length; i < end; i++) {
+
+			if (model != stateMachineModel) {
+				model = stateMachineModel;
+				dispatchTable = model.getDispatchTable();
+			}
+			dispatch(dispatchTable, events[i]);
+		}
+		return doubleValue;
+	}
+
+	@Override
+	protected void applyAction(Transition<INPUT, STATE, Double> transition, INPUT event) {
+		doubleValue = transition.applyAsDouble(event, doubleValue, currentState);
+	}
+
+	@Override
+	protected void performOperations(DispatchTable<INPUT, STATE, Double> dispatchTable, INPUT event) {
+		doubleValue = dispatchTable.performOperationsAsDouble(event, doubleValue, ! replaying);
+	}
+
+	/**
+	 *
+	 * Resets the instance (see {@link #reset(Object)}) without boxing the value.
+	 *
+	 * @param initialValue
+	 */
+	public void reset(double initialValue) {
+		doubleValue = initialValue;
+		resetState();
+	}
+
+	@Override
+	public void reset(Double initialValue) {
+		reset((double) initialValue);
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, ValueCodec<Double> codec) {
+
+		if (codec instanceof DoubleCodec)
+			((DoubleCodec) codec).encodeAsDouble(doubleValue, buffer);
+		else
+			codec.encode(doubleValue, buffer);
+	}
+
+	@Override
+	protected void decodeValue(ByteBuffer buffer, ValueCodec<Double> codec) {
+		doubleValue = codec instanceof DoubleCodec ? ((DoubleCodec) codec).decodeAsDouble(buffer) : codec.decode(buffer);
+	}
+
+	@Override
+	protected int valueSize(ValueCodec<Double> codec) {
+		return codec instanceof DoubleCodec ? DoubleCodec.SIZE : codec.size(doubleValue);
+	}
+
+	public double getDoubleValue() {
+		return doubleValue;
+	}
+
+	@Override
+	public Double getValue() {
+		return doubleValue;
+	}
+}
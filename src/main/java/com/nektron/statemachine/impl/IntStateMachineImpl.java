@@ -0,0 +1,149 @@
+package com.nektron.statemachine.impl;
+
+import java.nio.ByteBuffer;
+
+import com.nektron.statemachine.DispatchTable;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.Transition;
+import com.nektron.statemachine.primitive.IntAction;
+import com.nektron.statemachine.snapshot.IntCodec;
+import com.nektron.statemachine.snapshot.ValueCodec;
+
+/**
+ *
+ * A state machine accumulating an int value. Transitions and operations registered as {@link IntAction}s run
+ * on the primitive value, so {@link #onInputAsInt(Object)} applies an event without boxing or allocating.
+ * Any other action still works, boxing the value around its call.
+ *
+ * Register them through the usual addTransition / addOperations methods, typing lambdas with
+ * {@link IntAction#of(IntAction)}.
+ *
+ * {@link #onInput(Object)} and {@link #getValue()} keep the {@link com.nektron.statemachine.StateMachine}
+ * contract and box the value they return.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ */
+public class IntStateMachineImpl<INPUT, STATE extends Enum<STATE>> extends StateMachineImpl<INPUT, STATE, Integer> {
+
+	protected int intValue;
+
+	public IntStateMachineImpl(STATE initialState) {
+		this(new StateMachineModel<INPUT, STATE, Integer>(initialState), 0);
+	}
+
+	public IntStateMachineImpl(String stateMachineId, STATE initialState) {
+		this(new StateMachineModel<INPUT, STATE, Integer>(stateMachineId, initialState), 0);
+	}
+
+	public IntStateMachineImpl(StateMachineModel<INPUT, STATE, Integer> stateMachineModel, int initialValue) {
+		super(stateMachineModel);
+		this.intValue = initialValue;
+	}
+
+	/**
+	 *
+	 * Applies the event and returns the new value, without boxing.
+	 *
+	 * @param event
+	 * @return
+	 */
+	public int onInputAsInt(INPUT event) {
+
+		dispatch(stateMachineModel.getDispatchTable(), event);
+		return intValue;
+	}
+
+	/**
+	 *
+	 * Applies the event with the given code and returns the new value, without boxing.
+	 *
+	 * @param eventCode
+	 * @return
+	 * @see StateMachineModel#eventCode(Object)
+	 */
+	public int onEventCodeAsInt(int eventCode) {
+
+		dispatch(eventCode);
+		return intValue;
+	}
+
+	/**
+	 *
+	 * Applies the events in order and returns the final value, without boxing.
+	 *
+	 * @param events
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public int onInputsAsInt(INPUT[] events, int offset, int length) {
+
+		StateMachineModel<INPUT, STATE, Integer> model = stateMachineModel;
+		DispatchTable<INPUT, STATE, Integer> dispatchTable = model.getDispatchTable();
+
+		for (int i = offset, end = offset + length; i < end; i++) {
+
+			if (model != stateMachineModel) {
+				model = stateMachineModel;
+				dispatchTable = model.getDispatchTable();
+			}
+			dispatch(dispatchTable, events[i]);
+		}
+		return intValue;
+	}
+
+	@Override
+	protected void applyAction(Transition<INPUT, STATE, Integer> transition, INPUT event) {
+		intValue = transition.applyAsInt(event, intValue, currentState);
+	}
+
+	@Override
+	protected void performOperations(DispatchTable<INPUT, STATE, Integer> dispatchTable, INPUT event) {
+		intValue = dispatchTable.performOperationsAsInt(event, intValue, ! replaying);
+	}
+
+	/**
+	 *
+	 * Resets the instance (see {@link #reset(Object)}) without boxing the value.
+	 *
+	 * @param initialValue
+	 */
+	public void reset(int initialValue) {
+		intValue = initialValue;
+		resetState();
+	}
+
+	@Override
+	public void reset(Integer initialValue) {
+		reset((int) initialValue);
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, ValueCodec<Integer> codec) {
+
+		if (codec instanceof IntCodec)
+			((IntCodec) codec).encodeAsInt(intValue, buffer);
+		else
+			codec.encode(intValue, buffer);
+	}
+
+	@Override
+	protected void decodeValue(ByteBuffer buffer, ValueCodec<Integer> codec) {
+		intValue = codec instanceof IntCodec ? ((IntCodec) codec).decodeAsInt(buffer) : codec.decode(buffer);
+	}
+
+	@Override
+	protected int valueSize(ValueCodec<Integer> codec) {
+		return codec instanceof IntCodec ? IntCodec.SIZE : codec.size(intValue);
+	}
+
+	public int getIntValue() {
+		return intValue;
+	}
+
+	@Override
+	public Integer getValue() {
+		return intValue;
+	}
+}
@@ -0,0 +1,89 @@
+package com.nektron.statemachine.impl;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.journal.Journal;
+
+/**
+ *
+ * A state machine appending every state change to a {@link Journal}, from {@link #onStateChange}: each
+ * transition, and each event whose default actions move the machine to a target state. The append only
+ * copies the record into a mapped segment, so onInput never waits for the disk: the journal commits in
+ * groups in the background.
+ *
+ * To rebuild an instance, create it with its initial value and feed it its records through
+ * {@link #replay(Object, int, int)} or a {@link com.nektron.statemachine.journal.ParallelReplayer}: the
+ * events run through the same function actions again in replay mode, without being journaled twice.
+ * Events that do not change the state are not journaled: default actions without a target and events
+ * with no transition. The value must not depend on them, or be restored from a snapshot first.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public class JournaledStateMachineImpl<INPUT, STATE extends Enum<STATE>, OUTPUT> extends StateMachineImpl<INPUT, STATE, OUTPUT> {
+
+	private final long machineId;
+
+	private final Journal<INPUT> journal;
+
+	public JournaledStateMachineImpl(StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel, OUTPUT initialValue, long machineId, Journal<INPUT> journal) {
+
+		super(stateMachineModel, initialValue);
+
+		if (journal == null)
+			throw new IllegalArgumentException("Journal cannot be null for state machine: " + machineId);
+
+		this.machineId = machineId;
+		this.journal = journal;
+	}
+
+	/**
+	 *
+	 * Not called in replay mode, so replayed events are not journaled twice.
+	 *
+	 */
+	@Override
+	protected void onStateChange(STATE fromState, STATE toState) throws Exception {
+		journal.append(machineId, currentEvent, fromState.ordinal(), toState.ordinal());
+	}
+
+	/**
+	 *
+	 * Applies a journaled event again in replay mode, checking the instance takes the same transition it
+	 * took when the record was written.
+	 *
+	 * @param event
+	 * @param fromOrdinal
+	 * @param toOrdinal
+	 * @return the value after the event
+	 */
+	public OUTPUT replay(INPUT event, int fromOrdinal, int toOrdinal) {
+
+		if (currentState.ordinal() != fromOrdinal)
+			throw new IllegalStateException("State machine " + machineId + " diverged from its journal: in state " + currentState + " instead of ordinal " + fromOrdinal);
+
+		boolean wasReplaying = replaying;
+
+		replaying = true;
+
+		try {
+			onInput(event);
+		}
+		finally {
+			replaying = wasReplaying;
+		}
+
+		if (currentState.ordinal() != toOrdinal)
+			throw new IllegalStateException("State machine " + machineId + " diverged from its journal: moved to state " + currentState + " instead of ordinal " + toOrdinal);
+
+		return getValue();
+	}
+
+	public long getMachineId() {
+		return machineId;
+	}
+
+	public Journal<INPUT> getJournal() {
+		return journal;
+	}
+}
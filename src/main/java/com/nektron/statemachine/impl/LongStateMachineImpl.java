@@ -0,0 +1,149 @@
+package com.nektron.statemachine.impl;
+
+import java.nio.ByteBuffer;
+
+import com.nektron.statemachine.DispatchTable;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.Transition;
+import com.nektron.statemachine.primitive.LongAction;
+import com.nektron.statemachine.snapshot.LongCodec;
+import com.nektron.statemachine.snapshot.ValueCodec;
+
+/**
+ *
+ * A state machine accumulating a long value. Transitions and operations registered as {@link LongAction}s run
+ * on the primitive value, so {@link #onInputAsLong(Object)} applies an event without boxing or allocating.
+ * Any other action still works, boxing the value around its call.
+ *
+ * Register them through the usual addTransition / addOperations methods, typing lambdas with
+ * {@link LongAction#of(LongAction)}.
+ *
+ * {@link #onInput(Object)} and {@link #getValue()} keep the {@link com.nektron.statemachine.StateMachine}
+ * contract and box the value they return.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ */
+public class LongStateMachineImpl<INPUT, STATE extends Enum<STATE>> extends StateMachineImpl<INPUT, STATE, Long> {
+
+	protected long longValue;
+
+	public LongStateMachineImpl(STATE initialState) {
+		this(new StateMachineModel<INPUT, STATE, Long>(initialState), 0L);
+	}
+
+	public LongStateMachineImpl(String stateMachineId, STATE initialState) {
+		this(new StateMachineModel<INPUT, STATE, Long>(stateMachineId, initialState), 0L);
+	}
+
+	public LongStateMachineImpl(StateMachineModel<INPUT, STATE, Long> stateMachineModel, long initialValue) {
+		super(stateMachineModel);
+		this.longValue = initialValue;
+	}
+
+	/**
+	 *
+	 * Applies the event and returns the new value, without boxing.
+	 *
+	 * @param event
+	 * @return
+	 */
+	public long onInputAsLong(INPUT event) {
+
+		dispatch(stateMachineModel.getDispatchTable(), event);
+		return longValue;
+	}
+
+	/**
+	 *
+	 * Applies the event with the given code and returns the new value, without boxing.
+	 *
+	 * @param eventCode
+	 * @return
+	 * @see StateMachineModel#eventCode(Object)
+	 */
+	public long onEventCodeAsLong(int eventCode) {
+
+		dispatch(eventCode);
+		return longValue;
+	}
+
+	/**
+	 *
+	 * Applies the events in order and returns the final value, without boxing.
+	 *
+	 * @param events
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public long onInputsAsLong(INPUT[] events, int offset, int length) {
+
+		StateMachineModel<INPUT, STATE, Long> model = stateMachineModel;
+		DispatchTable<INPUT, STATE, Long> dispatchTable = model.getDispatchTable();
+
+		for (int i = offset, end = offset + length; i < end; i++) {
+
+			if (model != stateMachineModel) {
+				model = stateMachineModel;
+				dispatchTable = model.getDispatchTable();
+			}
+			dispatch(dispatchTable, events[i]);
+		}
+		return longValue;
+	}
+
+	@Override
+	protected void applyAction(Transition<INPUT, STATE, Long> transition, INPUT event) {
+		longValue = transition.applyAsLong(event, longValue, currentState);
+	}
+
+	@Override
+	protected void performOperations(DispatchTable<INPUT, STATE, Long> dispatchTable, INPUT event) {
+		longValue = dispatchTable.performOperationsAsLong(event, longValue, ! replaying);
+	}
+
+	/**
+	 *
+	 * Resets the instance (see {@link #reset(Object)}) without boxing the value.
+	 *
+	 * @param initialValue
+	 */
+	public void reset(long initialValue) {
+		longValue = initialValue;
+		resetState();
+	}
+
+	@Override
+	public void reset(Long initialValue) {
+		reset((long) initialValue);
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, ValueCodec<Long> codec) {
+
+		if (codec instanceof LongCodec)
+			((LongCodec) codec).encodeAsLong(longValue, buffer);
+		else
+			codec.encode(longValue, buffer);
+	}
+
+	@Override
+	protected void decodeValue(ByteBuffer buffer, ValueCodec<Long> codec) {
+		longValue = codec instanceof LongCodec ? ((LongCodec) codec).decodeAsLong(buffer) : codec.decode(buffer);
+	}
+
+	@Override
+	protected int valueSize(ValueCodec<Long> codec) {
+		return codec instanceof LongCodec ? LongCodec.SIZE : codec.size(longValue);
+	}
+
+	public long getLongValue() {
+		return longValue;
+	}
+
+	@Override
+	public Long getValue() {
+		return longValue;
+	}
+}
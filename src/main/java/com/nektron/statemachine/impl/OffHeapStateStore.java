@@ -0,0 +1,426 @@
+package com.nektron.statemachine.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.snapshot.SnapshotFormat;
+import com.nektron.statemachine.snapshot.ValueCodec;
+
+/**
+ *
+ * Keeps dormant state machines off the heap, as fixed width records in direct or memory mapped buffers,
+ * keyed by a long machine id. A machine is only an object while an event is applied to it: the record is
+ * loaded into a machine bound to the shared model, the event applied, and the record written back. However
+ * many machines the store holds, the heap only holds the one it works with.
+ *
+ * Every record takes {@link #getRecordSize()} bytes:
+ *
+ * <pre>
+ * long   machine id
+ * short  phase, 1 + the index of the phase model in the chain of next phases of the model, 0 for a free slot
+ * short  current state ordinal
+ * short  previous state ordinal, -1 for none
+ * short  unused
+ * ...    value, as written by the {@link ValueCodec}, at most the value size given to the store
+ * </pre>
+ *
+ * The records form an open addressing hash table with linear probing, filled to at most 3/4 of its slots,
+ * in segments of up to 1 GB so the store can outgrow a single buffer. A mapped store survives restarts: reopen
+ * the file with the same model, codec, value size and number of machines.
+ *
+ * Not thread safe: like the machines it holds, a store is meant to be owned by a single thread.
+ *
+ * @param <INPUT>
+ * @param <STATE>
+ * @param <OUTPUT>
+ */
+public class OffHeapStateStore<INPUT, STATE extends Enum<STATE>, OUTPUT> {
+
+	private static final int ID_OFFSET = 0;
+	private static final int PHASE_OFFSET = 8;
+	private static final int CURRENT_OFFSET = 10;
+	private static final int PREVIOUS_OFFSET = 12;
+	private static final int VALUE_OFFSET = 16;
+
+	private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+	private final StateMachineImpl<INPUT, STATE, OUTPUT> stateMachine;
+	private final StateMachineModel<INPUT, STATE, OUTPUT>[] phases;
+	private final ValueCodec<OUTPUT> codec;
+	private final int valueSize;
+	private final int recordSize;
+
+	private final ByteBuffer[] segments;
+	private final int segmentShift;
+	private final int segmentMask;
+	private final int mask;
+	private final int maxSize;
+
+	/** The record of a new machine: the initial state and value of the factory's machine */
+	private final ByteBuffer initialRecord;
+
+	private int size;
+
+	/**
+	 *
+	 * Creates a store in direct buffers.
+	 *
+	 * @param factory creates the machine records are loaded into; new machines start with its state and value
+	 * @param codec
+	 * @param valueSize the most bytes the codec writes for a value
+	 * @param expectedMachines the most machines the store holds
+	 */
+	public OffHeapStateStore(Supplier<? extends StateMachineImpl<INPUT, STATE, OUTPUT>> factory, ValueCodec<OUTPUT> codec, int valueSize, int expectedMachines) {
+		this(factory, codec, valueSize, allocate(valueSize, expectedMachines));
+	}
+
+	/**
+	 *
+	 * Creates a store mapped to the file, creating it if it does not exist, else opening the machines stored
+	 * in it.
+	 *
+	 * @param factory creates the machine records are loaded into; new machines start with its state and value
+	 * @param codec
+	 * @param valueSize the most bytes the codec writes for a value
+	 * @param expectedMachines the most machines the store holds
+	 * @param file
+	 * @throws IOException
+	 */
+	public OffHeapStateStore(Supplier<? extends StateMachineImpl<INPUT, STATE, OUTPUT>> factory, ValueCodec<OUTPUT> codec, int valueSize, int expectedMachines, Path file) throws IOException {
+		this(factory, codec, valueSize, map(file, valueSize, expectedMachines));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private OffHeapStateStore(Supplier<? extends StateMachineImpl<INPUT, STATE, OUTPUT>> factory, ValueCodec<OUTPUT> codec, int valueSize, ByteBuffer[] segments) {
+
+		this.stateMachine = factory.get();
+		this.codec = codec;
+		this.valueSize = valueSize;
+		this.recordSize = recordSize(valueSize);
+		this.segments = segments;
+
+		List<StateMachineModel<INPUT, STATE, OUTPUT>> chain = new ArrayList<>();
+
+		for (StateMachineModel<INPUT, STATE, OUTPUT> phase = stateMachine.getStateMachineModel(); phase != null && !chain.contains(phase); phase = phase.getNextPhase())
+			chain.add(phase);
+
+		this.phases = chain.toArray(new StateMachineModel[0]);
+
+		int recordsPerSegment = segments[0].capacity() / recordSize;
+		int slots = recordsPerSegment * segments.length;
+
+		this.mask = slots - 1;
+		this.maxSize = slots - slots / 4;
+		this.segmentShift = Integer.numberOfTrailingZeros(recordsPerSegment);
+		this.segmentMask = recordsPerSegment - 1;
+
+		// Zero for new buffers, the machines already stored for a mapped file
+		for (int slot = 0; slot < slots; slot++) {
+			if (isUsed(slot))
+				size++;
+		}
+
+		if (stateMachine.valueSize(codec) > valueSize)
+			throw new IllegalArgumentException("Initial value takes " + stateMachine.valueSize(codec) + " bytes, more than the value size: " + valueSize);
+
+		initialRecord = ByteBuffer.allocate(recordSize).order(ByteOrder.nativeOrder());
+		write(initialRecord, 0, 0, stateMachine);
+	}
+
+	private static ByteBuffer[] allocate(int valueSize, int expectedMachines) {
+
+		ByteBuffer[] segments = new ByteBuffer[segmentCount(valueSize, expectedMachines)];
+		int segmentSize = segmentSize(valueSize, expectedMachines);
+
+		for (int i = 0; i < segments.length; i++)
+			segments[i] = ByteBuffer.allocateDirect(segmentSize).order(ByteOrder.nativeOrder());
+
+		return segments;
+	}
+
+	private static ByteBuffer[] map(Path file, int valueSize, int expectedMachines) throws IOException {
+
+		ByteBuffer[] segments = new ByteBuffer[segmentCount(valueSize, expectedMachines)];
+		long segmentSize = segmentSize(valueSize, expectedMachines);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			// The mapping outlives the channel
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentSize, segmentSize).order(ByteOrder.nativeOrder());
+		}
+		return segments;
+	}
+
+	private static int recordSize(int valueSize) {
+
+		if (valueSize < 0 || valueSize > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Value size out of range: " + valueSize);
+
+		return (VALUE_OFFSET + valueSize + 7) & ~7;
+	}
+
+	/**
+	 * A power of two, so the table is at most 3/4 full with the expected machines.
+	 */
+	private static int slotCount(int expectedMachines) {
+
+		if (expectedMachines <= 0 || expectedMachines > 3 << 28)
+			throw new IllegalArgumentException("Expected number of machines out of range: " + expectedMachines);
+
+		return Integer.highestOneBit(Math.max(2, expectedMachines + (expectedMachines + 2) / 3) - 1) << 1;
+	}
+
+	private static int recordsPerSegment(int valueSize, int expectedMachines) {
+		return Math.min(slotCount(expectedMachines), Integer.highestOneBit(MAX_SEGMENT_SIZE / recordSize(valueSize)));
+	}
+
+	private static int segmentCount(int valueSize, int expectedMachines) {
+		return slotCount(expectedMachines) / recordsPerSegment(valueSize, expectedMachines);
+	}
+
+	private static int segmentSize(int valueSize, int expectedMachines) {
+		return recordsPerSegment(valueSize, expectedMachines) * recordSize(valueSize);
+	}
+
+	/**
+	 *
+	 * Applies the event to the machine with the given id, starting a new machine if the store has none.
+	 *
+	 * @param machineId
+	 * @param event
+	 * @return the value after the event
+	 */
+	public OUTPUT onInput(long machineId, INPUT event) {
+
+		int slot = find(machineId);
+
+		if (slot >= 0)
+			read(segment(slot), offset(slot), stateMachine);
+		else
+			read(initialRecord, 0, stateMachine);
+
+		stateMachine.onInput(event);
+		write(machineId, slot, stateMachine);
+		return stateMachine.getValue();
+	}
+
+	/**
+	 *
+	 * Loads the machine with the given id into the given instance, which must run the model of the store.
+	 *
+	 * @param machineId
+	 * @param target
+	 * @return the target, or null if the store has no such machine
+	 */
+	public <M extends StateMachineImpl<INPUT, STATE, OUTPUT>> M get(long machineId, M target) {
+
+		int slot = find(machineId);
+
+		if (slot < 0)
+			return null;
+
+		read(segment(slot), offset(slot), target);
+		return target;
+	}
+
+	/**
+	 *
+	 * Stores the machine under the given id, replacing the one stored, if any. The instance can then be
+	 * dropped or reused.
+	 *
+	 * @param machineId
+	 * @param source
+	 */
+	public void put(long machineId, StateMachineImpl<INPUT, STATE, OUTPUT> source) {
+		write(machineId, find(machineId), source);
+	}
+
+	/**
+	 *
+	 * @param machineId
+	 * @return false if the store had no such machine
+	 */
+	public boolean remove(long machineId) {
+
+		int slot = find(machineId);
+
+		if (slot < 0)
+			return false;
+
+		size--;
+		shiftBack(slot);
+		return true;
+	}
+
+	public boolean contains(long machineId) {
+		return find(machineId) >= 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The most machines the store can hold.
+	 * @return
+	 */
+	public int getCapacity() {
+		return maxSize;
+	}
+
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	/**
+	 * The off-heap memory taken by the records, whatever the number of machines.
+	 * @return
+	 */
+	public long getMemorySize() {
+		return (long) (mask + 1) * recordSize;
+	}
+
+	/**
+	 *
+	 * Writes the changes of a mapped store to its file. Does nothing for a store in direct buffers.
+	 *
+	 */
+	public void force() {
+
+		for (ByteBuffer segment : segments) {
+			if (segment instanceof MappedByteBuffer)
+				((MappedByteBuffer) segment).force();
+		}
+	}
+
+	/**
+	 *
+	 * Writes the machine in its slot, a free slot taken if the slot is negative as returned by {@link #find(long)}.
+	 *
+	 */
+	private void write(long machineId, int slot, StateMachineImpl<INPUT, STATE, OUTPUT> source) {
+
+		if (slot < 0) {
+
+			if (size == maxSize)
+				throw new IllegalStateException("Off-heap state store is full: " + size + " machines");
+
+			slot = -slot - 1;
+			size++;
+		}
+
+		write(segment(slot), offset(slot), machineId, source);
+	}
+
+	private void write(ByteBuffer buffer, int offset, long machineId, StateMachineImpl<INPUT, STATE, OUTPUT> source) {
+
+		int phase = phaseOf(source.getStateMachineModel());
+
+		if (source.valueSize(codec) > valueSize)
+			throw new IllegalArgumentException("Value of state machine " + machineId + " takes " + source.valueSize(codec) + " bytes, more than the value size: " + valueSize);
+
+		buffer.putLong(offset + ID_OFFSET, machineId);
+		buffer.putShort(offset + PHASE_OFFSET, (short) (phase + 1));
+		buffer.putShort(offset + CURRENT_OFFSET, (short) source.getCurrentState().ordinal());
+		buffer.putShort(offset + PREVIOUS_OFFSET, (short) (source.getPreviousState() != null ? source.getPreviousState().ordinal() : SnapshotFormat.NO_STATE));
+		buffer.position(offset + VALUE_OFFSET);
+		source.encodeValue(buffer, codec);
+	}
+
+	private void read(ByteBuffer buffer, int offset, StateMachineImpl<INPUT, STATE, OUTPUT> target) {
+
+		int phase = buffer.getShort(offset + PHASE_OFFSET) - 1;
+		int current = buffer.getShort(offset + CURRENT_OFFSET);
+		int previous = buffer.getShort(offset + PREVIOUS_OFFSET);
+
+		if (phase < 0 || phase >= phases.length || current < 0 || current >= phases[phase].getStateCount() || previous < SnapshotFormat.NO_STATE || previous >= phases[phase].getStateCount())
+			throw new IllegalStateException("Corrupt record of state machine " + buffer.getLong(offset + ID_OFFSET) + " in the off-heap state store");
+
+		buffer.position(offset + VALUE_OFFSET);
+		target.restore(phases[phase], current, previous, buffer, codec);
+	}
+
+	private int phaseOf(StateMachineModel<INPUT, STATE, OUTPUT> model) {
+
+		for (int i = 0; i < phases.length; i++) {
+			if (phases[i] == model)
+				return i;
+		}
+		throw new IllegalArgumentException("State machine model " + model.getId() + " is not a phase of the model of the store: " + phases[0].getId());
+	}
+
+	/**
+	 *
+	 * @param machineId
+	 * @return the slot of the machine, or -1 - the free slot it would take
+	 */
+	private int find(long machineId) {
+
+		for (int slot = indexOf(machineId); ; slot = (slot + 1) & mask) {
+
+			if (! isUsed(slot))
+				return -1 - slot;
+
+			if (segment(slot).getLong(offset(slot) + ID_OFFSET) == machineId)
+				return slot;
+		}
+	}
+
+	/**
+	 *
+	 * Closes the gap left by a removed record by moving back the records of the same probe chain, as
+	 * {@link com.nektron.statemachine.util.LongHashMap} does.
+	 *
+	 */
+	private void shiftBack(int gap) {
+
+		for (int slot = (gap + 1) & mask; isUsed(slot); slot = (slot + 1) & mask) {
+
+			int home = indexOf(segment(slot).getLong(offset(slot) + ID_OFFSET));
+
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				copy(slot, gap);
+				gap = slot;
+			}
+		}
+		segment(gap).putShort(offset(gap) + PHASE_OFFSET, (short) 0);
+	}
+
+	private void copy(int from, int to) {
+
+		ByteBuffer source = segment(from);
+		ByteBuffer target = segment(to);
+		int sourceOffset = offset(from);
+		int targetOffset = offset(to);
+
+		for (int i = 0; i < recordSize; i += 8)
+			target.putLong(targetOffset + i, source.getLong(sourceOffset + i));
+	}
+
+	private boolean isUsed(int slot) {
+		return segment(slot).getShort(offset(slot) + PHASE_OFFSET) != 0;
+	}
+
+	private ByteBuffer segment(int slot) {
+		return segments[slot >>> segmentShift];
+	}
+
+	private int offset(int slot) {
+		return (slot & segmentMask) * recordSize;
+	}
+
+	private int indexOf(long machineId) {
+		long hash = machineId * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+}
@@ -1,21 +1,26 @@
 package com.nektron.statemachine.impl;
 
-import com.nektron.statemachine.KeyWrapper;
+import com.nektron.statemachine.DispatchTable;
 import com.nektron.statemachine.StateMachine;
 import com.nektron.statemachine.StateMachineModel;
-import com.nektron.statemachine.StateTransitions;
+import com.nektron.statemachine.Transition;
+import com.nektron.statemachine.metrics.StateMachineMetrics;
+import com.nektron.statemachine.snapshot.SnapshotFormat;
+import com.nektron.statemachine.snapshot.ValueCodec;
+import com.nektron.statemachine.timer.TimingWheel;
+import com.nektron.statemachine.trace.DispatchRecorder;
+import com.nektron.statemachine.trace.TraceRecord;
+import com.nektron.statemachine.trace.TransitionTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Arrays;
 
 /**
  * 
@@ -35,45 +40,56 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 	protected INPUT currentEvent;
 	protected OUTPUT value;
 	
-	protected List<Consumer<INPUT>> consumerOperationList = new ArrayList<>();
-	protected List<NoArgConsumer> noArgConsumerOperationList = new ArrayList<>();
-	protected List<BiFunction<INPUT,OUTPUT,OUTPUT>> functionOperationList = new ArrayList<>();
+	protected StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel;
 	
-	protected String id;
+	/** The model {@link #reset(Object)} goes back to, whatever phase the instance reached */
+	private StateMachineModel<INPUT, STATE, OUTPUT> initialModel;
 	
-	protected Map<KeyWrapper<INPUT>, DefaultActionTransitionWrapper<TriFunction<? extends INPUT,OUTPUT,STATE,OUTPUT>, STATE>> defaultActions = new HashMap<>() ;
+	protected boolean shouldLog = false;
 	
-	protected Map<KeyWrapper<INPUT>, DefaultActionTransitionWrapper<Function<OUTPUT,OUTPUT>, STATE>> defaultFunctionActions = new HashMap<>() ;
-	protected Map<KeyWrapper<INPUT>, DefaultActionTransitionWrapper<Consumer<? extends INPUT>, STATE>> defaultConsumers = new HashMap<>() ;
-	protected Map<KeyWrapper<INPUT>, DefaultActionTransitionWrapper<NoArgConsumer, STATE>> defaultNoArgConsumers = new HashMap<>() ;
+	/** Where logged transitions go, the default tracer if null */
+	protected TransitionTracer tracer;
 	
-	protected Map<KeyWrapper<INPUT>, TriConsumer<? extends INPUT, STATE, ? extends Throwable>> errorActions = new HashMap<>(); 
-
-	protected StateMachineModel<INPUT, STATE, OUTPUT> stateMachineModel;
+	/** The machine id of the trace records, the identity hash code if 0 */
+	protected long traceId;
 	
-	protected Map<String, StateMachineModel<INPUT,STATE,OUTPUT>> stateMachineModels = new HashMap<>() ;
+	private StateMachineModel<INPUT,STATE,OUTPUT> traceModel;
+	private int traceModelIndex;
 	
-	protected boolean shouldLog = false;
+	protected boolean replaying = false;
+	
+	/** Runs the state timeouts, null if they are off */
+	private TimingWheel timingWheel;
+	private TimingWheel.Timeout stateTimeout;
 
 	public StateMachineImpl(OUTPUT initialValue, STATE initialState) {
-		
-		this.value = initialValue;
-		this.stateMachineModel = new StateMachineModel<INPUT,STATE,OUTPUT>(initialState);	
-		this.currentState = stateMachineModel.getinitialState();
+		this(new StateMachineModel<INPUT,STATE,OUTPUT>(initialState), initialValue);
 	}
 
 	public StateMachineImpl(STATE initialState) {
-		
-		this.stateMachineModel = new StateMachineModel<INPUT,STATE,OUTPUT> (initialState);	
-		this.currentState = stateMachineModel.getinitialState();
+		this(new StateMachineModel<INPUT,STATE,OUTPUT>(initialState));
 	}
 
 	public StateMachineImpl(String stateMachineId, STATE initialState) {
-		this.id = stateMachineId;
-		this.stateMachineModel = new StateMachineModel<INPUT,STATE,OUTPUT> (stateMachineId, initialState);
-		
-		this.currentState = stateMachineModel.getinitialState() ;
-		stateMachineModels.put(stateMachineId, stateMachineModel);
+		this(new StateMachineModel<INPUT,STATE,OUTPUT>(stateMachineId, initialState));
+	}
+	
+	/**
+	 * 
+	 * Creates a state machine running against the given model. The model is not copied: any number of
+	 * instances can share one (frozen) model, each instance only holding its current state and value.
+	 * 
+	 * @param stateMachineModel
+	 */
+	public StateMachineImpl(StateMachineModel<INPUT,STATE,OUTPUT> stateMachineModel) {
+		this(stateMachineModel, null);
+	}
+	
+	public StateMachineImpl(StateMachineModel<INPUT,STATE,OUTPUT> stateMachineModel, OUTPUT initialValue) {
+		this.value = initialValue;
+		this.stateMachineModel = stateMachineModel;
+		this.initialModel = stateMachineModel;
+		this.currentState = stateMachineModel.getinitialState();
 	}
 	
 	public void onEntry () throws Exception {
@@ -82,185 +98,284 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 	public void onExit () {
 	}
 	
+	/**
+	 * 
+	 * Called on every state change: after each transition, once onEntry() ran, and after default actions
+	 * moving the machine to a target state. Also called when the target is the state the machine was in.
+	 * Not called in replay mode. Good for code that must see every state change, i.e. persistence.
+	 * 
+	 * @param fromState the state before the event
+	 * @param toState the state after the event
+	 * @throws Exception
+	 */
+	protected void onStateChange(STATE fromState, STATE toState) throws Exception {
+	}
+	
 	@Override
 	public OUTPUT onInput(INPUT event) {
 		
-		try {
-
-			currentEvent = event;
-			
-			StringBuilder stateTransitionString = shouldLog ? new StringBuilder() : null;
-			
-			StateTransitions<INPUT,STATE,OUTPUT> stateTransitions = stateMachineModel.getStateTransitions(currentState);
-
-			if (shouldLog)
-				stateTransitionString.append("Event: " + event + " -> Current State: " + currentState.toString() + " -> "); 
-
-			
-			BiFunction<INPUT,OUTPUT,OUTPUT> functionRef = stateTransitions != null ? (BiFunction<INPUT,OUTPUT,OUTPUT>) stateTransitions.getActions(event) : null;
-			Consumer<INPUT> consumerFunctionRef = stateTransitions != null ? (Consumer<INPUT>) stateTransitions.getConsumerActions(event) : null;
-			
-			DefaultActionTransitionWrapper<TriFunction<? extends INPUT,OUTPUT,STATE,OUTPUT>, STATE> defaultActionTransitionWrapper = defaultActions.get(getKey(event));
-			
-			if (defaultActionTransitionWrapper == null)
-				defaultActionTransitionWrapper = defaultActions.get(getKey(event.getClass()));
-			
-			TriFunction<INPUT,OUTPUT,STATE,OUTPUT> defaultFunctionRef = null;
+		dispatch(stateMachineModel.getDispatchTable(), event);
+		return getValue();
+	}
+	
+	/**
+	 * 
+	 * Applies the event with the given code, as returned by {@link StateMachineModel#eventCode(Object)}.
+	 * Cheaper than {@link #onInput(Object)} as the event is not hashed. Actions receive the event instance
+	 * registered for the code, or null for the code of an event type.
+	 * 
+	 * @param eventCode
+	 * @return the value after the event
+	 */
+	public OUTPUT onEventCode(int eventCode) {
+		
+		dispatch(eventCode);
+		return getValue();
+	}
+	
+	/**
+	 * 
+	 * Feeds the events in order, resolving the dispatch table once for the whole batch (and again only
+	 * after a phase switch). The table is the one compiled when the batch starts, so changes made to the
+	 * model by the actions of the batch only apply to the next batch.
+	 * 
+	 */
+	@Override
+	public OUTPUT onInputs(INPUT[] events, int offset, int length, OUTPUT[] outcomes) {
+		
+		StateMachineModel<INPUT,STATE,OUTPUT> model = stateMachineModel;
+		DispatchTable<INPUT,STATE,OUTPUT> dispatchTable = model.getDispatchTable();
+		
+		for (int i = offset, end = offset + length; i < end; i++) {
 			
-			if (defaultActionTransitionWrapper != null) {
-				defaultFunctionRef = (TriFunction<INPUT,OUTPUT,STATE,OUTPUT>) defaultActionTransitionWrapper.getAction();
+			if (model != stateMachineModel) {
+				model = stateMachineModel;
+				dispatchTable = model.getDispatchTable();
 			}
 			
-			DefaultActionTransitionWrapper<Function<OUTPUT,OUTPUT>, STATE> defaultFunctionActionTransitionWrapper = defaultFunctionActions.get(getKey(event));
+			dispatch(dispatchTable, events[i]);
 			
-			if (defaultFunctionActionTransitionWrapper == null)
-				defaultFunctionActionTransitionWrapper = defaultFunctionActions.get(getKey(event.getClass()));
+			if (outcomes != null)
+				outcomes[i] = getValue();
+		}
+		return getValue();
+	}
+	
+	@Override
+	public OUTPUT onInputs(Iterable<? extends INPUT> events) {
+		
+		if (events instanceof List && events instanceof RandomAccess) {
 			
-			Function<OUTPUT,OUTPUT> defaultFunctionActionRef = null;
+			List<? extends INPUT> eventList = (List<? extends INPUT>) events;
+			StateMachineModel<INPUT,STATE,OUTPUT> model = stateMachineModel;
+			DispatchTable<INPUT,STATE,OUTPUT> dispatchTable = model.getDispatchTable();
 			
-			if (defaultFunctionActionTransitionWrapper != null) {
-				defaultFunctionActionRef = (Function<OUTPUT,OUTPUT>) defaultActionTransitionWrapper.getAction();
+			for (int i = 0, size = eventList.size(); i < size; i++) {
+				
+				if (model != stateMachineModel) {
+					model = stateMachineModel;
+					dispatchTable = model.getDispatchTable();
+				}
+				dispatch(dispatchTable, eventList.get(i));
 			}
+			return getValue();
+		}
+		
+		return onInputs(events.iterator());
+	}
+	
+	@Override
+	public OUTPUT onInputs(Iterator<? extends INPUT> events) {
+		
+		StateMachineModel<INPUT,STATE,OUTPUT> model = stateMachineModel;
+		DispatchTable<INPUT,STATE,OUTPUT> dispatchTable = model.getDispatchTable();
+		
+		while (events.hasNext()) {
 			
-			DefaultActionTransitionWrapper<Consumer<? extends INPUT>, STATE> defaultConsumerTransitionWrapper = defaultConsumers.get(getKey(event));
-			
-			if (defaultConsumerTransitionWrapper == null)
-				defaultConsumerTransitionWrapper = defaultConsumers.get(getKey(event.getClass()));
-			
-			Consumer<INPUT> defaultConsumerFunctionRef = null;
-			
-			if (defaultConsumerTransitionWrapper != null) {
-				defaultConsumerFunctionRef = (Consumer<INPUT>) defaultConsumerTransitionWrapper.getAction();
+			if (model != stateMachineModel) {
+				model = stateMachineModel;
+				dispatchTable = model.getDispatchTable();
 			}
+			dispatch(dispatchTable, events.next());
+		}
+		return getValue();
+	}
+	
+	/**
+	 * 
+	 * Applies one event against the given dispatch table. The value only changes through
+	 * {@link #applyAction} and {@link #performOperations}.
+	 * 
+	 * @param dispatchTable
+	 * @param event
+	 */
+	protected final void dispatch(DispatchTable<INPUT,STATE,OUTPUT> dispatchTable, INPUT event) {
+		dispatch(dispatchTable, dispatchTable.slotOf(event), event);
+	}
+	
+	/**
+	 * 
+	 * Applies the event with the given code, skipping the event lookup. Actions receive the event instance
+	 * registered for the code, or null for the code of an event type.
+	 * 
+	 * @param eventCode
+	 */
+	protected final void dispatch(int eventCode) {
+		
+		DispatchTable<INPUT,STATE,OUTPUT> dispatchTable = stateMachineModel.getDispatchTable();
+		
+		if (eventCode < 0 || eventCode >= dispatchTable.getSlotCount())
+			throw new IllegalArgumentException("Unknown event code: " + eventCode + " for state machine: " + getId());
+		
+		dispatch(dispatchTable, eventCode, dispatchTable.getEvent(eventCode));
+	}
+	
+	private void dispatch(DispatchTable<INPUT,STATE,OUTPUT> dispatchTable, int slot, INPUT event) {
+		
+		// Folded away by the JIT when metrics are disabled
+		StateMachineMetrics metrics = StateMachineMetrics.ENABLED ? dispatchTable.getMetrics() : null;
+		int stateOrdinal = currentState.ordinal();
+		
+		try {
 			
-			DefaultActionTransitionWrapper<NoArgConsumer, STATE> defaultNoArgConsumerTransitionWrapper = defaultNoArgConsumers.get(getKey(event));
-			
-			if (defaultNoArgConsumerTransitionWrapper == null)
-				defaultNoArgConsumerTransitionWrapper = defaultNoArgConsumers.get(getKey(event.getClass()));
+			currentEvent = event;
 			
-			NoArgConsumer defaultNoArgConsumerFunctionRef = null;
+			boolean shouldLog = this.shouldLog && ! replaying;
+			Transition<INPUT,STATE,OUTPUT> transition = dispatchTable.getTransition(stateOrdinal, slot);
+			int branch = 0;
 			
-			if (defaultNoArgConsumerTransitionWrapper != null) {
-				defaultNoArgConsumerFunctionRef = (NoArgConsumer) defaultNoArgConsumerTransitionWrapper.getAction();
+			// Only guarded cells pay for their guards
+			if (transition != null && transition.isGuarded()) {
+				
+				Transition<INPUT,STATE,OUTPUT> cell = transition;
+				
+				transition = transition.select(event, getValue());
+				
+				if (StateMachineMetrics.ENABLED && transition != null)
+					branch = StateMachineMetrics.getBranch(cell, transition);
 			}
 			
-			STATE tempCurrentState = stateTransitions != null ? stateTransitions.transition(event) : null;
-			
 			/**
-			 *  If we have no transitions for a given state (when state machine is not in a done state), we check
-			 *  to see if we have a default action to call for a given event.
+			 *  If we have no transitions for a given state (when state machine is not in a done state), the dispatch
+			 *  table holds the default actions to call for a given event, if any.
 			 */
-
-			if ((tempCurrentState == null && !isDone())) {
-				
-				if (defaultFunctionRef != null) {
-				
-					if (shouldLog)
-						log.info("Calling default action for state: " + currentState + " and event: " + event );
+			
+			if (transition == null) {
 				
+				if (!dispatchTable.isDoneState(stateOrdinal)) {
 					
-					value = defaultFunctionRef.apply(event, value, currentState);
+					if (StateMachineMetrics.ENABLED)
+						metrics.onUnmapped(stateOrdinal);
 					
-					if (defaultActionTransitionWrapper.getState () != null) {
-						this.previousState= currentState;
-						this. currentState = defaultActionTransitionWrapper.getState();
-					}
+					if (shouldLog)
+						trace(TraceRecord.Kind.UNMAPPED, slot, stateOrdinal, stateOrdinal);
+					
+					if (DispatchRecorder.ENABLED)
+						DispatchRecorder.INSTANCE.unmapped(getId(), getTraceId(), currentState, event);
 					
-				} else {
 					handleUnmappedTransition(event);
 				}
 				
-				if (defaultFunctionActionRef != null) {
-					if (shouldLog)
-						log.info("Calling default action for state: " + currentState + " and event: " + event );
-
-					value = defaultFunctionActionRef.apply(value);
-
-					if (defaultActionTransitionWrapper.getState () != null) {
-						this.previousState= currentState;
-						this. currentState = defaultActionTransitionWrapper.getState();
-					}
-				} else {
-					handleUnmappedTransition(event);
-				}
+			} else if (transition.isDefaultAction()) {
 				
-				if (defaultConsumerFunctionRef != null) {
-					defaultConsumerFunctionRef.accept(event);
-					if (defaultConsumerTransitionWrapper.getState () != null) {
-						this.previousState= currentState;
-						this. currentState = defaultConsumerTransitionWrapper.getState();
-					}
-					
-				} else {
-					handleUnmappedTransition(event);
-				}
+				if (StateMachineMetrics.ENABLED)
+					metrics.onTransition(stateOrdinal, slot, branch);
 				
-				if (defaultNoArgConsumerFunctionRef != null) {
-					
-					
-					defaultNoArgConsumerFunctionRef.appy();
+				STATE fromState = currentState;
+				boolean targeted = false;
+				Object recording = DispatchRecorder.ENABLED ? DispatchRecorder.INSTANCE.beginDefaultActions() : null;
+				
+				for (Transition<INPUT,STATE,OUTPUT> defaultAction = transition; defaultAction != null; defaultAction = defaultAction.getNext()) {
 					
+					if (! (replaying && defaultAction.isSideEffect()))
+						applyAction(metrics, stateOrdinal, slot, branch, defaultAction, event);
 					
-					if (defaultNoArgConsumerTransitionWrapper.getState () != null) {
+					if (defaultAction.getTarget() != null) {
 						this.previousState= currentState;
-						this. currentState = defaultNoArgConsumerTransitionWrapper.getState();
+						this. currentState = defaultAction.getTarget();
+						targeted = true;
 					}
-				} else {
-					handleUnmappedTransition(event);
 				}
-			}
 				
-			if ( tempCurrentState != null) {
+				if (targeted && ! replaying)
+					onStateChange(fromState, currentState);
+				
+				if (shouldLog)
+					trace(TraceRecord.Kind.DEFAULT_ACTIONS, slot, stateOrdinal, currentState.ordinal());
+				
+				if (timingWheel != null && currentState != fromState)
+					armStateTimeout(currentState);
+				
+				if (DispatchRecorder.ENABLED && recording != null)
+					DispatchRecorder.INSTANCE.endDefaultActions(recording, getId(), getTraceId(), fromState, event, currentState);
+				
+			} else {
+				
+				if (StateMachineMetrics.ENABLED)
+					metrics.onTransition(stateOrdinal, slot, branch);
+				
+				Object recording = DispatchRecorder.ENABLED ? DispatchRecorder.INSTANCE.beginTransition() : null;
 				
 				/**
 				* The below method will get called on every state exit. Good
 				* for putting code that needs to execute on every transition
 				* i.e. persistence.
 				*/
-				onExit();
+				if (! replaying)
+					onExit();
 				
 				previousState = currentState;
-				currentState = tempCurrentState;
+				currentState = transition.getTarget();
 				
-				stateTransitions = stateMachineModel.getStateTransitions(currentState);
+				// Entering the target restarts its timeout, even on a transition to the same state
+				if (timingWheel != null)
+					armStateTimeout(currentState);
 				
 				/**
 				* The below method will get called on every state entry. Good
 				* for putting code that needs to execute on every transition
 				* i.e. persistence.
 				*/
-				onEntry();
-				
-				if (functionRef != null) {
-					
-					value = functionRef.apply(event, value);
-					if (shouldLog)
-						stateTransitionString.append ( "Transitioned State, " + currentState. toString());
-					
+				if (! replaying) {
+					onEntry();
+					onStateChange(previousState, currentState);
 				}
 				
-				if (consumerFunctionRef != null) {
-					
-					consumerFunctionRef.accept(event);
-					if (shouldLog)
-					stateTransitionString.append("Transitioned State, " + currentState. toString());
-					
-				}
+				if (transition.hasAction() && ! (replaying && transition.isSideEffect()))
+					applyAction(metrics, stateOrdinal, slot, branch, transition, event);
 				
 				if (shouldLog)
-					log.info(stateTransitionString.toString());
+					trace(TraceRecord.Kind.TRANSITION, slot, stateOrdinal, currentState.ordinal());
+				
+				if (DispatchRecorder.ENABLED && recording != null)
+					DispatchRecorder.INSTANCE.endTransition(recording, getId(), getTraceId(), previousState, event, currentState);
 			}
 		
-			if (isDone() && hasNextPhase()) {
-				stateMachineModel = stateMachineModels.get(stateMachineModel.getNextPhaseStateMachineId());
-				this.id = stateMachineModel.getId();
+			if (dispatchTable.hasNextPhase() && dispatchTable.isDoneState(currentState.ordinal())) {
+				StateMachineModel<INPUT,STATE,OUTPUT> nextPhase = stateMachineModel.getNextPhase();
+				
+				if (nextPhase != null) {
+					
+					if (DispatchRecorder.ENABLED)
+						DispatchRecorder.INSTANCE.phaseSwitch(getId(), getTraceId(), currentState, nextPhase.getId());
+					
+					stateMachineModel = nextPhase;
+					
+					if (timingWheel != null)
+						armStateTimeout(currentState);
+				}
 			}
 			
-			value =  performOperations(event,value);
+			if (dispatchTable.hasOperations())
+				performOperations(dispatchTable, event);
 			
 		} catch (Exception exp ) {
 			
-			TriConsumer<INPUT, STATE, Exception> errorFunctionRef = (TriConsumer<INPUT, STATE, Exception>) errorActions.get(event instanceof String ? event : event.getClass ().getSimpleName());
+			if (StateMachineMetrics.ENABLED)
+				metrics.onError(slot);
+			
+			TriConsumer<INPUT, STATE, Exception> errorFunctionRef = dispatchTable.getErrorAction(slot);
+			Object recording = DispatchRecorder.ENABLED ? DispatchRecorder.INSTANCE.beginErrorAction() : null;
 			
 			if ( errorFunctionRef != null) {
 				errorFunctionRef.accept(event, currentState, exp);
@@ -268,10 +383,175 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 				this. handleErrorCondition(event);
 			}
 			
-			if (shouldLog)
+			if (DispatchRecorder.ENABLED && recording != null)
+				DispatchRecorder.INSTANCE.endErrorAction(recording, getId(), getTraceId(), currentState, event, exp, errorFunctionRef != null);
+			
+			if (shouldLog && ! replaying) {
+				trace(TraceRecord.Kind.ERROR, slot, stateOrdinal, currentState.ordinal());
 				log.error("State Machine Exception  " , exp);
+			}
 		}
-		return value;
+	}
+	
+	/**
+	 *
+	 * Records the transition with the tracer of this instance, or the default one.
+	 *
+	 */
+	private void trace(TraceRecord.Kind kind, int slot, int fromOrdinal, int toOrdinal) {
+		
+		TransitionTracer tracer = this.tracer != null ? this.tracer : TransitionTracer.getDefault();
+		
+		if (traceModel != stateMachineModel) {
+			traceModel = stateMachineModel;
+			traceModelIndex = TransitionTracer.register(traceModel);
+		}
+		
+		tracer.trace(getTraceId(), traceModelIndex, kind, slot, fromOrdinal, toOrdinal);
+	}
+	
+	/**
+	 * 
+	 * The machine id of the trace records and recorder events: the one given to
+	 * {@link #setTracer(TransitionTracer, long)}, else the identity hash code of the instance.
+	 * 
+	 * @return
+	 */
+	public long getTraceId() {
+		
+		if (traceId == 0)
+			traceId = System.identityHashCode(this);
+		
+		return traceId;
+	}
+	
+	/**
+	 * 
+	 * Runs the action, timing one in {@link StateMachineMetrics#SAMPLE_RATE} when metrics are enabled.
+	 * 
+	 */
+	private void applyAction(StateMachineMetrics metrics, int stateOrdinal, int slot, int branch, Transition<INPUT,STATE,OUTPUT> transition, INPUT event) {
+		
+		if (StateMachineMetrics.ENABLED && metrics.sample()) {
+			
+			long start = System.nanoTime();
+			
+			applyAction(transition, event);
+			metrics.onActionLatency(stateOrdinal, slot, branch, System.nanoTime() - start);
+		}
+		else
+			applyAction(transition, event);
+	}
+	
+	/**
+	 * 
+	 * Runs the action of the transition (not the chained ones) on the value. Specialized machines
+	 * override it to keep the value unboxed.
+	 * 
+	 * @param transition
+	 * @param event
+	 */
+	protected void applyAction(Transition<INPUT,STATE,OUTPUT> transition, INPUT event) {
+		value = transition.apply(event, value, currentState);
+	}
+	
+	/**
+	 * 
+	 * Runs the operations of the dispatch table on the value.
+	 * 
+	 * @param dispatchTable
+	 * @param event
+	 */
+	protected void performOperations(DispatchTable<INPUT,STATE,OUTPUT> dispatchTable, INPUT event) {
+		value = dispatchTable.performOperations(event, value, ! replaying);
+	}
+	
+	/**
+	 * 
+	 * Writes the model id, the current and previous states and the value of this instance to the buffer, as
+	 * a record of {@link SnapshotFormat}. Use {@link #getSnapshotSize(ValueCodec)} to check it fits.
+	 * 
+	 * @param buffer
+	 * @param codec
+	 */
+	public void snapshot(ByteBuffer buffer, ValueCodec<OUTPUT> codec) {
+		
+		SnapshotFormat.writeHeader(buffer, stateMachineModel.getId(), currentState.ordinal(), previousState != null ? previousState.ordinal() : SnapshotFormat.NO_STATE);
+		encodeValue(buffer, codec);
+	}
+	
+	/**
+	 * 
+	 * Restores this instance from a record written by {@link #snapshot(ByteBuffer, ValueCodec)}, reading it
+	 * at the position of the buffer. The record must come from an instance of the same model or of one of
+	 * its linked phases: the instance switches to that phase, no transition is registered again.
+	 * 
+	 * @param buffer
+	 * @param codec
+	 */
+	public void restore(ByteBuffer buffer, ValueCodec<OUTPUT> codec) {
+		
+		StateMachineModel<INPUT,STATE,OUTPUT> model = SnapshotFormat.readModel(buffer, stateMachineModel);
+		int current = SnapshotFormat.readOrdinal(buffer, model);
+		int previous = SnapshotFormat.readOrdinal(buffer, model);
+		
+		if (current == SnapshotFormat.NO_STATE)
+			throw new IllegalArgumentException("Snapshot of state machine: " + model.getId() + " has no current state");
+		
+		restore(model, current, previous, buffer, codec);
+	}
+	
+	/**
+	 * 
+	 * Switches to the given phase model and states, reading the value at the position of the buffer.
+	 * 
+	 * @param model
+	 * @param currentOrdinal
+	 * @param previousOrdinal {@link SnapshotFormat#NO_STATE} for none
+	 * @param buffer
+	 * @param codec
+	 */
+	void restore(StateMachineModel<INPUT,STATE,OUTPUT> model, int currentOrdinal, int previousOrdinal, ByteBuffer buffer, ValueCodec<OUTPUT> codec) {
+		
+		decodeValue(buffer, codec);
+		
+		stateMachineModel = model;
+		currentState = model.getState(currentOrdinal);
+		previousState = model.getState(previousOrdinal);
+		currentEvent = null;
+		
+		if (timingWheel != null)
+			armStateTimeout(currentState);
+	}
+	
+	/**
+	 * 
+	 * The number of bytes {@link #snapshot(ByteBuffer, ValueCodec)} writes for the current value.
+	 * 
+	 * @param codec
+	 * @return
+	 */
+	public int getSnapshotSize(ValueCodec<OUTPUT> codec) {
+		return SnapshotFormat.headerSize(stateMachineModel.getId()) + valueSize(codec);
+	}
+	
+	/**
+	 * 
+	 * Writes the value of a snapshot. Specialized machines override it to keep the value unboxed.
+	 * 
+	 * @param buffer
+	 * @param codec
+	 */
+	protected void encodeValue(ByteBuffer buffer, ValueCodec<OUTPUT> codec) {
+		codec.encode(value, buffer);
+	}
+	
+	protected void decodeValue(ByteBuffer buffer, ValueCodec<OUTPUT> codec) {
+		value = codec.decode(buffer);
+	}
+	
+	protected int valueSize(ValueCodec<OUTPUT> codec) {
+		return codec.size(value);
 	}
 	
 	public <T extends INPUT> void addTransition(STATE state, Class<T> eventType, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> actions) {
@@ -307,79 +587,67 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 	}
 	
 	public <T extends INPUT> void addTransition(String nextPhaseStateMachineId, STATE state, Class<T> eventType, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> action) {
-		
-		StateMachineModel<INPUT,STATE, OUTPUT> aStateMachineModel = stateMachineModels.get(nextPhaseStateMachineId);
-		
-		if (aStateMachineModel == null) {
-			aStateMachineModel = new StateMachineModel<INPUT,STATE,OUTPUT>(nextPhaseStateMachineId, state);
-			stateMachineModels.put(nextPhaseStateMachineId, aStateMachineModel);
-			aStateMachineModel.addTransition(state, eventType, transitionedState, action);
-		}
+		stateMachineModel.addPhaseModel(nextPhaseStateMachineId, state).addTransition(state, eventType, transitionedState, action);
 	}
 	
 	public <T extends INPUT> void addTransition(String nextPhaseStateMachineId, STATE state, T event, STATE transitionedState, BiFunction<T,OUTPUT,OUTPUT> action) {
-		
-		StateMachineModel<INPUT,STATE,OUTPUT> aStateMachineModel = stateMachineModels.get(nextPhaseStateMachineId);
-		
-		if (aStateMachineModel == null) {
-			aStateMachineModel = new StateMachineModel<INPUT,STATE,OUTPUT>(nextPhaseStateMachineId, state);
-			stateMachineModels.put(nextPhaseStateMachineId, aStateMachineModel);
-			aStateMachineModel.addTransition(state, event, transitionedState, action);
-		}
+		stateMachineModel.addPhaseModel(nextPhaseStateMachineId, state).addTransition(state, event, transitionedState, action);
 	}
 	
 	public <T extends INPUT> void addDefaultActions(Class<T> eventType,  Consumer<T> action) {
-		DefaultActionTransitionWrapper<Consumer<? extends INPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, null);
-		defaultConsumers.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, null, action);
+	}
+	
+	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, Consumer<T> action) {
+		stateMachineModel.addDefaultActions(eventType, transitionedState, action);
 	}
 	
 	public <T extends INPUT> void addDefaultActions(Class<T> eventType,  NoArgConsumer action) {
-		DefaultActionTransitionWrapper<NoArgConsumer, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, null);
-		defaultNoArgConsumers.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, null, action);
 	}
 	
 	public <T extends INPUT> void addDefaultActions(Class<T> eventType,  STATE transitionedState, NoArgConsumer action) {
-		DefaultActionTransitionWrapper<NoArgConsumer, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, transitionedState);
-		defaultNoArgConsumers.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, transitionedState, action);
 	}
 	
     public <T extends INPUT> void addDefaultActions(Class<T> eventType, TriFunction <T,OUTPUT,STATE,OUTPUT> action) {
-		DefaultActionTransitionWrapper<TriFunction<? extends INPUT,OUTPUT,STATE,OUTPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, null);
-		defaultActions.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, null, action);
 	}
 	
 	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, TriFunction<T,OUTPUT,STATE,OUTPUT> action) {
-		DefaultActionTransitionWrapper<TriFunction<? extends INPUT,OUTPUT,STATE,OUTPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, transitionedState);
-		defaultActions.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, transitionedState, action);
 	}
 	
 	 public <T extends INPUT> void addDefaultActions(Class<T> eventType, Function<OUTPUT,OUTPUT> action) {
-		DefaultActionTransitionWrapper<Function<OUTPUT,OUTPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<Function<OUTPUT, OUTPUT>, STATE>(action, null);
-		defaultFunctionActions.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, null, action);
 	}
 		
 	public <T extends INPUT> void addDefaultActions(Class<T> eventType, STATE transitionedState, Function<OUTPUT,OUTPUT> action) {
-		DefaultActionTransitionWrapper<Function<OUTPUT,OUTPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, transitionedState);
-		defaultFunctionActions.put(new KeyWrapper<INPUT>(eventType), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(eventType, transitionedState, action);
 	}
 	
 	public <T extends INPUT> void addDefaultActions(T event , TriFunction <T,OUTPUT,STATE,OUTPUT> action) {
-		DefaultActionTransitionWrapper<TriFunction<? extends INPUT,OUTPUT,STATE,OUTPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<TriFunction<? extends INPUT, OUTPUT, STATE, OUTPUT>, STATE>(action, null);
-		defaultActions.put( new KeyWrapper<INPUT>(event), defaultActionTransitionWrapper);
-		new DefaultActionTransitionWrapper<>(action, null);
+		stateMachineModel.addDefaultActions(event, null, action);
 	}
 	
 	public <T extends INPUT> void addDefaultActions(T event, STATE transitionedState, TriFunction<T,OUTPUT,STATE,OUTPUT> action ) {
-		DefaultActionTransitionWrapper<TriFunction<? extends INPUT,OUTPUT,STATE,OUTPUT>, STATE> defaultActionTransitionWrapper = new DefaultActionTransitionWrapper<>(action, transitionedState);
-		defaultActions.put(new KeyWrapper<INPUT>(event), defaultActionTransitionWrapper);
+		stateMachineModel.addDefaultActions(event, transitionedState, action);
+	}
+	
+	public <T extends INPUT> void addDefaultActions(T event, Function<OUTPUT,OUTPUT> action) {
+		stateMachineModel.addDefaultActions(event, null, action);
+	}
+	
+	public <T extends INPUT> void addDefaultActions(T event, STATE transitionedState, Function<OUTPUT,OUTPUT> action) {
+		stateMachineModel.addDefaultActions(event, transitionedState, action);
 	}
 	
 	public <T extends INPUT> void addErrorAction(Class<T> eventType, TriConsumer<T ,STATE, ? extends Throwable > action) {
-		errorActions.put(new KeyWrapper<INPUT>(eventType), action);
+		stateMachineModel.addErrorAction(eventType, action);
 	}
 
 	public <T extends INPUT> void addErrorAction(T event, TriConsumer<T ,STATE, ? extends Throwable > action) {
-		errorActions.put(new KeyWrapper<INPUT>(event) , action);
+		stateMachineModel.addErrorAction(event, action);
 	}
 	
 	/**
@@ -390,43 +658,102 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 	 * @param nextPhaseStateMachineId
 	 */
 	public void linkStateMachines(String stateMachineId, String nextPhaseStateMachineId) {
+		stateMachineModel.linkStateMachines(stateMachineId, nextPhaseStateMachineId);
+	}
+	
+	/**
+	 * 
+	 * In replay mode the machine rebuilds its state and value from past events without repeating their side
+	 * effects: onEntry / onExit, consumer actions and operations, and logging are skipped. Function actions
+	 * still run, so they must only compute the value.
+	 * 
+	 * @param replaying
+	 */
+	public void setReplaying(boolean replaying) {
 		
-		StateMachineModel<INPUT,STATE, OUTPUT> aStateMachineModel = stateMachineModels.get(stateMachineId);
-		
-		if (aStateMachineModel != null)
-			aStateMachineModel.setNextPhaseStateMachineId(nextPhaseStateMachineId );
-		else
-			throw new IllegalArgumentException("Unable to link state 11achines ! State Machine with id "+stateMachineId+" does not exist.");
+		this.replaying = replaying;
 		
+		if (timingWheel != null)
+			armStateTimeout(currentState);
+	}
+	
+	public boolean isReplaying() {
+		return replaying;
 	}
 	
-	private OUTPUT performOperations(INPUT event, OUTPUT value) {
+	/**
+	 * 
+	 * Runs the state timeouts of the model (see {@link StateMachineModel#addTimeout}) on the wheel, starting
+	 * with the timeout of the current state; null stops them. The wheel must be advanced by the thread
+	 * feeding this machine: a timeout event is dispatched through {@link #onInput(Object)} from
+	 * {@link TimingWheel#advance()}, and leaving the state cancels it on the spot.
+	 * 
+	 * @param timingWheel
+	 */
+	public void setTimingWheel(TimingWheel timingWheel) {
 		
-		if (functionOperationList != null && functionOperationList.size() > 0) {
-			for (BiFunction<INPUT,OUTPUT,OUTPUT> operation : functionOperationList) {
-				this.value = operation.apply(event, value);
-			}
-		}
+		if (stateTimeout != null)
+			stateTimeout.cancel();
 		
-		if (consumerOperationList != null && consumerOperationList.size() > 0) {
-			for (Consumer<INPUT> operation : consumerOperationList) {
-				operation.accept(event);
-			}
-		}
+		this.timingWheel = timingWheel;
 		
-		if (noArgConsumerOperationList != null && noArgConsumerOperationList.size() > 0) {
-			for (NoArgConsumer operation : noArgConsumerOperationList) {
-				operation.appy();
-			}
+		if (timingWheel != null)
+			armStateTimeout(currentState);
+	}
+	
+	public TimingWheel getTimingWheel() {
+		return timingWheel;
+	}
+	
+	/**
+	 * 
+	 * Schedules the timeout of the state, or cancels the pending one if the state has none. Nothing is
+	 * scheduled while replaying.
+	 * 
+	 */
+	private void armStateTimeout(STATE state) {
+		
+		DispatchTable<INPUT,STATE,OUTPUT> dispatchTable = stateMachineModel.getDispatchTable();
+		long timeoutNanos = dispatchTable.hasTimeouts() && ! replaying ? dispatchTable.getTimeoutNanos(state.ordinal()) : 0;
+		
+		if (timeoutNanos > 0) {
+			
+			if (stateTimeout == null)
+				stateTimeout = new TimingWheel.Timeout(this::onStateTimeout);
+			
+			timingWheel.schedule(stateTimeout, timeoutNanos);
 		}
-		return this.value;
+		else if (stateTimeout != null)
+			stateTimeout.cancel();
+	}
+	
+	private void onStateTimeout() {
+		onInput(stateMachineModel.getDispatchTable().getTimeoutEvent(currentState.ordinal()));
+	}
+	
+	/**
+	 * 
+	 * Logs every transition of this instance to the tracer, or stops logging if null. Tracing only copies a
+	 * binary record to the ring of the tracer; the records are formatted on its drain thread.
+	 * 
+	 * @param tracer
+	 * @param traceId the machine id of the records
+	 */
+	public void setTracer(TransitionTracer tracer, long traceId) {
+		this.tracer = tracer;
+		this.traceId = traceId;
+		this.shouldLog = tracer != null;
+	}
+	
+	public TransitionTracer getTracer() {
+		return tracer;
 	}
 	
 	/**
 	 * The id of the state machine.
 	 */
 	public String getId() {
-		return id;
+		return stateMachineModel.getId();
 	}
 	
 	/**
@@ -478,9 +805,46 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 	
 	public void setStateMachineModel(StateMachineModel<INPUT,STATE, OUTPUT> stateMachineModel) {
 		this.stateMachineModel = stateMachineModel;
-		this.id = stateMachineModel.getId();
+		this.initialModel = stateMachineModel;
 		currentState = stateMachineModel.getinitialState();
 		previousState = null;
+		
+		if (timingWheel != null)
+			armStateTimeout(currentState);
+	}
+	
+	/**
+	 * 
+	 * Takes the instance back to the initial state of the model it was created with, out of whatever phase it
+	 * reached, with the given value and no previous state or event: as if it had just been constructed, so it
+	 * can run another session instead of being thrown away. Neither onExit() nor onEntry() is called. The
+	 * tracer, trace id and timing wheel are kept; the timeout of the initial state, if any, is armed again.
+	 * 
+	 * @param initialValue
+	 * @see StateMachinePool
+	 */
+	public void reset(OUTPUT initialValue) {
+		
+		value = initialValue;
+		resetState();
+	}
+	
+	/**
+	 * 
+	 * Everything {@link #reset(Object)} does but setting the value, for specialized machines resetting their
+	 * unboxed value.
+	 * 
+	 */
+	protected final void resetState() {
+		
+		stateMachineModel = initialModel;
+		currentState = initialModel.getinitialState();
+		previousState = null;
+		currentEvent = null;
+		replaying = false;
+		
+		if (timingWheel != null)
+			armStateTimeout(currentState);
 	}
 	
 	public boolean hasNextPhase() {
@@ -491,29 +855,24 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 		stateMachineModel.addDoneState( doneState);
 	}
 		
-	public void addTenainalState(STATE terminalState) {
+	public void addTerminalState(STATE terminalState) {
 		stateMachineModel.addTerminalState(terminalState);
 	}
 	
-	public void addDoneState(String stateMachineId, STATE doneState) {
-		
-		StateMachineModel <INPUT, STATE, OUTPUT> aStateMachineModel = stateMachineModels.get(stateMachineId) ;
-		
-		if (aStateMachineModel != null)
-			aStateMachineModel.addDoneState ( doneState);
-		else
-			throw new IllegalArgumentException( "Can't add done states to state machine with id " +stateMachineId+ ". State machine does not exist!");
+	public void addTenainalState(STATE terminalState) {
+		addTerminalState(terminalState);
+	}
+	
+	public void addSubstate(STATE parentState, STATE childState) {
+		stateMachineModel.addSubstate(parentState, childState);
 	}
 	
+	public void addDoneState(String stateMachineId, STATE doneState) {
+		stateMachineModel.addDoneState(stateMachineId, doneState);
+	}
 	
 	public void addTerminalState(String stateMachineId, STATE terminalState) {
-		StateMachineModel<INPUT, STATE, OUTPUT> aStateMachineModel = stateMachineModels.get( stateMachineId);
-		
-		if (aStateMachineModel != null) {
-			aStateMachineModel.addTerminalState(terminalState);
-		} else {
-			throw new IllegalArgumentException("Can't add terminal states to state machine with id "+stateMachineId+". State machine does not exist!");
-		}
+		stateMachineModel.addTerminalState(stateMachineId, terminalState);
 	}
 	
 	public void handleErrorCondition(INPUT event) {
@@ -525,46 +884,20 @@ public class StateMachineImpl<INPUT, STATE extends Enum<STATE>,OUTPUT> implement
 	}
 	
 	public <T extends INPUT> void addOperations(Consumer<T> action) {
-		this.consumerOperationList.add((Consumer<INPUT>) action);
+		stateMachineModel.addOperations(action);
 	}
 	
 	public  void addOperations(NoArgConsumer action) {
-		this.noArgConsumerOperationList.addAll(Arrays.asList(action));
+		stateMachineModel.addOperations(action);
 	}
 
 	public <T extends INPUT> void addOperations(BiFunction<T,OUTPUT,OUTPUT> action) {
-		this.functionOperationList.add((BiFunction<INPUT, OUTPUT, OUTPUT>) action);
-	}
-	
-	private static class DefaultActionTransitionWrapper<U, V> {	
-		private final U action;
-		private final V state;
-		
-		DefaultActionTransitionWrapper(U action, V state) {
-			this.action = action;
-			this.state = state;
-		}
-		
-		public U getAction() {
-			return action; 
-		}
-		
-		public V getState() {
-			return state;
-		}
+		stateMachineModel.addOperations(action);
 	}
 	
 	public String toString() {
-		return "State Machine: "+id;
+		return "State Machine: "+getId();
 	}
 	
-	private KeyWrapper<INPUT> getKey(INPUT event) {
-		return new KeyWrapper<INPUT>(event);
-	}
-	
-	private KeyWrapper<INPUT> getKey(Class<?> eventClass) {
-		return new KeyWrapper<INPUT>(eventClass);
-	}	
-	
-	
+
 }
\ No newline at end of file
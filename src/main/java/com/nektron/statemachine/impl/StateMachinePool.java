@@ -0,0 +1,182 @@
+package com.nektron.statemachine.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ *
+ * A bounded pool of reusable state machines, typically all running the same frozen model, for workloads
+ * creating a machine per short-lived session. {@link #acquire()} hands out a pooled machine, or a new one
+ * from the factory when the pool is empty; {@link #release(StateMachineImpl)} resets it (see
+ * {@link StateMachineImpl#reset(Object)}) and keeps it for the next session, or drops it when the pool is
+ * full. Once the pool is warm, sessions no longer allocate machines.
+ *
+ * The pool is thread safe and lock free: the machines are kept in the slots of an
+ * {@link AtomicReferenceArray}, which also publishes a released machine to the thread acquiring it. A
+ * machine is owned by one session at a time and must not be used after its release.
+ *
+ * @param <OUTPUT>
+ * @param <M> the type of the machines
+ */
+public class StateMachinePool<OUTPUT, M extends StateMachineImpl<?, ?, OUTPUT>> {
+
+	private final AtomicReferenceArray<M> slots;
+	private final Supplier<M> factory;
+	private final Supplier<? extends OUTPUT> initialValues;
+
+	/** The number of pooled machines, counting the ones being released before they reach their slot */
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	private final LongAdder created = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 *
+	 * Every released machine is reset to the same initial value instance, which must therefore be
+	 * immutable, like a boxed number or a string. Use {@link #withInitialValues(int, Supplier, Supplier)} for
+	 * a mutable OUTPUT.
+	 *
+	 * @param capacity the most machines kept
+	 * @param factory creates a machine when the pool is empty
+	 * @param initialValue the value released machines are reset to
+	 */
+	public StateMachinePool(int capacity, Supplier<M> factory, OUTPUT initialValue) {
+		this(capacity, factory, () -> initialValue);
+	}
+
+	private StateMachinePool(int capacity, Supplier<M> factory, Supplier<? extends OUTPUT> initialValues) {
+
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Pool capacity must be positive: " + capacity);
+
+		if (initialValues == null)
+			throw new IllegalArgumentException("Initial value supplier cannot be null");
+
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.factory = factory;
+		this.initialValues = initialValues;
+	}
+
+	/**
+	 *
+	 * Creates a pool resetting every released machine to a value of its own, so sessions never share a
+	 * mutable OUTPUT.
+	 *
+	 * @param capacity the most machines kept
+	 * @param factory creates a machine when the pool is empty
+	 * @param initialValues called on every release for the value the machine is reset to
+	 * @return
+	 */
+	public static <OUTPUT, M extends StateMachineImpl<?, ?, OUTPUT>> StateMachinePool<OUTPUT, M> withInitialValues(int capacity, Supplier<M> factory, Supplier<? extends OUTPUT> initialValues) {
+		return new StateMachinePool<>(capacity, factory, initialValues);
+	}
+
+	/**
+	 *
+	 * Takes a machine out of the pool, in the initial state of its model with the initial value, or creates
+	 * one if the pool is empty.
+	 *
+	 * @return
+	 */
+	public M acquire() {
+
+		// A machine counted but not found is still being released: scan again rather than create one
+		for (int scan = 0; pooled.get() > 0; scan++) {
+
+			if (scan > 0)
+				Thread.yield();
+
+			int capacity = slots.length();
+			int start = start(capacity);
+
+			for (int i = 0; i < capacity; i++) {
+
+				int slot = start + i < capacity ? start + i : start + i - capacity;
+
+				if (slots.get(slot) == null)
+					continue;
+
+				M machine = slots.getAndSet(slot, null);
+
+				if (machine != null) {
+					pooled.decrementAndGet();
+					return machine;
+				}
+			}
+		}
+
+		created.increment();
+		return factory.get();
+	}
+
+	/**
+	 *
+	 * Resets the machine and returns it to the pool. The machine must first be taken off its timing wheel,
+	 * on the thread driving the wheel, as a pooled machine must not receive timeouts.
+	 *
+	 * @param machine
+	 * @return false if the pool was full and the machine dropped
+	 */
+	public boolean release(M machine) {
+
+		if (machine.getTimingWheel() != null)
+			throw new IllegalStateException("State machine " + machine.getId() + " must be taken off its timing wheel before its release");
+
+		machine.reset(initialValues.get());
+
+		int capacity = slots.length();
+		int start = start(capacity);
+
+		// Counted before it is published, so an acquire never skips a pool holding a machine
+		pooled.incrementAndGet();
+
+		for (int i = 0; i < capacity; i++) {
+
+			int slot = start + i < capacity ? start + i : start + i - capacity;
+
+			if (slots.get(slot) == null && slots.compareAndSet(slot, null, machine))
+				return true;
+		}
+
+		pooled.decrementAndGet();
+		dropped.increment();
+		return false;
+	}
+
+	/**
+	 * Threads start scanning from different slots, so they rarely compete for the same one.
+	 */
+	private static int start(int capacity) {
+		return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32) % capacity);
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * The number of machines in the pool, approximate while they are acquired and released.
+	 * @return
+	 */
+	public int getPooledCount() {
+		return pooled.get();
+	}
+
+	/**
+	 * The number of machines the factory created: on a warm pool it stops growing.
+	 * @return
+	 */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+	/**
+	 * The number of released machines dropped because the pool was full.
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+}
@@ -0,0 +1,93 @@
+package com.nektron.statemachine.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * Writes and reads the events of a {@link Journal}. A codec must read back exactly the bytes it wrote.
+ *
+ * @param <INPUT>
+ */
+public interface EventCodec<INPUT> {
+
+	/** Strings as UTF-8, prefixed by their length in an unsigned short: at most 65535 bytes */
+	public static final EventCodec<String> STRING = new EventCodec<String>() {
+
+		static final int MAX_LENGTH = 0xFFFF;
+
+		@Override
+		public int size(String event) {
+			return 2 + checkLength(event.getBytes(StandardCharsets.UTF_8)).length;
+		}
+
+		@Override
+		public void encode(String event, ByteBuffer buffer) {
+
+			byte[] bytes = checkLength(event.getBytes(StandardCharsets.UTF_8));
+
+			buffer.putShort((short) bytes.length);
+			buffer.put(bytes);
+		}
+
+		@Override
+		public String decode(ByteBuffer buffer) {
+
+			byte[] bytes = new byte[buffer.getShort() & MAX_LENGTH];
+
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private byte[] checkLength(byte[] bytes) {
+
+			if (bytes.length > MAX_LENGTH)
+				throw new IllegalArgumentException("String event too long to journal: " + bytes.length + " bytes, at most " + MAX_LENGTH);
+
+			return bytes;
+		}
+	};
+
+	/**
+	 *
+	 * The number of bytes {@link #encode(Object, ByteBuffer)} writes for the event.
+	 *
+	 * @param event
+	 * @return
+	 */
+	int size(INPUT event);
+
+	void encode(INPUT event, ByteBuffer buffer);
+
+	INPUT decode(ByteBuffer buffer);
+
+	/**
+	 *
+	 * Writes the constants of the enum by ordinal, in a short.
+	 *
+	 * @param enumType
+	 * @return
+	 */
+	static <E extends Enum<E>> EventCodec<E> ofEnum(Class<E> enumType) {
+
+		E[] constants = enumType.getEnumConstants();
+
+		return new EventCodec<E>() {
+
+			@Override
+			public int size(E event) {
+				return 2;
+			}
+
+			@Override
+			public void encode(E event, ByteBuffer buffer) {
+				buffer.putShort((short) event.ordinal());
+			}
+
+			@Override
+			public E decode(ByteBuffer buffer) {
+				return constants[buffer.getShort()];
+			}
+		};
+	}
+}
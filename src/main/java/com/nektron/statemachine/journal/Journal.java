@@ -0,0 +1,404 @@
+package com.nektron.statemachine.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Append-only log of the transitions of state machines, stored in memory mapped segment files of a
+ * directory. An append only copies the record into the mapped segment: it never waits for the disk. A
+ * background thread forces the segments to disk every flush interval, so all the records appended in
+ * between share one fsync (group commit). Call {@link #commit()} when a caller needs its records durable
+ * before going on.
+ *
+ * A record:
+ *
+ * <pre>
+ * int    length of the rest of the record
+ * long   machine id
+ * short  state ordinal before the transition
+ * short  state ordinal after the transition
+ * ...    event, as written by the {@link EventCodec}
+ * </pre>
+ *
+ * A zero length ends a segment. Appends are serialized on the journal, so machines on different threads
+ * can share one.
+ *
+ * @param <INPUT>
+ */
+public class Journal<INPUT> implements Closeable {
+
+	private static Logger log = LoggerFactory.getLogger(Journal.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	private static final int HEADER_SIZE = 4 + 8 + 2 + 2;
+
+	private final Path directory;
+	private final EventCodec<INPUT> codec;
+	private final int segmentSize;
+	private final long flushIntervalNanos;
+
+	/** Segments rolled over but not forced yet */
+	private final Queue<MappedByteBuffer> unforcedSegments = new ConcurrentLinkedQueue<>();
+
+	private final Object flushLock = new Object();
+
+	private final Thread flusher;
+
+	private volatile MappedByteBuffer segment;
+	private long segmentIndex;
+
+	private volatile long appendedCount;
+	private volatile long committedCount;
+	private volatile long forceCount;
+
+	private volatile boolean open = true;
+
+	public Journal(Path directory, EventCodec<INPUT> codec) throws IOException {
+		this(directory, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 * Opens the journal of the directory, creating it if needed. Appends continue after the last record
+	 * found.
+	 *
+	 * @param directory
+	 * @param codec
+	 * @param segmentSize the size of every segment file
+	 * @param flushInterval the longest a record stays in memory only
+	 * @param unit
+	 * @throws IOException
+	 */
+	public Journal(Path directory, EventCodec<INPUT> codec, int segmentSize, long flushInterval, TimeUnit unit) throws IOException {
+
+		if (segmentSize < 2 * HEADER_SIZE)
+			throw new IllegalArgumentException("Journal segment size too small: " + segmentSize);
+
+		if (flushInterval <= 0)
+			throw new IllegalArgumentException("Journal flush interval must be positive: " + flushInterval);
+
+		this.directory = Files.createDirectories(directory);
+		this.codec = codec;
+		this.segmentSize = segmentSize;
+		this.flushIntervalNanos = unit.toNanos(flushInterval);
+
+		List<Path> segments = listSegments(directory);
+
+		if (segments.isEmpty()) {
+			segment = map(segmentIndex);
+		}
+		else {
+
+			Path last = segments.get(segments.size() - 1);
+
+			segmentIndex = segmentIndexOf(last);
+			segment = map(segmentIndex);
+			segment.position(endOf(segment));
+		}
+
+		flusher = new Thread(this::flushLoop, "journal-flusher-" + directory.getFileName());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 *
+	 * Appends a transition. Returns once the record is in the mapped segment; it becomes durable with the
+	 * next group commit.
+	 *
+	 * @param machineId
+	 * @param event
+	 * @param fromOrdinal
+	 * @param toOrdinal
+	 */
+	public synchronized void append(long machineId, INPUT event, int fromOrdinal, int toOrdinal) {
+
+		if (! open)
+			throw new IllegalStateException("Journal is closed: " + directory);
+
+		int length = HEADER_SIZE + codec.size(event);
+
+		// Leave room for the zero length ending the segment
+		if (length + 4 > segmentSize)
+			throw new IllegalArgumentException("Journal record of " + length + " bytes does not fit a segment of: " + segmentSize);
+
+		MappedByteBuffer buffer = segment;
+
+		if (buffer.remaining() < length + 4)
+			buffer = roll();
+
+		int start = buffer.position();
+
+		buffer.position(start + 4);
+		buffer.putLong(machineId);
+		buffer.putShort((short) fromOrdinal);
+		buffer.putShort((short) toOrdinal);
+		codec.encode(event, buffer);
+
+		// The length goes last: a record only counts once it is complete
+		buffer.putInt(start, buffer.position() - start - 4);
+
+		appendedCount++;
+	}
+
+	/**
+	 *
+	 * Forces every record appended so far to disk, without waiting for the flusher.
+	 *
+	 */
+	public void commit() {
+
+		synchronized (flushLock) {
+
+			long appended;
+			MappedByteBuffer current;
+
+			// Every record counted was written to the current segment or to one rolled over before it
+			synchronized (this) {
+				appended = appendedCount;
+				current = segment;
+			}
+
+			if (appended == committedCount)
+				return;
+
+			for (MappedByteBuffer unforced = unforcedSegments.poll(); unforced != null; unforced = unforcedSegments.poll())
+				unforced.force();
+
+			current.force();
+
+			forceCount++;
+			committedCount = appended;
+		}
+	}
+
+	/**
+	 *
+	 * Reads every record of the journal in order. Meant to run on startup, before appending.
+	 *
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void replay(RecordHandler<INPUT> handler) throws IOException {
+
+		for (Path segment : getSegments())
+			replay(segment, handler);
+	}
+
+	/**
+	 *
+	 * Reads the records of one segment in order. Segments can be read concurrently.
+	 *
+	 * @param segment one of {@link #getSegments()}
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void replay(Path segment, RecordHandler<INPUT> handler) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(segment)) {
+
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+			for (int length = buffer.getInt(); length > 0; length = buffer.remaining() >= 4 ? buffer.getInt() : 0) {
+
+				int end = buffer.position() + length;
+
+				long machineId = buffer.getLong();
+				int fromOrdinal = buffer.getShort();
+				int toOrdinal = buffer.getShort();
+				INPUT event = codec.decode(buffer);
+
+				if (buffer.position() != end)
+					throw new IllegalStateException("Corrupt journal record in " + segment + " at: " + (end - length - 4));
+
+				handler.onRecord(machineId, event, fromOrdinal, toOrdinal);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * The segment files of the journal, oldest first.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Path> getSegments() throws IOException {
+		return listSegments(directory);
+	}
+
+	/**
+	 *
+	 * Commits the pending records and stops the flusher.
+	 *
+	 */
+	@Override
+	public void close() {
+
+		if (! open)
+			return;
+
+		synchronized (this) {
+			open = false;
+		}
+
+		LockSupport.unpark(flusher);
+
+		try {
+			flusher.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		commit();
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 *
+	 * The number of records appended since the journal was opened.
+	 *
+	 * @return
+	 */
+	public long getAppendedCount() {
+		return appendedCount;
+	}
+
+	/**
+	 *
+	 * The number of records appended since the journal was opened and known to be on disk.
+	 *
+	 * @return
+	 */
+	public long getCommittedCount() {
+		return committedCount;
+	}
+
+	/**
+	 *
+	 * The number of forces (fsyncs) so far: with group commit, far fewer than the committed records.
+	 *
+	 * @return
+	 */
+	public long getForceCount() {
+		return forceCount;
+	}
+
+	private MappedByteBuffer roll() {
+
+		unforcedSegments.add(segment);
+
+		try {
+			segment = map(++segmentIndex);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Unable to create journal segment in: " + directory, e);
+		}
+		return segment;
+	}
+
+	private void flushLoop() {
+
+		while (open) {
+
+			LockSupport.parkNanos(this, flushIntervalNanos);
+
+			try {
+				commit();
+			}
+			catch (RuntimeException e) {
+				log.error("Journal flush failed for: " + directory, e);
+			}
+		}
+	}
+
+	private MappedByteBuffer map(long index) throws IOException {
+
+		try (RandomAccessFile file = new RandomAccessFile(directory.resolve(segmentName(index)).toFile(), "rw")) {
+
+			// A new segment is zero filled, so it reads as empty
+			if (file.length() < segmentSize)
+				file.setLength(segmentSize);
+
+			return file.getChannel().map(MapMode.READ_WRITE, 0, file.length());
+		}
+	}
+
+	private static int endOf(ByteBuffer buffer) {
+
+		int position = 0;
+
+		for (int length = buffer.getInt(position); length > 0; length = buffer.getInt(position)) {
+
+			position += 4 + length;
+
+			if (position > buffer.limit() - 4)
+				break;
+		}
+		return position;
+	}
+
+	static String segmentName(long index) {
+		return String.format("%020d", index) + SEGMENT_SUFFIX;
+	}
+
+	private static long segmentIndexOf(Path path) {
+
+		String name = path.getFileName().toString();
+
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static List<Path> listSegments(Path directory) throws IOException {
+
+		List<Path> segments = new ArrayList<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream)
+				segments.add(path);
+		}
+
+		// Zero padded names sort in segment order
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 *
+	 * Receives the records of a journal on replay.
+	 *
+	 * @param <INPUT>
+	 */
+	@FunctionalInterface
+	public static interface RecordHandler<INPUT> {
+
+		void onRecord(long machineId, INPUT event, int fromOrdinal, int toOrdinal);
+	}
+}
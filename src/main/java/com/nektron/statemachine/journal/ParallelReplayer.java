@@ -0,0 +1,273 @@
+package com.nektron.statemachine.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.LongFunction;
+
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.util.LongHashMap;
+
+/**
+ *
+ * Rebuilds state machines from a {@link Journal} on a fork/join pool, in two passes:
+ *
+ * - every segment is read by its own task, which splits its records into partitions by machine id;
+ * - every partition is then replayed by its own task, going through the segments in order, so each
+ *   machine sees its records in the order they were journaled.
+ *
+ * A machine belongs to exactly one partition and is only touched by the task replaying it, so the
+ * machines need no locking. They run in replay mode (see {@link StateMachineImpl#setReplaying(boolean)}):
+ * only the function actions run again, and the replay fails with an IllegalStateException if a machine
+ * takes another transition than the journaled one.
+ *
+ * @param <INPUT>
+ */
+public class ParallelReplayer<INPUT> {
+
+	private final ForkJoinPool pool;
+
+	private final int partitionCount;
+
+	public ParallelReplayer() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ParallelReplayer(ForkJoinPool pool) {
+		this(pool, 4 * pool.getParallelism());
+	}
+
+	/**
+	 *
+	 * @param pool
+	 * @param partitionCount more partitions than threads balances partitions of uneven sizes
+	 */
+	public ParallelReplayer(ForkJoinPool pool, int partitionCount) {
+
+		if (partitionCount < 1)
+			throw new IllegalArgumentException("Partition count must be at least 1: " + partitionCount);
+
+		this.pool = pool;
+		this.partitionCount = partitionCount;
+	}
+
+	/**
+	 *
+	 * Replays the journal. The factory is called once per machine id, on its first record, from any pool
+	 * thread: it returns a new machine in its initial state, and must register it wherever it will be looked
+	 * up once recovered. The machines leave replay mode when their partition is done.
+	 *
+	 * @param journal
+	 * @param factory
+	 * @return the number of records replayed
+	 * @throws IOException
+	 */
+	public <M extends StateMachineImpl<INPUT, ?, ?>> long replay(Journal<INPUT> journal, LongFunction<M> factory) throws IOException {
+
+		List<Path> segments = journal.getSegments();
+		Bucket[][] buckets = new Bucket[segments.size()][];
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+		for (int i = 0; i < segments.size(); i++)
+			tasks.add(new ReadSegment<>(journal, segments.get(i), buckets, i, partitionCount));
+
+		try {
+			pool.invoke(new InvokeAll(tasks));
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		ReplayPartition<?>[] partitions = new ReplayPartition<?>[partitionCount];
+
+		tasks.clear();
+
+		for (int partition = 0; partition < partitionCount; partition++) {
+			partitions[partition] = new ReplayPartition<>(buckets, partition, factory);
+			tasks.add(partitions[partition]);
+		}
+
+		pool.invoke(new InvokeAll(tasks));
+
+		long records = 0;
+
+		for (ReplayPartition<?> partition : partitions)
+			records += partition.records;
+
+		return records;
+	}
+
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	/**
+	 *
+	 * The partition of the machine, spreading consecutive ids evenly.
+	 *
+	 * @param machineId
+	 * @param partitionCount
+	 * @return
+	 */
+	static int partitionOf(long machineId, int partitionCount) {
+		long hash = machineId * 0x9E3779B97F4A7C15L;
+		return (int) ((hash >>> 32) * partitionCount >>> 32);
+	}
+
+	private static final class InvokeAll extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<ForkJoinTask<?>> tasks;
+
+		InvokeAll(List<ForkJoinTask<?>> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	private static final class ReadSegment<INPUT> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Journal<INPUT> journal;
+		private final Path segment;
+		private final Bucket[][] buckets;
+		private final int segmentIndex;
+		private final int partitionCount;
+
+		ReadSegment(Journal<INPUT> journal, Path segment, Bucket[][] buckets, int segmentIndex, int partitionCount) {
+			this.journal = journal;
+			this.segment = segment;
+			this.buckets = buckets;
+			this.segmentIndex = segmentIndex;
+			this.partitionCount = partitionCount;
+		}
+
+		@Override
+		protected void compute() {
+
+			Bucket[] partitions = new Bucket[partitionCount];
+
+			for (int i = 0; i < partitionCount; i++)
+				partitions[i] = new Bucket();
+
+			try {
+				journal.replay(segment, (machineId, event, fromOrdinal, toOrdinal) -> partitions[partitionOf(machineId, partitionCount)].add(machineId, event, fromOrdinal, toOrdinal));
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("Unable to read journal segment: " + segment, e);
+			}
+
+			// Published to the replay tasks by the join of this task
+			buckets[segmentIndex] = partitions;
+		}
+	}
+
+	private static final class ReplayPartition<M extends StateMachineImpl<?, ?, ?>> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Bucket[][] buckets;
+		private final int partition;
+		private final LongFunction<M> factory;
+
+		long records;
+
+		ReplayPartition(Bucket[][] buckets, int partition, LongFunction<M> factory) {
+			this.buckets = buckets;
+			this.partition = partition;
+			this.factory = factory;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected void compute() {
+
+			LongHashMap<M> machines = new LongHashMap<>();
+
+			try {
+				for (Bucket[] segment : buckets) {
+
+					Bucket bucket = segment[partition];
+
+					for (int i = 0; i < bucket.size; i++) {
+
+						long machineId = bucket.machineIds[i];
+						M machine = machines.get(machineId);
+
+						if (machine == null) {
+
+							machine = factory.apply(machineId);
+
+							if (machine == null)
+								throw new IllegalArgumentException("No state machine created for id: " + machineId);
+
+							machine.setReplaying(true);
+							machines.put(machineId, machine);
+						}
+
+						int fromOrdinal = bucket.fromOrdinals[i];
+						int toOrdinal = bucket.toOrdinals[i];
+
+						if (machine.getCurrentState().ordinal() != fromOrdinal)
+							throw new IllegalStateException("State machine " + machineId + " diverged from its journal: in state " + machine.getCurrentState() + " instead of ordinal " + fromOrdinal);
+
+						((StateMachineImpl) machine).onInput(bucket.events[i]);
+
+						if (machine.getCurrentState().ordinal() != toOrdinal)
+							throw new IllegalStateException("State machine " + machineId + " diverged from its journal: moved to state " + machine.getCurrentState() + " instead of ordinal " + toOrdinal);
+					}
+					records += bucket.size;
+				}
+			}
+			finally {
+				// Leaves replay mode even when the partition fails, its machines may already be registered
+				machines.forEach((machineId, machine) -> machine.setReplaying(false));
+			}
+		}
+	}
+
+	/**
+	 *
+	 * The records of one partition of one segment, column wise.
+	 *
+	 */
+	private static final class Bucket {
+
+		long[] machineIds = new long[16];
+		short[] fromOrdinals = new short[16];
+		short[] toOrdinals = new short[16];
+		Object[] events = new Object[16];
+		int size;
+
+		void add(long machineId, Object event, int fromOrdinal, int toOrdinal) {
+
+			if (size == machineIds.length) {
+
+				int capacity = 2 * size;
+
+				machineIds = Arrays.copyOf(machineIds, capacity);
+				fromOrdinals = Arrays.copyOf(fromOrdinals, capacity);
+				toOrdinals = Arrays.copyOf(toOrdinals, capacity);
+				events = Arrays.copyOf(events, capacity);
+			}
+
+			machineIds[size] = machineId;
+			fromOrdinals[size] = (short) fromOrdinal;
+			toOrdinals[size] = (short) toOrdinal;
+			events[size] = event;
+			size++;
+		}
+	}
+}
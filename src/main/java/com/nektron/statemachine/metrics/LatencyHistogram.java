@@ -0,0 +1,119 @@
+package com.nektron.statemachine.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * Log-linear histogram of latencies in nanoseconds: every power of two range is split in 8 buckets, so a
+ * recorded value is known within 12.5%. Recording is one atomic increment, safe from any thread.
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Values below SUB_BUCKETS get exact buckets, then 8 buckets per power of two up to 2^63 */
+	private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	public void record(long nanos) {
+		counts.getAndIncrement(bucketOf(Math.max(0, nanos)));
+	}
+
+	public Snapshot snapshot() {
+
+		long[] copy = new long[BUCKETS];
+
+		for (int i = 0; i < BUCKETS; i++)
+			copy[i] = counts.get(i);
+
+		return new Snapshot(copy);
+	}
+
+	static int bucketOf(long value) {
+
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * The highest value of the bucket.
+	 */
+	static long upperBoundOf(int bucket) {
+
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 *
+	 * The counts of a histogram at one point in time.
+	 *
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+
+		Snapshot(long[] counts) {
+
+			long count = 0;
+
+			for (long bucketCount : counts)
+				count += bucketCount;
+
+			this.counts = counts;
+			this.count = count;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 *
+		 * The value below which the given percentage of the samples fall, rounded up to its bucket.
+		 *
+		 * @param percentile between 0 and 100
+		 * @return 0 without samples
+		 */
+		public long getValueAtPercentile(double percentile) {
+
+			if (percentile < 0 || percentile > 100)
+				throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+
+			long rank = (long) Math.ceil(percentile / 100 * count);
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+
+				seen += counts[i];
+
+				if (seen >= rank && counts[i] > 0)
+					return upperBoundOf(i);
+			}
+			return 0;
+		}
+
+		public long getMax() {
+			return getValueAtPercentile(100);
+		}
+
+		public String toString() {
+			return "count=" + count + " p50=" + getValueAtPercentile(50) + "ns p99=" + getValueAtPercentile(99) + "ns max=" + getMax() + "ns";
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.nektron.statemachine.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ *
+ * The counters of a state machine model at one point in time, see {@link StateMachineMetrics}. Only
+ * the cells, states and events with a non zero count are listed.
+ *
+ * @param <STATE>
+ */
+public final class MetricsSnapshot<STATE extends Enum<STATE>> {
+
+	private final String modelId;
+	private final List<CellMetrics<STATE>> cells = new ArrayList<>();
+	private final Map<STATE, Long> unmapped = new LinkedHashMap<>();
+	private final Map<Object, Long> errors = new HashMap<>();
+
+	MetricsSnapshot(String modelId) {
+		this.modelId = modelId;
+	}
+
+	void addCell(STATE state, Object event, STATE target, boolean defaultAction, long count, LatencyHistogram.Snapshot latency) {
+		cells.add(new CellMetrics<>(state, event, target, defaultAction, count, latency));
+	}
+
+	void addUnmapped(STATE state, long count) {
+		unmapped.put(state, count);
+	}
+
+	void addErrors(Object event, long count) {
+		errors.put(event, count);
+	}
+
+	public String getModelId() {
+		return modelId;
+	}
+
+	/**
+	 *
+	 * Every (state, event) pair taken at least once, one per branch taken for a pair with guarded
+	 * transitions.
+	 *
+	 * @return
+	 */
+	public List<CellMetrics<STATE>> getCells() {
+		return Collections.unmodifiableList(cells);
+	}
+
+	/**
+	 *
+	 * How often the transition or default actions of the state were taken for the event, all the branches
+	 * of its guarded transitions together.
+	 *
+	 * @param state
+	 * @param event the event instance or the event type the transition was registered with
+	 * @return
+	 */
+	public long getCount(STATE state, Object event) {
+
+		long count = 0;
+
+		for (CellMetrics<STATE> cell : cells) {
+			if (cell.state == state && Objects.equals(cell.event, event))
+				count += cell.count;
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * How often the event took the machine from the state to the target, through a transition or default
+	 * actions.
+	 *
+	 * @param state
+	 * @param event the event instance or the event type the transition was registered with
+	 * @param target null for default actions that keep the state
+	 * @return
+	 */
+	public long getCount(STATE state, Object event, STATE target) {
+
+		long count = 0;
+
+		for (CellMetrics<STATE> cell : cells) {
+			if (cell.state == state && cell.target == target && Objects.equals(cell.event, event))
+				count += cell.count;
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * The metrics of the transition or default actions of the state for the event, the first branch
+	 * taken for guarded transitions.
+	 *
+	 * @param state
+	 * @param event the event instance or the event type the transition was registered with
+	 * @return null if they were never taken
+	 */
+	public CellMetrics<STATE> getCell(STATE state, Object event) {
+
+		for (CellMetrics<STATE> cell : cells) {
+			if (cell.state == state && Objects.equals(cell.event, event))
+				return cell;
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * How often an event had neither a transition nor default actions in the state
+	 * (handleUnmappedTransition was called).
+	 *
+	 * @param state
+	 * @return
+	 */
+	public long getUnmappedCount(STATE state) {
+
+		Long count = unmapped.get(state);
+
+		return count != null ? count : 0;
+	}
+
+	public Map<STATE, Long> getUnmappedCounts() {
+		return Collections.unmodifiableMap(unmapped);
+	}
+
+	/**
+	 *
+	 * How often applying the event failed (the error action or handleErrorCondition was called).
+	 *
+	 * @param event the event instance or the event type registered with the model, null for unregistered
+	 *        events
+	 * @return
+	 */
+	public long getErrorCount(Object event) {
+
+		Long count = errors.get(event);
+
+		return count != null ? count : 0;
+	}
+
+	public Map<Object, Long> getErrorCounts() {
+		return Collections.unmodifiableMap(errors);
+	}
+
+	public String toString() {
+
+		StringBuilder builder = new StringBuilder("Metrics of state machine: " + modelId);
+
+		for (CellMetrics<STATE> cell : cells)
+			builder.append("\n  ").append(cell);
+
+		for (Map.Entry<STATE, Long> entry : unmapped.entrySet())
+			builder.append("\n  ").append(entry.getKey()).append(" unmapped: ").append(entry.getValue());
+
+		for (Map.Entry<Object, Long> entry : errors.entrySet())
+			builder.append("\n  ").append(entry.getKey()).append(" errors: ").append(entry.getValue());
+
+		return builder.toString();
+	}
+
+	/**
+	 *
+	 * The count and sampled action latency of one (state, event) cell of the dispatch table, or of one branch
+	 * of a cell with guarded transitions.
+	 *
+	 * @param <STATE>
+	 */
+	public static final class CellMetrics<STATE extends Enum<STATE>> {
+
+		private final STATE state;
+		private final Object event;
+		private final STATE target;
+		private final boolean defaultAction;
+		private final long count;
+		private final LatencyHistogram.Snapshot latency;
+
+		CellMetrics(STATE state, Object event, STATE target, boolean defaultAction, long count, LatencyHistogram.Snapshot latency) {
+			this.state = state;
+			this.event = event;
+			this.target = target;
+			this.defaultAction = defaultAction;
+			this.count = count;
+			this.latency = latency;
+		}
+
+		public STATE getState() {
+			return state;
+		}
+
+		/**
+		 * The event instance or the event type the cell was registered with.
+		 * @return
+		 */
+		public Object getEvent() {
+			return event;
+		}
+
+		/**
+		 * The target state, null for default actions that keep the state.
+		 * @return
+		 */
+		public STATE getTarget() {
+			return target;
+		}
+
+		public boolean isDefaultAction() {
+			return defaultAction;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * The sampled latencies of the actions, null if none was sampled.
+		 * @return
+		 */
+		public LatencyHistogram.Snapshot getLatency() {
+			return latency;
+		}
+
+		public String toString() {
+			return state + " --" + event + "--> " + (defaultAction ? "default actions" + (target != null ? " -> " + target : "") : target)
+					+ ": " + count + (latency != null ? " (" + latency + ")" : "");
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.nektron.statemachine.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.nektron.statemachine.DispatchTable;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.Transition;
+
+/**
+ *
+ * Counters of a dispatch table: how often every (state, event slot) cell was taken, be it a transition
+ * or default actions, how often an event was unmapped in every state and how often every slot failed,
+ * plus sampled latency histograms of the actions of every cell. A cell with guarded transitions has
+ * counters and histograms for every branch, in the order the guards are tried, the last one for the
+ * transition or default actions they fall back on.
+ *
+ * Metrics are off unless the JVM starts with -Dstatemachine.metrics=true. {@link #ENABLED} is a constant,
+ * so with metrics off the JIT drops the instrumentation of the dispatch path altogether. One action in
+ * statemachine.metrics.sampleRate (64 by default, rounded down to a power of two) is timed.
+ *
+ * Counters are striped {@link LongAdder}s, cheap to bump from many threads. They belong to the compiled
+ * dispatch table, so they restart from zero if a model that is not frozen gets modified.
+ *
+ */
+public final class StateMachineMetrics {
+
+	public static final boolean ENABLED = Boolean.getBoolean("statemachine.metrics");
+
+	public static final int SAMPLE_RATE = Integer.highestOneBit(Math.max(1, Integer.getInteger("statemachine.metrics.sampleRate", 64)));
+
+	private static final int SAMPLE_MASK = SAMPLE_RATE - 1;
+
+	private final int slotCount;
+
+	/** By cell (state ordinal * slot count + slot), the index of its first branch in the counters */
+	private final int[] branches;
+
+	/** By branch */
+	private final LongAdder[] cells;
+
+	private final LongAdder[] unmapped;
+
+	/** By slot + 1, index 0 counting the events without a slot */
+	private final LongAdder[] errors;
+
+	/** By branch, created on the first sample of a branch */
+	private final AtomicReferenceArray<LatencyHistogram> latencies;
+
+	/**
+	 *
+	 * @param transitions the cells of the dispatch table, by state ordinal and slot
+	 * @param slotCount
+	 */
+	public StateMachineMetrics(Transition<?, ?, ?>[][] transitions, int slotCount) {
+
+		int stateCount = transitions.length;
+		int branchCount = 0;
+
+		this.slotCount = slotCount;
+		this.branches = new int[stateCount * slotCount + 1];
+
+		for (int stateOrdinal = 0; stateOrdinal < stateCount; stateOrdinal++) {
+			for (int slot = 0; slot < slotCount; slot++) {
+				branches[stateOrdinal * slotCount + slot] = branchCount;
+				branchCount += getBranchCount(transitions[stateOrdinal][slot]);
+			}
+		}
+		branches[stateCount * slotCount] = branchCount;
+
+		this.cells = newAdders(branchCount);
+		this.unmapped = newAdders(stateCount);
+		this.errors = newAdders(slotCount + 1);
+		this.latencies = new AtomicReferenceArray<>(branchCount);
+	}
+
+	/**
+	 *
+	 * Counts a transition or default actions taken.
+	 *
+	 * @param stateOrdinal
+	 * @param slot
+	 * @param branch 0, or for a guarded cell the one given by {@link #getBranch(Transition, Transition)}
+	 */
+	public void onTransition(int stateOrdinal, int slot, int branch) {
+		cells[branches[stateOrdinal * slotCount + slot] + branch].increment();
+	}
+
+	public void onUnmapped(int stateOrdinal) {
+		unmapped[stateOrdinal].increment();
+	}
+
+	public void onError(int slot) {
+		errors[slot + 1].increment();
+	}
+
+	/**
+	 *
+	 * Whether to time the next action.
+	 *
+	 * @return
+	 */
+	public boolean sample() {
+		return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+	}
+
+	public void onActionLatency(int stateOrdinal, int slot, int branch, long nanos) {
+
+		int cell = branches[stateOrdinal * slotCount + slot] + branch;
+		LatencyHistogram histogram = latencies.get(cell);
+
+		if (histogram == null) {
+			latencies.compareAndSet(cell, null, new LatencyHistogram());
+			histogram = latencies.get(cell);
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 *
+	 * The branch of a guarded cell a transition selected from it stands for: its position in the chain.
+	 *
+	 * @param cell the first transition of the cell
+	 * @param selected as returned by {@link Transition#select(Object, Object)}, not null
+	 * @return
+	 */
+	public static int getBranch(Transition<?, ?, ?> cell, Transition<?, ?, ?> selected) {
+
+		int branch = 0;
+
+		for (Transition<?, ?, ?> transition = cell; transition != selected; transition = transition.getNext())
+			branch++;
+
+		return branch;
+	}
+
+	/**
+	 *
+	 * Reads the counters of the table, naming states and events after the model.
+	 *
+	 * @param dispatchTable
+	 * @param model
+	 * @return
+	 */
+	public <INPUT, STATE extends Enum<STATE>, OUTPUT> MetricsSnapshot<STATE> snapshot(DispatchTable<INPUT, STATE, OUTPUT> dispatchTable, StateMachineModel<INPUT, STATE, OUTPUT> model) {
+
+		MetricsSnapshot<STATE> snapshot = new MetricsSnapshot<>(model.getId());
+		int stateCount = unmapped.length;
+
+		for (int stateOrdinal = 0; stateOrdinal < stateCount; stateOrdinal++) {
+
+			STATE state = model.getState(stateOrdinal);
+
+			for (int slot = 0; slot < slotCount; slot++) {
+
+				int cell = stateOrdinal * slotCount + slot;
+				Transition<INPUT, STATE, OUTPUT> transition = dispatchTable.getTransition(stateOrdinal, slot);
+
+				for (int branch = branches[cell]; branch < branches[cell + 1]; branch++, transition = transition.getNext()) {
+
+					long count = cells[branch].sum();
+
+					if (count == 0)
+						continue;
+
+					LatencyHistogram latency = latencies.get(branch);
+
+					snapshot.addCell(state, dispatchTable.getSlotKey(slot), transition.getTarget(), transition.isDefaultAction(), count,
+							latency != null ? latency.snapshot() : null);
+				}
+			}
+
+			long unmappedCount = unmapped[stateOrdinal].sum();
+
+			if (unmappedCount > 0)
+				snapshot.addUnmapped(state, unmappedCount);
+		}
+
+		for (int slot = -1; slot < slotCount; slot++) {
+
+			long errorCount = errors[slot + 1].sum();
+
+			if (errorCount > 0)
+				snapshot.addErrors(slot < 0 ? null : dispatchTable.getSlotKey(slot), errorCount);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * One branch per guarded transition of the cell plus the one they fall back on, if any.
+	 */
+	private static int getBranchCount(Transition<?, ?, ?> cell) {
+
+		int count = 0;
+		Transition<?, ?, ?> transition = cell;
+
+		while (transition != null && transition.isGuarded()) {
+			transition = transition.getNext();
+			count++;
+		}
+		return transition != null ? count + 1 : count;
+	}
+
+	private static LongAdder[] newAdders(int count) {
+
+		LongAdder[] adders = new LongAdder[count];
+
+		for (int i = 0; i < count; i++)
+			adders[i] = new LongAdder();
+
+		return adders;
+	}
+}
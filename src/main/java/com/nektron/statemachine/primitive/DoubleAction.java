@@ -0,0 +1,33 @@
+package com.nektron.statemachine.primitive;
+
+import java.util.function.BiFunction;
+
+/**
+ *
+ * A transition action or operation on a double value. Machines specialized for double values call
+ * {@link #applyAsDouble(Object, double)} directly, without boxing; any other machine sees a plain BiFunction.
+ *
+ * @param <T> the event type
+ */
+@FunctionalInterface
+public interface DoubleAction<T> extends BiFunction<T, Double, Double> {
+
+	double applyAsDouble(T event, double value);
+
+	/**
+	 *
+	 * Types a lambda as a DoubleAction, as a plain lambda would be ambiguous between the addTransition and
+	 * addOperations overloads: addTransition(state, Trade.class, target, DoubleAction.of((trade, value) -> value + 1)).
+	 *
+	 * @param action
+	 * @return the action itself
+	 */
+	static <T> DoubleAction<T> of(DoubleAction<T> action) {
+		return action;
+	}
+
+	@Override
+	default Double apply(T event, Double value) {
+		return applyAsDouble(event, value);
+	}
+}
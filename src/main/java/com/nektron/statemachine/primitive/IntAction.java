@@ -0,0 +1,33 @@
+package com.nektron.statemachine.primitive;
+
+import java.util.function.BiFunction;
+
+/**
+ *
+ * A transition action or operation on an int value. Machines specialized for int values call
+ * {@link #applyAsInt(Object, int)} directly, without boxing; any other machine sees a plain BiFunction.
+ *
+ * @param <T> the event type
+ */
+@FunctionalInterface
+public interface IntAction<T> extends BiFunction<T, Integer, Integer> {
+
+	int applyAsInt(T event, int value);
+
+	/**
+	 *
+	 * Types a lambda as a IntAction, as a plain lambda would be ambiguous between the addTransition and
+	 * addOperations overloads: addTransition(state, Trade.class, target, IntAction.of((trade, value) -> value + 1)).
+	 *
+	 * @param action
+	 * @return the action itself
+	 */
+	static <T> IntAction<T> of(IntAction<T> action) {
+		return action;
+	}
+
+	@Override
+	default Integer apply(T event, Integer value) {
+		return applyAsInt(event, value);
+	}
+}
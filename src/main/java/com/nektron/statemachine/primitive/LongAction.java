@@ -0,0 +1,33 @@
+package com.nektron.statemachine.primitive;
+
+import java.util.function.BiFunction;
+
+/**
+ *
+ * A transition action or operation on a long value. Machines specialized for long values call
+ * {@link #applyAsLong(Object, long)} directly, without boxing; any other machine sees a plain BiFunction.
+ *
+ * @param <T> the event type
+ */
+@FunctionalInterface
+public interface LongAction<T> extends BiFunction<T, Long, Long> {
+
+	long applyAsLong(T event, long value);
+
+	/**
+	 *
+	 * Types a lambda as a LongAction, as a plain lambda would be ambiguous between the addTransition and
+	 * addOperations overloads: addTransition(state, Trade.class, target, LongAction.of((trade, value) -> value + 1)).
+	 *
+	 * @param action
+	 * @return the action itself
+	 */
+	static <T> LongAction<T> of(LongAction<T> action) {
+		return action;
+	}
+
+	@Override
+	default Long apply(T event, Long value) {
+		return applyAsLong(event, value);
+	}
+}
@@ -0,0 +1,86 @@
+package com.nektron.statemachine.ring;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Sequencer for any number of producer threads. Producers claim sequences with a CAS and may publish them out
+ * of order, so every slot records the lap of the sequence last published in it: the consumer reads up to the
+ * first slot whose lap is behind.
+ *
+ */
+final class MultiProducerSequencer extends Sequencer {
+
+	private final AtomicLong claimed = new AtomicLong(-1);
+	private final AtomicIntegerArray laps;
+	private final int mask;
+	private final int shift;
+
+	MultiProducerSequencer(int capacity, boolean signalled) {
+
+		super(capacity, signalled);
+
+		this.laps = new AtomicIntegerArray(capacity);
+		this.mask = capacity - 1;
+		this.shift = Integer.numberOfTrailingZeros(capacity);
+
+		for (int i = 0; i < capacity; i++)
+			laps.set(i, -1);
+	}
+
+	@Override
+	long next() {
+
+		for (int attempt = 0;; ) {
+
+			long current = claimed.get();
+			long next = current + 1;
+
+			if (next - capacity > released.get())
+				backOff(attempt++);
+			else if (claimed.compareAndSet(current, next))
+				return next;
+		}
+	}
+
+	@Override
+	long tryNext() {
+
+		for (;;) {
+
+			long current = claimed.get();
+			long next = current + 1;
+
+			if (next - capacity > released.get())
+				return -1;
+
+			if (claimed.compareAndSet(current, next))
+				return next;
+		}
+	}
+
+	@Override
+	void publish(long sequence) {
+
+		int index = (int) sequence & mask;
+		int lap = (int) (sequence >>> shift);
+
+		if (signalled)
+			laps.set(index, lap);
+		else
+			laps.lazySet(index, lap);
+	}
+
+	@Override
+	long highestPublished(long from) {
+
+		long last = claimed.get();
+
+		for (long sequence = from; sequence <= last; sequence++)
+			if (laps.get((int) sequence & mask) != (int) (sequence >>> shift))
+				return sequence - 1;
+
+		return last;
+	}
+}
@@ -0,0 +1,15 @@
+package com.nektron.statemachine.ring;
+
+/**
+ *
+ * The threads publishing to a {@link RingBuffer}.
+ *
+ */
+public enum ProducerType {
+
+	/** A single thread at a time: claiming a slot is a plain increment */
+	SINGLE,
+
+	/** Any number of threads: slots are claimed with a CAS and published out of order */
+	MULTI
+}
@@ -0,0 +1,191 @@
+package com.nektron.statemachine.ring;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Bounded ring of preallocated, reusable events feeding one {@link RingBufferConsumer}. Producers do not
+ * allocate events: they claim a sequence, fill the event in its slot and publish the sequence, after which
+ * the consumer applies it and hands the slot back a lap later.
+ *
+ * <pre>
+ * long sequence = ring.next();
+ * ring.get(sequence).set(...);
+ * ring.publish(sequence);
+ * </pre>
+ *
+ * or in one call, with a translator capturing nothing so nothing is allocated:
+ *
+ * <pre>
+ * ring.publishEvent((Order order, long price) -&gt; order.setPrice(price), price);
+ * </pre>
+ *
+ * As the events are reused, transitions on them must be registered by event type, and the consumer must not
+ * keep references to them past their transition.
+ *
+ * @param <E> the type of the events
+ */
+public class RingBuffer<E> {
+
+	private final Object[] entries;
+	private final int mask;
+	private final Sequencer sequencer;
+	private final WaitStrategy waitStrategy;
+
+	private final AtomicReference<Thread> consumerThread = new AtomicReference<>();
+
+	/** Set by the consumer before it parks, read by producers after they publish */
+	volatile boolean consumerParked;
+
+	/**
+	 *
+	 * @param factory creates the events, once per slot
+	 * @param capacity the number of slots, a power of two
+	 * @param producerType
+	 * @param waitStrategy how the consumer waits for events
+	 */
+	public RingBuffer(Supplier<E> factory, int capacity, ProducerType producerType, WaitStrategy waitStrategy) {
+
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Ring buffer capacity must be a power of two: " + capacity);
+
+		if (factory == null || producerType == null || waitStrategy == null)
+			throw new IllegalArgumentException("Ring buffer factory, producer type and wait strategy cannot be null");
+
+		this.entries = new Object[capacity];
+		this.mask = capacity - 1;
+		this.waitStrategy = waitStrategy;
+		this.sequencer = producerType == ProducerType.SINGLE
+			? new SingleProducerSequencer(capacity, waitStrategy.isSignalled())
+			: new MultiProducerSequencer(capacity, waitStrategy.isSignalled());
+
+		for (int i = 0; i < capacity; i++)
+			entries[i] = factory.get();
+	}
+
+	/**
+	 *
+	 * Claims the next slot, waiting while the ring is full. The slot must then be published, even if the
+	 * event could not be filled, or the consumer stalls on it.
+	 *
+	 * @return the sequence of the slot
+	 */
+	public long next() {
+		return sequencer.next();
+	}
+
+	/**
+	 *
+	 * Claims the next slot unless the ring is full.
+	 *
+	 * @return the sequence of the slot, or -1 if the ring is full
+	 */
+	public long tryNext() {
+		return sequencer.tryNext();
+	}
+
+	/**
+	 *
+	 * The event in the slot of the sequence, to fill between {@link #next()} and {@link #publish(long)}.
+	 *
+	 * @param sequence
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) entries[(int) sequence & mask];
+	}
+
+	/**
+	 *
+	 * Makes the event of the sequence visible to the consumer.
+	 *
+	 * @param sequence
+	 */
+	public void publish(long sequence) {
+
+		sequencer.publish(sequence);
+
+		if (consumerParked)
+			LockSupport.unpark(consumerThread.get());
+	}
+
+	/**
+	 *
+	 * Claims a slot, waiting while the ring is full, fills its event with the translator and publishes it.
+	 *
+	 * @param translator
+	 * @param argument
+	 */
+	public <A> void publishEvent(BiConsumer<E, A> translator, A argument) {
+
+		long sequence = sequencer.next();
+
+		try {
+			translator.accept(get(sequence), argument);
+		}
+		finally {
+			publish(sequence);
+		}
+	}
+
+	/**
+	 *
+	 * Like {@link #publishEvent(BiConsumer, Object)}, without boxing a long argument.
+	 *
+	 * @param translator
+	 * @param argument
+	 */
+	public void publishEvent(ObjLongConsumer<E> translator, long argument) {
+
+		long sequence = sequencer.next();
+
+		try {
+			translator.accept(get(sequence), argument);
+		}
+		finally {
+			publish(sequence);
+		}
+	}
+
+	public int getCapacity() {
+		return entries.length;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * The number of published events the consumer has not released yet, approximate while they move.
+	 * @return
+	 */
+	public long getBacklog() {
+		return sequencer.highestPublished(sequencer.released.get() + 1) - sequencer.released.get();
+	}
+
+	Object[] entries() {
+		return entries;
+	}
+
+	Sequencer sequencer() {
+		return sequencer;
+	}
+
+	void attachConsumer(Thread thread) {
+		if (!consumerThread.compareAndSet(null, thread))
+			throw new IllegalStateException("Ring buffer already has a consumer: " + consumerThread.get().getName());
+	}
+
+	void detachConsumer() {
+		consumerThread.set(null);
+	}
+
+	Thread consumerThread() {
+		return consumerThread.get();
+	}
+}
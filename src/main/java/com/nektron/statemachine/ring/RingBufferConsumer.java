@@ -0,0 +1,174 @@
+package com.nektron.statemachine.ring;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nektron.statemachine.StateMachine;
+
+/**
+ *
+ * Drains a {@link RingBuffer} into a state machine, on the thread running it. Every time it looks at the ring
+ * it takes all the events published since, and applies them with a single
+ * {@link StateMachine#onInputs(Object[], int, int, Object[])} call straight on the slots of the ring (two
+ * when the batch wraps around), so {@link com.nektron.statemachine.impl.StateMachineImpl} resolves its
+ * dispatch table once per batch. The slots are handed back to the producers once the batch is applied;
+ * nothing is locked or allocated per event.
+ *
+ * The consumer is the only thread touching the machine. Once no event is left, it waits following the
+ * {@link WaitStrategy} of the ring.
+ *
+ * @param <E> the type of the events
+ */
+public class RingBufferConsumer<E> implements Runnable {
+
+	private static Logger log = LoggerFactory.getLogger(RingBufferConsumer.class);
+
+	private final RingBuffer<E> ring;
+	private final StateMachine<E, ?, ?> stateMachine;
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	private volatile boolean running = true;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	public RingBufferConsumer(RingBuffer<E> ring, StateMachine<E, ?, ?> stateMachine) {
+
+		if (ring == null || stateMachine == null)
+			throw new IllegalArgumentException("Ring buffer and state machine cannot be null");
+
+		this.ring = ring;
+		this.stateMachine = stateMachine;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void run() {
+
+		ring.attachConsumer(Thread.currentThread());
+
+		try {
+			Sequencer sequencer = ring.sequencer();
+			WaitStrategy waitStrategy = ring.getWaitStrategy();
+			E[] entries = (E[]) ring.entries();
+			int capacity = entries.length;
+			long next = sequencer.released.get() + 1;
+			int idle = 0;
+
+			for (;;) {
+
+				long available = sequencer.highestPublished(next);
+
+				if (available >= next) {
+
+					int start = (int) next & (capacity - 1);
+					int count = (int) (available - next + 1);
+					int first = Math.min(count, capacity - start);
+
+					apply(entries, start, first);
+
+					if (count > first)
+						apply(entries, 0, count - first);
+
+					sequencer.released.lazySet(available);
+
+					// Single writer: an ordered store is enough for readers on other threads
+					processed.lazySet(processed.get() + count);
+					batches.lazySet(batches.get() + 1);
+
+					next = available + 1;
+					idle = 0;
+					continue;
+				}
+
+				if (!running)
+					break;
+
+				if (waitStrategy.isSignalled() && idle >= WaitStrategy.SPIN_TRIES + WaitStrategy.YIELD_TRIES) {
+
+					ring.consumerParked = true;
+
+					// Checked again after the announcement: a producer publishing since then will unpark us
+					if (sequencer.highestPublished(next) < next && running)
+						waitStrategy.idle(idle);
+
+					ring.consumerParked = false;
+				}
+				else
+					waitStrategy.idle(idle);
+
+				if (idle < Integer.MAX_VALUE)
+					idle++;
+			}
+		}
+		finally {
+			ring.detachConsumer();
+			terminated.countDown();
+		}
+	}
+
+	/**
+	 *
+	 * Stops the consumer once it applied the events published so far. Events published afterwards are left
+	 * in the ring.
+	 *
+	 */
+	public void halt() {
+
+		running = false;
+
+		Thread thread = ring.consumerThread();
+
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 *
+	 * Waits for the consumer to stop after {@link #halt()}.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return false if it is still running
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	public StateMachine<E, ?, ?> getStateMachine() {
+		return stateMachine;
+	}
+
+	/**
+	 * The number of events applied so far.
+	 * @return
+	 */
+	public long getProcessedCount() {
+		return processed.get();
+	}
+
+	/**
+	 * The number of batches applied so far: processed / batches is the average batch size.
+	 * @return
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	private void apply(E[] entries, int offset, int length) {
+
+		try {
+			stateMachine.onInputs(entries, offset, length, null);
+		}
+		catch (RuntimeException e) {
+			// The rest of the batch is skipped, its slots are released with it
+			log.error("State machine " + stateMachine.getId() + " failed on a batch of " + length + " events", e);
+		}
+	}
+}
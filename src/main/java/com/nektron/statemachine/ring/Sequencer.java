@@ -0,0 +1,64 @@
+package com.nektron.statemachine.ring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Hands out the sequences of a ring to its producers and tells the consumer how far they were published.
+ * A sequence maps to the slot sequence &amp; (capacity - 1); a producer may only claim it once the consumer
+ * released the sequence a lap before.
+ *
+ */
+abstract class Sequencer {
+
+	static final long PRODUCER_PARK_NANOS = 1000;
+
+	final int capacity;
+
+	/** Whether publishing must be a full fence, for a consumer checking the ring after announcing it parks */
+	final boolean signalled;
+
+	/** The last sequence the consumer released */
+	final AtomicLong released = new AtomicLong(-1);
+
+	Sequencer(int capacity, boolean signalled) {
+		this.capacity = capacity;
+		this.signalled = signalled;
+	}
+
+	/**
+	 *
+	 * Claims the next sequence, waiting while the ring is full.
+	 *
+	 * @return
+	 */
+	abstract long next();
+
+	/**
+	 *
+	 * Claims the next sequence unless the ring is full.
+	 *
+	 * @return the sequence, or -1 if the ring is full
+	 */
+	abstract long tryNext();
+
+	abstract void publish(long sequence);
+
+	/**
+	 *
+	 * The highest sequence such that every sequence from the given one up to it was published.
+	 *
+	 * @param from the first sequence the consumer has not read
+	 * @return from - 1 if it was not published yet
+	 */
+	abstract long highestPublished(long from);
+
+	static void backOff(int attempt) {
+
+		if (attempt < 64)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+	}
+}
@@ -0,0 +1,70 @@
+package com.nektron.statemachine.ring;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Sequencer for one producer thread at a time. Claiming is a plain increment, checked against a cached copy
+ * of the consumer position so the shared counter is only read when the ring looks full; publishing moves a
+ * single cursor, as sequences are published in order.
+ *
+ */
+final class SingleProducerSequencer extends Sequencer {
+
+	private final AtomicLong cursor = new AtomicLong(-1);
+
+	/** Producer only: the last sequence claimed */
+	private long claimed = -1;
+
+	/** Producer only: the consumer position last read */
+	private long cachedReleased = -1;
+
+	SingleProducerSequencer(int capacity, boolean signalled) {
+		super(capacity, signalled);
+	}
+
+	@Override
+	long next() {
+
+		long next = claimed + 1;
+		long wrapPoint = next - capacity;
+
+		for (int attempt = 0; wrapPoint > cachedReleased; attempt++) {
+
+			cachedReleased = released.get();
+
+			if (wrapPoint > cachedReleased)
+				backOff(attempt);
+		}
+
+		claimed = next;
+		return next;
+	}
+
+	@Override
+	long tryNext() {
+
+		long next = claimed + 1;
+		long wrapPoint = next - capacity;
+
+		if (wrapPoint > cachedReleased && wrapPoint > (cachedReleased = released.get()))
+			return -1;
+
+		claimed = next;
+		return next;
+	}
+
+	@Override
+	void publish(long sequence) {
+
+		if (signalled)
+			cursor.set(sequence);
+		else
+			cursor.lazySet(sequence);
+	}
+
+	@Override
+	long highestPublished(long from) {
+		return cursor.get();
+	}
+}
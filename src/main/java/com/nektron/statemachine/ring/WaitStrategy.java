@@ -0,0 +1,65 @@
+package com.nektron.statemachine.ring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * How a {@link RingBufferConsumer} waits for events once the ring is drained, trading latency for CPU.
+ *
+ */
+public enum WaitStrategy {
+
+	/** Polls the ring without ever giving up the core: the lowest latency, as long as it has a core of its own */
+	BUSY_SPIN(false) {
+		@Override
+		void idle(int attempt) {
+		}
+	},
+
+	/** Spins a little, then yields the core between polls */
+	YIELD(false) {
+		@Override
+		void idle(int attempt) {
+			if (attempt >= SPIN_TRIES)
+				Thread.yield();
+		}
+	},
+
+	/** Spins, yields, then parks until a producer publishes: idle consumers cost nothing, waking one takes microseconds */
+	PARK(true) {
+		@Override
+		void idle(int attempt) {
+			if (attempt >= SPIN_TRIES + YIELD_TRIES)
+				LockSupport.parkNanos(this, PARK_NANOS);
+			else if (attempt >= SPIN_TRIES)
+				Thread.yield();
+		}
+	};
+
+	static final int SPIN_TRIES = 128;
+	static final int YIELD_TRIES = 256;
+	static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final boolean signalled;
+
+	private WaitStrategy(boolean signalled) {
+		this.signalled = signalled;
+	}
+
+	/**
+	 *
+	 * Waits once, the attempt-th time in a row the consumer found no event.
+	 *
+	 * @param attempt
+	 */
+	abstract void idle(int attempt);
+
+	/**
+	 * Whether the consumer may park, so producers must wake it up when they publish.
+	 * @return
+	 */
+	boolean isSignalled() {
+		return signalled;
+	}
+}
@@ -0,0 +1,40 @@
+package com.nektron.statemachine.snapshot;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Writes the value as a double (8 bytes, in the byte order of the buffer). {@link #encodeAsDouble(double, ByteBuffer)}
+ * and {@link #decodeAsDouble(ByteBuffer)} skip the boxing.
+ *
+ */
+public final class DoubleCodec implements ValueCodec<Double> {
+
+	public static final int SIZE = 8;
+
+	DoubleCodec() {
+	}
+
+	public void encodeAsDouble(double value, ByteBuffer buffer) {
+		buffer.putDouble(value);
+	}
+
+	public double decodeAsDouble(ByteBuffer buffer) {
+		return buffer.getDouble();
+	}
+
+	@Override
+	public int size(Double value) {
+		return SIZE;
+	}
+
+	@Override
+	public void encode(Double value, ByteBuffer buffer) {
+		buffer.putDouble(value);
+	}
+
+	@Override
+	public Double decode(ByteBuffer buffer) {
+		return buffer.getDouble();
+	}
+}
@@ -0,0 +1,40 @@
+package com.nektron.statemachine.snapshot;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Writes the value as an int (4 bytes, in the byte order of the buffer). {@link #encodeAsInt(int, ByteBuffer)}
+ * and {@link #decodeAsInt(ByteBuffer)} skip the boxing.
+ *
+ */
+public final class IntCodec implements ValueCodec<Integer> {
+
+	public static final int SIZE = 4;
+
+	IntCodec() {
+	}
+
+	public void encodeAsInt(int value, ByteBuffer buffer) {
+		buffer.putInt(value);
+	}
+
+	public int decodeAsInt(ByteBuffer buffer) {
+		return buffer.getInt();
+	}
+
+	@Override
+	public int size(Integer value) {
+		return SIZE;
+	}
+
+	@Override
+	public void encode(Integer value, ByteBuffer buffer) {
+		buffer.putInt(value);
+	}
+
+	@Override
+	public Integer decode(ByteBuffer buffer) {
+		return buffer.getInt();
+	}
+}
@@ -0,0 +1,40 @@
+package com.nektron.statemachine.snapshot;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Writes the value as a long (8 bytes, in the byte order of the buffer). {@link #encodeAsLong(long, ByteBuffer)}
+ * and {@link #decodeAsLong(ByteBuffer)} skip the boxing.
+ *
+ */
+public final class LongCodec implements ValueCodec<Long> {
+
+	public static final int SIZE = 8;
+
+	LongCodec() {
+	}
+
+	public void encodeAsLong(long value, ByteBuffer buffer) {
+		buffer.putLong(value);
+	}
+
+	public long decodeAsLong(ByteBuffer buffer) {
+		return buffer.getLong();
+	}
+
+	@Override
+	public int size(Long value) {
+		return SIZE;
+	}
+
+	@Override
+	public void encode(Long value, ByteBuffer buffer) {
+		buffer.putLong(value);
+	}
+
+	@Override
+	public Long decode(ByteBuffer buffer) {
+		return buffer.getLong();
+	}
+}
@@ -0,0 +1,159 @@
+package com.nektron.statemachine.snapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nektron.statemachine.StateMachineModel;
+
+/**
+ *
+ * The binary snapshot record of a state machine instance:
+ *
+ * <pre>
+ * byte   format version
+ * short  model id length in bytes, -1 for a model without id
+ * byte[] model id, UTF-8
+ * short  current state ordinal
+ * short  previous state ordinal, -1 for none
+ * ...    value, as written by the {@link ValueCodec}
+ * </pre>
+ *
+ * Records carry no length, so they can be laid out back to back in a file and read in order. Multi byte
+ * fields follow the byte order of the buffer.
+ *
+ */
+public final class SnapshotFormat {
+
+	public static final byte VERSION = 1;
+
+	public static final int NO_STATE = -1;
+
+	private static final int NO_ID = -1;
+
+	/** Model ids are few and long lived: encode each once */
+	private static final ConcurrentHashMap<String, byte[]> encodedIds = new ConcurrentHashMap<>();
+
+	private SnapshotFormat() {
+	}
+
+	/**
+	 *
+	 * The size of the record without its value.
+	 *
+	 * @param modelId
+	 * @return
+	 */
+	public static int headerSize(String modelId) {
+		return 1 + 2 + (modelId != null ? encode(modelId).length : 0) + 2 + 2;
+	}
+
+	public static void writeHeader(ByteBuffer buffer, String modelId, int currentOrdinal, int previousOrdinal) {
+
+		buffer.put(VERSION);
+
+		if (modelId != null) {
+
+			byte[] id = encode(modelId);
+
+			buffer.putShort((short) id.length);
+			buffer.put(id);
+		}
+		else
+			buffer.putShort((short) NO_ID);
+
+		buffer.putShort((short) currentOrdinal);
+		buffer.putShort((short) previousOrdinal);
+	}
+
+	/**
+	 *
+	 * Reads the version and model id of a record, returning the model it was taken from: the given model
+	 * or one of its linked phase models.
+	 *
+	 * @param buffer
+	 * @param model
+	 * @return
+	 */
+	public static <INPUT, STATE extends Enum<STATE>, OUTPUT> StateMachineModel<INPUT, STATE, OUTPUT> readModel(ByteBuffer buffer, StateMachineModel<INPUT, STATE, OUTPUT> model) {
+
+		byte version = buffer.get();
+
+		if (version != VERSION)
+			throw new IllegalArgumentException("Unsupported snapshot version: " + version);
+
+		int length = buffer.getShort();
+
+		if (length == NO_ID) {
+
+			if (model.getId() != null)
+				throw new IllegalArgumentException("Snapshot of a state machine without id cannot be restored into: " + model.getId());
+
+			return model;
+		}
+
+		// The common case, the record was taken in the same phase: compare the bytes without decoding them
+		if (model.getId() != null && matches(buffer, encode(model.getId()), length)) {
+			buffer.position(buffer.position() + length);
+			return model;
+		}
+
+		byte[] id = new byte[length];
+
+		buffer.get(id);
+
+		String modelId = new String(id, StandardCharsets.UTF_8);
+		StateMachineModel<INPUT, STATE, OUTPUT> phaseModel = model.getPhaseModel(modelId);
+
+		if (phaseModel == null)
+			throw new IllegalArgumentException("Snapshot of state machine: " + modelId + " cannot be restored into: " + model.getId());
+
+		return phaseModel;
+	}
+
+	/**
+	 *
+	 * Reads a state ordinal, checking it against the states of the model.
+	 *
+	 * @param buffer
+	 * @param model
+	 * @return the ordinal or {@link #NO_STATE}
+	 */
+	public static int readOrdinal(ByteBuffer buffer, StateMachineModel<?, ?, ?> model) {
+
+		int ordinal = buffer.getShort();
+
+		if (ordinal < NO_STATE || ordinal >= model.getStateCount())
+			throw new IllegalArgumentException("Invalid state ordinal: " + ordinal + " in snapshot of state machine: " + model.getId());
+
+		return ordinal;
+	}
+
+	private static boolean matches(ByteBuffer buffer, byte[] id, int length) {
+
+		if (id.length != length)
+			return false;
+
+		for (int i = 0, position = buffer.position(); i < length; i++) {
+			if (buffer.get(position + i) != id[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] encode(String modelId) {
+
+		byte[] id = encodedIds.get(modelId);
+
+		if (id == null) {
+
+			id = modelId.getBytes(StandardCharsets.UTF_8);
+
+			if (id.length > Short.MAX_VALUE)
+				throw new IllegalArgumentException("State machine id too long for a snapshot: " + modelId);
+
+			encodedIds.putIfAbsent(modelId, id);
+		}
+		return id;
+	}
+}
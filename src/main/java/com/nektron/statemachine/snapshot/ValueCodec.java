@@ -0,0 +1,61 @@
+package com.nektron.statemachine.snapshot;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Writes and reads the value of a state machine in its snapshot record. A codec must read back exactly the
+ * bytes it wrote, as records are laid out back to back.
+ *
+ * The double, long and int codecs let the specialized machines write their value without boxing it.
+ *
+ * @param <T> the value type
+ */
+public interface ValueCodec<T> {
+
+	public static final DoubleCodec DOUBLE = new DoubleCodec();
+	public static final LongCodec LONG = new LongCodec();
+	public static final IntCodec INT = new IntCodec();
+
+	/** For machines without a value: writes nothing and restores null */
+	public static final ValueCodec<Object> NONE = new ValueCodec<Object>() {
+
+		@Override
+		public int size(Object value) {
+			return 0;
+		}
+
+		@Override
+		public void encode(Object value, ByteBuffer buffer) {
+		}
+
+		@Override
+		public Object decode(ByteBuffer buffer) {
+			return null;
+		}
+	};
+
+	/**
+	 *
+	 * The number of bytes {@link #encode(Object, ByteBuffer)} writes for the value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	int size(T value);
+
+	void encode(T value, ByteBuffer buffer);
+
+	T decode(ByteBuffer buffer);
+
+	/**
+	 *
+	 * The codec for machines without a value, typed for the given machine.
+	 *
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> ValueCodec<T> none() {
+		return (ValueCodec<T>) NONE;
+	}
+}
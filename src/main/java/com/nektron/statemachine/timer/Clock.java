@@ -0,0 +1,15 @@
+package com.nektron.statemachine.timer;
+
+/**
+ *
+ * The time source of a {@link TimingWheel}, in nanoseconds from an arbitrary origin. Tests drive the wheel
+ * with a clock of their own.
+ *
+ */
+@FunctionalInterface
+public interface Clock {
+
+	Clock SYSTEM = System::nanoTime;
+
+	long nanoTime();
+}
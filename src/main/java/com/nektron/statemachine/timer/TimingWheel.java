@@ -0,0 +1,286 @@
+package com.nektron.statemachine.timer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Hashed timing wheel: a ring of buckets, each a doubly linked list of the timeouts expiring on the ticks
+ * mapped to it. Scheduling and cancelling only link and unlink a node, whatever the number of pending
+ * timeouts; advancing the wheel visits one bucket per elapsed tick. A timeout fires on the first
+ * {@link #advance()} at least one tick past its delay, so tick duration bounds its lateness.
+ *
+ * The wheel is confined to one thread: the one driving its machines schedules, cancels and advances it,
+ * so timeouts fire between events and never race with them. A {@link Timeout} can be scheduled again and
+ * again, which is how a state machine arms its state timeout without allocating.
+ *
+ */
+public class TimingWheel {
+
+	private static Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+	public static final long DEFAULT_TICK_MILLIS = 1;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final Clock clock;
+	private final long tickNanos;
+	private final int mask;
+	private final Timeout[] buckets;
+	private final long origin;
+
+	/** The last tick processed */
+	private long tick;
+
+	private int pendingCount;
+
+	/** Timeouts due on the tick being processed, fired once the bucket is unlinked */
+	private Timeout[] expired = new Timeout[16];
+
+	public TimingWheel() {
+		this(Clock.SYSTEM, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 *
+	 * @param clock
+	 * @param tickDuration the resolution of the wheel
+	 * @param unit
+	 * @param wheelSize the number of buckets, a power of two. Timeouts further than a lap away go round
+	 * the wheel more than once.
+	 */
+	public TimingWheel(Clock clock, long tickDuration, TimeUnit unit, int wheelSize) {
+
+		if (wheelSize < 2 || Integer.bitCount(wheelSize) != 1)
+			throw new IllegalArgumentException("Timing wheel size must be a power of two: " + wheelSize);
+
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("Timing wheel tick must be positive: " + tickDuration);
+
+		this.clock = clock;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.mask = wheelSize - 1;
+		this.buckets = new Timeout[wheelSize];
+		this.origin = clock.nanoTime();
+	}
+
+	/**
+	 *
+	 * Schedules the task after the delay.
+	 *
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return the timeout, to cancel it
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+
+		Timeout timeout = new Timeout(task);
+
+		schedule(timeout, unit.toNanos(delay));
+		return timeout;
+	}
+
+	/**
+	 *
+	 * Schedules the timeout after the delay, first cancelling it if it is pending.
+	 *
+	 * @param timeout
+	 * @param delayNanos
+	 */
+	public void schedule(Timeout timeout, long delayNanos) {
+
+		if (delayNanos < 0)
+			throw new IllegalArgumentException("Timeout delay cannot be negative: " + delayNanos);
+
+		timeout.cancel();
+
+		// Rounded up, and never on the tick already processed
+		long deadline = Math.max(tick + 1, (clock.nanoTime() - origin + delayNanos + tickNanos - 1) / tickNanos);
+		int bucket = (int) deadline & mask;
+		Timeout head = buckets[bucket];
+
+		timeout.wheel = this;
+		timeout.deadline = deadline;
+		timeout.bucket = bucket;
+		timeout.state = Timeout.PENDING;
+		timeout.previous = null;
+		timeout.next = head;
+
+		if (head != null)
+			head.previous = timeout;
+
+		buckets[bucket] = timeout;
+		pendingCount++;
+	}
+
+	/**
+	 *
+	 * Cancels the timeout unless it already fired.
+	 *
+	 * @param timeout
+	 * @return false if it was not pending
+	 */
+	public boolean cancel(Timeout timeout) {
+
+		if (timeout.wheel != this)
+			return false;
+
+		if (timeout.state == Timeout.EXPIRED) {
+			// Due on the tick being processed: it will be skipped
+			timeout.state = Timeout.IDLE;
+			return true;
+		}
+
+		if (timeout.state != Timeout.PENDING)
+			return false;
+
+		unlink(timeout);
+		timeout.state = Timeout.IDLE;
+		return true;
+	}
+
+	/**
+	 *
+	 * Fires the timeouts due by now, in order of tick.
+	 *
+	 * @return the number of timeouts fired
+	 */
+	public int advance() {
+		return advanceTo(clock.nanoTime());
+	}
+
+	/**
+	 *
+	 * Fires the timeouts due by the given time of the clock.
+	 *
+	 * @param nanoTime
+	 * @return the number of timeouts fired
+	 */
+	public int advanceTo(long nanoTime) {
+
+		long target = (nanoTime - origin) / tickNanos;
+		int fired = 0;
+
+		while (tick < target) {
+
+			// Nothing left to fire: skip the idle ticks at once
+			if (pendingCount == 0) {
+				tick = target;
+				break;
+			}
+
+			tick++;
+			fired += expire(tick);
+		}
+		return fired;
+	}
+
+	public int getPendingCount() {
+		return pendingCount;
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	private int expire(long tick) {
+
+		int count = 0;
+
+		for (Timeout timeout = buckets[(int) tick & mask], next; timeout != null; timeout = next) {
+
+			next = timeout.next;
+
+			// Timeouts a lap or more away share the bucket
+			if (timeout.deadline <= tick) {
+
+				unlink(timeout);
+				timeout.state = Timeout.EXPIRED;
+
+				if (count == expired.length)
+					expired = Arrays.copyOf(expired, 2 * count);
+
+				expired[count++] = timeout;
+			}
+		}
+
+		int fired = 0;
+
+		for (int i = 0; i < count; i++) {
+
+			Timeout timeout = expired[i];
+
+			expired[i] = null;
+
+			// Cancelled or scheduled again by a task fired before it
+			if (timeout.state != Timeout.EXPIRED)
+				continue;
+
+			timeout.state = Timeout.IDLE;
+			fired++;
+
+			try {
+				timeout.task.run();
+			}
+			catch (RuntimeException e) {
+				log.error("Timeout task failed: " + timeout.task, e);
+			}
+		}
+		return fired;
+	}
+
+	private void unlink(Timeout timeout) {
+
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+
+		timeout.previous = null;
+		timeout.next = null;
+		pendingCount--;
+	}
+
+	/**
+	 *
+	 * A task scheduled on a wheel, reusable once fired or cancelled.
+	 *
+	 */
+	public static final class Timeout {
+
+		static final int IDLE = 0;
+		static final int PENDING = 1;
+		static final int EXPIRED = 2;
+
+		private final Runnable task;
+
+		TimingWheel wheel;
+		long deadline;
+		int bucket;
+		int state;
+		Timeout previous;
+		Timeout next;
+
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		public boolean cancel() {
+			return wheel != null && wheel.cancel(this);
+		}
+
+		public boolean isPending() {
+			return state != IDLE;
+		}
+	}
+}
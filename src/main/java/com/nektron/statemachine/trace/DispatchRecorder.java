@@ -0,0 +1,65 @@
+package com.nektron.statemachine.trace;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Receives the dispatch activity of the state machines as profiler events: transitions, default actions
+ * and error actions are timed, unmapped events and phase switches are instants. The implementation is found
+ * with the {@link java.util.ServiceLoader}; the Java 21 build ships one emitting JDK Flight Recorder events.
+ * When none is available {@link #ENABLED} is false and the JIT drops the calls from the dispatch path.
+ *
+ * A begin method returns a token for the matching end method, or null when its event type is disabled, in
+ * which case the end method must not be called.
+ *
+ */
+public abstract class DispatchRecorder {
+
+	private static Logger log = LoggerFactory.getLogger(DispatchRecorder.class);
+
+	public static final DispatchRecorder INSTANCE = load();
+
+	public static final boolean ENABLED = INSTANCE != null;
+
+	public abstract Object beginTransition();
+
+	public abstract void endTransition(Object token, String modelId, long machineId, Enum<?> fromState, Object event, Enum<?> toState);
+
+	public abstract Object beginDefaultActions();
+
+	public abstract void endDefaultActions(Object token, String modelId, long machineId, Enum<?> fromState, Object event, Enum<?> toState);
+
+	public abstract Object beginErrorAction();
+
+	/**
+	 *
+	 * @param token
+	 * @param modelId
+	 * @param machineId
+	 * @param state the state when the action or operation failed
+	 * @param event
+	 * @param exception what the action or operation threw
+	 * @param handled whether an error action handled it, rather than handleErrorCondition
+	 */
+	public abstract void endErrorAction(Object token, String modelId, long machineId, Enum<?> state, Object event, Exception exception, boolean handled);
+
+	public abstract void unmapped(String modelId, long machineId, Enum<?> state, Object event);
+
+	public abstract void phaseSwitch(String modelId, long machineId, Enum<?> state, String nextModelId);
+
+	private static DispatchRecorder load() {
+
+		try {
+			Iterator<DispatchRecorder> recorders = ServiceLoader.load(DispatchRecorder.class, DispatchRecorder.class.getClassLoader()).iterator();
+
+			return recorders.hasNext() ? recorders.next() : null;
+		} catch (Throwable e) {
+			log.warn("Could not load the dispatch recorder", e);
+			return null;
+		}
+	}
+}
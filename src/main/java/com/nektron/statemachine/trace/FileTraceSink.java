@@ -0,0 +1,56 @@
+package com.nektron.statemachine.trace;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * Appends every trace record as one line of a text file. The file is flushed whenever the tracer has
+ * drained its ring.
+ *
+ */
+public class FileTraceSink implements TraceSink {
+
+	private final Path file;
+
+	private final Writer writer;
+
+	private final StringBuilder line = new StringBuilder(128);
+
+	public FileTraceSink(Path file) throws IOException {
+		this.file = file;
+		this.writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+	}
+
+	@Override
+	public void accept(TraceRecord record) throws IOException {
+
+		line.setLength(0);
+		record.format(line).append(System.lineSeparator());
+		writer.append(line);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return "Trace file: " + file;
+	}
+}
@@ -0,0 +1,35 @@
+package com.nektron.statemachine.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Writes every trace record as one info line of the com.nektron.statemachine.trace.LoggingTraceSink
+ * logger. Nothing is formatted while that logger is off.
+ *
+ */
+public class LoggingTraceSink implements TraceSink {
+
+	private final Logger log;
+
+	private final StringBuilder line = new StringBuilder(128);
+
+	public LoggingTraceSink() {
+		this(LoggerFactory.getLogger(LoggingTraceSink.class));
+	}
+
+	public LoggingTraceSink(Logger log) {
+		this.log = log;
+	}
+
+	@Override
+	public void accept(TraceRecord record) {
+
+		if (! log.isInfoEnabled())
+			return;
+
+		line.setLength(0);
+		log.info(record.format(line).toString());
+	}
+}
@@ -0,0 +1,181 @@
+package com.nektron.statemachine.trace;
+
+import java.time.Instant;
+
+import com.nektron.statemachine.DispatchTable;
+import com.nektron.statemachine.StateMachineModel;
+
+/**
+ *
+ * One record of a {@link TransitionTracer}, decoded. The drain thread reuses a single instance.
+ *
+ */
+public final class TraceRecord {
+
+	public enum Kind {
+		/** A transition to a target state */
+		TRANSITION,
+		/** The default actions of the event, with or without target */
+		DEFAULT_ACTIONS,
+		/** An event with no transition from the state */
+		UNMAPPED,
+		/** An action or operation that threw */
+		ERROR
+	}
+
+	static final Kind[] KINDS = Kind.values();
+
+	/** Wall clock and {@link System#nanoTime()} at the same instant, to date the records */
+	private static final long EPOCH_NANOS = System.currentTimeMillis() * 1_000_000L;
+	private static final long NANO_TIME = System.nanoTime();
+
+	private long nanoTime;
+	private long machineId;
+	private StateMachineModel<?, ?, ?> model;
+	private Kind kind;
+	private int slot;
+	private int fromOrdinal;
+	private int toOrdinal;
+
+	TraceRecord() {
+	}
+
+	void set(long nanoTime, long machineId, StateMachineModel<?, ?, ?> model, Kind kind, int slot, int fromOrdinal, int toOrdinal) {
+		this.nanoTime = nanoTime;
+		this.machineId = machineId;
+		this.model = model;
+		this.kind = kind;
+		this.slot = slot;
+		this.fromOrdinal = fromOrdinal;
+		this.toOrdinal = toOrdinal;
+	}
+
+	/**
+	 *
+	 * The {@link System#nanoTime()} of the transition.
+	 *
+	 * @return
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	public Instant getTimestamp() {
+		return Instant.ofEpochSecond(0, EPOCH_NANOS + nanoTime - NANO_TIME);
+	}
+
+	public long getMachineId() {
+		return machineId;
+	}
+
+	/**
+	 *
+	 * The model of the machine, or null if the tracer ran out of model indexes or the model was collected.
+	 *
+	 * @return
+	 */
+	public StateMachineModel<?, ?, ?> getModel() {
+		return model;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 *
+	 * The event slot in the dispatch table, -1 for an event without one or out of the record range.
+	 *
+	 * @return
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
+	/**
+	 *
+	 * The event instance or the event type of the slot, as registered with the model.
+	 *
+	 * @return null if unknown
+	 */
+	public Object getEvent() {
+
+		if (model == null || slot < 0)
+			return null;
+
+		DispatchTable<?, ?, ?> dispatchTable = model.getDispatchTable();
+
+		return slot < dispatchTable.getSlotCount() ? dispatchTable.getSlotKey(slot) : null;
+	}
+
+	public int getFromOrdinal() {
+		return fromOrdinal;
+	}
+
+	public int getToOrdinal() {
+		return toOrdinal;
+	}
+
+	/**
+	 *
+	 * @return null if unknown
+	 */
+	public Enum<?> getFromState() {
+		return stateOf(fromOrdinal);
+	}
+
+	/**
+	 *
+	 * @return null if unknown
+	 */
+	public Enum<?> getToState() {
+		return stateOf(toOrdinal);
+	}
+
+	/**
+	 *
+	 * Appends the record as a line of text, without line separator.
+	 *
+	 * @param builder
+	 * @return the builder
+	 */
+	public StringBuilder format(StringBuilder builder) {
+
+		builder.append(getTimestamp()).append(' ')
+			.append(model != null ? model.getId() : "?").append('#').append(machineId).append(' ')
+			.append(nameOf(getFromState(), fromOrdinal)).append(" --").append(getEvent()).append("--> ");
+
+		switch (kind) {
+
+			case TRANSITION:
+				builder.append(nameOf(getToState(), toOrdinal));
+				break;
+
+			case DEFAULT_ACTIONS:
+				builder.append(nameOf(getToState(), toOrdinal)).append(" (default actions)");
+				break;
+
+			case UNMAPPED:
+				builder.append("unmapped");
+				break;
+
+			case ERROR:
+				builder.append("error in ").append(nameOf(getToState(), toOrdinal));
+				break;
+		}
+		return builder;
+	}
+
+	@Override
+	public String toString() {
+		return format(new StringBuilder(128)).toString();
+	}
+
+	private Enum<?> stateOf(int ordinal) {
+		return model != null && ordinal >= 0 && ordinal < model.getStateCount() ? (Enum<?>) model.getState(ordinal) : null;
+	}
+
+	private static Object nameOf(Enum<?> state, int ordinal) {
+		return state != null ? state : ordinal >= 0 ? "#" + ordinal : "?";
+	}
+}
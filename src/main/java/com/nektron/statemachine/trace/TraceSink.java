@@ -0,0 +1,34 @@
+package com.nektron.statemachine.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ *
+ * Receives the records of a {@link TransitionTracer}, on its drain thread only.
+ *
+ */
+public interface TraceSink extends Closeable {
+
+	/**
+	 *
+	 * Handles one record. The record is reused for the next one: copy what has to outlive the call.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	void accept(TraceRecord record) throws IOException;
+
+	/**
+	 *
+	 * Called whenever the ring has been drained.
+	 *
+	 * @throws IOException
+	 */
+	default void flush() throws IOException {
+	}
+
+	@Override
+	default void close() throws IOException {
+	}
+}
@@ -0,0 +1,363 @@
+package com.nektron.statemachine.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nektron.statemachine.StateMachineModel;
+
+/**
+ *
+ * Asynchronous trace of state machine transitions. Tracing a transition copies a fixed size binary record
+ * into a preallocated ring and returns: it neither formats, allocates nor takes a lock. A background thread
+ * drains the ring, turns the records back into states and events and hands them to a {@link TraceSink},
+ * which formats them to SLF4J or to a file.
+ *
+ * A record is three longs:
+ *
+ * <pre>
+ * long   {@link System#nanoTime()} of the transition
+ * long   machine id
+ * long   kind (2 bits), model index (16 bits), event slot + 1 (16 bits), from and to ordinals + 1 (15 bits each)
+ * </pre>
+ *
+ * The ring is the bounded multi producer, single consumer ring of the executor mailbox: producers claim a
+ * position with a CAS and publish it by advancing its sequence. A full ring never blocks the machines: the
+ * record is dropped and counted, see {@link #getDroppedCount()}.
+ *
+ */
+public class TransitionTracer implements Closeable {
+
+	private static Logger log = LoggerFactory.getLogger(TransitionTracer.class);
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+	public static final long DEFAULT_DRAIN_INTERVAL_MILLIS = 1;
+
+	private static final int RECORD_LONGS = 3;
+
+	private static final int MAX_ORDINAL = (1 << 15) - 2;
+	private static final int MAX_SLOT = (1 << 16) - 2;
+	private static final int MAX_MODELS = (1 << 16) - 1;
+
+	/**
+	 * The models are only weakly referenced, so tracing never keeps a machine alive: the index of a collected
+	 * model is recycled. Models do not override equals, so the map compares them by identity.
+	 *
+	 * Index 0 stands for a model past {@link #MAX_MODELS}.
+	 */
+	private static final Map<StateMachineModel<?, ?, ?>, Integer> modelIndexes = new WeakHashMap<>();
+	private static final ReferenceQueue<StateMachineModel<?, ?, ?>> collectedModels = new ReferenceQueue<>();
+	private static final ArrayDeque<Integer> freeIndexes = new ArrayDeque<>();
+	private static int modelCount = 1;
+	private static volatile ModelReference[] models = new ModelReference[16];
+
+	private final int mask;
+	private final long[] records;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+
+	private final TraceSink sink;
+	private final long drainIntervalNanos;
+	private final Thread drainer;
+
+	/** Only read and written by the drainer */
+	private long head;
+	private final TraceRecord record = new TraceRecord();
+
+	private final LongAdder dropped = new LongAdder();
+	private volatile long drainedCount;
+
+	private volatile boolean open = true;
+
+	public TransitionTracer(TraceSink sink) {
+		this(sink, DEFAULT_CAPACITY, DEFAULT_DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 * Creates the tracer and starts its drain thread.
+	 *
+	 * @param sink
+	 * @param capacity the number of records the ring holds, a power of two
+	 * @param drainInterval how long the drain thread sleeps once the ring is empty
+	 * @param unit
+	 */
+	public TransitionTracer(TraceSink sink, int capacity, long drainInterval, TimeUnit unit) {
+
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Trace capacity must be a power of two: " + capacity);
+
+		if (drainInterval <= 0)
+			throw new IllegalArgumentException("Trace drain interval must be positive: " + drainInterval);
+
+		this.sink = sink;
+		this.drainIntervalNanos = unit.toNanos(drainInterval);
+
+		mask = capacity - 1;
+		records = new long[capacity * RECORD_LONGS];
+		sequences = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+
+		drainer = new Thread(this::drainLoop, "statemachine-trace");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 *
+	 * The tracer of the machines that log without a tracer of their own: it drains to SLF4J, under the
+	 * logger of {@link LoggingTraceSink}. Started on first use.
+	 *
+	 * @return
+	 */
+	public static TransitionTracer getDefault() {
+		return DefaultHolder.TRACER;
+	}
+
+	/**
+	 *
+	 * The index records refer to the model with, assigning one on the first call. The model is weakly
+	 * referenced: once collected, its index goes back to a free list, only reused once all the indexes were
+	 * assigned, oldest first. A record drained after its model was collected has no states nor events.
+	 *
+	 * @param model
+	 * @return
+	 */
+	public static synchronized int register(StateMachineModel<?, ?, ?> model) {
+
+		Integer index = modelIndexes.get(model);
+
+		if (index != null)
+			return index;
+
+		for (Reference<?> collected; (collected = collectedModels.poll()) != null; )
+			freeIndexes.add(((ModelReference) collected).index);
+
+		ModelReference[] models = TransitionTracer.models;
+
+		if (modelCount <= MAX_MODELS) {
+
+			index = modelCount++;
+
+			// Doubled, so assigning n indexes copies O(n) references
+			if (index == models.length)
+				models = Arrays.copyOf(models, Math.min(models.length * 2, MAX_MODELS + 1));
+		}
+		else if (!freeIndexes.isEmpty())
+			index = freeIndexes.poll();
+		else {
+			log.warn("Too many traced state machine models, tracing " + model.getId() + " without its states and events");
+			index = 0;
+		}
+
+		if (index != 0) {
+			// The record traced after this call publishes the reference to the drainer
+			models[index] = new ModelReference(model, index, collectedModels);
+			TransitionTracer.models = models;
+		}
+
+		modelIndexes.put(model, index);
+		return index;
+	}
+
+	/**
+	 *
+	 * Records a transition, safe to call from any thread. Ordinals and slots out of the record range are
+	 * traced as unknown.
+	 *
+	 * @param machineId
+	 * @param modelIndex as returned by {@link #register(StateMachineModel)}
+	 * @param kind
+	 * @param slot the event slot in the dispatch table, or -1 for an event without one
+	 * @param fromOrdinal
+	 * @param toOrdinal
+	 * @return false if the ring was full and the record dropped
+	 */
+	public boolean trace(long machineId, int modelIndex, TraceRecord.Kind kind, int slot, int fromOrdinal, int toOrdinal) {
+
+		long timestamp = System.nanoTime();
+		long position;
+		int index;
+
+		for (;;) {
+
+			position = tail.get();
+			index = (int) position & mask;
+
+			long sequence = sequences.get(index);
+
+			if (sequence == position) {
+
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			}
+			else if (sequence < position) {
+				dropped.increment();
+				return false;
+			}
+		}
+
+		int offset = index * RECORD_LONGS;
+
+		records[offset] = timestamp;
+		records[offset + 1] = machineId;
+		records[offset + 2] = (long) kind.ordinal() << 62
+				| (long) modelIndex << 46
+				| (long) (slot < MAX_SLOT ? slot + 1 : 0) << 30
+				| (long) (fromOrdinal < MAX_ORDINAL ? fromOrdinal + 1 : 0) << 15
+				| (toOrdinal < MAX_ORDINAL ? toOrdinal + 1 : 0);
+
+		// The drainer polls, so an ordered write is enough to publish
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 *
+	 * Drains the remaining records to the sink, stops the drain thread and closes the sink.
+	 *
+	 */
+	@Override
+	public void close() {
+
+		if (! open)
+			return;
+
+		open = false;
+
+		LockSupport.unpark(drainer);
+
+		try {
+			drainer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			sink.close();
+		}
+		catch (IOException e) {
+			log.error("Unable to close trace sink: " + sink, e);
+		}
+	}
+
+	/**
+	 *
+	 * The number of records handed to the sink so far.
+	 *
+	 * @return
+	 */
+	public long getDrainedCount() {
+		return drainedCount;
+	}
+
+	/**
+	 *
+	 * The number of records dropped because the ring was full.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	private void drainLoop() {
+
+		for (;;) {
+
+			boolean running = open;
+
+			try {
+
+				if (drain() == 0) {
+
+					sink.flush();
+
+					// One last pass once closed, for the records published meanwhile
+					if (! running)
+						return;
+
+					LockSupport.parkNanos(this, drainIntervalNanos);
+				}
+			}
+			catch (IOException | RuntimeException e) {
+
+				log.error("Trace sink failed: " + sink, e);
+
+				if (! running)
+					return;
+			}
+		}
+	}
+
+	private int drain() throws IOException {
+
+		int drained = 0;
+
+		// At most one lap, so the counts stay current when the producers keep up with the drainer
+		while (drained <= mask) {
+
+			int index = (int) head & mask;
+
+			if (sequences.get(index) != head + 1)
+				break;
+
+			int offset = index * RECORD_LONGS;
+			long bits = records[offset + 2];
+			int modelIndex = (int) (bits >>> 46) & 0xFFFF;
+
+			// Read again for every record, the array grows and indexes are recycled
+			ModelReference model = models[modelIndex];
+
+			record.set(records[offset], records[offset + 1], model != null ? model.get() : null, TraceRecord.KINDS[(int) (bits >>> 62)],
+					((int) (bits >>> 30) & 0xFFFF) - 1, ((int) (bits >>> 15) & 0x7FFF) - 1, ((int) bits & 0x7FFF) - 1);
+
+			// Hand the slot back to the producers before the sink runs
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+
+			sink.accept(record);
+			drained++;
+		}
+
+		if (drained > 0)
+			drainedCount += drained;
+
+		return drained;
+	}
+
+	private static final class ModelReference extends WeakReference<StateMachineModel<?, ?, ?>> {
+
+		final int index;
+
+		ModelReference(StateMachineModel<?, ?, ?> model, int index, ReferenceQueue<StateMachineModel<?, ?, ?>> queue) {
+			super(model, queue);
+			this.index = index;
+		}
+	}
+
+	private static final class DefaultHolder {
+		static final TransitionTracer TRACER = new TransitionTracer(new LoggingTraceSink());
+	}
+}
@@ -0,0 +1,199 @@
+package com.nektron.statemachine.util;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Open addressing hash map keyed by primitive longs, so looking up a machine by its id neither boxes the key
+ * nor allocates an entry. Linear probing with backward shift deletion keeps the probe chains short without
+ * tombstones.
+ *
+ * Not thread safe: meant to be owned by a single thread.
+ *
+ * @param <V>
+ */
+public final class LongHashMap<V> {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int resizeThreshold;
+
+	public LongHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public LongHashMap(int expectedSize) {
+
+		if (expectedSize < 0)
+			throw new IllegalArgumentException("Expected size cannot be negative: " + expectedSize);
+
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+
+		for (int index = indexOf(key); ; index = (index + 1) & mask) {
+
+			Object value = values[index];
+
+			if (value == null)
+				return null;
+
+			if (keys[index] == key)
+				return (V) value;
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 *
+	 * Maps the key to the value.
+	 *
+	 * @param key
+	 * @param value cannot be null
+	 * @return the previous value or null if the key was not mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+
+		if (value == null)
+			throw new IllegalArgumentException("Value cannot be null for key: " + key);
+
+		int index = indexOf(key);
+
+		for (; values[index] != null; index = (index + 1) & mask) {
+
+			if (keys[index] == key) {
+				V previous = (V) values[index];
+				values[index] = value;
+				return previous;
+			}
+		}
+
+		keys[index] = key;
+		values[index] = value;
+
+		if (++size > resizeThreshold)
+			allocate(values.length << 1);
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+
+		int index = indexOf(key);
+
+		for (; values[index] != null; index = (index + 1) & mask) {
+
+			if (keys[index] == key) {
+				V previous = (V) values[index];
+				size--;
+				shiftBack(index);
+				return previous;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 *
+	 * Calls the visitor for every mapping, in no particular order.
+	 *
+	 * @param visitor
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(EntryVisitor<? super V> visitor) {
+
+		for (int i = 0; i < values.length; i++) {
+
+			if (values[i] != null)
+				visitor.visit(keys[i], (V) values[i]);
+		}
+	}
+
+	/**
+	 *
+	 * Closes the gap left by a removed entry by moving back the entries of the same probe chain.
+	 *
+	 * @param gap
+	 */
+	private void shiftBack(int gap) {
+
+		for (int index = (gap + 1) & mask; values[index] != null; index = (index + 1) & mask) {
+
+			int home = indexOf(keys[index]);
+
+			// The entry can fill the gap only if the gap lies between its home slot and its current slot
+			if (((index - home) & mask) >= ((index - gap) & mask)) {
+				keys[gap] = keys[index];
+				values[gap] = values[index];
+				gap = index;
+			}
+		}
+		values[gap] = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void allocate(int capacity) {
+
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeThreshold = capacity / 2;
+		size = 0;
+
+		if (oldValues != null) {
+
+			for (int i = 0; i < oldValues.length; i++) {
+
+				if (oldValues[i] != null)
+					put(oldKeys[i], (V) oldValues[i]);
+			}
+		}
+	}
+
+	private int indexOf(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+
+		int capacity = DEFAULT_CAPACITY;
+
+		while (capacity / 2 < expectedSize && capacity < 1 << 30)
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	@FunctionalInterface
+	public interface EntryVisitor<V> {
+		void visit(long key, V value);
+	}
+}
@@ -0,0 +1,236 @@
+package com.nektron.statemachine.compiler;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import com.nektron.statemachine.Transition;
+
+/**
+ *
+ * Generates one hidden class per model, its apply method switching on the transition index and calling each
+ * action directly. Every action is loaded as a dynamic constant from the class data of the hidden class, so
+ * the JIT sees a constant receiver of a known class at every call site and can inline the action.
+ *
+ * A model with more than {@link #CHUNK_SIZE} transitions gets one method per chunk of transitions, apply
+ * switching on the chunk first: a single switch over hundreds of transitions would pass the size HotSpot
+ * compiles methods up to (8000 bytes of bytecode), and run interpreted.
+ *
+ * Only available in the jdk21 build profile.
+ *
+ */
+public class HiddenClassActionDispatcherCompiler implements ActionDispatcherCompiler {
+
+	private static final String GENERATED_NAME = "com/nektron/statemachine/compiler/GeneratedActionDispatcher";
+
+	private static final Handle CLASS_DATA_AT = new Handle(H_INVOKESTATIC, "java/lang/invoke/MethodHandles", "classDataAt",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;I)Ljava/lang/Object;", false);
+
+	/** The transitions per generated method, about 16 bytes of bytecode each */
+	static final int CHUNK_SIZE = 128;
+
+	private static final String APPLY_DESCRIPTOR = "(ILjava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+
+	private static final int INDEX = 1;
+	private static final int EVENT = 2;
+	private static final int VALUE = 3;
+	private static final int STATE = 4;
+
+	@Override
+	public ActionDispatcher compile(String modelId, Transition<?, ?, ?>[] transitions) throws Exception {
+
+		byte[] classBytes = generate(transitions);
+		Object[] actions = new Object[transitions.length];
+
+		for (int i = 0; i < transitions.length; i++)
+			actions[i] = transitions[i].getAction();
+
+		Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(classBytes, Arrays.asList(actions), true);
+
+		try {
+			return (ActionDispatcher) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException("Could not instantiate the action dispatcher of state machine model " + modelId, e);
+		}
+	}
+
+	private static byte[] generate(Transition<?, ?, ?>[] transitions) {
+
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				return "java/lang/Object";
+			}
+		};
+
+		classWriter.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, GENERATED_NAME, null, "java/lang/Object",
+				new String[] {"com/nektron/statemachine/compiler/ActionDispatcher"});
+
+		MethodVisitor constructor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		constructor.visitCode();
+		constructor.visitVarInsn(ALOAD, 0);
+		constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		constructor.visitInsn(RETURN);
+		constructor.visitMaxs(0, 0);
+		constructor.visitEnd();
+
+		MethodVisitor apply = classWriter.visitMethod(ACC_PUBLIC, "apply", APPLY_DESCRIPTOR, null, null);
+
+		if (transitions.length <= CHUNK_SIZE)
+			generateSwitch(apply, transitions, 0, transitions.length);
+		else {
+
+			int chunks = (transitions.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+			generateChunkSwitch(apply, chunks);
+
+			for (int chunk = 0; chunk < chunks; chunk++) {
+
+				MethodVisitor applyChunk = classWriter.visitMethod(ACC_PRIVATE, "apply" + chunk, APPLY_DESCRIPTOR, null, null);
+				int from = chunk * CHUNK_SIZE;
+
+				generateSwitch(applyChunk, transitions, from, Math.min(from + CHUNK_SIZE, transitions.length));
+			}
+		}
+
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	/**
+	 * Switches on the transition index to the actions of the transitions from the first index to the last (excluded).
+	 */
+	private static void generateSwitch(MethodVisitor method, Transition<?, ?, ?>[] transitions, int from, int to) {
+
+		method.visitCode();
+
+		Label noAction = new Label();
+
+		if (to > from) {
+
+			Label[] cases = new Label[to - from];
+
+			for (int i = 0; i < cases.length; i++)
+				cases[i] = new Label();
+
+			method.visitVarInsn(ILOAD, INDEX);
+			method.visitTableSwitchInsn(from, to - 1, noAction, cases);
+
+			for (int i = 0; i < cases.length; i++) {
+				method.visitLabel(cases[i]);
+				generateCase(method, from + i, transitions[from + i]);
+			}
+		}
+
+		method.visitLabel(noAction);
+		method.visitVarInsn(ALOAD, VALUE);
+		method.visitInsn(ARETURN);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+	}
+
+	/**
+	 * Switches on the chunk of the transition index to the method of the chunk.
+	 */
+	private static void generateChunkSwitch(MethodVisitor apply, int chunks) {
+
+		apply.visitCode();
+
+		Label noAction = new Label();
+		Label[] cases = new Label[chunks];
+
+		for (int i = 0; i < cases.length; i++)
+			cases[i] = new Label();
+
+		apply.visitVarInsn(ILOAD, INDEX);
+		apply.visitLdcInsn(Integer.numberOfTrailingZeros(CHUNK_SIZE));
+		apply.visitInsn(ISHR);
+		apply.visitTableSwitchInsn(0, chunks - 1, noAction, cases);
+
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			apply.visitLabel(cases[chunk]);
+			apply.visitVarInsn(ALOAD, 0);
+			apply.visitVarInsn(ILOAD, INDEX);
+			apply.visitVarInsn(ALOAD, EVENT);
+			apply.visitVarInsn(ALOAD, VALUE);
+			apply.visitVarInsn(ALOAD, STATE);
+			apply.visitMethodInsn(INVOKESPECIAL, GENERATED_NAME, "apply" + chunk, APPLY_DESCRIPTOR, false);
+			apply.visitInsn(ARETURN);
+		}
+
+		apply.visitLabel(noAction);
+		apply.visitVarInsn(ALOAD, VALUE);
+		apply.visitInsn(ARETURN);
+		apply.visitMaxs(0, 0);
+		apply.visitEnd();
+	}
+
+	private static void generateCase(MethodVisitor apply, int index, Transition<?, ?, ?> transition) {
+
+		switch (transition.getKind()) {
+
+			case FUNCTION:
+				loadAction(apply, index, "java/util/function/BiFunction");
+				apply.visitVarInsn(ALOAD, EVENT);
+				apply.visitVarInsn(ALOAD, VALUE);
+				apply.visitMethodInsn(INVOKEINTERFACE, "java/util/function/BiFunction", "apply", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", true);
+				apply.visitInsn(ARETURN);
+				break;
+
+			case CONSUMER:
+				loadAction(apply, index, "java/util/function/Consumer");
+				apply.visitVarInsn(ALOAD, EVENT);
+				apply.visitMethodInsn(INVOKEINTERFACE, "java/util/function/Consumer", "accept", "(Ljava/lang/Object;)V", true);
+				apply.visitVarInsn(ALOAD, VALUE);
+				apply.visitInsn(ARETURN);
+				break;
+
+			case NO_ARG_CONSUMER:
+				loadAction(apply, index, "com/nektron/statemachine/StateMachine$NoArgConsumer");
+				apply.visitMethodInsn(INVOKEINTERFACE, "com/nektron/statemachine/StateMachine$NoArgConsumer", "appy", "()V", true);
+				apply.visitVarInsn(ALOAD, VALUE);
+				apply.visitInsn(ARETURN);
+				break;
+
+			case TRI_FUNCTION:
+				loadAction(apply, index, "com/nektron/statemachine/StateMachine$TriFunction");
+				apply.visitVarInsn(ALOAD, EVENT);
+				apply.visitVarInsn(ALOAD, VALUE);
+				apply.visitVarInsn(ALOAD, STATE);
+				apply.visitMethodInsn(INVOKEINTERFACE, "com/nektron/statemachine/StateMachine$TriFunction", "apply",
+						"(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", true);
+				apply.visitInsn(ARETURN);
+				break;
+
+			case VALUE_FUNCTION:
+				loadAction(apply, index, "java/util/function/Function");
+				apply.visitVarInsn(ALOAD, VALUE);
+				apply.visitMethodInsn(INVOKEINTERFACE, "java/util/function/Function", "apply", "(Ljava/lang/Object;)Ljava/lang/Object;", true);
+				apply.visitInsn(ARETURN);
+				break;
+
+			default:
+				apply.visitVarInsn(ALOAD, VALUE);
+				apply.visitInsn(ARETURN);
+		}
+	}
+
+	/**
+	 * Pushes the action with the given index, a constant resolved once from the class data (whose bootstrap
+	 * requires the name "_").
+	 */
+	private static void loadAction(MethodVisitor apply, int index, String type) {
+		apply.visitLdcInsn(new ConstantDynamic("_", "L" + type + ";", CLASS_DATA_AT, index));
+	}
+}
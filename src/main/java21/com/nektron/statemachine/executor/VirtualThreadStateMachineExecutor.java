@@ -0,0 +1,317 @@
+package com.nektron.statemachine.executor;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nektron.statemachine.StateMachine;
+
+/**
+ *
+ * Runs every registered state machine on its own virtual thread, reading events from its own mailbox. An
+ * action blocking on I/O only parks the virtual thread of its machine, so tens of thousands of machines
+ * with blocking actions keep making progress, where the shards of a {@link StateMachineExecutor} would
+ * stall behind the blocked machine.
+ *
+ * Like {@link StateMachineExecutor} each machine is touched by a single thread and applies its events in
+ * the order they were submitted. Prefer {@link StateMachineExecutor} when the actions never block.
+ *
+ * Only available in the jdk21 build profile.
+ *
+ * @param <INPUT>
+ */
+public class VirtualThreadStateMachineExecutor<INPUT> {
+
+	private static Logger log = LoggerFactory.getLogger(VirtualThreadStateMachineExecutor.class);
+
+	public static final int DEFAULT_MAILBOX_CAPACITY = 1024;
+
+	/** Tells a machine loop to exit once the events queued before it are applied */
+	private static final Object STOP = new Object();
+
+	private final ConcurrentHashMap<Long, MachineLoop<INPUT>> machines = new ConcurrentHashMap<>();
+
+	/** The loops asked to stop that did not exit yet, unregistered ones included */
+	private final Set<MachineLoop<INPUT>> stopping = ConcurrentHashMap.newKeySet();
+
+	private final int mailboxCapacity;
+
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private volatile boolean running = true;
+
+	public VirtualThreadStateMachineExecutor() {
+		this(DEFAULT_MAILBOX_CAPACITY);
+	}
+
+	public VirtualThreadStateMachineExecutor(int mailboxCapacity) {
+
+		if (mailboxCapacity < 1)
+			throw new IllegalArgumentException("Mailbox capacity must be at least 1: " + mailboxCapacity);
+
+		this.mailboxCapacity = mailboxCapacity;
+	}
+
+	/**
+	 *
+	 * Starts a virtual thread driving the machine. From now on the machine must only receive events through
+	 * this executor.
+	 *
+	 * @param machineId
+	 * @param stateMachine
+	 */
+	public void register(long machineId, StateMachine<INPUT, ?, ?> stateMachine) {
+
+		if (stateMachine == null)
+			throw new IllegalArgumentException("State machine cannot be null for id: " + machineId);
+
+		checkRunning();
+
+		MachineLoop<INPUT> loop = new MachineLoop<>(this, machineId, stateMachine, new LinkedBlockingQueue<>(mailboxCapacity));
+
+		// Started before it is published, so shutdown and awaitTermination only see running loops
+		loop.thread.start();
+
+		if (machines.putIfAbsent(machineId, loop) != null) {
+			loop.stop();
+			throw new IllegalStateException("A state machine is already registered for id: " + machineId);
+		}
+
+		// A shutdown between the check and the put missed the loop
+		if (! running) {
+			machines.remove(machineId, loop);
+			loop.stop();
+			throw new IllegalStateException("State machine executor is shut down");
+		}
+	}
+
+	/**
+	 *
+	 * Stops driving the machine once the events already submitted to it are applied.
+	 *
+	 * @param machineId
+	 */
+	public void unregister(long machineId) {
+
+		MachineLoop<INPUT> loop = machines.remove(machineId);
+
+		if (loop != null)
+			loop.stop();
+	}
+
+	/**
+	 *
+	 * Queues the event for the machine, blocking while its mailbox is full. Cheap to call from a virtual
+	 * thread.
+	 *
+	 * @param machineId
+	 * @param event
+	 * @throws InterruptedException
+	 */
+	public void submit(long machineId, INPUT event) throws InterruptedException {
+
+		checkRunning();
+
+		MachineLoop<INPUT> loop = machines.get(machineId);
+
+		if (loop == null) {
+			drop(machineId, event);
+			return;
+		}
+
+		loop.mailbox.put(event);
+	}
+
+	/**
+	 *
+	 * Queues the event for the machine unless its mailbox is full.
+	 *
+	 * @param machineId
+	 * @param event
+	 * @return false if the event was not queued
+	 */
+	public boolean trySubmit(long machineId, INPUT event) {
+
+		checkRunning();
+
+		MachineLoop<INPUT> loop = machines.get(machineId);
+
+		if (loop == null) {
+			drop(machineId, event);
+			return false;
+		}
+
+		return loop.mailbox.offer(event);
+	}
+
+	/**
+	 *
+	 * Stops accepting events. Every machine exits once the events already queued for it are applied.
+	 *
+	 */
+	public void shutdown() {
+
+		running = false;
+
+		for (MachineLoop<INPUT> loop : machines.values())
+			loop.stop();
+	}
+
+	/**
+	 *
+	 * Waits for every machine loop to exit, the registered ones as well as the unregistered ones still
+	 * applying their events.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return false if a loop is still running
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		for (MachineLoop<INPUT> loop : machines.values()) {
+			if (! loop.join(deadline))
+				return false;
+		}
+
+		for (MachineLoop<INPUT> loop : stopping) {
+			if (! loop.join(deadline))
+				return false;
+		}
+		return true;
+	}
+
+	public boolean isShutdown() {
+		return ! running;
+	}
+
+	public int getMachineCount() {
+		return machines.size();
+	}
+
+	/**
+	 *
+	 * The number of events applied so far, across all machines.
+	 *
+	 * @return
+	 */
+	public long getProcessedCount() {
+		return processed.sum();
+	}
+
+	/**
+	 *
+	 * The number of events dropped because no machine was registered under their id.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	private void drop(long machineId, INPUT event) {
+		dropped.increment();
+		log.warn("No state machine registered for id: " + machineId + ", dropping event: " + event);
+	}
+
+	private void checkRunning() {
+		if (! running)
+			throw new IllegalStateException("State machine executor is shut down");
+	}
+
+	private static final class MachineLoop<INPUT> implements Runnable {
+
+		final VirtualThreadStateMachineExecutor<INPUT> executor;
+		final long machineId;
+		final StateMachine<INPUT, ?, ?> stateMachine;
+		final BlockingQueue<Object> mailbox;
+
+		final Thread thread;
+
+		final AtomicBoolean stopped = new AtomicBoolean();
+		volatile boolean exited;
+
+		MachineLoop(VirtualThreadStateMachineExecutor<INPUT> executor, long machineId, StateMachine<INPUT, ?, ?> stateMachine, BlockingQueue<Object> mailbox) {
+			this.executor = executor;
+			this.machineId = machineId;
+			this.stateMachine = stateMachine;
+			this.mailbox = mailbox;
+			this.thread = Thread.ofVirtual().name("statemachine-" + machineId).unstarted(this);
+		}
+
+		/**
+		 * Queues the stop request once, whether shutdown, unregister or register ask for it.
+		 */
+		void stop() {
+
+			if (! stopped.compareAndSet(false, true))
+				return;
+
+			executor.stopping.add(this);
+
+			// Exited meanwhile, on an interrupt: nothing left to wait for
+			if (exited) {
+				executor.stopping.remove(this);
+				return;
+			}
+
+			boolean interrupted = false;
+
+			// Never drop the stop request, even when the mailbox is full
+			for (;;) {
+				try {
+					mailbox.put(STOP);
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		boolean join(long deadline) throws InterruptedException {
+			// Past the deadline it only tells whether the loop exited
+			return thread.join(Duration.ofNanos(deadline - System.nanoTime()));
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void run() {
+
+			try {
+				for (Object event = mailbox.take(); event != STOP; event = mailbox.take()) {
+
+					try {
+						stateMachine.onInput((INPUT) event);
+					}
+					catch (RuntimeException e) {
+						log.error("State machine " + machineId + " failed on event: " + event, e);
+					}
+
+					executor.processed.increment();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				exited = true;
+				executor.stopping.remove(this);
+			}
+		}
+	}
+}
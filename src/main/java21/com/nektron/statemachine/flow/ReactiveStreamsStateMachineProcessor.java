@@ -0,0 +1,75 @@
+package com.nektron.statemachine.flow;
+
+import org.reactivestreams.FlowAdapters;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.flow.StateMachineProcessor.Emission;
+
+/**
+ *
+ * The Reactive Streams flavour of {@link StateMachineProcessor}, for libraries still publishing
+ * {@code org.reactivestreams} types. It adapts a {@link StateMachineProcessor}, and behaves the same:
+ * batched and bounded demand, values emitted after every event or on done and terminal states, upstream
+ * cancelled once the machine is terminated.
+ *
+ * Needs org.reactivestreams:reactive-streams on the class path. Only available in the jdk21 build profile.
+ *
+ * @param <INPUT>
+ * @param <OUTPUT>
+ */
+public class ReactiveStreamsStateMachineProcessor<INPUT, OUTPUT> implements Processor<INPUT, OUTPUT> {
+
+	private final StateMachineProcessor<INPUT, OUTPUT> processor;
+	private final Processor<INPUT, OUTPUT> adapter;
+
+	public ReactiveStreamsStateMachineProcessor(StateMachine<INPUT, ?, OUTPUT> stateMachine) {
+		this(new StateMachineProcessor<>(stateMachine));
+	}
+
+	/**
+	 *
+	 * @param stateMachine
+	 * @param emission when values are published
+	 * @param batchSize the most events requested from upstream at once
+	 */
+	public ReactiveStreamsStateMachineProcessor(StateMachine<INPUT, ?, OUTPUT> stateMachine, Emission emission, int batchSize) {
+		this(new StateMachineProcessor<>(stateMachine, emission, batchSize));
+	}
+
+	private ReactiveStreamsStateMachineProcessor(StateMachineProcessor<INPUT, OUTPUT> processor) {
+		this.processor = processor;
+		this.adapter = FlowAdapters.toProcessor(processor);
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super OUTPUT> subscriber) {
+		adapter.subscribe(subscriber);
+	}
+
+	@Override
+	public void onSubscribe(Subscription subscription) {
+		adapter.onSubscribe(subscription);
+	}
+
+	@Override
+	public void onNext(INPUT event) {
+		adapter.onNext(event);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		adapter.onError(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		adapter.onComplete();
+	}
+
+	public StateMachine<INPUT, ?, OUTPUT> getStateMachine() {
+		return processor.getStateMachine();
+	}
+}
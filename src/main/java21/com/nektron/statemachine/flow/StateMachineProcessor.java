@@ -0,0 +1,402 @@
+package com.nektron.statemachine.flow;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.nektron.statemachine.StateMachine;
+
+/**
+ *
+ * Exposes a state machine as a {@link Flow.Processor}: the events published upstream are applied to the
+ * machine, and its values are published downstream, after every event or only once it reaches a done or
+ * terminal state (see {@link Emission}).
+ *
+ * Events are requested from upstream in batches of at most the batch size, and only as many as the
+ * downstream can take: with {@link Emission#EVERY_EVENT} the batches follow the downstream demand, with
+ * {@link Emission#DONE_OR_TERMINAL} they stop while a value waits for demand. The values waiting for the
+ * downstream never exceed the batch size, whatever the bursts upstream.
+ *
+ * Once the machine is terminated the upstream subscription is cancelled and the downstream completed,
+ * after the values already emitted. Cancelling downstream cancels upstream.
+ *
+ * The machine is only touched by the upstream signals, which the Flow contract serializes: it must not
+ * receive events from anywhere else. A processor accepts one subscriber. Machines without a value cannot
+ * emit, as Flow forbids null elements.
+ *
+ * Only available in the jdk21 build profile.
+ *
+ * @param <INPUT>
+ * @param <OUTPUT>
+ */
+public class StateMachineProcessor<INPUT, OUTPUT> implements Flow.Processor<INPUT, OUTPUT> {
+
+	/**
+	 *
+	 * When the processor publishes the value of the machine.
+	 *
+	 */
+	public enum Emission {
+
+		/** After every event applied */
+		EVERY_EVENT,
+
+		/** Only after the events leaving the machine in a done or terminal state */
+		DONE_OR_TERMINAL
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = Flow.defaultBufferSize();
+
+	/** Stands for the upstream subscription once cancelled, so a late subscription is cancelled too */
+	private static final Flow.Subscription CANCELLED = new Flow.Subscription() {
+
+		@Override
+		public void request(long n) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	};
+
+	private final StateMachine<INPUT, ?, OUTPUT> stateMachine;
+	private final Emission emission;
+	private final int batchSize;
+
+	/** Single producer (upstream signals), single consumer (drain loop) ring of the values to emit */
+	private final AtomicReferenceArray<OUTPUT> values;
+	private final int mask;
+	private final AtomicLong producerIndex = new AtomicLong();
+	private final AtomicLong consumerIndex = new AtomicLong();
+
+	private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<>();
+	private final AtomicReference<Flow.Subscriber<? super OUTPUT>> reservedSubscriber = new AtomicReference<>();
+
+	/** Set once the subscriber returned from onSubscribe */
+	private volatile Flow.Subscriber<? super OUTPUT> subscriber;
+
+	/** The downstream demand not yet served */
+	private final AtomicLong requested = new AtomicLong();
+
+	/** The events requested from upstream not yet received */
+	private final AtomicLong inFlight = new AtomicLong();
+
+	private final AtomicInteger wip = new AtomicInteger();
+
+	private volatile boolean upstreamDone;
+	private volatile Throwable error;
+	private volatile boolean cancelled;
+
+	/** Drain loop only: the downstream received its terminal signal */
+	private boolean finished;
+
+	public StateMachineProcessor(StateMachine<INPUT, ?, OUTPUT> stateMachine) {
+		this(stateMachine, Emission.EVERY_EVENT, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 *
+	 * @param stateMachine
+	 * @param emission when values are published
+	 * @param batchSize the most events requested from upstream at once
+	 */
+	public StateMachineProcessor(StateMachine<INPUT, ?, OUTPUT> stateMachine, Emission emission, int batchSize) {
+
+		if (stateMachine == null)
+			throw new IllegalArgumentException("State machine cannot be null");
+
+		if (emission == null)
+			throw new IllegalArgumentException("Emission cannot be null for state machine: " + stateMachine.getId());
+
+		if (batchSize < 1 || batchSize > 1 << 30)
+			throw new IllegalArgumentException("Batch size must be between 1 and 2^30: " + batchSize);
+
+		int capacity = Integer.highestOneBit(batchSize) == batchSize ? batchSize : Integer.highestOneBit(batchSize) << 1;
+
+		this.stateMachine = stateMachine;
+		this.emission = emission;
+		this.batchSize = batchSize;
+		this.values = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super OUTPUT> subscriber) {
+
+		Objects.requireNonNull(subscriber, "Subscriber cannot be null");
+
+		if (!reservedSubscriber.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(CANCELLED);
+			subscriber.onError(new IllegalStateException("State machine processor " + stateMachine.getId() + " accepts a single subscriber"));
+			return;
+		}
+
+		subscriber.onSubscribe(new Flow.Subscription() {
+
+			@Override
+			public void request(long n) {
+				StateMachineProcessor.this.request(n);
+			}
+
+			@Override
+			public void cancel() {
+				StateMachineProcessor.this.cancel();
+			}
+		});
+
+		this.subscriber = subscriber;
+		drain();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+
+		Objects.requireNonNull(subscription, "Subscription cannot be null");
+
+		// A second subscription, or one arriving after cancellation
+		if (!upstream.compareAndSet(null, subscription)) {
+			subscription.cancel();
+			return;
+		}
+
+		if (stateMachine.isTerminated()) {
+			cancelUpstream();
+			upstreamDone = true;
+		}
+		drain();
+	}
+
+	@Override
+	public void onNext(INPUT event) {
+
+		Objects.requireNonNull(event, "Event cannot be null");
+
+		if (upstreamDone || cancelled)
+			return;
+
+		inFlight.decrementAndGet();
+
+		OUTPUT value;
+
+		try {
+			value = stateMachine.onInput(event);
+		}
+		catch (RuntimeException e) {
+			cancelUpstream();
+			onError(e);
+			return;
+		}
+
+		boolean terminated = stateMachine.isTerminated();
+
+		if (value != null && (emission == Emission.EVERY_EVENT || terminated || stateMachine.isDone()) && !offer(value)) {
+			cancelUpstream();
+			onError(new IllegalStateException("Upstream published more events than requested to state machine processor " + stateMachine.getId()));
+			return;
+		}
+
+		if (terminated) {
+			cancelUpstream();
+			upstreamDone = true;
+		}
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+
+		Objects.requireNonNull(throwable, "Error cannot be null");
+
+		if (upstreamDone)
+			return;
+
+		error = throwable;
+		upstreamDone = true;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+
+		if (upstreamDone)
+			return;
+
+		upstreamDone = true;
+		drain();
+	}
+
+	public StateMachine<INPUT, ?, OUTPUT> getStateMachine() {
+		return stateMachine;
+	}
+
+	public Emission getEmission() {
+		return emission;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	private void request(long n) {
+
+		if (n <= 0) {
+			// Rule 3.9
+			cancelUpstream();
+			onError(new IllegalArgumentException("Requested events must be positive for state machine processor " + stateMachine.getId() + ": " + n));
+			return;
+		}
+
+		long current;
+
+		do {
+			current = requested.get();
+
+			if (current == Long.MAX_VALUE)
+				break;
+
+		} while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+
+		drain();
+	}
+
+	private void cancel() {
+
+		cancelled = true;
+		cancelUpstream();
+		drain();
+	}
+
+	private void cancelUpstream() {
+
+		Flow.Subscription subscription = upstream.getAndSet(CANCELLED);
+
+		if (subscription != null)
+			subscription.cancel();
+	}
+
+	/**
+	 * Emits the values the downstream requested, delivers the terminal signal and tops up the upstream
+	 * demand. Run by whichever thread signals, one at a time.
+	 */
+	private void drain() {
+
+		if (wip.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+
+		do {
+			Flow.Subscriber<? super OUTPUT> subscriber = this.subscriber;
+
+			if (cancelled || finished)
+				clear();
+
+			else if (subscriber != null) {
+
+				long demand = requested.get();
+				long emitted = 0;
+
+				while (emitted != demand) {
+
+					OUTPUT value = poll();
+
+					if (value == null)
+						break;
+
+					subscriber.onNext(value);
+					emitted++;
+				}
+
+				if (emitted != 0 && demand != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+
+				// Read before the ring, so the values offered before completion are seen
+				if (upstreamDone) {
+
+					Throwable error = this.error;
+
+					if (error != null) {
+						finished = true;
+						clear();
+						subscriber.onError(error);
+					}
+					else if (isEmpty()) {
+						finished = true;
+						subscriber.onComplete();
+					}
+				}
+				else
+					requestUpstream();
+			}
+
+			missed = wip.addAndGet(-missed);
+
+		} while (missed != 0);
+	}
+
+	/**
+	 * Requests events as long as the values they may emit, added to the ones waiting, fit in a batch and,
+	 * when every event emits, in the downstream demand.
+	 */
+	private void requestUpstream() {
+
+		Flow.Subscription subscription = upstream.get();
+
+		if (subscription == null || subscription == CANCELLED)
+			return;
+
+		// In flight read first: an event received since only moves a value into the ring
+		long pending = inFlight.get();
+
+		// Values wait for demand: nothing more until they are taken
+		if (!isEmpty())
+			return;
+
+		long limit = emission == Emission.EVERY_EVENT ? Math.min(batchSize, requested.get()) : batchSize;
+		long n = limit - pending;
+
+		// Tops up once half a batch was consumed, rather than event by event
+		if (n > 0 && (pending == 0 || n >= limit >> 1)) {
+			inFlight.addAndGet(n);
+			subscription.request(n);
+		}
+	}
+
+	private boolean offer(OUTPUT value) {
+
+		long index = producerIndex.get();
+
+		if (index - consumerIndex.get() > mask)
+			return false;
+
+		values.lazySet((int) index & mask, value);
+		producerIndex.lazySet(index + 1);
+		return true;
+	}
+
+	private OUTPUT poll() {
+
+		long index = consumerIndex.get();
+
+		if (index == producerIndex.get())
+			return null;
+
+		int slot = (int) index & mask;
+		OUTPUT value = values.get(slot);
+
+		values.lazySet(slot, null);
+		consumerIndex.lazySet(index + 1);
+		return value;
+	}
+
+	private boolean isEmpty() {
+		return consumerIndex.get() == producerIndex.get();
+	}
+
+	private void clear() {
+		while (poll() != null);
+	}
+}
@@ -0,0 +1,28 @@
+package com.nektron.statemachine.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ *
+ * The chain of default actions run for an event.
+ *
+ */
+@Name("com.nektron.statemachine.DefaultActions")
+@Label("State Machine Default Actions")
+@Description("The default actions run for an event without transition")
+@Category("State Machine")
+@StackTrace(false)
+@Threshold("1 ms")
+final class DefaultActionsEvent extends DispatchEvent {
+
+	@Label("From State")
+	String fromState;
+
+	@Label("To State")
+	String toState;
+}
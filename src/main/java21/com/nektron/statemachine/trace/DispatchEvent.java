@@ -0,0 +1,21 @@
+package com.nektron.statemachine.trace;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ *
+ * The fields shared by the state machine flight recorder events.
+ *
+ */
+abstract class DispatchEvent extends Event {
+
+	@Label("State Machine")
+	String modelId;
+
+	@Label("Machine Id")
+	long machineId;
+
+	@Label("Event")
+	String event;
+}
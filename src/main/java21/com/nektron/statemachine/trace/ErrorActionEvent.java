@@ -0,0 +1,35 @@
+package com.nektron.statemachine.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ *
+ * An action or operation that threw, timed over its error action (or handleErrorCondition).
+ *
+ */
+@Name("com.nektron.statemachine.ErrorAction")
+@Label("State Machine Error Action")
+@Description("An action or operation that threw, and the error action handling it")
+@Category("State Machine")
+@StackTrace(false)
+@Threshold("0 ms")
+final class ErrorActionEvent extends DispatchEvent {
+
+	@Label("State")
+	String state;
+
+	@Label("Exception Class")
+	Class<?> exceptionClass;
+
+	@Label("Exception Message")
+	String exceptionMessage;
+
+	@Label("Handled")
+	@Description("Whether an error action was registered for the event")
+	boolean handled;
+}
@@ -0,0 +1,142 @@
+package com.nektron.statemachine.trace;
+
+/**
+ *
+ * Emits the dispatch activity as JDK Flight Recorder events, under the "State Machine" category. They are
+ * switched on and off, and given thresholds, through the usual recording settings, e.g.
+ * com.nektron.statemachine.Transition#threshold=0 ms to keep every transition. By default transitions and
+ * default actions are kept from 1 ms, error actions and phase switches always, unmapped events never.
+ *
+ * Whether an event type is enabled is checked on a probe instance, so nothing is allocated while it is off.
+ * The states and events are only turned into strings for the events kept by the threshold.
+ *
+ */
+public final class FlightRecorderDispatchRecorder extends DispatchRecorder {
+
+	private static final TransitionEvent TRANSITION = new TransitionEvent();
+	private static final DefaultActionsEvent DEFAULT_ACTIONS = new DefaultActionsEvent();
+	private static final ErrorActionEvent ERROR_ACTION = new ErrorActionEvent();
+	private static final UnmappedEvent UNMAPPED = new UnmappedEvent();
+	private static final PhaseSwitchEvent PHASE_SWITCH = new PhaseSwitchEvent();
+
+	@Override
+	public Object beginTransition() {
+
+		if (! TRANSITION.isEnabled())
+			return null;
+
+		TransitionEvent event = new TransitionEvent();
+
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endTransition(Object token, String modelId, long machineId, Enum<?> fromState, Object event, Enum<?> toState) {
+
+		TransitionEvent recorded = (TransitionEvent) token;
+
+		recorded.end();
+
+		if (recorded.shouldCommit()) {
+			set(recorded, modelId, machineId, event);
+			recorded.fromState = String.valueOf(fromState);
+			recorded.toState = String.valueOf(toState);
+			recorded.commit();
+		}
+	}
+
+	@Override
+	public Object beginDefaultActions() {
+
+		if (! DEFAULT_ACTIONS.isEnabled())
+			return null;
+
+		DefaultActionsEvent event = new DefaultActionsEvent();
+
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endDefaultActions(Object token, String modelId, long machineId, Enum<?> fromState, Object event, Enum<?> toState) {
+
+		DefaultActionsEvent recorded = (DefaultActionsEvent) token;
+
+		recorded.end();
+
+		if (recorded.shouldCommit()) {
+			set(recorded, modelId, machineId, event);
+			recorded.fromState = String.valueOf(fromState);
+			recorded.toState = String.valueOf(toState);
+			recorded.commit();
+		}
+	}
+
+	@Override
+	public Object beginErrorAction() {
+
+		if (! ERROR_ACTION.isEnabled())
+			return null;
+
+		ErrorActionEvent event = new ErrorActionEvent();
+
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endErrorAction(Object token, String modelId, long machineId, Enum<?> state, Object event, Exception exception, boolean handled) {
+
+		ErrorActionEvent recorded = (ErrorActionEvent) token;
+
+		recorded.end();
+
+		if (recorded.shouldCommit()) {
+			set(recorded, modelId, machineId, event);
+			recorded.state = String.valueOf(state);
+			recorded.exceptionClass = exception.getClass();
+			recorded.exceptionMessage = exception.getMessage();
+			recorded.handled = handled;
+			recorded.commit();
+		}
+	}
+
+	@Override
+	public void unmapped(String modelId, long machineId, Enum<?> state, Object event) {
+
+		if (! UNMAPPED.isEnabled())
+			return;
+
+		UnmappedEvent recorded = new UnmappedEvent();
+
+		if (recorded.shouldCommit()) {
+			set(recorded, modelId, machineId, event);
+			recorded.state = String.valueOf(state);
+			recorded.commit();
+		}
+	}
+
+	@Override
+	public void phaseSwitch(String modelId, long machineId, Enum<?> state, String nextModelId) {
+
+		if (! PHASE_SWITCH.isEnabled())
+			return;
+
+		PhaseSwitchEvent recorded = new PhaseSwitchEvent();
+
+		if (recorded.shouldCommit()) {
+			recorded.modelId = modelId;
+			recorded.machineId = machineId;
+			recorded.state = String.valueOf(state);
+			recorded.nextModelId = nextModelId;
+			recorded.commit();
+		}
+	}
+
+	private static void set(DispatchEvent recorded, String modelId, long machineId, Object event) {
+		recorded.modelId = modelId;
+		recorded.machineId = machineId;
+		recorded.event = String.valueOf(event);
+	}
+}
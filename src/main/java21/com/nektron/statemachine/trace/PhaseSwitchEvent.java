@@ -0,0 +1,26 @@
+package com.nektron.statemachine.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * A machine reaching a done state and moving on to the model of its next phase.
+ *
+ */
+@Name("com.nektron.statemachine.PhaseSwitch")
+@Label("State Machine Phase Switch")
+@Description("A machine reaching a done state and moving on to the model of its next phase")
+@Category("State Machine")
+@StackTrace(false)
+final class PhaseSwitchEvent extends DispatchEvent {
+
+	@Label("Done State")
+	String state;
+
+	@Label("Next Phase")
+	String nextModelId;
+}
@@ -0,0 +1,28 @@
+package com.nektron.statemachine.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ *
+ * A transition to a target state, timed from onExit to the end of its action.
+ *
+ */
+@Name("com.nektron.statemachine.Transition")
+@Label("State Machine Transition")
+@Description("A transition to a target state, from onExit to the end of its action")
+@Category("State Machine")
+@StackTrace(false)
+@Threshold("1 ms")
+final class TransitionEvent extends DispatchEvent {
+
+	@Label("From State")
+	String fromState;
+
+	@Label("To State")
+	String toState;
+}
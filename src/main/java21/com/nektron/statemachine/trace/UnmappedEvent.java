@@ -0,0 +1,26 @@
+package com.nektron.statemachine.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * An event with neither transition nor default actions in the current state. Off by default, as some
+ * models ignore most of their events.
+ *
+ */
+@Name("com.nektron.statemachine.Unmapped")
+@Label("State Machine Unmapped Event")
+@Description("An event with neither transition nor default actions in the current state")
+@Category("State Machine")
+@StackTrace(false)
+@Enabled(false)
+final class UnmappedEvent extends DispatchEvent {
+
+	@Label("State")
+	String state;
+}
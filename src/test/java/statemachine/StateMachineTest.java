@@ -2,15 +2,55 @@ package statemachine;
 
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.executor.StateMachineExecutor;
+import com.nektron.statemachine.journal.EventCodec;
+import com.nektron.statemachine.journal.Journal;
+import com.nektron.statemachine.journal.ParallelReplayer;
+import com.nektron.statemachine.metrics.MetricsSnapshot;
+import com.nektron.statemachine.metrics.StateMachineMetrics;
+import com.nektron.statemachine.impl.ConcurrentStateMachineImpl;
+import com.nektron.statemachine.impl.DoubleStateMachineImpl;
+import com.nektron.statemachine.impl.IntStateMachineImpl;
+import com.nektron.statemachine.impl.JournaledStateMachineImpl;
+import com.nektron.statemachine.impl.OffHeapStateStore;
 import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.impl.StateMachinePool;
+import com.nektron.statemachine.primitive.DoubleAction;
+import com.nektron.statemachine.primitive.IntAction;
+import com.nektron.statemachine.ring.ProducerType;
+import com.nektron.statemachine.ring.RingBuffer;
+import com.nektron.statemachine.ring.RingBufferConsumer;
+import com.nektron.statemachine.ring.WaitStrategy;
+import com.nektron.statemachine.snapshot.ValueCodec;
 import com.nektron.statemachine.state.State;
+import com.nektron.statemachine.timer.TimingWheel;
+import com.nektron.statemachine.trace.TraceRecord;
+import com.nektron.statemachine.trace.TransitionTracer;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class StateMachineTest {
 
@@ -20,6 +60,9 @@ public class StateMachineTest {
 
 	private String strVal = "test";
 	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
 	@Before
 	public void setUp() throws Exception {
 			
@@ -84,6 +127,1124 @@ public class StateMachineTest {
 		assertEquals(3.0, value, 0.0);
 	}
 	
+	@Test
+	public void testFrozenModel() {
+		
+		StateMachine<String,State, String> frozenStateMachine = new StateMachineImpl<>("SM-TEST4", State.START);
+		
+		frozenStateMachine.addTransition(State.START, "NewEvt", State.NEW);
+		frozenStateMachine.addTransition(State.NEW, "ComputeEvt", State.COMPUTE);
+		frozenStateMachine.getStateMachineModel().freeze();
+		
+		frozenStateMachine.onInput("UnknownEvt");
+		assertSame(State.START, frozenStateMachine.getCurrentState());
+		
+		frozenStateMachine.onInput("NewEvt");
+		frozenStateMachine.onInput("ComputeEvt");
+		assertSame(State.COMPUTE, frozenStateMachine.getCurrentState());
+		assertSame(State.NEW, frozenStateMachine.getPreviousState());
+		
+		try {
+			frozenStateMachine.addTransition(State.COMPUTE, "DoneEvt", State.DONE);
+			fail("A frozen model should not accept new transitions");
+		} catch (IllegalStateException expected) {
+		}
+	}
+	
+	@Test
+	public void testSharedModel() {
+		
+		StateMachineModel<SMEvent,State, Double> model = new StateMachineModel<>("SM-SHARED", State.START);
+		
+		model.addTransition(State.START, SMEvent.class, State.NEW, this::increment);
+		model.addTransition(State.NEW, CustomSMEvent.class, State.COMPUTE, this::increment);
+		model.freeze();
+		
+		StateMachine<SMEvent,State, Double> first = new StateMachineImpl<>(model, 0.0);
+		StateMachine<SMEvent,State, Double> second = new StateMachineImpl<>(model, 10.0);
+		
+		first.onInput(new SMEvent("Test"));
+		first.onInput(new CustomSMEvent("Test"));
+		second.onInput(new SMEvent("Test"));
+		
+		assertSame(State.COMPUTE, first.getCurrentState());
+		assertSame(State.NEW, second.getCurrentState());
+		assertEquals(2.0, first.getValue(), 0.0);
+		assertEquals(11.0, second.getValue(), 0.0);
+		assertSame(model, first.getStateMachineModel());
+		assertEquals("SM-SHARED", second.getId());
+	}
+	
+	@Test
+	public void testNoArgConsumerTransition() {
+		
+		StateMachine<String,State, String> noArgStateMachine = new StateMachineImpl<>("SM-TEST5", State.START);
+		
+		noArgStateMachine.addTransition(State.START, "NewEvt", State.NEW, this::clear);
+		noArgStateMachine.onInput("NewEvt");
+		
+		assertSame(State.NEW, noArgStateMachine.getCurrentState());
+		assertNull(strVal);
+	}
+	
+	@Test
+	public void testPolymorphicEvents() {
+		
+		StateMachine<SMEvent,State, Double> polymorphicStateMachine = new StateMachineImpl<>("SM-TEST6", State.START);
+		
+		polymorphicStateMachine.getStateMachineModel().setPolymorphicEvents(true);
+		polymorphicStateMachine.addTransition(State.START, SMEvent.class, State.NEW, this::increment);
+		polymorphicStateMachine.addTransition(State.NEW, CustomSMEvent.class, State.COMPUTE, this::increment);
+		polymorphicStateMachine.addTransition(State.COMPUTE, SMEvent.class, State.DONE, this::increment);
+		
+		polymorphicStateMachine.onInput(new DefaultAction("subclass of CustomSMEvent"));
+		assertSame(State.NEW, polymorphicStateMachine.getCurrentState());
+		
+		polymorphicStateMachine.onInput(new DefaultAction("subclass of CustomSMEvent"));
+		assertSame(State.COMPUTE, polymorphicStateMachine.getCurrentState());
+		
+		Double value = polymorphicStateMachine.onInput(new CustomSMEvent("inherits the SMEvent transition"));
+		assertSame(State.DONE, polymorphicStateMachine.getCurrentState());
+		assertEquals(3.0, value, 0.0);
+	}
+	
+	@Test
+	public void testBatchInput() {
+		
+		StateMachine<SMEvent,State, Double> batchStateMachine = new StateMachineImpl<>("SM-TEST7", State.START);
+		
+		batchStateMachine.addTransition(State.START, SMEvent.class, State.NEW, this::increment);
+		batchStateMachine.addTransition(State.NEW, CustomSMEvent.class, State.START, this::increment);
+		
+		SMEvent[] events = {new SMEvent("1"), new CustomSMEvent("2"), new SMEvent("3"), new SMEvent("unmapped in NEW")};
+		Double[] outcomes = new Double[events.length];
+		
+		Double value = batchStateMachine.onInputs(events, 0, events.length, outcomes);
+		
+		assertEquals(3.0, value, 0.0);
+		assertArrayEquals(new Double[] {1.0, 2.0, 3.0, 3.0}, outcomes);
+		assertSame(State.NEW, batchStateMachine.getCurrentState());
+		
+		value = batchStateMachine.onInputs(Arrays.asList(new CustomSMEvent("4"), new SMEvent("5")));
+		
+		assertEquals(5.0, value, 0.0);
+		assertSame(State.NEW, batchStateMachine.getCurrentState());
+	}
+	
+	@Test
+	public void testExecutor() throws InterruptedException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST8", State.START);
+		
+		model.addTransition(State.START, "Add", State.START, (String event, Integer value) -> value + 1);
+		model.addTransition(State.START, "Stop", State.DONE);
+		
+		StateMachineExecutor<String> executor = new StateMachineExecutor<>(4);
+		
+		@SuppressWarnings("unchecked")
+		StateMachine<String,State, Integer>[] machines = new StateMachine[16];
+		
+		for (int id = 0; id < machines.length; id++) {
+			machines[id] = new StateMachineImpl<>(model, 0);
+			executor.register(id, machines[id]);
+		}
+		
+		for (int i = 0; i < 1000; i++)
+			for (int id = 0; id < machines.length; id++)
+				executor.submit(id, "Add");
+		
+		for (int id = 0; id < machines.length; id++) {
+			executor.submit(id, "Stop");
+			executor.submit(id, "Add");
+		}
+		
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		
+		assertEquals(machines.length * 1002, executor.getProcessedCount());
+		assertEquals(0, executor.getDroppedCount());
+		
+		for (StateMachine<String,State, Integer> machine : machines) {
+			assertEquals(1000, (int) machine.getValue());
+			assertSame(State.DONE, machine.getCurrentState());
+		}
+	}
+	
+	@Test
+	public void testConcurrentStateMachine() throws InterruptedException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST9", State.START);
+		
+		model.addTransition(State.START, "Next", State.NEW);
+		model.addTransition(State.NEW, "Next", State.COMPUTE);
+		model.addTransition(State.COMPUTE, "Next", State.START);
+		model.addTransition(State.START, "Add", State.START, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "Add", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.COMPUTE, "Add", State.COMPUTE, (String event, Integer value) -> value + 1);
+		
+		ConcurrentStateMachineImpl<String,State, Integer> concurrentStateMachine = new ConcurrentStateMachineImpl<>(model, 0);
+		
+		Thread[] threads = new Thread[4];
+		
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10_000; j++) {
+					concurrentStateMachine.onInput("Next");
+					concurrentStateMachine.onInput("Add");
+				}
+			});
+			threads[i].start();
+		}
+		
+		for (Thread thread : threads)
+			thread.join();
+		
+		// No transition and no action is lost: 40,000 moves around the 3 states, 40,000 increments
+		assertEquals(40_000, (int) concurrentStateMachine.getValue());
+		assertSame(State.NEW, concurrentStateMachine.getCurrentState());
+		assertEquals(80_000, concurrentStateMachine.getVersion());
+	}
+	
+	@Test
+	public void testDoubleStateMachine() {
+		
+		DoubleStateMachineImpl<SMEvent,State> doubleStateMachine = new DoubleStateMachineImpl<>("SM-TEST10", State.START);
+		
+		doubleStateMachine.addTransition(State.START, SMEvent.class, State.NEW, DoubleAction.of((event, value) -> value + 1));
+		doubleStateMachine.addTransition(State.NEW, CustomSMEvent.class, State.START, this::increment);
+		doubleStateMachine.addTransition(State.NEW, new SMEvent("half"), State.NEW, DoubleAction.of((event, value) -> value / 2));
+		doubleStateMachine.addOperations(DoubleAction.of((event, value) -> value * 10));
+		
+		assertEquals(10.0, doubleStateMachine.onInputAsDouble(new SMEvent("1")), 0.0);
+		assertEquals(50.0, doubleStateMachine.onInputAsDouble(new SMEvent("half")), 0.0);
+		assertEquals(510.0, doubleStateMachine.onInput(new CustomSMEvent("boxed")), 0.0);
+		assertSame(State.START, doubleStateMachine.getCurrentState());
+		assertEquals(510.0, doubleStateMachine.getDoubleValue(), 0.0);
+	}
+	
+	@Test
+	public void testEventCodes() {
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-TEST11", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW);
+		model.addTransition(State.NEW, SMEvent.class, State.DONE, (SMEvent event, Integer value) -> event == null ? value + 10 : value + 1);
+		model.addDoneState(State.DONE);
+		
+		StateMachineModel<Object,State, Integer> nextPhase = model.addPhaseModel("SM-TEST11-PHASE2", State.DONE);
+		
+		nextPhase.addTransition(State.DONE, "Restart", State.START, (String event, Integer value) -> value + 100);
+		model.linkStateMachines("SM-TEST11", "SM-TEST11-PHASE2");
+		
+		int newEvt = model.eventCode("NewEvt");
+		int smEvent = model.eventTypeCode(SMEvent.class);
+		int restart = model.eventCode("Restart");
+		
+		assertTrue(model.isFrozen());
+		assertEquals(restart, nextPhase.eventCode("Restart"));
+		assertEquals(smEvent, model.eventCode(new SMEvent("typed")));
+		assertEquals(-1, model.eventCode("Unknown"));
+		
+		StateMachineImpl<Object,State, Integer> codedStateMachine = new StateMachineImpl<>(model, 0);
+		
+		codedStateMachine.onEventCode(newEvt);
+		assertEquals(10, (int) codedStateMachine.onEventCode(smEvent));
+		assertEquals(110, (int) codedStateMachine.onEventCode(restart));
+		assertSame(State.START, codedStateMachine.getCurrentState());
+		
+		StateMachineModel<Command,State, Integer> enumModel = new StateMachineModel<>("SM-TEST12", State.START);
+		
+		enumModel.addTransition(State.START, Command.OPEN, State.NEW);
+		enumModel.addTransition(State.NEW, Command.CLOSE, State.START, (Command event, Integer value) -> value + 1);
+		
+		StateMachine<Command,State, Integer> enumStateMachine = new StateMachineImpl<>(enumModel, 0);
+		
+		assertEquals(1, (int) enumStateMachine.onInputs(new Command[] {Command.OPEN, Command.RESET, Command.CLOSE, Command.CLOSE}));
+		assertSame(State.START, enumStateMachine.getCurrentState());
+	}
+	
+	@Test
+	public void testSnapshot() {
+		
+		StateMachineModel<String,State, Double> model = new StateMachineModel<>("SM-TEST13", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Double value) -> value + 1);
+		model.addTransition(State.NEW, "ComputeEvt", State.DONE, (String event, Double value) -> value * 10);
+		model.addDoneState(State.DONE);
+		model.addPhaseModel("SM-TEST13-PHASE2", State.DONE).addTransition(State.DONE, "Restart", State.START);
+		model.linkStateMachines("SM-TEST13", "SM-TEST13-PHASE2");
+		model.freeze();
+		
+		StateMachineImpl<String,State, Double> stateMachine = new StateMachineImpl<>(model, 1.5);
+		DoubleStateMachineImpl<String,State> doubleStateMachine = new DoubleStateMachineImpl<>(model, 0.0);
+		
+		stateMachine.onInput("NewEvt");
+		
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		
+		stateMachine.snapshot(buffer, ValueCodec.DOUBLE);
+		assertEquals(stateMachine.getSnapshotSize(ValueCodec.DOUBLE), buffer.position());
+		
+		stateMachine.onInput("ComputeEvt");
+		stateMachine.snapshot(buffer, ValueCodec.DOUBLE);
+		buffer.flip();
+		
+		StateMachineImpl<String,State, Double> restored = new StateMachineImpl<>(model);
+		
+		restored.restore(buffer, ValueCodec.DOUBLE);
+		assertSame(State.NEW, restored.getCurrentState());
+		assertSame(State.START, restored.getPreviousState());
+		assertEquals(2.5, restored.getValue(), 0.0);
+		assertEquals(25.0, restored.onInput("ComputeEvt"), 0.0);
+		
+		// Taken after the phase switch, restored into a primitive machine of the same model
+		doubleStateMachine.restore(buffer, ValueCodec.DOUBLE);
+		assertFalse(buffer.hasRemaining());
+		assertSame(State.DONE, doubleStateMachine.getCurrentState());
+		assertEquals("SM-TEST13-PHASE2", doubleStateMachine.getId());
+		assertEquals(25.0, doubleStateMachine.getDoubleValue(), 0.0);
+		
+		doubleStateMachine.onInput("Restart");
+		assertSame(State.START, doubleStateMachine.getCurrentState());
+		
+		buffer.clear();
+		new StateMachineImpl<String,State, Double>("SM-OTHER", State.START).snapshot(buffer, ValueCodec.<Double>none());
+		buffer.flip();
+		
+		try {
+			restored.restore(buffer, ValueCodec.DOUBLE);
+			fail("Restored the snapshot of another model");
+		}
+		catch (IllegalArgumentException e) {
+			assertSame(State.DONE, restored.getCurrentState());
+		}
+	}
+	
+	@Test
+	public void testJournal() throws IOException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST14", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "ComputeEvt", State.COMPUTE, (String event, Integer value) -> value * 3);
+		model.addTransition(State.COMPUTE, "StartEvt", State.START);
+		model.freeze();
+		
+		Path directory = temporaryFolder.getRoot().toPath().resolve("journal");
+		String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		JournaledStateMachineImpl<String,State, Integer> first;
+		JournaledStateMachineImpl<String,State, Integer> second;
+		
+		// Segments of 64 bytes hold 2 records each, only the commit below forces them
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 64, 1, TimeUnit.HOURS)) {
+			
+			first = new JournaledStateMachineImpl<>(model, 1, 1, journal);
+			second = new JournaledStateMachineImpl<>(model, 2, 2, journal);
+			
+			for (int i = 0; i < 7; i++) {
+				first.onInput(events[i % 3]);
+				second.onInput(events[i % 3]);
+			}
+			second.onInput("Unknown");
+			
+			assertEquals(14, journal.getAppendedCount());
+			journal.commit();
+			assertEquals(14, journal.getCommittedCount());
+			assertEquals(1, journal.getForceCount());
+		}
+		
+		List<JournaledStateMachineImpl<String,State, Integer>> restored = new ArrayList<>();
+		
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 64, 1, TimeUnit.SECONDS)) {
+			
+			restored.add(new JournaledStateMachineImpl<>(model, 1, 1, journal));
+			restored.add(new JournaledStateMachineImpl<>(model, 2, 2, journal));
+			
+			journal.replay((machineId, event, from, to) -> restored.get((int) machineId - 1).replay(event, from, to));
+			
+			assertEquals(0, journal.getAppendedCount());
+			assertSame(first.getCurrentState(), restored.get(0).getCurrentState());
+			assertEquals(first.getValue(), restored.get(0).getValue());
+			assertSame(second.getCurrentState(), restored.get(1).getCurrentState());
+			assertEquals(second.getValue(), restored.get(1).getValue());
+			
+			// Appends continue after the records already there
+			restored.get(0).onInput("ComputeEvt");
+		}
+		
+		int[] count = new int[1];
+		
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 64, 1, TimeUnit.SECONDS)) {
+			journal.replay((machineId, event, from, to) -> count[0]++);
+		}
+		assertEquals(15, count[0]);
+		
+		// String events up to 65535 bytes, the length being unsigned
+		char[] chars = new char[40_000];
+		
+		Arrays.fill(chars, 'x');
+		
+		String longEvent = new String(chars);
+		ByteBuffer buffer = ByteBuffer.allocate(EventCodec.STRING.size(longEvent));
+		
+		EventCodec.STRING.encode(longEvent, buffer);
+		buffer.flip();
+		assertEquals(longEvent, EventCodec.STRING.decode(buffer));
+		
+		try {
+			EventCodec.STRING.size(new String(new char[70_000]));
+			fail("Longer than 65535 bytes");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testParallelReplay() throws IOException {
+		
+		int[] sideEffects = new int[1];
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST15", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "ComputeEvt", State.COMPUTE, (String event, Integer value) -> value * 3);
+		model.addTransition(State.COMPUTE, "StartEvt", State.START, (String event) -> sideEffects[0]++);
+		model.freeze();
+		
+		Path directory = temporaryFolder.getRoot().toPath().resolve("replay");
+		String[] events = {"NewEvt", "ComputeEvt", "StartEvt"};
+		List<StateMachineImpl<String,State, Integer>> machines = new ArrayList<>();
+		long journaled;
+		
+		// Machines joining late skip the start of the cycle, taking no transition until the next NewEvt
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 256, 1, TimeUnit.SECONDS)) {
+			
+			for (int id = 0; id < 50; id++)
+				machines.add(new JournaledStateMachineImpl<>(model, id, id, journal));
+			
+			for (int i = 0; i < 20; i++) {
+				for (int id = 0; id <= i + 32 && id < 50; id++)
+					machines.get(id).onInput(events[i % 3]);
+			}
+			
+			assertTrue(journal.getSegments().size() > 10);
+			journaled = journal.getAppendedCount();
+		}
+		
+		int journaledSideEffects = sideEffects[0];
+		Map<Long, StateMachineImpl<String,State, Integer>> restored = new ConcurrentHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 256, 1, TimeUnit.SECONDS)) {
+			
+			long records = new ParallelReplayer<String>(pool, 8).replay(journal, machineId -> {
+				StateMachineImpl<String,State, Integer> machine = new StateMachineImpl<>(model, (int) machineId);
+				restored.put(machineId, machine);
+				return machine;
+			});
+			
+			assertEquals(journaled, records);
+			assertEquals(0, journal.getAppendedCount());
+		}
+		finally {
+			pool.shutdown();
+		}
+		
+		assertEquals(journaledSideEffects, sideEffects[0]);
+		assertEquals(50, restored.size());
+		
+		for (long id = 0; id < 50; id++) {
+			
+			StateMachineImpl<String,State, Integer> machine = restored.get(id);
+			
+			assertSame(machines.get((int) id).getCurrentState(), machine.getCurrentState());
+			assertEquals(machines.get((int) id).getValue(), machine.getValue());
+			assertFalse(machine.isReplaying());
+		}
+		
+		// A diverging machine fails its partition, whose machines still leave replay mode
+		Map<Long, StateMachineImpl<String,State, Integer>> diverged = new ConcurrentHashMap<>();
+		ForkJoinPool divergedPool = new ForkJoinPool(4);
+		
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 256, 1, TimeUnit.SECONDS)) {
+			
+			new ParallelReplayer<String>(divergedPool, 8).replay(journal, machineId -> {
+				StateMachineImpl<String,State, Integer> machine = new StateMachineImpl<>(model, (int) machineId);
+				if (machineId == 0)
+					machine.onInput("NewEvt");
+				diverged.put(machineId, machine);
+				return machine;
+			});
+			fail("Diverged replay should fail");
+		}
+		catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("diverged"));
+		}
+		finally {
+			divergedPool.shutdown();
+		}
+		
+		assertFalse(diverged.isEmpty());
+		
+		for (StateMachineImpl<String,State, Integer> machine : diverged.values())
+			assertFalse(machine.isReplaying());
+	}
+	
+	@Test
+	public void testMetrics() {
+		
+		// Only in the surefire execution starting the JVM with -Dstatemachine.metrics=true
+		assumeTrue(StateMachineMetrics.ENABLED);
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-TEST16", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, SMEvent.class, State.START, (SMEvent event, Integer value) -> value / 0);
+		model.addDefaultActions(SMEvent.class, State.COMPUTE, (Function<Integer, Integer>) value -> value + 10);
+		model.freeze();
+		
+		StateMachine<Object,State, Integer> metered = new StateMachineImpl<>(model, 0);
+		
+		metered.onInputs(new Object[] {"NewEvt", "NewEvt", new SMEvent("fails"), new SMEvent("default"), 42, "NewEvt"});
+		
+		MetricsSnapshot<State> metrics = model.getMetrics();
+		
+		assertEquals(1, metrics.getCount(State.START, "NewEvt"));
+		assertEquals(1, metrics.getCount(State.NEW, SMEvent.class));
+		assertEquals(1, metrics.getCount(State.START, SMEvent.class));
+		assertEquals(3, metrics.getCells().size());
+		assertEquals(1, metrics.getUnmappedCount(State.NEW));
+		assertEquals(2, metrics.getUnmappedCount(State.COMPUTE));
+		assertEquals(1, metrics.getErrorCount(SMEvent.class));
+		
+		// The failed action was not timed
+		assertNull(metrics.getCell(State.NEW, SMEvent.class).getLatency());
+		assertEquals(1, metrics.getCell(State.START, "NewEvt").getLatency().getCount());
+		assertTrue(metrics.getCell(State.START, SMEvent.class).isDefaultAction());
+		assertSame(State.COMPUTE, metered.getCurrentState());
+	}
+	
+	@Test
+	public void testTrace() {
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-TEST17", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, SMEvent.class, State.START, (SMEvent event, Integer value) -> value / 0);
+		model.addDefaultActions(SMEvent.class, State.COMPUTE, (Function<Integer, Integer>) value -> value + 10);
+		model.freeze();
+		
+		List<TraceRecord.Kind> kinds = new ArrayList<>();
+		List<String> lines = new ArrayList<>();
+		TransitionTracer tracer = new TransitionTracer(record -> {
+			kinds.add(record.getKind());
+			lines.add(record.toString());
+			assertEquals(7, record.getMachineId());
+		}, 8, 1, TimeUnit.MILLISECONDS);
+		
+		StateMachineImpl<Object,State, Integer> traced = new StateMachineImpl<>(model, 0);
+		
+		traced.setTracer(tracer, 7);
+		traced.onInputs(new Object[] {"NewEvt", "NewEvt", new SMEvent("fails"), new SMEvent("default"), 42});
+		
+		// Drains the remaining records
+		tracer.close();
+		
+		assertEquals(Arrays.asList(TraceRecord.Kind.TRANSITION, TraceRecord.Kind.UNMAPPED, TraceRecord.Kind.ERROR, TraceRecord.Kind.DEFAULT_ACTIONS, TraceRecord.Kind.UNMAPPED), kinds);
+		assertEquals(5, tracer.getDrainedCount());
+		assertEquals(0, tracer.getDroppedCount());
+		assertTrue(lines.get(0), lines.get(0).endsWith(" SM-TEST17#7 START --NewEvt--> NEW"));
+		assertTrue(lines.get(2), lines.get(2).endsWith(" NEW --" + SMEvent.class + "--> error in START"));
+		assertTrue(lines.get(3), lines.get(3).endsWith(" START --" + SMEvent.class + "--> COMPUTE (default actions)"));
+		assertTrue(lines.get(4), lines.get(4).endsWith(" COMPUTE --null--> unmapped"));
+		
+		// A full ring drops the records instead of blocking: once closed, nothing drains it
+		TransitionTracer full = new TransitionTracer(record -> {}, 2, 1, TimeUnit.HOURS);
+		
+		traced.setTracer(full, 7);
+		full.close();
+		
+		for (int i = 0; i < 3; i++)
+			traced.onInput("NewEvt");
+		
+		assertEquals(1, full.getDroppedCount());
+	}
+	
+	@Test
+	public void testTraceManyMachines() throws InterruptedException {
+		
+		AtomicLong decoded = new AtomicLong();
+		TransitionTracer tracer = new TransitionTracer(record -> {
+			if (record.getToState() == State.NEW && "NewEvt".equals(record.getEvent()))
+				decoded.incrementAndGet();
+		}, 16 * 1024, 1, TimeUnit.MILLISECONDS);
+		
+		// Every machine built without a model has its own, registered with the tracer on its first record
+		List<StateMachineImpl<String,State, Integer>> machines = new ArrayList<>();
+		
+		for (int i = 0; i < 10_000; i++) {
+			
+			StateMachineImpl<String,State, Integer> machine = new StateMachineImpl<>("SM-TEST28", State.START);
+			
+			machine.addTransition(State.START, "NewEvt", State.NEW);
+			machine.setTracer(tracer, i + 1);
+			machine.onInput("NewEvt");
+			machines.add(machine);
+		}
+		
+		tracer.close();
+		
+		assertEquals(0, tracer.getDroppedCount());
+		assertEquals(10_000, decoded.get());
+		
+		// The tracer does not keep the models, nor the machines their actions capture
+		WeakReference<StateMachineModel<String,State, Integer>> first = new WeakReference<>(machines.get(0).getStateMachineModel());
+		
+		machines.clear();
+		
+		for (int i = 0; i < 50 && first.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(first.get());
+	}
+	
+	@Test
+	public void testNestedStates() {
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-TEST19", State.START);
+		
+		// NEW and COMPUTE are nested in START, COMPUTE overrides the Reset of START
+		model.addSubstate(State.START, State.NEW);
+		model.addSubstate(State.START, State.COMPUTE);
+		model.addTransition(State.START, "Reset", State.START, (String event, Integer value) -> 0);
+		model.addTransition(State.START, "Stop", State.DONE);
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "ComputeEvt", State.COMPUTE, (String event, Integer value) -> value * 10);
+		model.addTransition(State.COMPUTE, "Reset", State.NEW, (String event, Integer value) -> value + 5);
+		model.addDefaultActions(Integer.class, null, (Integer event, Integer value, State state) -> value + event);
+		
+		try {
+			model.addSubstate(State.COMPUTE, State.START);
+			fail("START would contain itself");
+		} catch (IllegalArgumentException e) {
+		}
+		
+		StateMachineImpl<Object,State, Integer> nested = new StateMachineImpl<>(model, 0);
+		
+		assertEquals(1, (int) nested.onInput("NewEvt"));
+		
+		// Inherited from START
+		assertEquals(2, (int) nested.onInput("NewEvt"));
+		assertSame(State.NEW, nested.getCurrentState());
+		assertEquals(20, (int) nested.onInput("ComputeEvt"));
+		
+		// The innermost transition wins over the one of START
+		assertEquals(25, (int) nested.onInput("Reset"));
+		assertSame(State.NEW, nested.getCurrentState());
+		assertEquals(0, (int) nested.onInput("Reset"));
+		assertSame(State.START, nested.getCurrentState());
+		
+		// No transition in the chain: the default actions apply
+		assertEquals(3, (int) nested.onInput(3));
+		assertSame(State.START, model.getParentState(State.COMPUTE));
+		assertNull(model.getParentState(State.START));
+		
+		nested.onInput("NewEvt");
+		nested.onInput("Stop");
+		assertSame(State.DONE, nested.getCurrentState());
+	}
+	
+	@Test
+	public void testStateTimeouts() {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST20", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW);
+		model.addTransition(State.NEW, "Ping", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "ComputeEvt", State.COMPUTE);
+		model.addTransition(State.NEW, "Expired", State.DONE, (String event, Integer value) -> value + 100);
+		model.addTimeout(State.NEW, 50, TimeUnit.MILLISECONDS, "Expired");
+		model.addTimeout(State.COMPUTE, 20, TimeUnit.MILLISECONDS, "Expired");
+		model.freeze();
+		
+		AtomicLong now = new AtomicLong();
+		TimingWheel wheel = new TimingWheel(now::get, 10, TimeUnit.MILLISECONDS, 4);
+		StateMachineImpl<String,State, Integer> timed = new StateMachineImpl<>(model, 0);
+		
+		timed.setTimingWheel(wheel);
+		assertEquals(0, wheel.getPendingCount());
+		
+		timed.onInput("NewEvt");
+		assertEquals(1, wheel.getPendingCount());
+		
+		// Every transition into NEW restarts its timeout
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+		assertEquals(0, wheel.advance());
+		timed.onInput("Ping");
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+		assertEquals(0, wheel.advance());
+		assertSame(State.NEW, timed.getCurrentState());
+		
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals(1, wheel.advance());
+		assertSame(State.DONE, timed.getCurrentState());
+		assertEquals(101, (int) timed.getValue());
+		assertEquals(0, wheel.getPendingCount());
+		
+		// Leaving the state cancels its timeout; COMPUTE has no transition for the timeout event
+		StateMachineImpl<String,State, Integer> cancelled = new StateMachineImpl<>(model, 0);
+		
+		cancelled.setTimingWheel(wheel);
+		cancelled.onInput("NewEvt");
+		cancelled.onInput("ComputeEvt");
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+		assertEquals(1, wheel.advance());
+		assertSame(State.COMPUTE, cancelled.getCurrentState());
+		assertEquals(0, wheel.getPendingCount());
+		
+		// Plain tasks, more than a lap of the wheel away
+		int[] fired = new int[1];
+		TimingWheel.Timeout far = wheel.schedule(() -> fired[0]++, 95, TimeUnit.MILLISECONDS);
+		TimingWheel.Timeout dropped = wheel.schedule(() -> fired[0] += 10, 95, TimeUnit.MILLISECONDS);
+		
+		assertTrue(dropped.cancel());
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(90));
+		assertEquals(0, wheel.advance());
+		assertTrue(far.isPending());
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals(1, wheel.advance());
+		assertEquals(1, fired[0]);
+		assertFalse(far.cancel());
+	}
+	
+	@Test
+	public void testGuardedTransitions() {
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-TEST21", State.START);
+		
+		// Tried in order, then the transition without guard
+		model.addTransition(State.START, Integer.class, (Integer event, Integer value) -> event >= 100, State.COMPUTE, (Integer event, Integer value) -> value + event);
+		model.addTransition(State.START, Integer.class, (Integer event, Integer value) -> value + event > 10, State.NEW, (Integer event, Integer value) -> value + event);
+		model.addTransition(State.START, Integer.class, State.START, (Integer event, Integer value) -> value + event);
+		
+		// No transition without guard: the default actions when the guard fails
+		model.addTransition(State.NEW, Integer.class, (Integer event, Integer value) -> event < 0, State.START);
+		model.addDefaultActions(Integer.class, null, (Integer event, Integer value, State state) -> value - event);
+		
+		// Falls back on the transition of the parent state
+		model.addSubstate(State.START, State.COMPUTE);
+		model.addTransition(State.START, "Next", State.NEW);
+		model.addTransition(State.COMPUTE, "Next", (String event, Integer value) -> value > 200, State.DONE);
+		
+		try {
+			model.addTransition(State.START, "Next", null, State.DONE);
+			fail("Guard cannot be null");
+		} catch (IllegalArgumentException e) {
+		}
+		
+		StateMachineImpl<Object,State, Integer> guarded = new StateMachineImpl<>(model, 0);
+		
+		assertEquals(5, (int) guarded.onInput(5));
+		assertSame(State.START, guarded.getCurrentState());
+		assertEquals(11, (int) guarded.onInput(6));
+		assertSame(State.NEW, guarded.getCurrentState());
+		assertEquals(8, (int) guarded.onInput(3));
+		assertSame(State.NEW, guarded.getCurrentState());
+		assertEquals(8, (int) guarded.onInput(-1));
+		assertSame(State.START, guarded.getCurrentState());
+		assertEquals(158, (int) guarded.onInput(150));
+		assertSame(State.COMPUTE, guarded.getCurrentState());
+		guarded.onInput("Next");
+		assertSame(State.NEW, guarded.getCurrentState());
+		
+		if (StateMachineMetrics.ENABLED) {
+			
+			MetricsSnapshot<State> metrics = model.getMetrics();
+			
+			// Every branch of a guarded cell is counted with its own target
+			assertEquals(1, metrics.getCount(State.START, Integer.class, State.COMPUTE));
+			assertEquals(1, metrics.getCount(State.START, Integer.class, State.NEW));
+			assertEquals(1, metrics.getCount(State.START, Integer.class, State.START));
+			assertEquals(3, metrics.getCount(State.START, Integer.class));
+			assertEquals(1, metrics.getCount(State.NEW, Integer.class, State.START));
+			assertEquals(1, metrics.getCount(State.NEW, Integer.class, null));
+		}
+		
+		StateMachineImpl<Object,State, Integer> done = new StateMachineImpl<>(model, 100);
+		
+		done.onInput(150);
+		done.onInput("Next");
+		assertSame(State.DONE, done.getCurrentState());
+		
+		// Guards are evaluated under the lock of a concurrent machine
+		ConcurrentStateMachineImpl<Object,State, Integer> concurrent = new ConcurrentStateMachineImpl<>(model, 0);
+		
+		assertEquals(5, (int) concurrent.onInput(5));
+		assertEquals(11, (int) concurrent.onInput(6));
+		assertSame(State.NEW, concurrent.getCurrentState());
+		assertEquals(8, (int) concurrent.onInput(3));
+		assertSame(State.NEW, concurrent.getCurrentState());
+	}
+	
+	@Test
+	public void testResetAndPool() throws InterruptedException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST22", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "Finish", State.DONE);
+		model.addDoneState(State.DONE);
+		model.addPhaseModel("SM-TEST22-PHASE2", State.DONE).addTransition(State.DONE, "Restart", State.COMPUTE);
+		model.linkStateMachines("SM-TEST22", "SM-TEST22-PHASE2");
+		model.freeze();
+		
+		// Back to the first phase, as constructed
+		StateMachineImpl<String,State, Integer> session = new StateMachineImpl<>(model, 0);
+		
+		session.onInputs(Arrays.asList("NewEvt", "Finish", "Restart"));
+		assertEquals("SM-TEST22-PHASE2", session.getId());
+		assertSame(State.COMPUTE, session.getCurrentState());
+		
+		session.reset(10);
+		assertEquals("SM-TEST22", session.getId());
+		assertSame(State.START, session.getCurrentState());
+		assertNull(session.getPreviousState());
+		assertNull(session.getCurrentEvent());
+		assertEquals(11, (int) session.onInput("NewEvt"));
+		
+		StateMachinePool<Integer, StateMachineImpl<String,State, Integer>> pool = new StateMachinePool<>(2, () -> new StateMachineImpl<>(model, 0), 0);
+		
+		StateMachineImpl<String,State, Integer> first = pool.acquire();
+		StateMachineImpl<String,State, Integer> second = pool.acquire();
+		StateMachineImpl<String,State, Integer> third = pool.acquire();
+		
+		assertEquals(3, pool.getCreatedCount());
+		first.onInputs(Arrays.asList("NewEvt", "Finish"));
+		assertTrue(pool.release(first));
+		assertTrue(pool.release(second));
+		assertFalse(pool.release(third));
+		assertEquals(2, pool.getPooledCount());
+		assertEquals(1, pool.getDroppedCount());
+		
+		StateMachineImpl<String,State, Integer> reused = pool.acquire();
+		
+		assertTrue(reused == first || reused == second);
+		assertSame(State.START, reused.getCurrentState());
+		assertEquals(0, (int) reused.getValue());
+		assertEquals(3, pool.getCreatedCount());
+		
+		reused.setTimingWheel(new TimingWheel());
+		
+		try {
+			pool.release(reused);
+			fail("Still on a timing wheel");
+		} catch (IllegalStateException e) {
+		}
+		
+		// A mutable value is supplied afresh on every release, never shared by two sessions
+		StateMachineModel<String,State, List<String>> listModel = new StateMachineModel<>("SM-TEST22-LIST", State.START);
+		
+		listModel.addTransition(State.START, "NewEvt", State.NEW, (String event, List<String> value) -> {
+			value.add(event);
+			return value;
+		});
+		listModel.freeze();
+		
+		StateMachinePool<List<String>, StateMachineImpl<String,State, List<String>>> listPool = StateMachinePool.withInitialValues(1, () -> new StateMachineImpl<>(listModel, new ArrayList<>()), ArrayList::new);
+		StateMachineImpl<String,State, List<String>> listSession = listPool.acquire();
+		List<String> firstValue = listSession.onInput("NewEvt");
+		
+		assertTrue(listPool.release(listSession));
+		assertSame(listSession, listPool.acquire());
+		assertTrue(listSession.getValue().isEmpty());
+		assertNotSame(firstValue, listSession.getValue());
+		assertEquals(Arrays.asList("NewEvt"), firstValue);
+		
+		// Sessions on several threads reuse the machines of a pool sized for them
+		Thread[] threads = new Thread[4];
+		StateMachinePool<Integer, StateMachineImpl<String,State, Integer>> sharedPool = new StateMachinePool<>(threads.length, () -> new StateMachineImpl<>(model, 0), 0);
+		
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10_000; j++) {
+					
+					StateMachineImpl<String,State, Integer> machine = sharedPool.acquire();
+					
+					assertEquals(1, (int) machine.onInput("NewEvt"));
+					sharedPool.release(machine);
+				}
+			});
+			threads[i].start();
+		}
+		
+		for (Thread thread : threads)
+			thread.join();
+		
+		// A machine is only created when all the others are in use
+		assertTrue(sharedPool.getCreatedCount() <= threads.length);
+		assertEquals(sharedPool.getCreatedCount(), sharedPool.getPooledCount());
+		assertEquals(0, sharedPool.getDroppedCount());
+	}
+	
+	@Test
+	public void testOffHeapStateStore() throws IOException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST23", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, IntAction.of((event, value) -> value + 1));
+		model.addTransition(State.NEW, "NewEvt", State.NEW, IntAction.of((event, value) -> value + 1));
+		model.addTransition(State.NEW, "Finish", State.DONE);
+		model.addDoneState(State.DONE);
+		model.addPhaseModel("SM-TEST23-PHASE2", State.DONE).addTransition(State.DONE, "Restart", State.COMPUTE);
+		model.linkStateMachines("SM-TEST23", "SM-TEST23-PHASE2");
+		model.freeze();
+		
+		OffHeapStateStore<String,State, Integer> store = new OffHeapStateStore<>(() -> new IntStateMachineImpl<>(model, 0), ValueCodec.INT, 4, 1000);
+		
+		assertEquals(24, store.getRecordSize());
+		assertTrue(store.getCapacity() >= 1000);
+		
+		// Machine i takes i + 1 NewEvt
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j <= i; j++)
+				store.onInput(i * 7919L, "NewEvt");
+		}
+		assertEquals(1000, store.size());
+		assertEquals(10, (int) store.onInput(8 * 7919L, "NewEvt"));
+		
+		// A phase switch survives the trip off the heap
+		store.onInput(5 * 7919L, "Finish");
+		store.onInput(5 * 7919L, "Restart");
+		
+		IntStateMachineImpl<String,State> machine = store.get(5 * 7919L, new IntStateMachineImpl<>(model, 0));
+		
+		assertEquals("SM-TEST23-PHASE2", machine.getId());
+		assertSame(State.COMPUTE, machine.getCurrentState());
+		assertSame(State.DONE, machine.getPreviousState());
+		assertEquals(6, machine.getIntValue());
+		assertNull(store.get(-1, machine));
+		
+		// Removing machines keeps the others reachable
+		for (int i = 0; i < 1000; i += 2)
+			assertTrue(store.remove(i * 7919L));
+		
+		assertFalse(store.remove(0));
+		assertEquals(500, store.size());
+		
+		for (int i = 1; i < 1000; i += 2) {
+			assertTrue(store.contains(i * 7919L));
+			assertEquals(i + 1, (int) store.get(i * 7919L, machine).getValue());
+		}
+		
+		machine.reset(1 << 20);
+		store.put(42, machine);
+		assertEquals(1 << 20, (int) store.onInput(42, "Unknown"));
+		
+		// A mapped store keeps the machines across reopening
+		Path file = temporaryFolder.getRoot().toPath().resolve("machines.dat");
+		OffHeapStateStore<String,State, Integer> mapped = new OffHeapStateStore<>(() -> new IntStateMachineImpl<>(model, 0), ValueCodec.INT, 4, 100, file);
+		
+		mapped.onInput(1, "NewEvt");
+		mapped.onInput(1, "NewEvt");
+		mapped.onInput(2, "NewEvt");
+		mapped.force();
+		
+		OffHeapStateStore<String,State, Integer> reopened = new OffHeapStateStore<>(() -> new IntStateMachineImpl<>(model, 0), ValueCodec.INT, 4, 100, file);
+		
+		assertEquals(2, reopened.size());
+		assertEquals(2, (int) reopened.get(1, machine).getValue());
+		assertEquals(1, (int) reopened.get(2, machine).getValue());
+		
+		try {
+			new OffHeapStateStore<>(() -> new StateMachineImpl<String,State, Integer>(model, 0), ValueCodec.INT, 2, 10);
+			fail("An int does not fit in 2 bytes");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testRingBuffer() throws InterruptedException {
+		
+		StateMachineModel<Tick,State, Long> model = new StateMachineModel<>("SM-TEST24", State.START);
+		
+		model.addTransition(State.START, Tick.class, State.START, (Tick event, Long value) -> value + event.amount);
+		model.freeze();
+		
+		// Four producers, one consumer applying whole batches
+		RingBuffer<Tick> ring = new RingBuffer<>(Tick::new, 64, ProducerType.MULTI, WaitStrategy.PARK);
+		StateMachineImpl<Tick,State, Long> machine = new StateMachineImpl<>(model, 0L);
+		RingBufferConsumer<Tick> consumer = new RingBufferConsumer<>(ring, machine);
+		Thread consumerThread = new Thread(consumer, "ring-consumer");
+		
+		consumerThread.start();
+		
+		Thread[] producers = new Thread[4];
+		
+		for (int p = 0; p < producers.length; p++) {
+			producers[p] = new Thread(() -> {
+				for (int i = 1; i <= 10_000; i++)
+					ring.publishEvent((Tick tick, long amount) -> tick.amount = amount, i);
+			});
+			producers[p].start();
+		}
+		
+		for (Thread producer : producers)
+			producer.join();
+		
+		consumer.halt();
+		assertTrue(consumer.awaitTermination(10, TimeUnit.SECONDS));
+		
+		assertEquals(40_000, consumer.getProcessedCount());
+		assertTrue(consumer.getBatchCount() <= consumer.getProcessedCount());
+		assertEquals(4 * 50_005_000L, (long) machine.getValue());
+		assertEquals(0, ring.getBacklog());
+		
+		// A single producer, claiming until the ring is full
+		RingBuffer<Tick> single = new RingBuffer<>(Tick::new, 8, ProducerType.SINGLE, WaitStrategy.YIELD);
+		
+		for (int i = 0; i < 8; i++) {
+			long sequence = single.tryNext();
+			
+			assertEquals(i, sequence);
+			single.get(sequence).amount = 1;
+			single.publish(sequence);
+		}
+		assertEquals(-1, single.tryNext());
+		assertEquals(8, single.getBacklog());
+		
+		StateMachineImpl<Tick,State, Long> singleMachine = new StateMachineImpl<>(model, 0L);
+		RingBufferConsumer<Tick> singleConsumer = new RingBufferConsumer<>(single, singleMachine);
+		Thread singleThread = new Thread(singleConsumer, "ring-consumer-single");
+		
+		singleThread.start();
+		
+		// Wraps around the ring many times
+		for (int i = 0; i < 1000; i++) {
+			long sequence = single.next();
+			single.get(sequence).amount = i;
+			single.publish(sequence);
+		}
+		
+		singleConsumer.halt();
+		assertTrue(singleConsumer.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(1008, singleConsumer.getProcessedCount());
+		assertEquals(8 + 499_500L, (long) singleMachine.getValue());
+		
+		try {
+			new RingBuffer<>(Tick::new, 100, ProducerType.SINGLE, WaitStrategy.PARK);
+			fail("The capacity must be a power of two");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testOperationsAcrossPhases() {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST25", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.DONE);
+		model.addDoneState(State.DONE);
+		
+		StateMachineModel<String,State, Integer> phase2 = model.addPhaseModel("SM-TEST25-PHASE2", State.DONE);
+		
+		phase2.addTransition(State.DONE, "Restart", State.COMPUTE);
+		phase2.addTransition(State.COMPUTE, "Tick", State.COMPUTE);
+		model.linkStateMachines("SM-TEST25", "SM-TEST25-PHASE2");
+		
+		AtomicLong phase2Operations = new AtomicLong();
+		
+		model.addOperations((String event, Integer value) -> value + 1);
+		phase2.addOperations((String event) -> phase2Operations.incrementAndGet());
+		model.freeze();
+		
+		StateMachineImpl<String,State, Integer> machine = new StateMachineImpl<>(model, 0);
+		
+		assertEquals(1, (int) machine.onInput("NewEvt"));
+		assertEquals("SM-TEST25-PHASE2", machine.getId());
+		
+		// Operations keep running in the next phase, wherever they were added
+		assertEquals(2, (int) machine.onInput("Restart"));
+		assertEquals(3, (int) machine.onInput("Tick"));
+		assertEquals(4, (int) machine.onInput("Tick"));
+		assertEquals(4, phase2Operations.get());
+	}
+	
+	@Test
+	public void testActionsAcrossPhases() {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST27", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.DONE);
+		model.addDoneState(State.DONE);
+		
+		StateMachineModel<String,State, Integer> phase2 = model.addPhaseModel("SM-TEST27-PHASE2", State.DONE);
+		
+		phase2.addTransition(State.DONE, "Fail", State.COMPUTE, (String event, Integer value) -> { throw new IllegalStateException(event); });
+		model.linkStateMachines("SM-TEST27", "SM-TEST27-PHASE2");
+		
+		AtomicReference<State> failedIn = new AtomicReference<>();
+		
+		model.addDefaultActions("Ping", null, (String event, Integer value, State state) -> value + 1);
+		model.addErrorAction("Fail", (String event, State state, Exception e) -> failedIn.set(state));
+		model.freeze();
+		
+		StateMachineImpl<String,State, Integer> machine = new StateMachineImpl<>(model, 0);
+		
+		assertEquals(1, (int) machine.onInput("Ping"));
+		assertEquals(1, (int) machine.onInput("NewEvt"));
+		assertEquals("SM-TEST27-PHASE2", machine.getId());
+		
+		// Default and error actions keep applying in the next phase, wherever they were added
+		assertEquals(2, (int) machine.onInput("Ping"));
+		
+		machine.onInput("Fail");
+		
+		// The action runs once the machine entered the target
+		assertEquals(State.COMPUTE, failedIn.get());
+	}
+	
+	@Test
+	public void testJournaledDefaultActions() throws IOException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-TEST26", State.START);
+		
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.COMPUTE, "StartEvt", State.START);
+		model.addDefaultActions("Scale", State.COMPUTE, (Integer value) -> value * 10);
+		model.freeze();
+		
+		Path directory = temporaryFolder.getRoot().toPath().resolve("journal-defaults");
+		JournaledStateMachineImpl<String,State, Integer> machine;
+		
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 1024, 1, TimeUnit.HOURS)) {
+			
+			machine = new JournaledStateMachineImpl<>(model, 0, 1, journal);
+			
+			// The default action moves NEW to COMPUTE: a state change like any transition
+			for (String event : new String[] {"NewEvt", "Scale", "StartEvt", "NewEvt"})
+				machine.onInput(event);
+			
+			assertSame(State.NEW, machine.getCurrentState());
+			assertEquals(11, (int) machine.getValue());
+			assertEquals(4, journal.getAppendedCount());
+			journal.commit();
+		}
+		
+		try (Journal<String> journal = new Journal<>(directory, EventCodec.STRING, 1024, 1, TimeUnit.SECONDS)) {
+			
+			JournaledStateMachineImpl<String,State, Integer> restored = new JournaledStateMachineImpl<>(model, 0, 1, journal);
+			
+			journal.replay((machineId, event, from, to) -> restored.replay(event, from, to));
+			
+			assertSame(machine.getCurrentState(), restored.getCurrentState());
+			assertEquals(machine.getValue(), restored.getValue());
+			assertEquals(0, journal.getAppendedCount());
+		}
+	}
+	
+	public enum Command {
+		OPEN, CLOSE, RESET
+	}
+	
 	public Double getMinDoubleValue(CustomSMEvent event, Double value) {
 		return Double.MIN_VALUE;
 	}
@@ -116,6 +1277,10 @@ public class StateMachineTest {
 		return value;
 	}
 	
+	public void clear() {
+		strVal = null;
+	}
+	
 	public void nullify(CustomSMEvent event) {
 		strVal = null;
 	}
@@ -214,4 +1379,11 @@ public class StateMachineTest {
 		}
 		
 	}
+	
+	/**
+	 * A mutable event, reused in the slots of a ring buffer.
+	 */
+	public static class Tick {
+		long amount;
+	}
 }
@@ -0,0 +1,68 @@
+package statemachine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.state.State;
+
+public class CompiledDispatchTest {
+
+	private String consumed;
+	
+	@Test
+	public void testCompiledDispatch() {
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-COMPILED", State.START);
+		
+		model.setCompiledDispatch(true);
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, Integer.class, State.COMPUTE, (Integer event, Integer value) -> value + event);
+		model.addTransition(State.COMPUTE, "Consume", State.START, (String event) -> consumed = event);
+		model.addTransition(State.START, "Skip", State.DONE);
+		model.addDefaultActions(Long.class, null, (Long event, Integer value, State state) -> value * 2);
+		
+		assertTrue(model.freeze().isCompiled());
+		
+		StateMachineImpl<Object,State, Integer> stateMachine = new StateMachineImpl<>(model, 0);
+		
+		assertEquals(1, (int) stateMachine.onInput("NewEvt"));
+		assertEquals(6, (int) stateMachine.onInput(5));
+		assertEquals(12, (int) stateMachine.onInput(7L));
+		assertEquals(12, (int) stateMachine.onInput("Consume"));
+		assertEquals("Consume", consumed);
+		assertSame(State.START, stateMachine.getCurrentState());
+		assertEquals(12, (int) stateMachine.onInput("Skip"));
+		assertSame(State.DONE, stateMachine.getCurrentState());
+	}
+	
+	@Test
+	public void testLargeModel() {
+		
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-COMPILED-LARGE", State.START);
+		
+		model.setCompiledDispatch(true);
+		
+		// Far more transitions than a single generated method can hold, each with its own action
+		for (int i = 0; i < 1000; i++) {
+			
+			int increment = i;
+			
+			model.addTransition(State.START, "Evt" + i, State.START, (String event, Integer value) -> value + increment);
+		}
+		
+		assertTrue(model.freeze().isCompiled());
+		
+		StateMachineImpl<Object,State, Integer> stateMachine = new StateMachineImpl<>(model, 0);
+		int expected = 0;
+		
+		for (int i = 999; i >= 0; i -= 7) {
+			expected += i;
+			assertEquals(expected, (int) stateMachine.onInput("Evt" + i));
+		}
+		
+		assertEquals(expected + 128, (int) stateMachine.onInput("Evt128"));
+	}
+}
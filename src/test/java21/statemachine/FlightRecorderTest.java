@@ -0,0 +1,83 @@
+package statemachine;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.state.State;
+import com.nektron.statemachine.trace.DispatchRecorder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightRecorderTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testFlightRecorderEvents() throws IOException {
+
+		assertTrue(DispatchRecorder.ENABLED);
+
+		StateMachineModel<Object,State, Integer> model = new StateMachineModel<>("SM-JFR", State.START);
+
+		model.addTransition(State.START, "NewEvt", State.NEW, (String event, Integer value) -> value + 1);
+		model.addTransition(State.NEW, "Fail", State.COMPUTE, (String event, Integer value) -> value / 0);
+		model.addTransition(State.COMPUTE, "Finish", State.DONE);
+		model.addDefaultActions(Long.class, null, (Long event, Integer value, State state) -> value * 2);
+		model.addErrorAction("Fail", (String event, State state, Throwable exception) -> {});
+		model.addDoneState(State.DONE);
+		model.addPhaseModel("SM-JFR-PHASE2", State.DONE).addTransition(State.DONE, "Restart", State.START);
+		model.linkStateMachines("SM-JFR", "SM-JFR-PHASE2");
+
+		StateMachineImpl<Object,State, Integer> stateMachine = new StateMachineImpl<>(model, 0);
+		Path dump = temporaryFolder.getRoot().toPath().resolve("dispatch.jfr");
+
+		try (Recording recording = new Recording()) {
+
+			recording.enable("com.nektron.statemachine.Transition").withThreshold(Duration.ZERO);
+			recording.enable("com.nektron.statemachine.DefaultActions").withThreshold(Duration.ZERO);
+			recording.enable("com.nektron.statemachine.ErrorAction").withThreshold(Duration.ZERO);
+			recording.enable("com.nektron.statemachine.Unmapped");
+			recording.enable("com.nektron.statemachine.PhaseSwitch");
+			recording.start();
+
+			stateMachine.setTracer(null, 42);
+			stateMachine.onInputs(new Object[] {"NewEvt", 3L, "Unknown", "Fail", "Finish"});
+
+			recording.stop();
+			recording.dump(dump);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump).stream()
+				.filter(event -> event.getEventType().getName().startsWith("com.nektron.statemachine."))
+				.filter(event -> event.getLong("machineId") == 42)
+				.sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+				.collect(Collectors.toList());
+
+		assertEquals(List.of("Transition", "DefaultActions", "Unmapped", "ErrorAction", "Transition", "PhaseSwitch"),
+				events.stream().map(event -> event.getEventType().getName().substring("com.nektron.statemachine.".length())).collect(Collectors.toList()));
+
+		assertEquals("SM-JFR", events.get(0).getString("modelId"));
+		assertEquals("NewEvt", events.get(0).getString("event"));
+		assertEquals("START", events.get(0).getString("fromState"));
+		assertEquals("NEW", events.get(0).getString("toState"));
+		assertEquals("3", events.get(1).getString("event"));
+		assertEquals("Unknown", events.get(2).getString("event"));
+		assertEquals("java.lang.ArithmeticException", events.get(3).getClass("exceptionClass").getName());
+		assertTrue(events.get(3).getBoolean("handled"));
+		assertEquals("SM-JFR-PHASE2", events.get(5).getString("nextModelId"));
+	}
+}
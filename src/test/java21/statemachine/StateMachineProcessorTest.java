@@ -0,0 +1,208 @@
+package statemachine;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+import org.reactivestreams.FlowAdapters;
+
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.flow.ReactiveStreamsStateMachineProcessor;
+import com.nektron.statemachine.flow.StateMachineProcessor;
+import com.nektron.statemachine.flow.StateMachineProcessor.Emission;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.state.State;
+
+public class StateMachineProcessorTest {
+
+	@Test
+	public void testBackpressureAndTermination() {
+
+		String[] events = new String[100];
+
+		Arrays.fill(events, "Add");
+		events[50] = "Stop";
+
+		TestPublisher publisher = new TestPublisher(events);
+		StateMachineProcessor<String, Integer> processor = new StateMachineProcessor<>(newMachine(), Emission.EVERY_EVENT, 16);
+		TestSubscriber subscriber = new TestSubscriber();
+
+		publisher.subscribe(processor);
+		processor.subscribe(subscriber);
+
+		// No demand downstream, nothing requested upstream
+		assertEquals(0, publisher.requested);
+
+		subscriber.subscription.request(3);
+
+		assertEquals(Arrays.asList(1, 2, 3), subscriber.values);
+		assertEquals(3, publisher.requested);
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		// Batches of at most 16 events, up to the terminal state, where upstream is cancelled
+		assertEquals(16, publisher.largestRequest);
+		assertTrue(publisher.cancelled);
+		assertEquals(51, publisher.published);
+		assertEquals(51, subscriber.values.size());
+		assertEquals(50, (int) subscriber.values.get(50));
+		assertTrue(subscriber.completed);
+		assertNull(subscriber.error);
+
+		// Only done and terminal states emit, waiting for demand while the upstream is paused
+		events = new String[] { "Add", "Add", "Done", "Add", "Done", "Add", "Stop", "Add" };
+		publisher = new TestPublisher(events);
+		processor = new StateMachineProcessor<>(newMachine(), Emission.DONE_OR_TERMINAL, 4);
+		subscriber = new TestSubscriber();
+
+		publisher.subscribe(processor);
+		processor.subscribe(subscriber);
+
+		assertEquals(4, publisher.requested);
+		assertEquals(4, publisher.published);
+		assertTrue(subscriber.values.isEmpty());
+
+		subscriber.subscription.request(1);
+
+		assertEquals(Arrays.asList(2), subscriber.values);
+
+		subscriber.subscription.request(10);
+
+		assertEquals(Arrays.asList(2, 3, 4), subscriber.values);
+		assertEquals(7, publisher.published);
+		assertTrue(publisher.cancelled);
+		assertTrue(subscriber.completed);
+
+		// Downstream cancellation reaches upstream
+		publisher = new TestPublisher(events);
+		processor = new StateMachineProcessor<>(newMachine());
+		subscriber = new TestSubscriber();
+
+		publisher.subscribe(processor);
+		processor.subscribe(subscriber);
+		subscriber.subscription.request(1);
+		subscriber.subscription.cancel();
+
+		assertTrue(publisher.cancelled);
+		assertEquals(Arrays.asList(1), subscriber.values);
+
+		// A single subscriber
+		TestSubscriber second = new TestSubscriber();
+
+		processor.subscribe(second);
+		assertTrue(second.error instanceof IllegalStateException);
+
+		// Reactive Streams
+		publisher = new TestPublisher(events);
+		ReactiveStreamsStateMachineProcessor<String, Integer> reactiveProcessor = new ReactiveStreamsStateMachineProcessor<>(newMachine(), Emission.DONE_OR_TERMINAL, 4);
+		subscriber = new TestSubscriber();
+
+		FlowAdapters.toFlowPublisher(reactiveProcessor).subscribe(subscriber);
+		FlowAdapters.toPublisher(publisher).subscribe(reactiveProcessor);
+		subscriber.subscription.request(10);
+
+		assertEquals(Arrays.asList(2, 3, 4), subscriber.values);
+		assertTrue(subscriber.completed);
+	}
+
+	private static StateMachineImpl<String, State, Integer> newMachine() {
+
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-FLOW", State.START);
+
+		model.addTransition(State.START, "Add", State.START, (String event, Integer value) -> value + 1);
+		model.addTransition(State.START, "Done", State.COMPUTE);
+		model.addTransition(State.COMPUTE, "Add", State.START, (String event, Integer value) -> value + 1);
+		model.addTransition(State.START, "Stop", State.DONE);
+		model.addDoneState(State.COMPUTE);
+		model.addTerminalState(State.DONE);
+
+		return new StateMachineImpl<>(model, 0);
+	}
+
+	/**
+	 * Publishes the events synchronously, recording the demand.
+	 */
+	private static class TestPublisher implements Flow.Publisher<String> {
+
+		private final String[] events;
+
+		long requested;
+		long largestRequest;
+		int published;
+		boolean cancelled;
+
+		private long pending;
+		private boolean emitting;
+
+		TestPublisher(String[] events) {
+			this.events = events;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super String> subscriber) {
+
+			subscriber.onSubscribe(new Flow.Subscription() {
+
+				@Override
+				public void request(long n) {
+
+					requested += n;
+					largestRequest = Math.max(largestRequest, n);
+					pending += n;
+
+					if (emitting)
+						return;
+
+					emitting = true;
+
+					while (pending > 0 && !cancelled && published < events.length) {
+						pending--;
+						subscriber.onNext(events[published++]);
+					}
+
+					if (!cancelled && published == events.length)
+						subscriber.onComplete();
+
+					emitting = false;
+				}
+
+				@Override
+				public void cancel() {
+					cancelled = true;
+				}
+			});
+		}
+	}
+
+	private static class TestSubscriber implements Flow.Subscriber<Integer> {
+
+		Flow.Subscription subscription;
+		List<Integer> values = new ArrayList<>();
+		boolean completed;
+		Throwable error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(Integer value) {
+			values.add(value);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+}
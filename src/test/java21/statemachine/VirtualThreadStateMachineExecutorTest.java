@@ -0,0 +1,114 @@
+package statemachine;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nektron.statemachine.StateMachine;
+import com.nektron.statemachine.StateMachineModel;
+import com.nektron.statemachine.executor.VirtualThreadStateMachineExecutor;
+import com.nektron.statemachine.impl.StateMachineImpl;
+import com.nektron.statemachine.state.State;
+
+public class VirtualThreadStateMachineExecutorTest {
+
+	@Test
+	public void testBlockingActions() throws InterruptedException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-VIRTUAL", State.START);
+		
+		model.addTransition(State.START, "Add", State.START, (String event, Integer value) -> {
+			sleep(10);
+			return value + 1;
+		});
+		model.addTransition(State.START, "Stop", State.DONE);
+		
+		VirtualThreadStateMachineExecutor<String> executor = new VirtualThreadStateMachineExecutor<>();
+		
+		@SuppressWarnings("unchecked")
+		StateMachine<String,State, Integer>[] machines = new StateMachine[10_000];
+		
+		for (int id = 0; id < machines.length; id++) {
+			machines[id] = new StateMachineImpl<>(model, 0);
+			executor.register(id, machines[id]);
+		}
+		
+		long start = System.nanoTime();
+		
+		for (int i = 0; i < 10; i++)
+			for (int id = 0; id < machines.length; id++)
+				executor.submit(id, "Add");
+		
+		for (int id = 0; id < machines.length; id++)
+			executor.submit(id, "Stop");
+		
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		
+		// 100,000 actions sleeping 10ms each, far beyond what a platform thread pool would finish in time
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+		assertEquals(machines.length * 11, executor.getProcessedCount());
+		
+		for (StateMachine<String,State, Integer> machine : machines) {
+			assertEquals(10, (int) machine.getValue());
+			assertSame(State.DONE, machine.getCurrentState());
+		}
+	}
+	
+	@Test
+	public void testUnregisterAndShutdown() throws InterruptedException {
+		
+		StateMachineModel<String,State, Integer> model = new StateMachineModel<>("SM-VIRTUAL-STOP", State.START);
+		
+		model.addTransition(State.START, "Add", State.START, (String event, Integer value) -> {
+			sleep(10);
+			return value + 1;
+		});
+		model.freeze();
+		
+		VirtualThreadStateMachineExecutor<String> executor = new VirtualThreadStateMachineExecutor<>();
+		StateMachine<String,State, Integer> unregistered = new StateMachineImpl<>(model, 0);
+		
+		executor.register(0, unregistered);
+		
+		for (int i = 0; i < 20; i++)
+			executor.submit(0, "Add");
+		
+		// Still applying its events once unregistered: termination waits for them
+		executor.unregister(0);
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(20, (int) unregistered.getValue());
+		
+		// Registrations racing a shutdown either fail or get their loop stopped
+		for (int round = 0; round < 20; round++) {
+			
+			VirtualThreadStateMachineExecutor<String> racing = new VirtualThreadStateMachineExecutor<>();
+			Thread registrar = Thread.ofPlatform().start(() -> {
+				try {
+					for (long id = 0; ; id++)
+						racing.register(id, new StateMachineImpl<>(model, 0));
+				}
+				catch (IllegalStateException e) {
+				}
+			});
+			
+			sleep(1);
+			racing.shutdown();
+			registrar.join();
+			
+			assertTrue(racing.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+	
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}